@@ -66,7 +66,52 @@ public class OpenOutputStreamTest extends FileSystemTest {
 		} catch (IOException e) {
 			fail("4.99", e);
 		}
+		assertEquals("2.0", 2, file.fetchInfo().getLength());
+	}
 
+	/**
+	 * Appends many small records, and ensures that a stream opened before
+	 * the last appends does not see them.
+	 */
+	public void testAppendMany() {
+		IFileStore file = baseStore.getChild("file");
+		ensureDoesNotExist(file);
+		final int COUNT = 1000;
+		InputStream early = null;
+		try {
+			for (int i = 0; i < COUNT; i++) {
+				if (i == COUNT / 2)
+					early = file.openInputStream(EFS.NONE, getMonitor());
+				OutputStream out = file.openOutputStream(EFS.APPEND, getMonitor());
+				out.write(new byte[] {(byte) i, (byte) (i >> 8), 7});
+				out.close();
+			}
+		} catch (CoreException e) {
+			fail("1.99", e);
+		} catch (IOException e) {
+			fail("2.99", e);
+		}
+		assertEquals("1.0", 3 * COUNT, file.fetchInfo().getLength());
+		try {
+			InputStream in = file.openInputStream(EFS.NONE, getMonitor());
+			for (int i = 0; i < COUNT; i++) {
+				assertEquals("2.0." + i, i & 0xFF, in.read());
+				assertEquals("2.1." + i, (i >> 8) & 0xFF, in.read());
+				assertEquals("2.2." + i, 7, in.read());
+			}
+			assertEquals("2.3", -1, in.read());
+			in.close();
+			for (int i = 0; i < COUNT / 2; i++) {
+				assertEquals("3.0." + i, i & 0xFF, early.read());
+				early.skip(2);
+			}
+			assertEquals("3.1", -1, early.read());
+			early.close();
+		} catch (CoreException e) {
+			fail("3.99", e);
+		} catch (IOException e) {
+			fail("4.99", e);
+		}
 	}
 
 	public void testParentExists() {
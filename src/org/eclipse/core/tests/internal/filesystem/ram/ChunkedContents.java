@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.filesystem.ram;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable contents of an in-memory file, stored as a sequence of chunks.
+ * <p>
+ * The bytes of a contents object are never modified once it exists, so its
+ * chunks can be shared: appending creates a new contents object that refers
+ * to the existing chunks rather than copying them, and input streams read the
+ * chunks directly. Chunks may be heap or direct buffers.
+ * </p><p>
+ * Contents that were appended to each other share one chunk array with spare
+ * capacity, like a growable list. Only the newest contents of an array may
+ * add to it, so appending to the newest contents is amortized constant time
+ * in the number of chunks, and appending to older contents copies the array
+ * first. Small appended data is copied into the unused space of the last
+ * chunk instead of adding a chunk of its own, so many small appends do not
+ * leave many tiny chunks.
+ * </p><p>
+ * A slot of the chunk array is never changed once contents that use it
+ * exist, since their readers access it without holding the lock. A last
+ * chunk with spare space is stored as a view of its whole buffer, of which
+ * each contents only reads its own length, and bytes are only added after
+ * the used part. When another chunk is added after a partly used one, the
+ * array is copied with a view that ends at its last used byte.
+ * </p>
+ */
+class ChunkedContents {
+	/** Appended data up to this size is copied rather than attached */
+	static final int COALESCE_LIMIT = 4 * 1024;
+
+	static final ChunkedContents EMPTY = new ChunkedContents(new ByteBuffer[0], 0, null);
+
+	/**
+	 * The chunk array shared by contents that were appended to each other,
+	 * and the state of its newest contents.
+	 */
+	private static class Chunks {
+		ByteBuffer[] array;
+		int count;
+		long length;
+
+		/** The number of used bytes of the last chunk, which may be less than its limit */
+		int lastSize;
+
+		/**
+		 * The writable buffer behind the last chunk, positioned after its
+		 * last used byte, or <code>null</code> if the last chunk is full or
+		 * shared with another array.
+		 */
+		ByteBuffer spare;
+
+		Chunks(ByteBuffer[] array, int count, long length, ByteBuffer spare) {
+			this.array = array;
+			this.count = count;
+			this.length = length;
+			this.spare = spare;
+			this.lastSize = spare != null ? spare.position() : (count == 0 ? 0 : array[count - 1].limit());
+		}
+
+		/**
+		 * Adds the chunks of the given contents to the end of the array.
+		 */
+		void attach(ChunkedContents tail) {
+			seal();
+			ensureCapacity(count + tail.count);
+			System.arraycopy(tail.array, 0, array, count, tail.count);
+			count += tail.count;
+			length += tail.length;
+			lastSize = tail.lastSize;
+			spare = tail.takeSpare();
+		}
+
+		/**
+		 * Copies the bytes of the given contents into the spare space of the
+		 * last chunk, and into new chunks when it is full.
+		 */
+		void copy(ChunkedContents tail) {
+			for (int i = 0; i < tail.count; i++) {
+				ByteBuffer source = tail.chunk(i);
+				while (source.hasRemaining()) {
+					if (spare == null || !spare.hasRemaining())
+						grow(source.isDirect());
+					int size = Math.min(spare.remaining(), source.remaining());
+					ByteBuffer part = source.duplicate();
+					part.limit(part.position() + size);
+					//the last chunk already covers the whole buffer, older readers stop at their own length
+					spare.put(part);
+					source.position(source.position() + size);
+					lastSize += size;
+				}
+			}
+			length += tail.length;
+		}
+
+		private void ensureCapacity(int size) {
+			if (size <= array.length)
+				return;
+			ByteBuffer[] newArray = new ByteBuffer[Math.max(size, 2 * array.length)];
+			System.arraycopy(array, 0, newArray, 0, count);
+			array = newArray;
+		}
+
+		/**
+		 * Adds an empty chunk to write to, twice as large as the last one.
+		 */
+		private void grow(boolean direct) {
+			int size = spare == null ? ChunkedOutputStream.MIN_CHUNK_SIZE : Math.min(2 * spare.capacity(), ChunkedOutputStream.MAX_CHUNK_SIZE);
+			seal();
+			spare = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+			ensureCapacity(count + 1);
+			array[count++] = spare.duplicate().asReadOnlyBuffer();
+			lastSize = 0;
+		}
+
+		/**
+		 * Makes the last chunk end at its last used byte, before a chunk is
+		 * added after it. The slot may be read by existing contents, so a
+		 * partly used chunk is replaced in a copy of the array.
+		 */
+		private void seal() {
+			if (count == 0 || lastSize == array[count - 1].limit())
+				return;
+			ByteBuffer[] newArray = new ByteBuffer[array.length];
+			System.arraycopy(array, 0, newArray, 0, count);
+			ByteBuffer last = array[count - 1].duplicate();
+			last.limit(lastSize);
+			newArray[count - 1] = last;
+			array = newArray;
+			spare = null;
+		}
+	}
+
+	/**
+	 * Input stream reading from the chunks of a contents object. Each chunk is
+	 * duplicated before reading so that concurrent readers don't interfere.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		private final ByteBuffer[] chunks;
+		private final int count;
+		private ByteBuffer current;
+		private int next = 0;
+
+		/** The number of bytes of the contents that have not been read yet */
+		private long remaining;
+
+		ChunkedInputStream(ByteBuffer[] chunks, int count, long length) {
+			this.chunks = chunks;
+			this.count = count;
+			this.remaining = length;
+		}
+
+		public int available() {
+			return current == null ? 0 : current.remaining();
+		}
+
+		/**
+		 * Returns the chunk to read from, or null if the end of stream was reached.
+		 */
+		private ByteBuffer current() {
+			while (current == null || !current.hasRemaining()) {
+				if (next >= count || remaining == 0)
+					return null;
+				current = chunks[next++].duplicate();
+				//the last chunk may extend past the bytes of these contents
+				if (current.remaining() > remaining)
+					current.limit(current.position() + (int) remaining);
+				remaining -= current.remaining();
+			}
+			return current;
+		}
+
+		public int read() {
+			ByteBuffer chunk = current();
+			return chunk == null ? -1 : chunk.get() & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			ByteBuffer chunk = current();
+			if (chunk == null)
+				return -1;
+			int count = Math.min(len, chunk.remaining());
+			chunk.get(b, off, count);
+			return count;
+		}
+
+		public long skip(long n) {
+			long skipped = 0;
+			ByteBuffer chunk;
+			while (skipped < n && (chunk = current()) != null) {
+				int count = (int) Math.min(n - skipped, chunk.remaining());
+				chunk.position(chunk.position() + count);
+				skipped += count;
+			}
+			return skipped;
+		}
+	}
+
+	private final ByteBuffer[] array;
+	private final int count;
+
+	/** The number of bytes of the last chunk that belong to these contents */
+	private final int lastSize;
+	private final long length;
+	private final Chunks shared;
+
+	/**
+	 * Creates contents from the given chunks. The chunks must not be modified
+	 * afterwards, except for the given spare buffer behind the last chunk;
+	 * their position must be zero and their limit the chunk size. If there
+	 * is a spare buffer, the last chunk is a view of all of it, and the
+	 * position of the spare buffer is the size of the last chunk.
+	 */
+	ChunkedContents(ByteBuffer[] chunks, long length, ByteBuffer spare) {
+		this(new Chunks(chunks, chunks.length, length, spare));
+	}
+
+	private ChunkedContents(Chunks shared) {
+		this.shared = shared;
+		this.array = shared.array;
+		this.count = shared.count;
+		this.length = shared.length;
+		this.lastSize = shared.lastSize;
+	}
+
+	/**
+	 * Returns new contents consisting of these contents followed by the given
+	 * contents. Data of the given contents is only copied if it is small.
+	 */
+	ChunkedContents append(ChunkedContents tail) {
+		if (tail.length == 0)
+			return this;
+		if (length == 0)
+			return tail;
+		synchronized (shared) {
+			Chunks target = shared;
+			if (!isNewest()) {
+				//another contents has added to the array, start a new one
+				ByteBuffer[] newArray = new ByteBuffer[2 * (count + tail.count)];
+				System.arraycopy(array, 0, newArray, 0, count);
+				//the last chunk may extend past the bytes of these contents
+				ByteBuffer last = array[count - 1].duplicate();
+				last.limit(lastSize);
+				newArray[count - 1] = last;
+				target = new Chunks(newArray, count, length, null);
+			}
+			if (tail.length <= COALESCE_LIMIT)
+				target.copy(tail);
+			else
+				target.attach(tail);
+			return new ChunkedContents(target);
+		}
+	}
+
+	/**
+	 * Returns the chunk at the given index, limited to the bytes of these
+	 * contents.
+	 */
+	private ByteBuffer chunk(int index) {
+		ByteBuffer chunk = array[index].duplicate();
+		if (index == count - 1)
+			chunk.limit(lastSize);
+		return chunk;
+	}
+
+	long getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns whether these contents are the newest contents of their chunk
+	 * array. Must be called while holding the lock of the array.
+	 */
+	private boolean isNewest() {
+		return shared.array == array && shared.count == count && shared.length == length;
+	}
+
+	InputStream openInputStream() {
+		return new ChunkedInputStream(array, count, length);
+	}
+
+	/**
+	 * Returns the spare buffer behind the last chunk of these contents, and
+	 * gives up the right to write to it.
+	 */
+	private ByteBuffer takeSpare() {
+		synchronized (shared) {
+			if (!isNewest())
+				return null;
+			ByteBuffer spare = shared.spare;
+			shared.spare = null;
+			return spare;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.filesystem.ram;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Output stream that collects written bytes into chunks for a
+ * {@link ChunkedContents}. Unlike a <code>ByteArrayOutputStream</code>, full
+ * buffers are kept as chunks instead of being copied into a larger buffer.
+ * Buffer sizes start small and double up to {@link #MAX_CHUNK_SIZE}, so small
+ * files stay small.
+ */
+class ChunkedOutputStream extends OutputStream {
+	static final int MIN_CHUNK_SIZE = 256;
+
+	static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+	private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private ByteBuffer current;
+	private final boolean direct;
+	private long length = 0;
+
+	/**
+	 * @param direct <code>true</code> if the chunks should be allocated
+	 * outside of the Java heap, and <code>false</code> otherwise
+	 */
+	ChunkedOutputStream(boolean direct) {
+		this.direct = direct;
+	}
+
+	private ByteBuffer allocate(int size) {
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Returns a buffer with at least one byte of free space.
+	 */
+	private ByteBuffer current() {
+		if (current == null) {
+			current = allocate(MIN_CHUNK_SIZE);
+		} else if (!current.hasRemaining()) {
+			current.flip();
+			chunks.add(current.asReadOnlyBuffer());
+			current = allocate(Math.min(current.capacity() * 2, MAX_CHUNK_SIZE));
+		}
+		return current;
+	}
+
+	/**
+	 * Returns the contents written so far. The stream must not be written to
+	 * after this method has been called. The last chunk is not trimmed: it is
+	 * a view of its whole buffer, whose unused space is kept for data appended
+	 * to the contents later.
+	 */
+	ChunkedContents toContents() {
+		ByteBuffer spare = null;
+		if (current != null && current.position() > 0) {
+			ByteBuffer last = current.duplicate();
+			last.clear();
+			chunks.add(last.asReadOnlyBuffer());
+			spare = current;
+		}
+		current = null;
+		return new ChunkedContents(chunks.toArray(new ByteBuffer[chunks.size()]), length, spare);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || off + len > b.length)
+			throw new IndexOutOfBoundsException();
+		while (len > 0) {
+			ByteBuffer buffer = current();
+			int count = Math.min(len, buffer.remaining());
+			buffer.put(b, off, count);
+			off += count;
+			len -= count;
+			length += count;
+		}
+	}
+
+	public void write(int b) {
+		current().put((byte) b);
+		length++;
+	}
+}
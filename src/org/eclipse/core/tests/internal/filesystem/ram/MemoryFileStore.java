@@ -30,6 +30,11 @@ public class MemoryFileStore extends FileStore {
 		this.path = path.setDevice(null);
 	}
 
+	public IFileInfo[] childInfos(int options, IProgressMonitor monitor) {
+		final IFileInfo[] infos = TREE.childInfos(path);
+		return infos == null ? EMPTY_FILE_INFO_ARRAY : infos;
+	}
+
 	public String[] childNames(int options, IProgressMonitor monitor) {
 		final String[] names = TREE.childNames(path);
 		return names == null ? EMPTY_STRING_ARRAY : names;
@@ -47,6 +52,10 @@ public class MemoryFileStore extends FileStore {
 		return new MemoryFileStore(path.append(name));
 	}
 
+	IPath getPath() {
+		return path;
+	}
+
 	public String getName() {
 		final String name = path.lastSegment();
 		return name == null ? "" : name;
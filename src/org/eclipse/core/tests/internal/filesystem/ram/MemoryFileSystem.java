@@ -42,11 +42,17 @@ public class MemoryFileSystem extends FileSystem {
 	}
 
 	/**
-	 * This method is implemented in the test suite to ensure the throws clause is
-	 * not accidentally removed from the FileSystem base class. See bug 280944.
+	 * Returns a snapshot of the in-memory subtree rooted at the given store,
+	 * built in a single traversal of the tree.
+	 * <p>
+	 * The throws clause is kept to ensure it is not accidentally removed from
+	 * the FileSystem base class. See bug 280944.
+	 * </p>
 	 */
 	public IFileTree fetchFileTree(IFileStore root, IProgressMonitor monitor) throws CoreException {
-		return super.fetchFileTree(root, monitor);
+		if (!(root instanceof MemoryFileStore))
+			return super.fetchFileTree(root, monitor);
+		return MemoryTree.TREE.fetchFileTree((MemoryFileStore) root);
 	}
 
 	public IFileStore getStore(URI uri) {
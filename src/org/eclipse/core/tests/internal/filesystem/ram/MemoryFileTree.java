@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.filesystem.ram;
+
+import java.util.HashMap;
+import org.eclipse.core.filesystem.IFileInfo;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.filesystem.provider.FileTree;
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * A snapshot of a subtree of the in-memory file system.
+ *
+ * @see MemoryTree#fetchFileTree(MemoryFileStore)
+ */
+public class MemoryFileTree extends FileTree {
+	private static final IFileInfo[] NO_INFOS = new IFileInfo[0];
+	private static final IFileStore[] NO_STORES = new IFileStore[0];
+
+	/** Map of IPath -> IFileInfo[] for all directories in the tree */
+	private final HashMap<IPath, IFileInfo[]> childInfos = new HashMap<IPath, IFileInfo[]>();
+
+	/** Map of IPath -> IFileInfo for all stores in the tree */
+	private final HashMap<IPath, IFileInfo> infos = new HashMap<IPath, IFileInfo>();
+
+	MemoryFileTree(MemoryFileStore root) {
+		super(root);
+	}
+
+	public IFileInfo[] getChildInfos(IFileStore store) {
+		if (!(store instanceof MemoryFileStore))
+			return NO_INFOS;
+		IFileInfo[] result = childInfos.get(((MemoryFileStore) store).getPath());
+		return result == null ? NO_INFOS : result;
+	}
+
+	public IFileStore[] getChildStores(IFileStore store) {
+		IFileInfo[] children = getChildInfos(store);
+		if (children.length == 0)
+			return NO_STORES;
+		IFileStore[] result = new IFileStore[children.length];
+		for (int i = 0; i < children.length; i++)
+			result[i] = store.getChild(children[i].getName());
+		return result;
+	}
+
+	public IFileInfo getFileInfo(IFileStore store) {
+		if (!(store instanceof MemoryFileStore))
+			return null;
+		return infos.get(((MemoryFileStore) store).getPath());
+	}
+
+	void setChildInfos(IPath parent, IFileInfo[] children) {
+		childInfos.put(parent, children);
+		for (int i = 0; i < children.length; i++)
+			infos.put(parent.append(children[i].getName()), children[i]);
+	}
+
+	void setInfo(IPath path, IFileInfo info) {
+		infos.put(path, info);
+	}
+}
@@ -10,8 +10,11 @@
  *******************************************************************************/
 package org.eclipse.core.tests.internal.filesystem.ram;
 
-import java.io.*;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.eclipse.core.filesystem.EFS;
 import org.eclipse.core.filesystem.IFileInfo;
 import org.eclipse.core.filesystem.provider.FileInfo;
@@ -20,26 +23,43 @@ import org.eclipse.core.runtime.IPath;
 
 /**
  * An in-memory file system.
+ * <p>
+ * Children of a directory are indexed by name, so looking up a path costs
+ * O(depth) regardless of how many siblings each directory has, and are
+ * listed in the order they were created. The tree is
+ * guarded by a read/write lock: queries may run concurrently with each other,
+ * while mutations are exclusive.
+ * </p>
  */
 public class MemoryTree {
 	static class DirNode extends Node {
-		private final ArrayList<Node> children = new ArrayList<Node>();
+		private final LinkedHashMap<String, Node> children = new LinkedHashMap<String, Node>();
 
 		DirNode(Node parent, String name) {
 			super(parent, name);
 		}
 
 		void add(Node child) {
-			children.add(child);
+			children.put(child.getInfo(false).getName(), child);
 		}
 
 		public String[] childNames() {
-			String[] names = new String[children.size()];
-			for (int i = 0, imax = children.size(); i < imax; i++) {
-				Node child = children.get(i);
-				names[i] = child.getInfo(false).getName();
-			}
-			return names;
+			return children.keySet().toArray(new String[children.size()]);
+		}
+
+		/**
+		 * Returns copies of the infos of all children.
+		 */
+		IFileInfo[] childInfos() {
+			IFileInfo[] infos = new IFileInfo[children.size()];
+			int i = 0;
+			for (Node child : children.values())
+				infos[i++] = child.getInfo(true);
+			return infos;
+		}
+
+		Iterable<Node> children() {
+			return children.values();
 		}
 
 		/**
@@ -48,12 +68,7 @@ public class MemoryTree {
 		 * @return
 		 */
 		Node getChild(String name) {
-			for (int i = 0, imax = children.size(); i < imax; i++) {
-				Node child = children.get(i);
-				if (child.getInfo(false).getName().equals(name))
-					return child;
-			}
-			return null;
+			return children.get(name);
 		}
 
 		protected void initializeInfo(FileInfo fileInfo) {
@@ -66,9 +81,7 @@ public class MemoryTree {
 		}
 
 		void remove(String name) {
-			Node child = getChild(name);
-			if (child != null)
-				children.remove(child);
+			children.remove(name);
 		}
 
 		public String toString() {
@@ -77,7 +90,7 @@ public class MemoryTree {
 	}
 
 	static class FileNode extends Node {
-		byte[] contents = EMPTY_CONTENTS;
+		volatile ChunkedContents contents = ChunkedContents.EMPTY;
 
 		FileNode(Node parent, String name) {
 			super(parent, name);
@@ -88,30 +101,37 @@ public class MemoryTree {
 		}
 
 		public InputStream openInputStream() {
-			return new ByteArrayInputStream(contents);
+			return contents.openInputStream();
 		}
 
-		public OutputStream openOutputStream(final int options) {
-			return new ByteArrayOutputStream() {
-				public void close() throws IOException {
-					super.close();
-					setContents(toByteArray(), options);
+		/**
+		 * Returns a stream whose contents are committed to this node on close.
+		 * The given lock is held while the new contents are installed.
+		 */
+		public OutputStream openOutputStream(final int options, boolean direct, final Lock writeLock) {
+			return new ChunkedOutputStream(direct) {
+				private boolean closed = false;
+
+				public void close() {
+					if (closed)
+						return;
+					closed = true;
+					writeLock.lock();
+					try {
+						setContents(toContents(), options);
+					} finally {
+						writeLock.unlock();
+					}
 				}
 			};
 		}
 
-		protected void setContents(byte[] bytes, int options) {
-			if ((options & EFS.APPEND) != 0) {
-				//create reference in case of concurrent modification
-				byte[] oldContents = this.contents;
-				byte[] newContents = new byte[oldContents.length + bytes.length];
-				System.arraycopy(oldContents, 0, newContents, 0, oldContents.length);
-				System.arraycopy(bytes, 0, newContents, oldContents.length, bytes.length);
-				this.contents = newContents;
-			} else
-				this.contents = bytes;
+		protected void setContents(ChunkedContents newContents, int options) {
+			if ((options & EFS.APPEND) != 0)
+				newContents = this.contents.append(newContents);
+			this.contents = newContents;
 			info.setLastModified(System.currentTimeMillis());
-			((FileInfo) info).setLength(bytes.length);
+			((FileInfo) info).setLength(newContents.getLength());
 		}
 	}
 
@@ -119,11 +139,12 @@ public class MemoryTree {
 		protected IFileInfo info;
 
 		Node(Node parent, String name) {
-			if (parent != null)
-				((DirNode) parent).add(this);
 			FileInfo fileInfo = new FileInfo(name);
 			initializeInfo(fileInfo);
 			this.info = fileInfo;
+			//the parent indexes children by name, so the info must be set first
+			if (parent != null)
+				((DirNode) parent).add(this);
 		}
 
 		IFileInfo getInfo(boolean copy) {
@@ -159,39 +180,90 @@ public class MemoryTree {
 
 	public static final MemoryTree TREE = new MemoryTree();
 
-	static final byte[] EMPTY_CONTENTS = new byte[0];
-
 	private static final String ROOT_NAME = "<root>";
 
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Lock readLock = lock.readLock();
+
+	private final Lock writeLock = lock.writeLock();
+
 	private Node root = new DirNode(null, ROOT_NAME);
 
+	private volatile boolean useDirectBuffers = false;
+
 	private MemoryTree() {
 		// TREE singleton should be used rather than direct instantiation
 	}
 
 	public String[] childNames(IPath path) {
-		Node node = findNode(path);
-		if (node == null || node.isFile())
-			return null;
-		return ((DirNode) node).childNames();
+		readLock.lock();
+		try {
+			Node node = findNode(path);
+			if (node == null || node.isFile())
+				return null;
+			return ((DirNode) node).childNames();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the infos of the children of the directory at the given path,
+	 * or null if there is no such directory.
+	 * @param path
+	 * @return
+	 */
+	public IFileInfo[] childInfos(IPath path) {
+		readLock.lock();
+		try {
+			Node node = findNode(path);
+			if (node == null || node.isFile())
+				return null;
+			return ((DirNode) node).childInfos();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the infos of the given directory and all its descendants to the
+	 * given file tree. The caller must hold the read or the write lock.
+	 */
+	private void collectInfos(IPath path, DirNode dir, MemoryFileTree tree) {
+		IFileInfo[] infos = dir.childInfos();
+		tree.setChildInfos(path, infos);
+		for (Node child : dir.children()) {
+			if (!child.isFile())
+				collectInfos(path.append(child.getInfo(false).getName()), (DirNode) child, tree);
+		}
 	}
 
 	public void delete(IPath path) {
 		//cannot delete the root
 		if (path.segmentCount() == 0)
 			return;
-		Node parent = findNode(path.removeLastSegments(1));
-		if (parent == null || parent.isFile())
-			return;
-		((DirNode) parent).remove(path.lastSegment());
-
+		writeLock.lock();
+		try {
+			Node parent = findNode(path.removeLastSegments(1));
+			if (parent == null || parent.isFile())
+				return;
+			((DirNode) parent).remove(path.lastSegment());
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	/**
 	 * Deletes the entire memory tree. Used during debugging and testing only.
 	 */
 	public void deleteAll() {
-		this.root = new DirNode(null, ROOT_NAME);
+		writeLock.lock();
+		try {
+			this.root = new DirNode(null, ROOT_NAME);
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	/**
@@ -199,15 +271,47 @@ public class MemoryTree {
 	 * @param path
 	 * @return
 	 */
-	public synchronized IFileInfo fetchInfo(IPath path) {
-		Node node = findNode(path);
-		if (node == null)
-			return new FileInfo(path.lastSegment());
-		return node.getInfo(true);
+	public IFileInfo fetchInfo(IPath path) {
+		readLock.lock();
+		try {
+			Node node = findNode(path);
+			if (node == null)
+				return new FileInfo(path.lastSegment());
+			return node.getInfo(true);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the subtree rooted at the given store. The
+	 * snapshot is taken in a single traversal, so it is consistent even
+	 * if the tree is modified concurrently.
+	 * @param root
+	 * @return
+	 */
+	public MemoryFileTree fetchFileTree(MemoryFileStore root) {
+		MemoryFileTree tree = new MemoryFileTree(root);
+		readLock.lock();
+		try {
+			IPath path = root.getPath();
+			Node node = findNode(path);
+			if (node == null) {
+				tree.setInfo(path, new FileInfo(path.lastSegment()));
+				return tree;
+			}
+			tree.setInfo(path, node.getInfo(true));
+			if (!node.isFile())
+				collectInfos(path, (DirNode) node, tree);
+		} finally {
+			readLock.unlock();
+		}
+		return tree;
 	}
 
 	/**
 	 * Returns the node at the given path, or null if not found.
+	 * The caller must hold the read or the write lock.
 	 * 
 	 * @param path
 	 * @return
@@ -223,6 +327,18 @@ public class MemoryTree {
 	}
 
 	public Node mkdir(IPath path, boolean deep) throws CoreException {
+		writeLock.lock();
+		try {
+			return internalMkdir(path, deep);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Creates the directory at the given path. The caller must hold the write lock.
+	 */
+	private Node internalMkdir(IPath path, boolean deep) throws CoreException {
 		Node dir = findNode(path);
 		if (dir != null) {
 			if (dir.isFile())
@@ -237,40 +353,68 @@ public class MemoryTree {
 		} else {
 			if (!deep)
 				Policy.error("Parent does not exist: " + parentPath);
-			parent = mkdir(parentPath, deep);
+			parent = internalMkdir(parentPath, deep);
 		}
 		//create the child directory
 		return new DirNode(parent, path.lastSegment());
 	}
 
 	public InputStream openInputStream(IPath path) throws CoreException {
-		Node node = findNode(path);
-		if (node == null)
-			Policy.error("File not found: " + path);
-		if (!node.isFile())
-			Policy.error("Cannot open stream on directory: " + path);
-		return ((FileNode) node).openInputStream();
+		readLock.lock();
+		try {
+			Node node = findNode(path);
+			if (node == null)
+				Policy.error("File not found: " + path);
+			if (!node.isFile())
+				Policy.error("Cannot open stream on directory: " + path);
+			return ((FileNode) node).openInputStream();
+		} finally {
+			readLock.unlock();
+		}
 	}
 
 	public OutputStream openOutputStream(IPath path, int options) throws CoreException {
-		Node node = findNode(path);
-		//if we already have such a file, just open a stream on it
-		if (node instanceof DirNode)
-			Policy.error("Could not create file: " + path);
-		if (node instanceof FileNode)
-			return ((FileNode) node).openOutputStream(options);
-		//if the parent exists we can create the file
-		Node parent = findNode(path.removeLastSegments(1));
-		if (!(parent instanceof DirNode))
-			Policy.error("Could not create file: " + path);
-		node = new FileNode(parent, path.lastSegment());
-		return ((FileNode) node).openOutputStream(options);
+		writeLock.lock();
+		try {
+			Node node = findNode(path);
+			//if we already have such a file, just open a stream on it
+			if (node instanceof DirNode)
+				Policy.error("Could not create file: " + path);
+			if (node instanceof FileNode)
+				return ((FileNode) node).openOutputStream(options, useDirectBuffers, writeLock);
+			//if the parent exists we can create the file
+			Node parent = findNode(path.removeLastSegments(1));
+			if (!(parent instanceof DirNode))
+				Policy.error("Could not create file: " + path);
+			node = new FileNode(parent, path.lastSegment());
+			return ((FileNode) node).openOutputStream(options, useDirectBuffers, writeLock);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets whether file contents written from now on are stored in direct
+	 * buffers outside of the Java heap. This allows large in-memory fixtures
+	 * without putting pressure on the garbage collector. Existing contents
+	 * are not affected.
+	 * 
+	 * @param direct <code>true</code> to store contents in direct buffers,
+	 * and <code>false</code> to store them on the heap
+	 */
+	public void setUseDirectBuffers(boolean direct) {
+		this.useDirectBuffers = direct;
 	}
 
 	public void putInfo(IPath path, IFileInfo info, int options) throws CoreException {
-		Node node = findNode(path);
-		if (node == null)
-			Policy.error("File not found: " + path);
-		node.putInfo(info, options);
+		writeLock.lock();
+		try {
+			Node node = findNode(path);
+			if (node == null)
+				Policy.error("File not found: " + path);
+			node.putInfo(info, options);
+		} finally {
+			writeLock.unlock();
+		}
 	}
 }
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.filesystem.wrapper;
+
+/**
+ * Constants for the file store operations that the wrapper file system
+ * can slow down or measure.
+ */
+public final class FileStoreOperation {
+	public static final int CHILD_INFOS = 0;
+	public static final int CHILD_NAMES = 1;
+	public static final int CHILD_STORES = 2;
+	public static final int COPY = 3;
+	public static final int DELETE = 4;
+	public static final int FETCH_INFO = 5;
+	public static final int MKDIR = 6;
+	public static final int MOVE = 7;
+	public static final int OPEN_INPUT_STREAM = 8;
+	public static final int OPEN_OUTPUT_STREAM = 9;
+	public static final int PUT_INFO = 10;
+	public static final int TO_LOCAL_FILE = 11;
+
+	/** The number of operations */
+	public static final int COUNT = 12;
+
+	private static final String[] NAMES = {"childInfos", "childNames", "childStores", "copy", "delete", "fetchInfo", "mkdir", "move", "openInputStream", "openOutputStream", "putInfo", "toLocalFile"};
+
+	/**
+	 * Returns the name of the given operation, which is also the name of the
+	 * corresponding IFileStore method.
+	 */
+	public static String getName(int operation) {
+		return NAMES[operation];
+	}
+
+	private FileStoreOperation() {
+		// not to be instantiated
+	}
+}
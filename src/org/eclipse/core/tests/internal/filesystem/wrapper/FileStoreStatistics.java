@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.filesystem.wrapper;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/**
+ * Records the calls made to {@link WrapperFileStore} instances: the number of
+ * calls, the number of bytes transferred by streams, and a latency histogram
+ * for each {@link FileStoreOperation}. The same counters are kept separately
+ * for each registered path prefix.
+ * <p>
+ * Tests typically call {@link #reset()}, run a workspace operation on a
+ * project located in the wrapper file system, and then check the counts of
+ * a {@link #snapshot()} against a budget.
+ * </p>
+ *
+ * @see WrapperFileSystem#getStatistics()
+ */
+public class FileStoreStatistics {
+	/**
+	 * The number of latency histogram buckets. Bucket 0 counts calls that
+	 * took less than one microsecond, bucket i counts calls that took from
+	 * 2^(i-1) up to 2^i microseconds, and the last bucket counts all longer calls.
+	 */
+	public static final int HISTOGRAM_SIZE = 32;
+
+	/**
+	 * Counters for one scope: either all calls, or calls for stores below
+	 * one path prefix. Snapshots of the counters are not modified anymore.
+	 */
+	public static class Counters {
+		private final long[] bytes = new long[FileStoreOperation.COUNT];
+		private final long[] calls = new long[FileStoreOperation.COUNT];
+		private final long[][] histogram = new long[FileStoreOperation.COUNT][HISTOGRAM_SIZE];
+		private final long[] nanos = new long[FileStoreOperation.COUNT];
+
+		synchronized void addBytes(int operation, long count) {
+			bytes[operation] += count;
+		}
+
+		synchronized void addCall(int operation, long elapsedNanos) {
+			calls[operation]++;
+			nanos[operation] += elapsedNanos;
+			histogram[operation][bucket(elapsedNanos / 1000)]++;
+		}
+
+		synchronized Counters copy() {
+			Counters result = new Counters();
+			System.arraycopy(bytes, 0, result.bytes, 0, bytes.length);
+			System.arraycopy(calls, 0, result.calls, 0, calls.length);
+			System.arraycopy(nanos, 0, result.nanos, 0, nanos.length);
+			for (int i = 0; i < histogram.length; i++)
+				System.arraycopy(histogram[i], 0, result.histogram[i], 0, HISTOGRAM_SIZE);
+			return result;
+		}
+
+		/**
+		 * Returns the number of bytes read from input streams (for
+		 * {@link FileStoreOperation#OPEN_INPUT_STREAM}) or written to output
+		 * streams (for {@link FileStoreOperation#OPEN_OUTPUT_STREAM}). Bytes
+		 * are recorded when the stream is closed.
+		 */
+		public synchronized long getBytes(int operation) {
+			return bytes[operation];
+		}
+
+		public synchronized long getCallCount(int operation) {
+			return calls[operation];
+		}
+
+		/**
+		 * Returns the latency histogram of the given operation.
+		 *
+		 * @see FileStoreStatistics#HISTOGRAM_SIZE
+		 */
+		public synchronized long[] getHistogram(int operation) {
+			return histogram[operation].clone();
+		}
+
+		/**
+		 * Returns an upper bound in microseconds for the latency of the given
+		 * fraction of the calls of an operation, based on the histogram.
+		 *
+		 * @param operation one of the {@link FileStoreOperation} constants
+		 * @param fraction a value between 0 and 1, for example 0.99
+		 */
+		public synchronized long getPercentile(int operation, double fraction) {
+			long threshold = (long) Math.ceil(calls[operation] * fraction);
+			long seen = 0;
+			for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+				seen += histogram[operation][i];
+				if (seen >= threshold)
+					return i == 0 ? 1 : 1L << i;
+			}
+			return Long.MAX_VALUE;
+		}
+
+		public synchronized long getTotalCallCount() {
+			long result = 0;
+			for (int i = 0; i < calls.length; i++)
+				result += calls[i];
+			return result;
+		}
+
+		/**
+		 * Returns the total time spent in calls of the given operation, in nanoseconds.
+		 */
+		public synchronized long getTotalTime(int operation) {
+			return nanos[operation];
+		}
+
+		public synchronized String toString() {
+			StringBuffer buf = new StringBuffer();
+			for (int i = 0; i < FileStoreOperation.COUNT; i++) {
+				if (calls[i] == 0)
+					continue;
+				if (buf.length() > 0)
+					buf.append(", ");
+				buf.append(FileStoreOperation.getName(i)).append('=').append(calls[i]);
+				if (bytes[i] > 0)
+					buf.append(" (").append(bytes[i]).append(" bytes)");
+			}
+			return '[' + buf.toString() + ']';
+		}
+	}
+
+	/**
+	 * An immutable copy of the statistics at one point in time.
+	 */
+	public static class Snapshot {
+		private final Counters all;
+		private final Map<IPath, Counters> byPrefix;
+
+		Snapshot(Counters all, Map<IPath, Counters> byPrefix) {
+			this.all = all;
+			this.byPrefix = byPrefix;
+		}
+
+		public long getCallCount(int operation) {
+			return all.getCallCount(operation);
+		}
+
+		/**
+		 * Returns the counters for all calls.
+		 */
+		public Counters getCounters() {
+			return all;
+		}
+
+		/**
+		 * Returns the counters for calls on stores below the given prefix, or
+		 * null if the prefix was not registered when the snapshot was taken.
+		 */
+		public Counters getCounters(IPath prefix) {
+			return byPrefix.get(prefix);
+		}
+
+		public String toString() {
+			StringBuffer buf = new StringBuffer(all.toString());
+			for (Map.Entry<IPath, Counters> entry : byPrefix.entrySet())
+				buf.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+			return buf.toString();
+		}
+	}
+
+	/**
+	 * Returns the histogram bucket for the given number of microseconds.
+	 */
+	static int bucket(long micros) {
+		int result = 0;
+		while (micros > 0 && result < HISTOGRAM_SIZE - 1) {
+			micros >>>= 1;
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the path of the given store, as used for prefix matching.
+	 */
+	private static IPath getPath(WrapperFileStore store) {
+		URI uri = store.getBaseStore().toURI();
+		String path = uri.getPath();
+		return path == null ? null : new Path(path);
+	}
+
+	private volatile Counters all = new Counters();
+
+	private final Map<IPath, Counters> byPrefix = Collections.synchronizedMap(new LinkedHashMap<IPath, Counters>());
+
+	private final List<IPath> prefixes = new CopyOnWriteArrayList<IPath>();
+
+	/**
+	 * Records calls on stores below the given path prefix separately, in
+	 * addition to recording them with all other calls. The prefix is matched
+	 * against the path of the wrapped store's URI.
+	 */
+	public void addPathPrefix(IPath prefix) {
+		if (!prefixes.contains(prefix)) {
+			byPrefix.put(prefix, new Counters());
+			prefixes.add(prefix);
+		}
+	}
+
+	/**
+	 * Returns the counters for the prefixes of the given store's path.
+	 */
+	private List<Counters> prefixCounters(WrapperFileStore store) {
+		if (prefixes.isEmpty())
+			return Collections.emptyList();
+		IPath path = getPath(store);
+		if (path == null)
+			return Collections.emptyList();
+		List<Counters> result = new ArrayList<Counters>(1);
+		for (IPath prefix : prefixes) {
+			if (prefix.isPrefixOf(path)) {
+				Counters counters = byPrefix.get(prefix);
+				if (counters != null)
+					result.add(counters);
+			}
+		}
+		return result;
+	}
+
+	void recordBytes(int operation, WrapperFileStore store, long count) {
+		all.addBytes(operation, count);
+		for (Counters counters : prefixCounters(store))
+			counters.addBytes(operation, count);
+	}
+
+	void recordCall(int operation, WrapperFileStore store, long elapsedNanos) {
+		all.addCall(operation, elapsedNanos);
+		for (Counters counters : prefixCounters(store))
+			counters.addCall(operation, elapsedNanos);
+	}
+
+	/**
+	 * Discards all recorded calls. Registered path prefixes are kept.
+	 */
+	public void reset() {
+		all = new Counters();
+		synchronized (byPrefix) {
+			for (Map.Entry<IPath, Counters> entry : byPrefix.entrySet())
+				entry.setValue(new Counters());
+		}
+	}
+
+	/**
+	 * Discards all recorded calls and all registered path prefixes.
+	 */
+	public void resetAll() {
+		prefixes.clear();
+		byPrefix.clear();
+		reset();
+	}
+
+	public Snapshot snapshot() {
+		Map<IPath, Counters> prefixCopy = new LinkedHashMap<IPath, Counters>();
+		synchronized (byPrefix) {
+			for (Map.Entry<IPath, Counters> entry : byPrefix.entrySet())
+				prefixCopy.put(entry.getKey(), entry.getValue().copy());
+		}
+		return new Snapshot(all.copy(), prefixCopy);
+	}
+
+	public String toString() {
+		return snapshot().toString();
+	}
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.filesystem.wrapper;
+
+import java.io.*;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.runtime.*;
+
+/**
+ * A wrapper file store that simulates a slow remote file system. Each call is
+ * delayed, and possibly failed, according to the current {@link LatencyProfile}.
+ * <p>
+ * Install with <code>WrapperFileSystem.setCustomFileStore(LatencyFileStore.class)</code>.
+ * Operations that the base store implements in one call, such as copy and move,
+ * are delayed once rather than once per nested call. The injected latency is
+ * included in the latency recorded by the {@link FileStoreStatistics}.
+ * </p>
+ */
+public class LatencyFileStore extends WrapperFileStore {
+
+	/**
+	 * Input stream that limits its transfer rate to the profile bandwidth.
+	 */
+	private static class ThrottledInputStream extends FilterInputStream {
+		private final Throttle throttle;
+
+		ThrottledInputStream(InputStream in, long bandwidth) {
+			super(in);
+			throttle = new Throttle(bandwidth);
+		}
+
+		public int read() throws IOException {
+			int result = super.read();
+			if (result >= 0)
+				throttle.transferred(1);
+			return result;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int result = super.read(b, off, len);
+			if (result > 0)
+				throttle.transferred(result);
+			return result;
+		}
+	}
+
+	/**
+	 * Output stream that limits its transfer rate to the profile bandwidth.
+	 */
+	private static class ThrottledOutputStream extends FilterOutputStream {
+		private final Throttle throttle;
+
+		ThrottledOutputStream(OutputStream out, long bandwidth) {
+			super(out);
+			throttle = new Throttle(bandwidth);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			throttle.transferred(len);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			throttle.transferred(1);
+		}
+	}
+
+	/**
+	 * Keeps track of the bytes transferred by a stream, and sleeps whenever
+	 * the stream gets ahead of the bandwidth limit.
+	 */
+	private static class Throttle {
+		private final long bandwidth;
+		private final long start = System.currentTimeMillis();
+		private long total = 0;
+
+		Throttle(long bandwidth) {
+			this.bandwidth = bandwidth;
+		}
+
+		void transferred(int bytes) {
+			total += bytes;
+			long expected = total * 1000 / bandwidth;
+			sleep(expected - (System.currentTimeMillis() - start));
+		}
+	}
+
+	private static volatile LatencyProfile profile = new LatencyProfile(0);
+
+	public static LatencyProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Sets the profile used by all latency file stores.
+	 *
+	 * @param newProfile the profile, or null to disable all latency
+	 */
+	public static void setProfile(LatencyProfile newProfile) {
+		profile = newProfile == null ? new LatencyProfile(0) : newProfile;
+	}
+
+	static void sleep(long millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public LatencyFileStore(IFileStore baseStore) {
+		super(baseStore);
+	}
+
+	/**
+	 * Delays the calling thread according to the current profile, or throws
+	 * an exception if the profile decides that this call fails.
+	 */
+	protected void beforeOperation(int operation) throws CoreException {
+		LatencyProfile current = profile;
+		long millis = current.nextDelay(operation);
+		boolean fail = current.nextFailure(operation);
+		sleep(millis);
+		if (fail)
+			throw new CoreException(new Status(IStatus.ERROR, "org.eclipse.core.tests.resources", 1, "Simulated failure of " + FileStoreOperation.getName(operation) + " on " + this, null));
+	}
+
+	public InputStream openInputStream(int options, IProgressMonitor monitor) throws CoreException {
+		InputStream in = super.openInputStream(options, monitor);
+		long bandwidth = profile.getBandwidth();
+		return bandwidth > 0 ? new ThrottledInputStream(in, bandwidth) : in;
+	}
+
+	public OutputStream openOutputStream(int options, IProgressMonitor monitor) throws CoreException {
+		OutputStream out = super.openOutputStream(options, monitor);
+		long bandwidth = profile.getBandwidth();
+		return bandwidth > 0 ? new ThrottledOutputStream(out, bandwidth) : out;
+	}
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.filesystem.wrapper;
+
+import java.util.Random;
+
+/**
+ * Describes how a {@link LatencyFileStore} degrades the file store it wraps:
+ * a fixed latency and a random jitter per operation, a bandwidth limit for
+ * streams, and a failure rate per operation.
+ * <p>
+ * Jitter and failures are drawn from a random generator with a fixed seed,
+ * so the same sequence of calls is always slowed down in the same way.
+ * </p>
+ *
+ * @see FileStoreOperation
+ */
+public class LatencyProfile {
+	private final long[] latency = new long[FileStoreOperation.COUNT];
+	private final long[] jitter = new long[FileStoreOperation.COUNT];
+	private final double[] failureRate = new double[FileStoreOperation.COUNT];
+
+	/** Bytes per second for stream transfers, or 0 for no limit */
+	private volatile long bandwidth = 0;
+
+	private final Random random;
+
+	/**
+	 * Creates a profile without any latency, bandwidth limit or failures.
+	 *
+	 * @param seed the seed for the jitter and failure sequence
+	 */
+	public LatencyProfile(long seed) {
+		random = new Random(seed);
+	}
+
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * Returns the number of milliseconds the next call of the given
+	 * operation should be delayed by.
+	 */
+	synchronized long nextDelay(int operation) {
+		long result = latency[operation];
+		if (jitter[operation] > 0)
+			result += (long) (random.nextDouble() * jitter[operation]);
+		return result;
+	}
+
+	/**
+	 * Returns whether the next call of the given operation should fail.
+	 */
+	synchronized boolean nextFailure(int operation) {
+		return failureRate[operation] > 0 && random.nextDouble() < failureRate[operation];
+	}
+
+	/**
+	 * Limits the transfer rate of input and output streams.
+	 *
+	 * @param bytesPerSecond the maximum rate, or 0 for no limit
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Sets the probability that a call of the given operation fails with a
+	 * CoreException.
+	 *
+	 * @param operation one of the {@link FileStoreOperation} constants
+	 * @param rate a probability between 0 and 1
+	 */
+	public synchronized void setFailureRate(int operation, double rate) {
+		failureRate[operation] = rate;
+	}
+
+	/**
+	 * Sets the latency of all operations.
+	 *
+	 * @see #setLatency(int, long, long)
+	 */
+	public synchronized void setLatency(long millis, long jitterMillis) {
+		for (int i = 0; i < FileStoreOperation.COUNT; i++)
+			setLatency(i, millis, jitterMillis);
+	}
+
+	/**
+	 * Sets the latency of the given operation. Each call is delayed by the
+	 * given latency plus a random amount between 0 and the given jitter.
+	 *
+	 * @param operation one of the {@link FileStoreOperation} constants
+	 * @param millis the fixed latency in milliseconds
+	 * @param jitterMillis the maximum additional latency in milliseconds
+	 */
+	public synchronized void setLatency(int operation, long millis, long jitterMillis) {
+		latency[operation] = millis;
+		jitter[operation] = jitterMillis;
+	}
+}
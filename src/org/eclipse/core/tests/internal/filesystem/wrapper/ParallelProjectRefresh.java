@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.filesystem.wrapper;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.eclipse.core.filesystem.EFS;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.*;
+
+/**
+ * Refreshes several projects on the wrapper file system in two phases.
+ * <p>
+ * A refresh holds the workspace lock while it walks the file system, so
+ * refreshing projects from several threads at once gets no faster than
+ * refreshing them one after the other. Here the file trees of all projects
+ * are first listed in parallel on a shared pool, without any lock, and the
+ * results are then applied in a single workspace operation, whose refreshes
+ * read the listings from memory.
+ * </p><p>
+ * Projects that are not on the wrapper file system are scanned by the
+ * refresh itself.
+ * </p>
+ */
+public class ParallelProjectRefresh {
+	private final int threads;
+
+	/**
+	 * @param threads the number of directories listed concurrently
+	 */
+	public ParallelProjectRefresh(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Refreshes the given projects to infinite depth.
+	 */
+	public void refresh(final IProject[] projects, IProgressMonitor monitor) throws CoreException {
+		if (monitor == null)
+			monitor = new NullProgressMonitor();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new PrefetchingFileTree.PrefetchThreadFactory());
+		try {
+			//scan all projects at once, outside of the workspace lock
+			List<PrefetchingFileTree> trees = new ArrayList<PrefetchingFileTree>();
+			for (int i = 0; i < projects.length; i++) {
+				URI location = projects[i].getLocationURI();
+				if (location == null)
+					continue;
+				IFileStore store = EFS.getStore(location);
+				if (store instanceof WrapperFileStore)
+					trees.add(new PrefetchingFileTree(store, executor));
+			}
+			for (PrefetchingFileTree tree : trees) {
+				try {
+					tree.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new OperationCanceledException();
+				}
+				WrapperFileSystem.installFileTree(tree);
+			}
+			//apply the results in a single operation
+			IWorkspace workspace = ResourcesPlugin.getWorkspace();
+			workspace.run(new IWorkspaceRunnable() {
+				public void run(IProgressMonitor runMonitor) throws CoreException {
+					runMonitor.beginTask("", projects.length);
+					try {
+						for (int i = 0; i < projects.length; i++)
+							projects[i].refreshLocal(IResource.DEPTH_INFINITE, new SubProgressMonitor(runMonitor, 1));
+					} finally {
+						runMonitor.done();
+					}
+				}
+			}, workspace.getRoot(), IWorkspace.AVOID_UPDATE, monitor);
+		} finally {
+			WrapperFileSystem.uninstallFileTrees();
+			executor.shutdown();
+		}
+	}
+}
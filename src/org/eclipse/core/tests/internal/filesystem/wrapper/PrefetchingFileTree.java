@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.filesystem.wrapper;
+
+import java.net.URI;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.core.filesystem.*;
+import org.eclipse.core.filesystem.provider.FileTree;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.tests.harness.CoreTest;
+import org.eclipse.core.tests.resources.ResourceTest;
+
+/**
+ * A file tree that lists all directories below its root in parallel, using a
+ * bounded number of threads. Listing starts as soon as the tree is created,
+ * and queries for a directory only wait until that directory has been
+ * listed, so a caller walking the tree top-down can consume results while
+ * deeper directories are still being fetched.
+ * <p>
+ * Directories that are not reached by the prefetch, such as symbolic links,
+ * are listed on demand by the calling thread.
+ * </p>
+ */
+public class PrefetchingFileTree extends FileTree {
+	private static final IFileInfo[] NO_INFOS = new IFileInfo[0];
+
+	/**
+	 * Thread factory for daemon threads, so that an abandoned tree does not
+	 * keep the VM alive.
+	 */
+	static class PrefetchThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "PrefetchingFileTree-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Lists one directory and schedules the listing of its subdirectories.
+	 */
+	private class ListTask implements Callable<IFileInfo[]> {
+		private final IFileStore directory;
+
+		ListTask(IFileStore directory) {
+			this.directory = directory;
+		}
+
+		public IFileInfo[] call() {
+			try {
+				IFileInfo[] children = list(directory);
+				for (int i = 0; i < children.length; i++) {
+					IFileStore child = directory.getChild(children[i].getName());
+					infos.put(child.toURI(), children[i]);
+					if (children[i].isDirectory() && !children[i].getAttribute(EFS.ATTRIBUTE_SYMLINK))
+						schedule(child);
+				}
+				return children;
+			} finally {
+				if (pending.decrementAndGet() == 0)
+					done();
+			}
+		}
+	}
+
+	/** The children listings of all scheduled directories, by store URI */
+	private final ConcurrentHashMap<URI, Future<IFileInfo[]>> children = new ConcurrentHashMap<URI, Future<IFileInfo[]>>();
+
+	private final ExecutorService executor;
+
+	/** Whether the executor was created by this tree, and is shut down with it */
+	private final boolean ownsExecutor;
+
+	/** Set when all scheduled directories have been listed */
+	private boolean finished;
+
+	/** The infos of all stores listed so far, by store URI */
+	private final ConcurrentHashMap<URI, IFileInfo> infos = new ConcurrentHashMap<URI, IFileInfo>();
+
+	/** The number of directories scheduled but not yet listed */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * Creates a tree and starts fetching it in the background.
+	 *
+	 * @param root the root of the tree
+	 * @param threads the maximum number of directories listed concurrently
+	 */
+	public PrefetchingFileTree(IFileStore root, int threads) {
+		this(root, Executors.newFixedThreadPool(threads, new PrefetchThreadFactory()), true);
+	}
+
+	/**
+	 * Creates a tree and starts fetching it in the background, using the
+	 * given executor. The executor can be shared by several trees, and is
+	 * not shut down by this tree.
+	 *
+	 * @param root the root of the tree
+	 * @param executor the executor listing the directories
+	 */
+	public PrefetchingFileTree(IFileStore root, ExecutorService executor) {
+		this(root, executor, false);
+	}
+
+	private PrefetchingFileTree(IFileStore root, ExecutorService executor, boolean ownsExecutor) {
+		super(root);
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		IFileInfo rootInfo = root.fetchInfo();
+		infos.put(root.toURI(), rootInfo);
+		if (rootInfo.isDirectory())
+			schedule(root);
+		else
+			done();
+	}
+
+	/**
+	 * Returns the result of the given listing, waiting for it if necessary.
+	 */
+	private IFileInfo[] await(Future<IFileInfo[]> listing) {
+		try {
+			return listing.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			CoreTest.log(ResourceTest.PI_RESOURCES_TESTS, e.getCause());
+		}
+		return NO_INFOS;
+	}
+
+	private synchronized void done() {
+		finished = true;
+		notifyAll();
+		if (ownsExecutor)
+			executor.shutdown();
+	}
+
+	public IFileInfo[] getChildInfos(IFileStore store) {
+		Future<IFileInfo[]> listing = children.get(store.toURI());
+		return listing == null ? list(store) : await(listing);
+	}
+
+	public IFileStore[] getChildStores(IFileStore store) {
+		IFileInfo[] childInfos = getChildInfos(store);
+		IFileStore[] result = new IFileStore[childInfos.length];
+		for (int i = 0; i < childInfos.length; i++)
+			result[i] = store.getChild(childInfos[i].getName());
+		return result;
+	}
+
+	public IFileInfo getFileInfo(IFileStore store) {
+		URI uri = store.toURI();
+		IFileInfo result = infos.get(uri);
+		if (result != null)
+			return result;
+		//wait for the parent listing, which provides the info
+		IFileStore parent = store.getParent();
+		Future<IFileInfo[]> listing = parent == null ? null : children.get(parent.toURI());
+		if (listing != null) {
+			await(listing);
+			result = infos.get(uri);
+			if (result != null)
+				return result;
+		}
+		return store.fetchInfo();
+	}
+
+	/**
+	 * Waits until all directories below the root have been listed.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public synchronized void join() throws InterruptedException {
+		while (!finished)
+			wait();
+	}
+
+	/**
+	 * Lists the given directory in the calling thread.
+	 */
+	IFileInfo[] list(IFileStore directory) {
+		try {
+			return directory.childInfos(EFS.NONE, null);
+		} catch (CoreException e) {
+			CoreTest.log(ResourceTest.PI_RESOURCES_TESTS, e);
+			return NO_INFOS;
+		}
+	}
+
+	void schedule(IFileStore directory) {
+		pending.incrementAndGet();
+		FutureTask<IFileInfo[]> task = new FutureTask<IFileInfo[]>(new ListTask(directory));
+		if (children.putIfAbsent(directory.toURI(), task) != null) {
+			//already scheduled
+			pending.decrementAndGet();
+			return;
+		}
+		executor.execute(task);
+	}
+}
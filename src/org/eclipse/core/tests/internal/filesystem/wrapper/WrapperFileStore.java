@@ -14,15 +14,97 @@ package org.eclipse.core.tests.internal.filesystem.wrapper;
 import java.io.*;
 import java.net.URI;
 import org.eclipse.core.filesystem.*;
+import org.eclipse.core.filesystem.provider.FileInfo;
 import org.eclipse.core.filesystem.provider.FileStore;
 import org.eclipse.core.runtime.*;
 
 /**
  * A simple file system implementation that acts as a wrapper around the
  * local file system.
+ * <p>
+ * Every call that reaches the wrapped store is recorded in the
+ * {@link WrapperFileSystem#getStatistics() file system statistics}.
+ * Subclasses can intercept these calls by overriding {@link #beforeOperation(int)}.
+ * </p>
  */
 public class WrapperFileStore extends FileStore {
 
+	/**
+	 * Input stream that records the number of bytes read when it is closed.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+		private boolean closed = false;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (!closed) {
+					closed = true;
+					WrapperFileSystem.getStatistics().recordBytes(FileStoreOperation.OPEN_INPUT_STREAM, WrapperFileStore.this, count);
+				}
+			}
+		}
+
+		public int read() throws IOException {
+			int result = super.read();
+			if (result >= 0)
+				count++;
+			return result;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int result = super.read(b, off, len);
+			if (result > 0)
+				count += result;
+			return result;
+		}
+
+		public long skip(long n) throws IOException {
+			long result = super.skip(n);
+			count += result;
+			return result;
+		}
+	}
+
+	/**
+	 * Output stream that records the number of bytes written when it is closed.
+	 */
+	private class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+		private boolean closed = false;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (!closed) {
+					closed = true;
+					WrapperFileSystem.getStatistics().recordBytes(FileStoreOperation.OPEN_OUTPUT_STREAM, WrapperFileStore.this, count);
+				}
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+	}
+
 	private final IFileStore baseStore;
 
 	public WrapperFileStore(IFileStore baseStore) {
@@ -42,16 +124,47 @@ public class WrapperFileStore extends FileStore {
 		return newInstance(getClass(), store);
 	}
 
+	/**
+	 * Hook method called before each call is delegated to the wrapped store.
+	 * The time spent in this method is included in the recorded latency. The
+	 * default implementation does nothing.
+	 *
+	 * @param operation one of the {@link FileStoreOperation} constants
+	 * @throws CoreException to fail the call without delegating it
+	 */
+	protected void beforeOperation(int operation) throws CoreException {
+		//do nothing
+	}
+
 	public IFileInfo[] childInfos(int options, IProgressMonitor monitor) throws CoreException {
-		return baseStore.childInfos(options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.CHILD_INFOS);
+			return baseStore.childInfos(options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.CHILD_INFOS, start);
+		}
 	}
 
 	public String[] childNames(int options, IProgressMonitor monitor) throws CoreException {
-		return baseStore.childNames(options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.CHILD_NAMES);
+			return baseStore.childNames(options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.CHILD_NAMES, start);
+		}
 	}
 
 	public IFileStore[] childStores(int options, IProgressMonitor monitor) throws CoreException {
-		IFileStore[] childStores = baseStore.childStores(options, monitor);
+		IFileStore[] childStores;
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.CHILD_STORES);
+			childStores = baseStore.childStores(options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.CHILD_STORES, start);
+		}
 		for (int i = 0; i < childStores.length; i++)
 			// replace ordinary file store with wrapper version
 			childStores[i] = createNewWrappedStore(childStores[i]);
@@ -59,11 +172,23 @@ public class WrapperFileStore extends FileStore {
 	}
 
 	public void copy(IFileStore destination, int options, IProgressMonitor monitor) throws CoreException {
-		baseStore.copy(destination, options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.COPY);
+			baseStore.copy(destination, options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.COPY, start);
+		}
 	}
 
 	public void delete(int options, IProgressMonitor monitor) throws CoreException {
-		baseStore.delete(options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.DELETE);
+			baseStore.delete(options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.DELETE, start);
+		}
 	}
 
 	public boolean equals(Object obj) {
@@ -75,11 +200,26 @@ public class WrapperFileStore extends FileStore {
 	}
 
 	public IFileInfo fetchInfo() {
-		return baseStore.fetchInfo();
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.FETCH_INFO);
+			return baseStore.fetchInfo();
+		} catch (CoreException e) {
+			//like FileStore#fetchInfo(), answer a non-existent file
+			return new FileInfo(getName());
+		} finally {
+			recordCall(FileStoreOperation.FETCH_INFO, start);
+		}
 	}
 
 	public IFileInfo fetchInfo(int options, IProgressMonitor monitor) throws CoreException {
-		return baseStore.fetchInfo(options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.FETCH_INFO);
+			return baseStore.fetchInfo(options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.FETCH_INFO, start);
+		}
 	}
 
 	public IFileStore getBaseStore() {
@@ -123,30 +263,70 @@ public class WrapperFileStore extends FileStore {
 	}
 
 	public IFileStore mkdir(int options, IProgressMonitor monitor) throws CoreException {
-		baseStore.mkdir(options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.MKDIR);
+			baseStore.mkdir(options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.MKDIR, start);
+		}
 		return this;
 	}
 
 	public void move(IFileStore destination, int options, IProgressMonitor monitor) throws CoreException {
 		if (destination instanceof WrapperFileStore)
 			destination = ((WrapperFileStore) destination).baseStore;
-		baseStore.move(destination, options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.MOVE);
+			baseStore.move(destination, options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.MOVE, start);
+		}
 	}
 
 	public InputStream openInputStream(int options, IProgressMonitor monitor) throws CoreException {
-		return baseStore.openInputStream(options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.OPEN_INPUT_STREAM);
+			return new CountingInputStream(baseStore.openInputStream(options, monitor));
+		} finally {
+			recordCall(FileStoreOperation.OPEN_INPUT_STREAM, start);
+		}
 	}
 
 	public OutputStream openOutputStream(int options, IProgressMonitor monitor) throws CoreException {
-		return baseStore.openOutputStream(options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.OPEN_OUTPUT_STREAM);
+			return new CountingOutputStream(baseStore.openOutputStream(options, monitor));
+		} finally {
+			recordCall(FileStoreOperation.OPEN_OUTPUT_STREAM, start);
+		}
 	}
 
 	public void putInfo(IFileInfo info, int options, IProgressMonitor monitor) throws CoreException {
-		baseStore.putInfo(info, options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.PUT_INFO);
+			baseStore.putInfo(info, options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.PUT_INFO, start);
+		}
+	}
+
+	private void recordCall(int operation, long start) {
+		WrapperFileSystem.getStatistics().recordCall(operation, this, System.nanoTime() - start);
 	}
 
 	public File toLocalFile(int options, IProgressMonitor monitor) throws CoreException {
-		return baseStore.toLocalFile(options, monitor);
+		long start = System.nanoTime();
+		try {
+			beforeOperation(FileStoreOperation.TO_LOCAL_FILE);
+			return baseStore.toLocalFile(options, monitor);
+		} finally {
+			recordCall(FileStoreOperation.TO_LOCAL_FILE, start);
+		}
 	}
 
 	public URI toURI() {
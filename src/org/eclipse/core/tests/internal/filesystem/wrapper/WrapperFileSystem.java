@@ -13,8 +13,10 @@ package org.eclipse.core.tests.internal.filesystem.wrapper;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
 import org.eclipse.core.filesystem.EFS;
 import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.filesystem.IFileTree;
 import org.eclipse.core.filesystem.provider.FileSystem;
 import org.eclipse.core.runtime.*;
 import org.eclipse.core.tests.harness.CoreTest;
@@ -28,6 +30,9 @@ import org.eclipse.core.tests.resources.ResourceTest;
  * {@link WrapperFileStore}). Tests can use {@link #setCustomFileStore(Class)}
  * to override default {@link WrapperFileStore} behaviour.
  * </p>
+ * <p>
+ * All calls to wrapped stores are recorded in the {@link #getStatistics() statistics}.
+ * </p>
  */
 public class WrapperFileSystem extends FileSystem {
 
@@ -40,11 +45,29 @@ public class WrapperFileSystem extends FileSystem {
 	/** Custom file-store wrapper */
 	private static volatile Class<? extends WrapperFileStore> customFS = WrapperFileStore.class;
 
+	/** Statistics of the calls made to wrapped file stores */
+	private static final FileStoreStatistics statistics = new FileStoreStatistics();
+
+	/** Number of threads used to prefetch file trees, or 0 to disable prefetching */
+	private static volatile int prefetchThreads = 0;
+
+	/** File trees fetched ahead of time, by the URI of their root */
+	private static final ConcurrentHashMap<URI, IFileTree> installedTrees = new ConcurrentHashMap<URI, IFileTree>();
+
 	public static URI getBasicURI(URI wrappedURI) {
 		Assert.isLegal(SCHEME_WRAPPED.equals(wrappedURI.getScheme()));
 		return URI.create(wrappedURI.getQuery());
 	}
 
+	/**
+	 * Returns the statistics of the calls made to the file stores of this
+	 * file system. Tests can reset the statistics, run a workspace operation,
+	 * and check the number of calls against a budget.
+	 */
+	public static FileStoreStatistics getStatistics() {
+		return statistics;
+	}
+
 	public static synchronized WrapperFileSystem getInstance() {
 		if (instance != null)
 			return instance;
@@ -67,6 +90,36 @@ public class WrapperFileSystem extends FileSystem {
 			customFS = fs;
 	}
 
+	/**
+	 * Enables or disables prefetching of file trees. When enabled,
+	 * {@link #fetchFileTree(IFileStore, IProgressMonitor)} answers a
+	 * {@link PrefetchingFileTree} that lists the directories below the
+	 * root in parallel, so that a refresh can consume the listings as soon
+	 * as they are available.
+	 *
+	 * @param threads the number of threads listing directories concurrently,
+	 *        or 0 to disable prefetching
+	 */
+	public static void setPrefetchThreads(int threads) {
+		prefetchThreads = threads;
+	}
+
+	/**
+	 * Installs a file tree that was fetched ahead of time. The next call to
+	 * {@link #fetchFileTree(IFileStore, IProgressMonitor)} for the root of
+	 * the tree answers it, instead of fetching the tree again.
+	 */
+	public static void installFileTree(IFileTree tree) {
+		installedTrees.put(tree.getTreeRoot().toURI(), tree);
+	}
+
+	/**
+	 * Removes all installed file trees that have not been used.
+	 */
+	public static void uninstallFileTrees() {
+		installedTrees.clear();
+	}
+
 	public static URI getWrappedURI(URI baseURI) {
 		try {
 			return new URI(SCHEME_WRAPPED, null, baseURI.getPath(), baseURI.toString(), null);
@@ -79,6 +132,21 @@ public class WrapperFileSystem extends FileSystem {
 		instance = this;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.eclipse.core.filesystem.provider.FileSystem#fetchFileTree(org.eclipse.core.filesystem.IFileStore, org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	public IFileTree fetchFileTree(IFileStore root, IProgressMonitor monitor) throws CoreException {
+		IFileTree installed = installedTrees.remove(root.toURI());
+		if (installed != null)
+			return installed;
+		int threads = prefetchThreads;
+		if (threads <= 0 || !(root instanceof WrapperFileStore))
+			return super.fetchFileTree(root, monitor);
+		return new PrefetchingFileTree(root, threads);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -10,6 +10,7 @@
  *******************************************************************************/
 package org.eclipse.core.tests.internal.localstore;
 
+import java.io.IOException;
 import java.io.InputStream;
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -99,6 +100,112 @@ public class BlobStoreTest extends LocalStoreTest {
 		return root;
 	}
 
+	/**
+	 * Compressed blobs, blobs stored with a header and blobs of the plain
+	 * store can be read from the same store.
+	 */
+	public void testCompressed() {
+		IFileStore root = createStore();
+		BlobStore plain = new BlobStore(root, 64);
+		CompressingBlobStore store = new CompressingBlobStore(root, 64, true);
+		IFileStore target = root.getChild("target");
+		StringBuffer buffer = new StringBuffer();
+		while (buffer.length() < 10 * CompressingBlobStore.MIN_COMPRESSED_SIZE)
+			buffer.append("nothing important........tnatropmi gnihton\n");
+		String large = buffer.toString();
+		String small = "nothing important";
+		UniversalUniqueIdentifier compressed = null, stored = null, legacy = null;
+		try {
+			createFile(target, large);
+			compressed = store.addBlob(target, false);
+			legacy = plain.addBlob(target, false);
+			createFile(target, small);
+			stored = store.addBlob(target, true);
+		} catch (CoreException e) {
+			fail("1.0", e);
+		}
+		assertTrue("1.1", !target.fetchInfo().exists());
+		try {
+			assertEquals("2.0", CompressingBlobStore.FORMAT_DEFLATED, store.getFormat(compressed));
+			assertEquals("2.1", CompressingBlobStore.FORMAT_STORED, store.getFormat(stored));
+			assertEquals("2.2", -1, store.getFormat(legacy));
+			assertTrue("2.3", store.fileFor(compressed).fetchInfo().getLength() < large.length() / 2);
+			assertTrue("3.0", compareContent(getContents(large), store.getBlob(compressed)));
+			assertTrue("3.1", compareContent(getContents(small), store.getBlob(stored)));
+			assertTrue("3.2", compareContent(getContents(large), store.getBlob(legacy)));
+		} catch (CoreException e) {
+			fail("3.3", e);
+		}
+		//a plain blob that starts with the header of another blob is read as it is
+		try {
+			UniversalUniqueIdentifier copy = plain.addBlob(store.fileFor(compressed), false);
+			assertEquals("4.0", -1, store.getFormat(copy));
+			assertTrue("4.1", compareContent(store.fileFor(compressed).openInputStream(EFS.NONE, null), store.getBlob(copy)));
+		} catch (CoreException e) {
+			fail("4.2", e);
+		}
+	}
+
+	/**
+	 * Identical contents are stored once, and removed with their last
+	 * reference.
+	 */
+	public void testContentAddressed() {
+		IFileStore root = createStore();
+		IFileStore target = root.getChild("target");
+		IFileStore other = root.getChild("other");
+		String content = "nothing important........tnatropmi gnihton";
+		ContentAddressedBlobStore store = null;
+		UniversalUniqueIdentifier uuid1 = null, uuid2 = null, uuid3 = null;
+		try {
+			createFile(target, content);
+			createFile(other, "something else");
+			store = new ContentAddressedBlobStore(root);
+			uuid1 = store.addBlob(target, false);
+			uuid2 = store.addBlob(target, false);
+			uuid3 = store.addBlob(other, true);
+		} catch (CoreException e) {
+			fail("1.0", e);
+		}
+		assertTrue("1.1", !uuid1.equals(uuid2));
+		assertEquals("1.2", store.fileFor(uuid1), store.fileFor(uuid2));
+		assertEquals("1.3", 3, store.getBlobCount());
+		assertEquals("1.4", 2, store.getContentCount());
+		assertTrue("1.5", !other.fetchInfo().exists());
+		try {
+			assertTrue("1.6", compareContent(getContents(content), store.getBlob(uuid2)));
+		} catch (CoreException e) {
+			fail("1.7", e);
+		}
+
+		/* the contents stay while they are referenced */
+		store.deleteBlob(uuid1);
+		assertTrue("2.0", !store.fileFor(uuid1).fetchInfo().exists());
+		assertTrue("2.1", store.fileFor(uuid2).fetchInfo().exists());
+		assertEquals("2.2", 2, store.getContentCount());
+
+		/* the references survive reopening the store */
+		try {
+			store.close();
+			store = new ContentAddressedBlobStore(root);
+		} catch (IOException e) {
+			fail("3.0", e);
+		} catch (CoreException e) {
+			fail("3.1", e);
+		}
+		assertEquals("3.2", 2, store.getBlobCount());
+		assertEquals("3.3", 2, store.getContentCount());
+		IFileStore contents = store.fileFor(uuid2);
+		store.deleteBlob(uuid2);
+		assertTrue("3.4", !contents.fetchInfo().exists());
+		assertEquals("3.5", 1, store.getContentCount());
+		try {
+			store.close();
+		} catch (IOException e) {
+			fail("3.6", e);
+		}
+	}
+
 	public void testDeleteBlob() {
 		/* initialize common objects */
 		IFileStore root = createStore();
@@ -158,6 +265,146 @@ public class BlobStoreTest extends LocalStoreTest {
 		assertTrue("4.1", compareContent(getContents(content), input));
 	}
 
+	/**
+	 * States of the same file are stored as deltas up to the next keyframe,
+	 * and a deleted state is kept while later deltas are based on it.
+	 * A missing keyframe does not prevent the store from opening.
+	 */
+	public void testDeltas() {
+		IFileStore root = createStore();
+		IFileStore location = root.getChild("deltas");
+		IFileStore target = root.getChild("target");
+		StringBuffer buffer = new StringBuffer();
+		for (int i = 0; i < 100; i++)
+			buffer.append("line " + i + "\n");
+		String[] contents = new String[6];
+		UniversalUniqueIdentifier[] uuids = new UniversalUniqueIdentifier[contents.length];
+		DeltaBlobStore store = null;
+		try {
+			location.mkdir(EFS.NONE, null);
+			store = new DeltaBlobStore(location, 3);
+			for (int i = 0; i < contents.length; i++) {
+				buffer.replace(7 * i, 7 * i + 4, "edit");
+				contents[i] = buffer.toString();
+				createFile(target, contents[i]);
+				uuids[i] = store.addBlob(target, false);
+			}
+		} catch (CoreException e) {
+			fail("1.0", e);
+		}
+		//a keyframe every three states
+		assertEquals("1.1", 4, store.getDeltaCount());
+		assertTrue("1.2", store.getSize() < 3 * contents[0].length());
+		for (int i = 0; i < contents.length; i++)
+			assertTrue("1.3." + i, compareContent(getContents(contents[i]), getBlob(store, uuids[i])));
+
+		/* the keyframe is hidden, but kept for the deltas */
+		store.deleteBlob(uuids[0]);
+		assertTrue("2.0", !store.fileFor(uuids[0]).fetchInfo().exists());
+		assertEquals("2.1", contents.length, store.getBlobCount());
+		assertTrue("2.2", compareContent(getContents(contents[2]), getBlob(store, uuids[2])));
+
+		/* the chains survive reopening the store */
+		try {
+			store = new DeltaBlobStore(location, 3);
+		} catch (CoreException e) {
+			fail("3.0", e);
+		}
+		assertTrue("3.1", compareContent(getContents(contents[1]), getBlob(store, uuids[1])));
+		store.deleteBlob(uuids[2]);
+		store.deleteBlob(uuids[1]);
+		assertEquals("3.2", contents.length - 3, store.getBlobCount());
+		for (int i = 3; i < contents.length; i++)
+			assertTrue("3.3." + i, compareContent(getContents(contents[i]), getBlob(store, uuids[i])));
+
+		/* a store whose keyframe was lost still opens, and the deltas can be deleted */
+		try {
+			store.fileFor(uuids[3]).delete(EFS.NONE, null);
+			store = new DeltaBlobStore(location, 3);
+		} catch (CoreException e) {
+			fail("4.0", e);
+		}
+		assertEquals("4.1", 2, store.getBlobCount());
+		store.deleteBlob(uuids[5]);
+		store.deleteBlob(uuids[4]);
+		assertEquals("4.2", 0, store.getBlobCount());
+	}
+
+	/**
+	 * Blobs appended to segments can be read back until they are deleted,
+	 * also after compaction and after reopening the store.
+	 */
+	public void testSegments() {
+		IFileStore root = createStore();
+		IFileStore location = root.getChild("segments");
+		IFileStore target = root.getChild("target");
+		String[] contents = new String[20];
+		UniversalUniqueIdentifier[] uuids = new UniversalUniqueIdentifier[contents.length];
+		SegmentBlobStore store = null;
+		try {
+			location.mkdir(EFS.NONE, null);
+			//small segments, so that the blobs span several of them
+			store = new SegmentBlobStore(location, 100);
+			for (int i = 0; i < contents.length; i++) {
+				contents[i] = "contents of state " + i;
+				createFile(target, contents[i]);
+				uuids[i] = store.addBlob(target, true);
+				assertTrue("1.0." + i, !target.fetchInfo().exists());
+			}
+		} catch (CoreException e) {
+			fail("1.1", e);
+		}
+		assertTrue("1.2", store.getSegmentCount() > 1);
+		for (int i = 0; i < contents.length; i++)
+			assertTrue("1.3." + i, compareContent(getContents(contents[i]), getBlob(store, uuids[i])));
+
+		/* deleted blobs are gone, their space is reclaimed by compaction */
+		for (int i = 0; i < contents.length; i += 2)
+			store.deleteBlob(uuids[i]);
+		for (int i = 0; i < contents.length; i += 2)
+			assertTrue("2.0." + i, !store.fileFor(uuids[i]).fetchInfo().exists());
+		assertTrue("2.1", store.getGarbageBytes() > 0);
+		try {
+			assertTrue("2.2", store.compact() > 0);
+		} catch (CoreException e) {
+			fail("2.3", e);
+		}
+		for (int i = 1; i < contents.length; i += 2) {
+			assertTrue("2.4." + i, store.fileFor(uuids[i]).fetchInfo().exists());
+			assertTrue("2.5." + i, compareContent(getContents(contents[i]), getBlob(store, uuids[i])));
+		}
+
+		/* the index survives reopening the store */
+		try {
+			store.close();
+			store = new SegmentBlobStore(location, 100);
+		} catch (IOException e) {
+			fail("3.0", e);
+		} catch (CoreException e) {
+			fail("3.1", e);
+		}
+		assertEquals("3.2", contents.length / 2, store.getBlobCount());
+		for (int i = 0; i < contents.length; i++) {
+			assertEquals("3.3." + i, i % 2 == 1, store.fileFor(uuids[i]).fetchInfo().exists());
+			if (i % 2 == 1)
+				assertTrue("3.4." + i, compareContent(getContents(contents[i]), getBlob(store, uuids[i])));
+		}
+		try {
+			store.close();
+		} catch (IOException e) {
+			fail("3.5", e);
+		}
+	}
+
+	private InputStream getBlob(BlobStore store, UniversalUniqueIdentifier uuid) {
+		try {
+			return store.getBlob(uuid);
+		} catch (CoreException e) {
+			fail("#getBlob", e);
+			return null;
+		}
+	}
+
 	public void testSetBlob() {
 		/* initialize common objects */
 		IFileStore root = createStore();
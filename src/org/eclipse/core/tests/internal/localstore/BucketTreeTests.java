@@ -170,6 +170,141 @@ public class BucketTreeTests extends ResourceTest {
 		}
 	}
 
+	/**
+	 * The index of a project that is no longer in the workspace, such as the
+	 * history of its files, is visited by the parallel visitor, which finds
+	 * the projects by their index directories.
+	 */
+	public void testParallelVisitorDeletedProject() {
+		Workspace workspace = (Workspace) getWorkspace();
+		SimpleBucket bucket = new SimpleBucket();
+		BucketTree tree = new BucketTree(workspace, bucket);
+		IProject existing = getWorkspace().getRoot().getProject("existing");
+		IProject deleted = getWorkspace().getRoot().getProject("deleted");
+		ensureExistsInWorkspace(existing, true);
+		IPath[] paths = {existing.getFullPath().append("file.txt"), deleted.getFullPath(), deleted.getFullPath().append("file.txt"), deleted.getFullPath().append("folder/file.txt")};
+		try {
+			try {
+				for (int i = 0; i < paths.length; i++) {
+					tree.loadBucketFor(paths[i]);
+					bucket.set(paths[i], "path", paths[i].toString());
+				}
+				bucket.save();
+			} catch (CoreException e) {
+				fail("0.1", e);
+			}
+			assertTrue("0.2", !deleted.exists());
+			ParallelBucketTreeVisitor visitor = new ParallelBucketTreeVisitor(workspace, 2);
+			assertTrue("1.0", Arrays.asList(visitor.getIndexedProjects()).contains(deleted.getName()));
+			List<IPath> visited = null;
+			try {
+				visited = visitor.accept(new ParallelBucketTreeVisitor.SubtreeVisitorFactory<IPath>() {
+					public Bucket createBucket() {
+						return new SimpleBucket();
+					}
+
+					public Bucket.Visitor createVisitor(final List<IPath> results) {
+						return new Bucket.Visitor() {
+							public int visit(Bucket.Entry entry) {
+								results.add(entry.getPath());
+								return CONTINUE;
+							}
+						};
+					}
+				}, BucketTree.DEPTH_INFINITE);
+			} catch (CoreException e) {
+				fail("1.1", e);
+			}
+			//other tests may have left entries for the root
+			visited.remove(Path.ROOT);
+			assertEquals("1.2", new HashSet<IPath>(Arrays.asList(paths)), new HashSet<IPath>(visited));
+			//the projects are merged in the order of their names
+			assertEquals("1.3", deleted.getName(), visited.get(0).segment(0));
+			assertEquals("1.4", existing.getName(), visited.get(visited.size() - 1).segment(0));
+		} finally {
+			//the workspace does not know about the index of the deleted project
+			ensureDoesNotExistInFileSystem(workspace.getMetaArea().locationFor(deleted).toFile());
+		}
+	}
+
+	public void testParallelVisitor() {
+		Workspace workspace = (Workspace) getWorkspace();
+		SimpleBucket bucket = new SimpleBucket();
+		BucketTree tree = new BucketTree(workspace, bucket);
+		IProject[] projects = new IProject[5];
+		for (int i = 0; i < projects.length; i++)
+			projects[i] = getWorkspace().getRoot().getProject("proj" + (projects.length - i));
+		ensureExistsInWorkspace(projects, true);
+		List<IPath> paths = new ArrayList<IPath>();
+		paths.add(Path.ROOT);
+		for (int i = 0; i < projects.length; i++) {
+			paths.add(projects[i].getFullPath());
+			for (int j = 0; j < 10; j++)
+				paths.add(projects[i].getFullPath().append("folder" + j).append("file" + j + ".txt"));
+		}
+		for (IPath path : paths) {
+			try {
+				tree.loadBucketFor(path);
+			} catch (CoreException e) {
+				fail("0.1 " + path, e);
+			}
+			bucket.set(path, "path", path.toString());
+		}
+		try {
+			bucket.save();
+		} catch (CoreException e) {
+			fail("0.2", e);
+		}
+		ParallelBucketTreeVisitor.SubtreeVisitorFactory<IPath> factory = new ParallelBucketTreeVisitor.SubtreeVisitorFactory<IPath>() {
+			public Bucket createBucket() {
+				return new SimpleBucket();
+			}
+
+			public Bucket.Visitor createVisitor(final List<IPath> results) {
+				return new Bucket.Visitor() {
+					public int visit(Bucket.Entry entry) {
+						results.add(entry.getPath());
+						return CONTINUE;
+					}
+				};
+			}
+		};
+		int[] depths = new int[] {BucketTree.DEPTH_ZERO, BucketTree.DEPTH_ONE, BucketTree.DEPTH_INFINITE};
+		for (int i = 0; i < depths.length; i++) {
+			final List<IPath> sequential = new ArrayList<IPath>();
+			try {
+				tree.accept(new Bucket.Visitor() {
+					public int visit(Bucket.Entry entry) {
+						sequential.add(entry.getPath());
+						return CONTINUE;
+					}
+				}, Path.ROOT, depths[i]);
+			} catch (CoreException e) {
+				fail("1." + i, e);
+			}
+			List<IPath> first = null;
+			for (int threads = 1; threads <= 4; threads++) {
+				List<IPath> parallel = null;
+				try {
+					parallel = new ParallelBucketTreeVisitor(workspace, threads).accept(factory, depths[i]);
+				} catch (CoreException e) {
+					fail("2." + i + "." + threads, e);
+				}
+				assertEquals("3." + i + "." + threads, new HashSet<IPath>(sequential), new HashSet<IPath>(parallel));
+				assertEquals("4." + i + "." + threads, sequential.size(), parallel.size());
+				//the merged order does not depend on the number of threads
+				if (first == null)
+					first = parallel;
+				else
+					assertEquals("5." + i + "." + threads, first, parallel);
+			}
+			//the root comes first, followed by the projects in name order
+			assertEquals("6." + i, Path.ROOT, first.get(0));
+			for (int j = 2; j < first.size(); j++)
+				assertTrue("7." + i + "." + j, first.get(j - 1).segment(0).compareTo(first.get(j).segment(0)) <= 0);
+		}
+	}
+
 	public void verify(BucketTree tree, final String tag, IPath root, int depth, final Collection<IPath> expected) {
 		final Set<IPath> visited = new HashSet<IPath>();
 		SimpleBucket.Visitor verifier = new SimpleBucket.Visitor() {
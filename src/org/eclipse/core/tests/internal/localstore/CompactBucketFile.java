@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.*;
+import java.util.*;
+import org.eclipse.core.internal.localstore.*;
+import org.eclipse.core.internal.properties.PropertyBucket;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.runtime.*;
+
+/**
+ * A compact binary format for the entries of a bucket, which allows looking
+ * up a single entry without reading the whole file.
+ * <p>
+ * The entries are sorted by their UTF-8 encoded keys and grouped in blocks of
+ * at most {@link #BLOCK_SIZE} entries. Each key is stored as the length of
+ * the prefix it shares with the previous key in its block, followed by the
+ * rest of the key. The first key of a block is stored in full. All lengths
+ * and numbers are stored as variable length integers. A footer at the end of the file holds
+ * the offset of each block, so a lookup binary searches the first keys of the
+ * blocks and then reads a single block.
+ * </p>
+ * <pre>
+ * file   := version block* footer
+ * block  := entry+
+ * entry  := shared suffixLength suffix valueLength value
+ * footer := blockOffset* footerOffset blockCount
+ * </pre>
+ * Files in the existing bucket versions are converted by loading them with
+ * their bucket and writing the loaded entries with
+ * {@link #write(Bucket, File, ValueCodec)}.
+ */
+public class CompactBucketFile {
+	/**
+	 * Encodes the value of a bucket entry.
+	 */
+	public interface ValueCodec {
+		byte[] encode(Bucket.Entry entry) throws IOException;
+	}
+
+	/**
+	 * The states of a history entry, newest first.
+	 */
+	public static class HistoryStates {
+		public final long[] timestamps;
+		public final UniversalUniqueIdentifier[] uuids;
+
+		HistoryStates(int length) {
+			timestamps = new long[length];
+			uuids = new UniversalUniqueIdentifier[length];
+		}
+	}
+
+	/** The maximum number of entries in a block */
+	public static final int BLOCK_SIZE = 16;
+
+	/**
+	 * Encodes the states of a history entry. The UUIDs are random, so they are
+	 * stored as they are. The timestamps are stored as the difference to the
+	 * previous state, which is small for states of the same file.
+	 */
+	public static final ValueCodec HISTORY_CODEC = new ValueCodec() {
+		public byte[] encode(Bucket.Entry entry) throws IOException {
+			HistoryBucket.HistoryEntry history = (HistoryBucket.HistoryEntry) entry;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+			writeVarLong(output, history.getOccurrences());
+			long previous = 0;
+			for (int i = 0; i < history.getOccurrences(); i++) {
+				output.write(history.getUUID(i).toBytes());
+				long timestamp = history.getTimestamp(i);
+				writeVarLong(output, zigZag(previous - timestamp));
+				previous = timestamp;
+			}
+			output.close();
+			return bytes.toByteArray();
+		}
+	};
+
+	/**
+	 * Encodes the properties of a property entry as qualifier, local name
+	 * and value of each property.
+	 */
+	public static final ValueCodec PROPERTY_CODEC = new ValueCodec() {
+		public byte[] encode(Bucket.Entry entry) throws IOException {
+			PropertyBucket.PropertyEntry properties = (PropertyBucket.PropertyEntry) entry;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+			writeVarLong(output, properties.getOccurrences());
+			for (int i = 0; i < properties.getOccurrences(); i++) {
+				QualifiedName name = properties.getPropertyName(i);
+				writeString(output, name.getQualifier() == null ? "" : name.getQualifier());
+				writeString(output, name.getLocalName());
+				writeString(output, properties.getPropertyValue(i));
+			}
+			output.close();
+			return bytes.toByteArray();
+		}
+	};
+
+	/** The version of the format, above the versions of the existing buckets */
+	public static final byte VERSION = 16;
+
+	private static final String ENCODING = "UTF-8";
+	private static final int TRAILER_SIZE = 8;
+
+	private final int blockCount;
+	private final int[] blockOffsets;
+	private final int footerOffset;
+	private final RandomAccessFile source;
+
+	/**
+	 * Decodes the states of a history entry encoded with {@link #HISTORY_CODEC}.
+	 */
+	public static HistoryStates decodeHistory(byte[] value) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(value));
+		HistoryStates states = new HistoryStates((int) readVarLong(input));
+		long previous = 0;
+		for (int i = 0; i < states.uuids.length; i++) {
+			byte[] uuid = new byte[UniversalUniqueIdentifier.BYTES_SIZE];
+			input.readFully(uuid);
+			states.uuids[i] = new UniversalUniqueIdentifier(uuid);
+			previous -= unZigZag(readVarLong(input));
+			states.timestamps[i] = previous;
+		}
+		return states;
+	}
+
+	/**
+	 * Decodes the properties of an entry encoded with {@link #PROPERTY_CODEC}.
+	 */
+	public static Map<QualifiedName, String> decodeProperties(byte[] value) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(value));
+		int length = (int) readVarLong(input);
+		Map<QualifiedName, String> properties = new HashMap<QualifiedName, String>(length);
+		for (int i = 0; i < length; i++) {
+			String qualifier = readString(input);
+			String localName = readString(input);
+			properties.put(new QualifiedName(qualifier.length() == 0 ? null : qualifier, localName), readString(input));
+		}
+		return properties;
+	}
+
+	/**
+	 * Opens the compact bucket file at the given location. Only the footer
+	 * is read.
+	 */
+	public static CompactBucketFile open(File location) throws IOException {
+		return new CompactBucketFile(new RandomAccessFile(location, "r"));
+	}
+
+	private static String readString(DataInput input) throws IOException {
+		byte[] bytes = new byte[(int) readVarLong(input)];
+		input.readFully(bytes);
+		return new String(bytes, ENCODING);
+	}
+
+	static long readVarLong(DataInput input) throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = input.readUnsignedByte();
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes the entries currently loaded in the given bucket to the given
+	 * file in the compact format, and returns the number of written entries.
+	 */
+	public static int write(Bucket bucket, File target, final ValueCodec codec) throws CoreException, IOException {
+		final Map<String, byte[]> entries = new HashMap<String, byte[]>();
+		final IOException[] failure = new IOException[1];
+		bucket.accept(new Bucket.Visitor() {
+			public int visit(Bucket.Entry entry) {
+				try {
+					entries.put(entry.getPath().toString(), codec.encode(entry));
+				} catch (IOException e) {
+					failure[0] = e;
+					return STOP;
+				}
+				return CONTINUE;
+			}
+		}, Path.ROOT, BucketTree.DEPTH_INFINITE);
+		if (failure[0] != null)
+			throw failure[0];
+		write(entries, target);
+		return entries.size();
+	}
+
+	/**
+	 * Writes the given entries to the given file in the compact format.
+	 */
+	public static void write(Map<String, byte[]> entries, File target) throws IOException {
+		//sort by the encoded keys, which is the order used by lookups
+		List<byte[]> keys = new ArrayList<byte[]>(entries.size());
+		Map<byte[], byte[]> values = new IdentityHashMap<byte[], byte[]>(entries.size());
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			byte[] key = entry.getKey().getBytes(ENCODING);
+			keys.add(key);
+			values.put(key, entry.getValue());
+		}
+		Collections.sort(keys, new Comparator<byte[]>() {
+			public int compare(byte[] key1, byte[] key2) {
+				return CompactBucketFile.compare(key1, key1.length, key2);
+			}
+		});
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeByte(VERSION);
+		List<Integer> offsets = new ArrayList<Integer>(keys.size() / BLOCK_SIZE + 1);
+		byte[] previous = null;
+		int count = 0;
+		for (byte[] key : keys) {
+			int shared = 0;
+			if (count++ % BLOCK_SIZE == 0)
+				offsets.add(new Integer(output.size()));
+			else
+				while (shared < key.length && shared < previous.length && key[shared] == previous[shared])
+					shared++;
+			byte[] value = values.get(key);
+			writeVarLong(output, shared);
+			writeVarLong(output, key.length - shared);
+			output.write(key, shared, key.length - shared);
+			writeVarLong(output, value.length);
+			output.write(value);
+			previous = key;
+		}
+		int footerOffset = output.size();
+		for (Integer offset : offsets)
+			output.writeInt(offset.intValue());
+		output.writeInt(footerOffset);
+		output.writeInt(offsets.size());
+		output.close();
+		OutputStream file = new FileOutputStream(target);
+		try {
+			bytes.writeTo(file);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void writeString(DataOutput output, String value) throws IOException {
+		byte[] bytes = value.getBytes(ENCODING);
+		writeVarLong(output, bytes.length);
+		output.write(bytes);
+	}
+
+	static void writeVarLong(DataOutput output, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			output.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private CompactBucketFile(RandomAccessFile source) throws IOException {
+		this.source = source;
+		try {
+			int version = source.readByte();
+			if (version != VERSION)
+				throw new IOException("Unsupported bucket version: " + version);
+			source.seek(source.length() - TRAILER_SIZE);
+			footerOffset = source.readInt();
+			blockCount = source.readInt();
+			blockOffsets = new int[blockCount];
+			source.seek(footerOffset);
+			for (int i = 0; i < blockCount; i++)
+				blockOffsets[i] = source.readInt();
+		} catch (IOException e) {
+			source.close();
+			throw e;
+		}
+	}
+
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/**
+	 * Returns the encoded value of the entry with the given key, or
+	 * <code>null</code> if there is no such entry. Reads at most one block
+	 * besides the first keys of the blocks visited by the binary search.
+	 */
+	public byte[] get(String key) throws IOException {
+		byte[] target = key.getBytes(ENCODING);
+		int low = 0;
+		int high = blockCount - 1;
+		int block = -1;
+		//find the last block whose first key is not greater than the key
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			source.seek(blockOffsets[middle]);
+			readVarLong(source);
+			byte[] first = new byte[(int) readVarLong(source)];
+			source.readFully(first);
+			if (compare(first, first.length, target) <= 0) {
+				block = middle;
+				low = middle + 1;
+			} else
+				high = middle - 1;
+		}
+		if (block < 0)
+			return null;
+		int end = block + 1 < blockCount ? blockOffsets[block + 1] : footerOffset;
+		byte[] contents = new byte[end - blockOffsets[block]];
+		source.seek(blockOffsets[block]);
+		source.readFully(contents);
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(contents));
+		byte[] current = new byte[0];
+		int length = 0;
+		while (input.available() > 0) {
+			int shared = (int) readVarLong(input);
+			int suffix = (int) readVarLong(input);
+			if (current.length < shared + suffix) {
+				byte[] grown = new byte[Math.max(shared + suffix, current.length * 2)];
+				System.arraycopy(current, 0, grown, 0, shared);
+				current = grown;
+			}
+			input.readFully(current, shared, suffix);
+			length = shared + suffix;
+			byte[] value = new byte[(int) readVarLong(input)];
+			input.readFully(value);
+			int comparison = compare(current, length, target);
+			if (comparison == 0)
+				return value;
+			if (comparison > 0)
+				return null;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of blocks in this file.
+	 */
+	public int getBlockCount() {
+		return blockCount;
+	}
+
+	/**
+	 * Compares the first bytes of the given key with the given target key,
+	 * as unsigned bytes.
+	 */
+	static int compare(byte[] key, int length, byte[] target) {
+		int max = Math.min(length, target.length);
+		for (int i = 0; i < max; i++) {
+			int difference = (key[i] & 0xFF) - (target[i] & 0xFF);
+			if (difference != 0)
+				return difference;
+		}
+		return length - target.length;
+	}
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.*;
+import java.util.zip.*;
+import org.eclipse.core.filesystem.EFS;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.resources.ResourceException;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.resources.IResourceStatus;
+import org.eclipse.core.runtime.*;
+
+/**
+ * A blob store that compresses the blobs it adds with deflate.
+ * <p>
+ * The blobs are stored in the same files as those of the plain blob store.
+ * Each blob added by this store starts with a header that records whether
+ * the rest of the file is compressed, and blobs that are too small to gain
+ * from compression are stored without it. Files without the header were
+ * added by the plain store and are read as they are, so a history store can
+ * switch to compression without converting its existing states. The header
+ * ends with the identifier of the blob, which was created after the contents
+ * of a plain blob were written, so a plain blob cannot start with its own
+ * header whatever bytes it holds.
+ * </p><p>
+ * Contents are compressed while they are copied into the store, and
+ * decompressed while the returned stream is read, so a state is never held
+ * in memory as a whole.
+ * </p>
+ * <pre>
+ * blob := MAGIC format uuid contents
+ * </pre>
+ */
+public class CompressingBlobStore extends BlobStore {
+	/** The format of blobs stored as they are */
+	public static final int FORMAT_STORED = 0;
+
+	/** The format of blobs compressed with deflate */
+	public static final int FORMAT_DEFLATED = 1;
+
+	/** The size below which blobs are not compressed, in bytes */
+	public static final int MIN_COMPRESSED_SIZE = 256;
+
+	private static final byte[] MAGIC = {0, 'H', 'S', 'Z'};
+	private static final int HEADER_LENGTH = MAGIC.length + 1 + UniversalUniqueIdentifier.BYTES_SIZE;
+
+	private final boolean compress;
+
+	/**
+	 * Creates a store in the given directory.
+	 *
+	 * @param store the directory of the store
+	 * @param limit the number of folders the blobs are spread over, as for
+	 * the plain blob store
+	 * @param compress whether new blobs are compressed, otherwise they are
+	 * only given a header
+	 */
+	public CompressingBlobStore(IFileStore store, int limit, boolean compress) {
+		super(store, limit);
+		this.compress = compress;
+	}
+
+	public UniversalUniqueIdentifier addBlob(IFileStore target, boolean moveContents) throws CoreException {
+		UniversalUniqueIdentifier uuid = new UniversalUniqueIdentifier();
+		IFileStore destination = fileFor(uuid);
+		destination.getParent().mkdir(EFS.NONE, null);
+		int format = compress && target.fetchInfo().getLength() >= MIN_COMPRESSED_SIZE ? FORMAT_DEFLATED : FORMAT_STORED;
+		InputStream input = target.openInputStream(EFS.NONE, null);
+		try {
+			OutputStream output = destination.openOutputStream(EFS.NONE, null);
+			Deflater deflater = null;
+			try {
+				output.write(MAGIC);
+				output.write(format);
+				output.write(uuid.toBytes());
+				if (format == FORMAT_DEFLATED) {
+					deflater = new Deflater(Deflater.BEST_SPEED);
+					output = new DeflaterOutputStream(output, deflater, 8192);
+				}
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = input.read(buffer)) >= 0)
+					output.write(buffer, 0, read);
+			} finally {
+				output.close();
+				if (deflater != null)
+					deflater.end();
+			}
+		} catch (IOException e) {
+			deleteBlob(uuid);
+			throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not store " + target + " in " + destination, e);
+		} finally {
+			try {
+				input.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+		if (moveContents)
+			target.delete(EFS.NONE, null);
+		return uuid;
+	}
+
+	public InputStream getBlob(UniversalUniqueIdentifier uuid) throws CoreException {
+		Assert.isNotNull(uuid);
+		IFileStore file = fileFor(uuid);
+		PushbackInputStream input = new PushbackInputStream(new BufferedInputStream(file.openInputStream(EFS.NONE, null)), HEADER_LENGTH);
+		try {
+			switch (readFormat(uuid, input)) {
+				case FORMAT_DEFLATED :
+					return new InflaterInputStream(input);
+				default :
+					return input;
+			}
+		} catch (IOException e) {
+			try {
+				input.close();
+			} catch (IOException e1) {
+				//ignore
+			}
+			throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Could not read " + file, e);
+		}
+	}
+
+	/**
+	 * Returns the format of the given blob: {@link #FORMAT_DEFLATED},
+	 * {@link #FORMAT_STORED}, or -1 if the blob has no header.
+	 */
+	public int getFormat(UniversalUniqueIdentifier uuid) throws CoreException {
+		InputStream input = fileFor(uuid).openInputStream(EFS.NONE, null);
+		try {
+			byte[] header = new byte[HEADER_LENGTH];
+			int length = 0;
+			for (int read; length < HEADER_LENGTH && (read = input.read(header, length, HEADER_LENGTH - length)) >= 0;)
+				length += read;
+			return length == HEADER_LENGTH && isHeader(uuid, header) ? header[MAGIC.length] : -1;
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Could not read " + fileFor(uuid), e);
+		} finally {
+			try {
+				input.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the given bytes are the header of the given blob.
+	 */
+	private boolean isHeader(UniversalUniqueIdentifier uuid, byte[] header) {
+		for (int i = 0; i < MAGIC.length; i++)
+			if (header[i] != MAGIC[i])
+				return false;
+		byte[] bytes = uuid.toBytes();
+		for (int i = 0; i < bytes.length; i++)
+			if (header[MAGIC.length + 1 + i] != bytes[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Reads the header of a blob from the given stream, and returns its
+	 * format. Blobs without a header are pushed back and read as stored.
+	 */
+	private int readFormat(UniversalUniqueIdentifier uuid, PushbackInputStream input) throws IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		int length = 0;
+		for (int read; length < HEADER_LENGTH && (read = input.read(header, length, HEADER_LENGTH - length)) >= 0;)
+			length += read;
+		if (length == HEADER_LENGTH && isHeader(uuid, header))
+			return header[MAGIC.length];
+		input.unread(header, 0, length);
+		return FORMAT_STORED;
+	}
+}
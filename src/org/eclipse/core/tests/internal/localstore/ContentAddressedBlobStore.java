@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import org.eclipse.core.filesystem.EFS;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.resources.ResourceException;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.resources.IResourceStatus;
+import org.eclipse.core.runtime.*;
+
+/**
+ * A blob store that keeps each distinct content only once.
+ * <p>
+ * The history index refers to states by identifier, so each added blob still
+ * gets a new identifier, but the identifier is mapped to the SHA-1 digest of
+ * the contents, and the contents are stored in a file named after the digest.
+ * Adding contents that are already stored only adds a reference. Each content
+ * file counts its references, and is deleted when the last identifier
+ * referring to it is deleted, so removing garbage never has to list the
+ * store.
+ * </p><p>
+ * The mapping is kept in memory and recorded in a journal of fixed size
+ * records, which is replayed when the store is opened, and rewritten when
+ * most of its records are obsolete. A change is recorded in the journal
+ * before it is made in memory. The rewritten journal is written next to the
+ * old one, and replaces it once it is complete, so that a crash leaves at
+ * least one complete journal.
+ * </p>
+ * <pre>
+ * journal := record*
+ * record  := ADD uuid digest | DELETE uuid
+ * </pre>
+ */
+public class ContentAddressedBlobStore extends BlobStore implements Closeable {
+	private static final byte ADD = 1;
+	private static final byte DELETE = 2;
+	private static final int DIGEST_LENGTH = 20;
+	private static final String JOURNAL_FILE = "blobs.index";
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final int UUID_LENGTH = 16;
+
+	/** The digest of the contents of each blob, by identifier */
+	private final Map<UniversalUniqueIdentifier, String> blobs = new HashMap<UniversalUniqueIdentifier, String>();
+	private OutputStream journal;
+	private int journalRecords;
+
+	/** The number of blobs referring to each content file, by digest */
+	private final Map<String, Integer> references = new HashMap<String, Integer>();
+	private final File root;
+
+	/**
+	 * Opens the store in the given directory, which must only be used by
+	 * this store.
+	 */
+	public ContentAddressedBlobStore(IFileStore store) throws CoreException {
+		super(store, 256);
+		root = store.toLocalFile(EFS.NONE, null);
+		try {
+			readJournal();
+			if (journalRecords > 2 * blobs.size() + 1024)
+				writeJournal();
+			journal = new FileOutputStream(journalFile(), true);
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Could not open the blob journal in " + root, e);
+		}
+	}
+
+	public UniversalUniqueIdentifier addBlob(IFileStore target, boolean moveContents) throws CoreException {
+		UniversalUniqueIdentifier uuid = new UniversalUniqueIdentifier();
+		File temp = new File(root, HexUtil.toHex(uuid.toBytes()) + TEMP_EXTENSION);
+		//hash and copy in one pass, outside of the lock
+		byte[] digest = copy(target, temp);
+		String hash = HexUtil.toHex(digest);
+		synchronized (this) {
+			Integer count = references.get(hash);
+			File file = contentFile(hash);
+			if (count == null) {
+				file.getParentFile().mkdirs();
+				if (!temp.renameTo(file)) {
+					temp.delete();
+					throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not store blob " + file, null);
+				}
+			} else {
+				temp.delete();
+			}
+			try {
+				record(ADD, uuid, digest);
+			} catch (CoreException e) {
+				//the blob is not in the journal, so it must not be in the store either
+				if (count == null)
+					file.delete();
+				throw e;
+			}
+			references.put(hash, new Integer(count == null ? 1 : count.intValue() + 1));
+			blobs.put(uuid, hash);
+		}
+		if (moveContents)
+			target.delete(EFS.NONE, null);
+		return uuid;
+	}
+
+	/**
+	 * Closes the journal. The store cannot be changed afterwards.
+	 */
+	public synchronized void close() throws IOException {
+		if (journal != null)
+			journal.close();
+		journal = null;
+	}
+
+	private File contentFile(String hash) {
+		return new File(new File(root, hash.substring(0, 2)), hash);
+	}
+
+	/**
+	 * Copies the contents of the given store to the given file, and returns
+	 * their digest.
+	 */
+	private byte[] copy(IFileStore source, File destination) throws CoreException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, e.getMessage(), e);
+		}
+		InputStream input = source.openInputStream(EFS.NONE, null);
+		try {
+			OutputStream output = new FileOutputStream(destination);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = input.read(buffer)) >= 0) {
+					digest.update(buffer, 0, read);
+					output.write(buffer, 0, read);
+				}
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			destination.delete();
+			throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not copy " + source + " to " + destination, e);
+		} finally {
+			try {
+				input.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Deletes the reference of the given blob to its contents, and the
+	 * contents if no other blob refers to them.
+	 */
+	public synchronized void deleteBlob(UniversalUniqueIdentifier uuid) {
+		Assert.isNotNull(uuid);
+		String hash = blobs.remove(uuid);
+		if (hash == null)
+			return;
+		try {
+			record(DELETE, uuid, null);
+		} catch (CoreException e) {
+			//keep the blob, so the store matches the journal
+			blobs.put(uuid, hash);
+			return;
+		}
+		int count = references.get(hash).intValue() - 1;
+		if (count > 0) {
+			references.put(hash, new Integer(count));
+			return;
+		}
+		references.remove(hash);
+		contentFile(hash).delete();
+	}
+
+	public synchronized IFileStore fileFor(UniversalUniqueIdentifier uuid) {
+		String hash = blobs.get(uuid);
+		if (hash == null)
+			//a location that does not exist
+			return super.fileFor(uuid);
+		return EFS.getLocalFileSystem().fromLocalFile(contentFile(hash));
+	}
+
+	public InputStream getBlob(UniversalUniqueIdentifier uuid) throws CoreException {
+		Assert.isNotNull(uuid);
+		return fileFor(uuid).openInputStream(EFS.NONE, null);
+	}
+
+	/**
+	 * Returns the number of blobs in the store.
+	 */
+	public synchronized int getBlobCount() {
+		return blobs.size();
+	}
+
+	/**
+	 * Returns the number of distinct contents in the store.
+	 */
+	public synchronized int getContentCount() {
+		return references.size();
+	}
+
+	private File journalFile() {
+		return new File(root, JOURNAL_FILE);
+	}
+
+	private void readJournal() throws IOException {
+		File file = journalFile();
+		File temp = tempJournalFile();
+		if (!file.exists() && temp.exists()) {
+			//the old journal was deleted after the new one was complete, but before it was renamed
+			if (!temp.renameTo(file))
+				throw new IOException("Could not restore " + file + " from " + temp);
+		} else {
+			//a rewrite that was cut short, the old journal is still complete
+			temp.delete();
+		}
+		if (!file.exists())
+			return;
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] uuid = new byte[UUID_LENGTH];
+			byte[] digest = new byte[DIGEST_LENGTH];
+			while (true) {
+				int op = input.read();
+				if (op < 0)
+					break;
+				input.readFully(uuid);
+				UniversalUniqueIdentifier id = new UniversalUniqueIdentifier(uuid);
+				if (op == ADD) {
+					input.readFully(digest);
+					String hash = HexUtil.toHex(digest);
+					blobs.put(id, hash);
+					Integer count = references.get(hash);
+					references.put(hash, new Integer(count == null ? 1 : count.intValue() + 1));
+				} else {
+					String hash = blobs.remove(id);
+					int count = hash == null ? 0 : references.get(hash).intValue() - 1;
+					if (count > 0)
+						references.put(hash, new Integer(count));
+					else if (hash != null)
+						references.remove(hash);
+				}
+				journalRecords++;
+			}
+		} catch (EOFException e) {
+			//a record cut short by a crash, the blob was never handed out
+		} finally {
+			input.close();
+		}
+	}
+
+	private void record(byte op, UniversalUniqueIdentifier uuid, byte[] digest) throws CoreException {
+		byte[] record = new byte[1 + UUID_LENGTH + (digest == null ? 0 : DIGEST_LENGTH)];
+		record[0] = op;
+		System.arraycopy(uuid.toBytes(), 0, record, 1, UUID_LENGTH);
+		if (digest != null)
+			System.arraycopy(digest, 0, record, 1 + UUID_LENGTH, DIGEST_LENGTH);
+		try {
+			journal.write(record);
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not write the blob journal in " + root, e);
+		}
+		journalRecords++;
+	}
+
+	/**
+	 * Replaces the journal with one that only records the current blobs.
+	 */
+	private File tempJournalFile() {
+		return new File(root, JOURNAL_FILE + TEMP_EXTENSION);
+	}
+
+	private void writeJournal() throws IOException {
+		File temp = tempJournalFile();
+		FileOutputStream fileOutput = new FileOutputStream(temp);
+		OutputStream output = new BufferedOutputStream(fileOutput);
+		try {
+			for (Map.Entry<UniversalUniqueIdentifier, String> entry : blobs.entrySet()) {
+				output.write(ADD);
+				output.write(entry.getKey().toBytes());
+				output.write(HexUtil.fromHex(entry.getValue()));
+			}
+			output.flush();
+			//the old journal may be deleted below, so the new one must be on disk first
+			fileOutput.getFD().sync();
+		} finally {
+			output.close();
+		}
+		File file = journalFile();
+		//renaming over the old journal is atomic where the platform allows it
+		if (!temp.renameTo(file)) {
+			//readJournal recovers the new journal if there is a crash between these two steps
+			if (!file.delete() || !temp.renameTo(file))
+				throw new IOException("Could not replace " + file);
+		}
+		journalRecords = blobs.size();
+	}
+}
@@ -0,0 +1,444 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.*;
+import java.util.*;
+import org.eclipse.core.filesystem.EFS;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.resources.ResourceException;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.resources.IResourceStatus;
+import org.eclipse.core.runtime.*;
+
+/**
+ * A blob store that stores successive states of a file as deltas, with a
+ * full keyframe every few states.
+ * <p>
+ * The history store adds the states of a file by passing the file itself,
+ * so the states added for the same file form a chain. Each state is stored
+ * as a delta against the previous state of its file, until the chain has
+ * as many states as the keyframe interval, or the delta would not be much
+ * smaller than the state. A delta replaces the single region in which two
+ * states differ, which is what an edit between two saves usually is.
+ * </p><p>
+ * Reading a delta rebuilds it from its keyframe. This only happens when the
+ * returned stream is first read, so listing the history or asking whether
+ * a state exists costs nothing. A deleted blob that other deltas are based
+ * on is renamed and kept until the last of them is deleted.
+ * </p><p>
+ * The chains are only known while the store is open: after it is reopened,
+ * the next state of each file starts with a keyframe.
+ * </p>
+ * <pre>
+ * blob  := KEYFRAME contents | DELTA base prefix suffix middle
+ * </pre>
+ */
+public class DeltaBlobStore extends BlobStore {
+	/**
+	 * A delta that replaces a single changed region of the previous state.
+	 */
+	static class Delta {
+		final byte[] middle;
+		final int prefix;
+		final int suffix;
+
+		/**
+		 * Returns the delta that turns the given previous state into the given state.
+		 */
+		static Delta create(byte[] previous, byte[] current) {
+			int max = Math.min(previous.length, current.length);
+			int prefix = 0;
+			while (prefix < max && previous[prefix] == current[prefix])
+				prefix++;
+			int suffix = 0;
+			while (suffix < max - prefix && previous[previous.length - 1 - suffix] == current[current.length - 1 - suffix])
+				suffix++;
+			byte[] middle = new byte[current.length - prefix - suffix];
+			System.arraycopy(current, prefix, middle, 0, middle.length);
+			return new Delta(prefix, suffix, middle);
+		}
+
+		Delta(int prefix, int suffix, byte[] middle) {
+			this.prefix = prefix;
+			this.suffix = suffix;
+			this.middle = middle;
+		}
+
+		byte[] apply(byte[] previous) {
+			byte[] result = new byte[prefix + middle.length + suffix];
+			System.arraycopy(previous, 0, result, 0, prefix);
+			System.arraycopy(middle, 0, result, prefix, middle.length);
+			System.arraycopy(previous, previous.length - suffix, result, prefix + middle.length, suffix);
+			return result;
+		}
+	}
+
+	/**
+	 * A stream on the contents of a delta, which are only rebuilt when the
+	 * stream is first read.
+	 */
+	class LazyInputStream extends InputStream {
+		private InputStream contents;
+		private final UniversalUniqueIdentifier uuid;
+
+		LazyInputStream(UniversalUniqueIdentifier uuid) {
+			this.uuid = uuid;
+		}
+
+		public int available() throws IOException {
+			return contents().available();
+		}
+
+		public void close() {
+			contents = null;
+		}
+
+		private InputStream contents() throws IOException {
+			if (contents == null)
+				contents = new ByteArrayInputStream(rebuild(uuid));
+			return contents;
+		}
+
+		public int read() throws IOException {
+			return contents().read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return contents().read(b, off, len);
+		}
+
+		public long skip(long n) throws IOException {
+			return contents().skip(n);
+		}
+	}
+
+	/**
+	 * A blob of the store.
+	 */
+	static class Node {
+		/** The blob the delta is based on, or null for a keyframe */
+		UniversalUniqueIdentifier base;
+		boolean deleted;
+		/** The number of deltas based on this blob */
+		int dependents;
+		/** The number of deltas between the keyframe and this blob */
+		int depth;
+	}
+
+	private static final int CACHE_SIZE = 8;
+	private static final byte DELTA = 1;
+	private static final int DELTA_HEADER_LENGTH = 1 + UniversalUniqueIdentifier.BYTES_SIZE + 8;
+	private static final byte KEYFRAME = 0;
+	private static final String RETAINED_EXTENSION = ".retained";
+
+	private final Map<UniversalUniqueIdentifier, Node> blobs = new HashMap<UniversalUniqueIdentifier, Node>();
+	/** The contents of the last few blobs added or read, to make deltas against and rebuild from */
+	private final Map<UniversalUniqueIdentifier, byte[]> cache = new LinkedHashMap<UniversalUniqueIdentifier, byte[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<UniversalUniqueIdentifier, byte[]> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	/** The last blob added for each file */
+	private final Map<String, UniversalUniqueIdentifier> chains = new HashMap<String, UniversalUniqueIdentifier>();
+	private final int interval;
+	private final File root;
+
+	/**
+	 * Opens the store in the given directory, which must only be used by
+	 * this store.
+	 *
+	 * @param store the directory of the store
+	 * @param interval the number of states from one keyframe to the next,
+	 * 1 to store every state in full
+	 */
+	public DeltaBlobStore(IFileStore store, int interval) throws CoreException {
+		super(store, 256);
+		Assert.isLegal(interval > 0);
+		this.interval = interval;
+		root = store.toLocalFile(EFS.NONE, null);
+		String[] names = root.list();
+		if (names == null)
+			return;
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i];
+			boolean retained = name.endsWith(RETAINED_EXTENSION);
+			if (retained)
+				name = name.substring(0, name.length() - RETAINED_EXTENSION.length());
+			if (name.length() != 2 * UniversalUniqueIdentifier.BYTES_SIZE)
+				continue;
+			UniversalUniqueIdentifier uuid = new UniversalUniqueIdentifier(HexUtil.fromHex(name));
+			Node node = new Node();
+			node.deleted = retained;
+			try {
+				node.base = readBase(new File(root, names[i]));
+			} catch (IOException e) {
+				throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Could not read " + names[i] + " in " + root, e);
+			}
+			blobs.put(uuid, node);
+		}
+		for (Iterator<Node> it = blobs.values().iterator(); it.hasNext();) {
+			Node node = it.next();
+			Node base = node.base == null ? null : blobs.get(node.base);
+			//a delta whose base is gone cannot be read, but is kept until it is deleted
+			if (base != null)
+				base.dependents++;
+		}
+	}
+
+	public UniversalUniqueIdentifier addBlob(IFileStore target, boolean moveContents) throws CoreException {
+		byte[] contents = readContents(target);
+		String key = target.toURI().toString();
+		UniversalUniqueIdentifier uuid = new UniversalUniqueIdentifier();
+		synchronized (this) {
+			UniversalUniqueIdentifier previous = chains.get(key);
+			Node last = previous == null ? null : blobs.get(previous);
+			Node node = new Node();
+			byte[] encoded = null;
+			if (last != null && last.depth + 1 < interval) {
+				Delta delta;
+				try {
+					delta = Delta.create(rebuild(previous), contents);
+				} catch (IOException e) {
+					throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Could not read " + fileFor(previous), e);
+				}
+				//only keep deltas that are much smaller than the state
+				if (DELTA_HEADER_LENGTH + delta.middle.length < contents.length / 2) {
+					encoded = encode(previous, delta);
+					node.base = previous;
+					node.depth = last.depth + 1;
+				}
+			}
+			if (encoded == null) {
+				encoded = new byte[contents.length + 1];
+				encoded[0] = KEYFRAME;
+				System.arraycopy(contents, 0, encoded, 1, contents.length);
+			}
+			write(uuid, encoded);
+			if (node.base != null)
+				last.dependents++;
+			blobs.put(uuid, node);
+			chains.put(key, uuid);
+			cache.put(uuid, contents);
+		}
+		if (moveContents)
+			target.delete(EFS.NONE, null);
+		return uuid;
+	}
+
+	/**
+	 * Deletes the given blob, or only hides it while deltas are based on it.
+	 */
+	public synchronized void deleteBlob(UniversalUniqueIdentifier uuid) {
+		Assert.isNotNull(uuid);
+		Node node = blobs.get(uuid);
+		if (node == null || node.deleted)
+			return;
+		node.deleted = true;
+		cache.remove(uuid);
+		if (node.dependents > 0) {
+			File file = file(uuid);
+			if (!file.renameTo(retainedFile(uuid)))
+				//keep the blob visible, rather than lose the deltas based on it
+				node.deleted = false;
+			return;
+		}
+		while (node != null && node.deleted && node.dependents == 0) {
+			blobs.remove(uuid);
+			cache.remove(uuid);
+			if (!file(uuid).delete())
+				retainedFile(uuid).delete();
+			uuid = node.base;
+			node = uuid == null ? null : blobs.get(uuid);
+			if (node != null)
+				node.dependents--;
+		}
+	}
+
+	private byte[] encode(UniversalUniqueIdentifier base, Delta delta) {
+		byte[] result = new byte[DELTA_HEADER_LENGTH + delta.middle.length];
+		result[0] = DELTA;
+		System.arraycopy(base.toBytes(), 0, result, 1, UniversalUniqueIdentifier.BYTES_SIZE);
+		int offset = 1 + UniversalUniqueIdentifier.BYTES_SIZE;
+		writeInt(result, offset, delta.prefix);
+		writeInt(result, offset + 4, delta.suffix);
+		System.arraycopy(delta.middle, 0, result, DELTA_HEADER_LENGTH, delta.middle.length);
+		return result;
+	}
+
+	private File file(UniversalUniqueIdentifier uuid) {
+		return new File(root, HexUtil.toHex(uuid.toBytes()));
+	}
+
+	/**
+	 * Returns the file of the given blob, which does not exist once the blob
+	 * is deleted, even if it is kept for the deltas based on it.
+	 */
+	public IFileStore fileFor(UniversalUniqueIdentifier uuid) {
+		return EFS.getLocalFileSystem().fromLocalFile(file(uuid));
+	}
+
+	public synchronized InputStream getBlob(UniversalUniqueIdentifier uuid) throws CoreException {
+		Assert.isNotNull(uuid);
+		Node node = blobs.get(uuid);
+		if (node == null || node.deleted)
+			throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Blob not found: " + fileFor(uuid), null);
+		return new LazyInputStream(uuid);
+	}
+
+	/**
+	 * Returns the number of blobs in the store, including deleted blobs that
+	 * are kept for the deltas based on them.
+	 */
+	public synchronized int getBlobCount() {
+		return blobs.size();
+	}
+
+	/**
+	 * Returns the number of blobs stored as deltas.
+	 */
+	public synchronized int getDeltaCount() {
+		int result = 0;
+		for (Iterator<Node> it = blobs.values().iterator(); it.hasNext();)
+			if (it.next().base != null)
+				result++;
+		return result;
+	}
+
+	/**
+	 * Returns the size of the files of the store, in bytes.
+	 */
+	public synchronized long getSize() {
+		long result = 0;
+		File[] files = root.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+			result += files[i].length();
+		return result;
+	}
+
+	private byte[] read(File file) throws IOException {
+		byte[] result = new byte[(int) file.length()];
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			input.readFully(result);
+		} finally {
+			input.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the blob the given blob file is a delta against, or null if it
+	 * is a keyframe.
+	 */
+	private UniversalUniqueIdentifier readBase(File file) throws IOException {
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			if (input.read() != DELTA)
+				return null;
+			byte[] base = new byte[UniversalUniqueIdentifier.BYTES_SIZE];
+			input.readFully(base);
+			return new UniversalUniqueIdentifier(base);
+		} finally {
+			input.close();
+		}
+	}
+
+	private byte[] readContents(IFileStore target) throws CoreException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.max(0, target.fetchInfo().getLength()));
+		InputStream input = target.openInputStream(EFS.NONE, null);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) >= 0)
+				output.write(buffer, 0, read);
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Could not read " + target, e);
+		} finally {
+			try {
+				input.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+		return output.toByteArray();
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Returns the contents of the given blob, applying the deltas from its
+	 * keyframe or from the closest blob whose contents are cached. The
+	 * contents are cached, so reading the next states of a file only applies
+	 * their own deltas.
+	 */
+	synchronized byte[] rebuild(UniversalUniqueIdentifier uuid) throws IOException {
+		//the deltas from the blob back to its keyframe or a cached blob
+		List<byte[]> chain = new ArrayList<byte[]>();
+		byte[] result = null;
+		for (UniversalUniqueIdentifier current = uuid; result == null;) {
+			result = cache.get(current);
+			if (result != null)
+				break;
+			Node node = blobs.get(current);
+			if (node == null)
+				throw new FileNotFoundException(file(current).toString());
+			byte[] encoded = read(node.deleted ? retainedFile(current) : file(current));
+			if (node.base == null) {
+				result = new byte[encoded.length - 1];
+				System.arraycopy(encoded, 1, result, 0, result.length);
+			} else {
+				chain.add(encoded);
+				current = node.base;
+			}
+		}
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			byte[] encoded = chain.get(i);
+			int offset = 1 + UniversalUniqueIdentifier.BYTES_SIZE;
+			byte[] middle = new byte[encoded.length - DELTA_HEADER_LENGTH];
+			System.arraycopy(encoded, DELTA_HEADER_LENGTH, middle, 0, middle.length);
+			result = new Delta(readInt(encoded, offset), readInt(encoded, offset + 4), middle).apply(result);
+		}
+		cache.put(uuid, result);
+		return result;
+	}
+
+	private File retainedFile(UniversalUniqueIdentifier uuid) {
+		return new File(root, HexUtil.toHex(uuid.toBytes()) + RETAINED_EXTENSION);
+	}
+
+	private void write(UniversalUniqueIdentifier uuid, byte[] encoded) throws CoreException {
+		File file = file(uuid);
+		try {
+			OutputStream output = new FileOutputStream(file);
+			try {
+				output.write(encoded);
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			file.delete();
+			throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not store blob " + file, e);
+		}
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.*;
+import java.util.*;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/**
+ * A persistent index of the modification stamps of all directories below a
+ * root directory. It is used to find the directories whose direct members
+ * were added, removed or renamed since the index was created, by checking
+ * the stamp of every directory, without listing unchanged directories and
+ * without checking any files.
+ * <p>
+ * Changes to the contents of existing files do not change the stamp of
+ * their directory, so they are not detected. Directories whose stamp is not
+ * older than the index itself are always reported as changed, because they
+ * may have changed again within the granularity of the file system clock.
+ * </p>
+ */
+public class DirectoryStampIndex {
+	private static class Entry {
+		final long stamp;
+		final List<String> subdirectories = new ArrayList<String>();
+
+		Entry(long stamp) {
+			this.stamp = stamp;
+		}
+	}
+
+	private static final int VERSION = 1;
+
+	/** The index entries, by directory path relative to the root */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** The time the index was created at */
+	private long timestamp;
+
+	private static String childPath(String path, String name) {
+		return path.length() == 0 ? name : path + '/' + name;
+	}
+
+	/**
+	 * Creates an index of all directories below the given root.
+	 */
+	public static DirectoryStampIndex create(File root) {
+		DirectoryStampIndex result = new DirectoryStampIndex();
+		result.timestamp = System.currentTimeMillis();
+		result.add("", root);
+		return result;
+	}
+
+	/**
+	 * Reads an index written by {@link #write(File)}.
+	 */
+	public static DirectoryStampIndex read(File file) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int version = input.readInt();
+			if (version != VERSION)
+				throw new IOException("Unknown directory stamp index version: " + version);
+			DirectoryStampIndex result = new DirectoryStampIndex();
+			result.timestamp = input.readLong();
+			int count = input.readInt();
+			String previous = "";
+			for (int i = 0; i < count; i++) {
+				//paths are prefix compressed against the previous path
+				int shared = input.readInt();
+				String path = previous.substring(0, shared) + input.readUTF();
+				result.entries.put(path, new Entry(input.readLong()));
+				previous = path;
+			}
+			//the subdirectories of each directory are implied by the paths
+			for (String path : result.entries.keySet()) {
+				if (path.length() == 0)
+					continue;
+				int separator = path.lastIndexOf('/');
+				String parent = separator < 0 ? "" : path.substring(0, separator);
+				Entry parentEntry = result.entries.get(parent);
+				if (parentEntry != null)
+					parentEntry.subdirectories.add(path.substring(separator + 1));
+			}
+			return result;
+		} finally {
+			input.close();
+		}
+	}
+
+	private DirectoryStampIndex() {
+		super();
+	}
+
+	private void add(String path, File directory) {
+		Entry entry = new Entry(directory.lastModified());
+		entries.put(path, entry);
+		File[] children = directory.listFiles();
+		if (children == null)
+			return;
+		for (int i = 0; i < children.length; i++) {
+			if (children[i].isDirectory()) {
+				entry.subdirectories.add(children[i].getName());
+				add(childPath(path, children[i].getName()), children[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the paths, relative to the given root, of all directories whose
+	 * direct members have changed since this index was created. This includes
+	 * directories that were created since then. Parents are returned before
+	 * their children.
+	 */
+	public List<IPath> findChangedDirectories(File root) {
+		List<IPath> result = new ArrayList<IPath>();
+		findChangedDirectories("", root, result);
+		return result;
+	}
+
+	private void findChangedDirectories(String path, File directory, List<IPath> result) {
+		Entry entry = entries.get(path);
+		long stamp = directory.lastModified();
+		if (entry != null && stamp == entry.stamp && stamp < timestamp) {
+			//the members are unchanged, so the subdirectories are known
+			for (String name : entry.subdirectories)
+				findChangedDirectories(childPath(path, name), new File(directory, name), result);
+			return;
+		}
+		File[] children = directory.listFiles();
+		//deleted directories are reported by their parent
+		if (children == null)
+			return;
+		result.add(new Path(path));
+		for (int i = 0; i < children.length; i++)
+			if (children[i].isDirectory())
+				findChangedDirectories(childPath(path, children[i].getName()), children[i], result);
+	}
+
+	/**
+	 * Returns the number of directories in this index.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Writes this index to the given file.
+	 */
+	public void write(File file) throws IOException {
+		String[] paths = entries.keySet().toArray(new String[entries.size()]);
+		Arrays.sort(paths);
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			output.writeInt(VERSION);
+			output.writeLong(timestamp);
+			output.writeInt(paths.length);
+			String previous = "";
+			for (int i = 0; i < paths.length; i++) {
+				int shared = 0;
+				int max = Math.min(previous.length(), paths[i].length());
+				while (shared < max && previous.charAt(shared) == paths[i].charAt(shared))
+					shared++;
+				output.writeInt(shared);
+				output.writeUTF(paths[i].substring(shared));
+				output.writeLong(entries.get(paths[i]).stamp);
+				previous = paths[i];
+			}
+		} finally {
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+/**
+ * Converts identifiers and digests to the hexadecimal names used for the
+ * files of the alternative blob stores, and back.
+ */
+final class HexUtil {
+	private HexUtil() {
+		super();
+	}
+
+	static byte[] fromHex(String hex) {
+		byte[] result = new byte[hex.length() / 2];
+		for (int i = 0; i < result.length; i++)
+			result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return result;
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuffer result = new StringBuffer(bytes.length * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			result.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+			result.append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return result.toString();
+	}
+}
@@ -10,13 +10,20 @@
  *******************************************************************************/
 package org.eclipse.core.tests.internal.localstore;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import junit.framework.Test;
 import junit.framework.TestSuite;
-import org.eclipse.core.internal.localstore.HistoryBucket;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.internal.localstore.*;
 import org.eclipse.core.internal.localstore.Bucket.Entry;
+import org.eclipse.core.internal.resources.*;
 import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.resources.*;
 import org.eclipse.core.runtime.*;
 import org.eclipse.core.tests.resources.ResourceTest;
+import org.osgi.framework.Bundle;
 
 public class HistoryBucketTest extends ResourceTest {
 
@@ -28,6 +35,173 @@ public class HistoryBucketTest extends ResourceTest {
 		super(name);
 	}
 
+	/**
+	 * Converts a saved bucket to the compact format, and ensures that every
+	 * entry can be looked up with the same states.
+	 */
+	public void testCompactConversion() {
+		IPath baseLocation = getRandomLocation();
+		try {
+			HistoryBucket index1 = new HistoryBucket();
+			IPath location = baseLocation.append("location");
+			try {
+				index1.load("foo", location.toFile());
+			} catch (CoreException e) {
+				fail("1.0", e);
+			}
+			IPath[] paths = new IPath[200];
+			long timestamp = System.currentTimeMillis();
+			for (int i = 0; i < paths.length; i++) {
+				paths[i] = new Path("/foo/src/org/eclipse/core/internal/localstore/File" + i + ".java");
+				for (int j = 0; j <= i % 3; j++)
+					index1.addBlob(paths[i], new UniversalUniqueIdentifier(), timestamp - i * 1000 - j * 10);
+			}
+			try {
+				index1.save();
+			} catch (CoreException e) {
+				fail("1.1", e);
+			}
+			// convert from the bucket as read from disk
+			HistoryBucket index2 = new HistoryBucket();
+			File compact = baseLocation.append("compact").toFile();
+			try {
+				index2.load("foo", location.toFile(), true);
+				assertEquals("2.0", paths.length, CompactBucketFile.write(index2, compact, CompactBucketFile.HISTORY_CODEC));
+			} catch (CoreException e) {
+				fail("2.1", e);
+			} catch (IOException e) {
+				fail("2.2", e);
+			}
+			// the bucket directory only holds the index file and the version file
+			long originalSize = 0;
+			File[] files = location.toFile().listFiles();
+			for (int i = 0; i < files.length; i++)
+				if (files[i].getName().endsWith(".index"))
+					originalSize += files[i].length();
+			assertTrue("2.3 " + compact.length() + " >= " + originalSize, compact.length() < originalSize);
+			CompactBucketFile reader = null;
+			try {
+				reader = CompactBucketFile.open(compact);
+				assertEquals("3.0", (paths.length + CompactBucketFile.BLOCK_SIZE - 1) / CompactBucketFile.BLOCK_SIZE, reader.getBlockCount());
+				for (int i = 0; i < paths.length; i++) {
+					HistoryBucket.HistoryEntry entry = index1.getEntry(paths[i]);
+					byte[] value = reader.get(paths[i].toString());
+					assertNotNull("3.1." + i, value);
+					CompactBucketFile.HistoryStates states = CompactBucketFile.decodeHistory(value);
+					assertEquals("3.2." + i, entry.getOccurrences(), states.uuids.length);
+					for (int j = 0; j < entry.getOccurrences(); j++) {
+						assertEquals("3.3." + i + "." + j, entry.getUUID(j), states.uuids[j]);
+						assertEquals("3.4." + i + "." + j, entry.getTimestamp(j), states.timestamps[j]);
+					}
+				}
+				assertNull("4.0", reader.get("/foo"));
+				assertNull("4.1", reader.get("/foo/src/org/eclipse/core/internal/localstore/File0.javax"));
+				assertNull("4.2", reader.get("/zoo"));
+			} catch (IOException e) {
+				fail("4.3", e);
+			} finally {
+				if (reader != null)
+					try {
+						reader.close();
+					} catch (IOException e) {
+						fail("4.4", e);
+					}
+			}
+		} finally {
+			ensureDoesNotExistInFileSystem(baseLocation.toFile());
+		}
+		convertLegacyToCompact();
+	}
+
+	/**
+	 * Adds states with the legacy history store, converts its index to
+	 * history buckets, and converts the bucket to the compact format, as an
+	 * existing workspace would go through both conversions. The compact file
+	 * must hold the states of the legacy store.
+	 */
+	private void convertLegacyToCompact() {
+		Bundle compatibility = Platform.getBundle("org.eclipse.core.resources.compatibility");
+		if (compatibility == null || compatibility.getState() != Bundle.RESOLVED)
+			// compatibility fragment not available
+			return;
+		IPath baseLocation = getRandomLocation();
+		IHistoryStore original = null;
+		CompactBucketFile reader = null;
+		try {
+			// all files of a folder share the same bucket
+			IFolder folder = getWorkspace().getRoot().getProject("proj1").getFolder("folder1");
+			IFile[] files = new IFile[20];
+			for (int i = 0; i < files.length; i++)
+				files[i] = folder.getFile("file" + i + ".txt");
+			ensureExistsInWorkspace(files, true);
+			assertTrue("5.0", baseLocation.toFile().mkdirs());
+			original = createHistoryStore("5.1", baseLocation, false, false);
+			for (int i = 0; i < files.length; i++)
+				for (int j = 0; j <= i % 3; j++) {
+					IFileStore store = ((Resource) files[i]).getStore();
+					original.addState(files[i].getFullPath(), store, store.fetchInfo(), false);
+				}
+			original.shutdown(getMonitor());
+			// convert to history buckets, which are saved on shutdown
+			createHistoryStore("5.2", baseLocation, true, true).shutdown(getMonitor());
+			File compact = baseLocation.append("compact").toFile();
+			BucketTree tree = new BucketTree((Workspace) getWorkspace(), new HistoryBucket());
+			tree.loadBucketFor(files[0].getFullPath());
+			assertEquals("5.3", files.length, CompactBucketFile.write(tree.getCurrent(), compact, CompactBucketFile.HISTORY_CODEC));
+			tree.close();
+
+			// compare with the legacy store
+			original = createHistoryStore("5.4", baseLocation, false, false);
+			reader = CompactBucketFile.open(compact);
+			for (int i = 0; i < files.length; i++) {
+				IFileState[] states = original.getStates(files[i].getFullPath(), getMonitor());
+				byte[] value = reader.get(files[i].getFullPath().toString());
+				assertNotNull("6.0." + i, value);
+				CompactBucketFile.HistoryStates compactStates = CompactBucketFile.decodeHistory(value);
+				assertEquals("6.1." + i, i % 3 + 1, states.length);
+				assertEquals("6.2." + i, states.length, compactStates.uuids.length);
+				for (int j = 0; j < states.length; j++) {
+					assertEquals("6.3." + i + "." + j, ((FileState) states[j]).getUUID(), compactStates.uuids[j]);
+					assertEquals("6.4." + i + "." + j, states[j].getModificationTime(), compactStates.timestamps[j]);
+				}
+			}
+		} catch (CoreException e) {
+			fail("7.0", e);
+		} catch (IOException e) {
+			fail("7.1", e);
+		} finally {
+			if (reader != null)
+				try {
+					reader.close();
+				} catch (IOException e) {
+					fail("7.2", e);
+				}
+			if (original != null)
+				try {
+					original.shutdown(getMonitor());
+				} catch (CoreException e) {
+					fail("7.3", e);
+				}
+			ensureDoesNotExistInFileSystem(baseLocation.toFile());
+		}
+	}
+
+	private IHistoryStore createHistoryStore(String tag, IPath location, boolean newImpl, boolean convert) {
+		try {
+			return ResourcesCompatibilityHelper.createHistoryStore(location, 0x100, newImpl, convert, false);
+		} catch (ClassNotFoundException e) {
+			fail(tag + ".1", e);
+		} catch (NoSuchMethodException e) {
+			fail(tag + ".2", e);
+		} catch (IllegalAccessException e) {
+			fail(tag + ".3", e);
+		} catch (InvocationTargetException e) {
+			fail(tag + ".4", e.getTargetException());
+		}
+		// never gets here
+		return null;
+	}
+
 	/**
 	 * Ensures that if another entry having exactly the same UUID is added,
 	 * the original one is not replaced.
@@ -60,6 +234,59 @@ public class HistoryBucketTest extends ResourceTest {
 		}
 	}
 
+	/**
+	 * Reads the states of every entry of a compact bucket through a memory
+	 * mapped reader, reusing the same cursor for all lookups.
+	 */
+	public void testMappedAccess() {
+		IPath baseLocation = getRandomLocation();
+		try {
+			HistoryBucket index = new HistoryBucket();
+			try {
+				index.load("foo", baseLocation.append("location").toFile());
+			} catch (CoreException e) {
+				fail("1.0", e);
+			}
+			IPath[] paths = new IPath[100];
+			for (int i = 0; i < paths.length; i++) {
+				paths[i] = new Path("/foo/folder" + i % 10 + "/file" + i);
+				for (int j = 0; j <= i % 5; j++)
+					index.addBlob(paths[i], new UniversalUniqueIdentifier(), (long) (Math.random() * Long.MAX_VALUE));
+			}
+			File compact = baseLocation.append("compact").toFile();
+			MappedBucketReader reader = null;
+			try {
+				CompactBucketFile.write(index, compact, CompactBucketFile.HISTORY_CODEC);
+				reader = MappedBucketReader.open(compact);
+			} catch (CoreException e) {
+				fail("2.0", e);
+			} catch (IOException e) {
+				fail("2.1", e);
+			}
+			MappedBucketReader.HistoryCursor cursor = new MappedBucketReader.HistoryCursor();
+			try {
+				for (int i = 0; i < paths.length; i++) {
+					HistoryBucket.HistoryEntry entry = index.getEntry(paths[i]);
+					assertTrue("3.0." + i, reader.find(paths[i].toString(), cursor));
+					assertEquals("3.1." + i, entry.getOccurrences(), cursor.getOccurrences());
+					for (int j = 0; j < entry.getOccurrences(); j++) {
+						assertTrue("3.2." + i + "." + j, cursor.next());
+						assertEquals("3.3." + i + "." + j, entry.getUUID(j), cursor.getUUID());
+						assertEquals("3.4." + i + "." + j, entry.getTimestamp(j), cursor.getTimestamp());
+					}
+					assertTrue("3.5." + i, !cursor.next());
+				}
+				assertTrue("4.0", !reader.find("/foo", cursor));
+				assertTrue("4.1", !reader.find("/foo/folder1/file", cursor));
+				assertTrue("4.2", !reader.find("/foo/folder9/file99x", cursor));
+			} catch (IOException e) {
+				fail("4.3", e);
+			}
+		} finally {
+			ensureDoesNotExistInFileSystem(baseLocation.toFile());
+		}
+	}
+
 	public void testPersistence() {
 		IPath baseLocation = getRandomLocation();
 		try {
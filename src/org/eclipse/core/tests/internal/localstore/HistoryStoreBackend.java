@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import org.eclipse.core.filesystem.EFS;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.localstore.IHistoryStore;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.runtime.CoreException;
+
+/**
+ * Swaps the blob store of the history store of a workspace, so that the
+ * alternative blob stores can be tried with the real history store and the
+ * resource API.
+ * <p>
+ * The history index only records the identifiers of the states, so states
+ * added with one blob store cannot be read with another one. Callers should
+ * wipe the history before installing a blob store, and before restoring the
+ * original one.
+ * </p>
+ */
+public class HistoryStoreBackend {
+	private static final String BLOB_STORE_FIELD = "blobStore";
+
+	private HistoryStoreBackend() {
+		super();
+	}
+
+	private static Field getField(IHistoryStore store) {
+		try {
+			Field field = store.getClass().getDeclaredField(BLOB_STORE_FIELD);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException("Unsupported history store: " + store.getClass().getName());
+		}
+	}
+
+	/**
+	 * Returns the blob store of the history store of the given workspace.
+	 */
+	public static BlobStore getBlobStore(Workspace workspace) {
+		IHistoryStore store = workspace.getFileSystemManager().getHistoryStore();
+		try {
+			return (BlobStore) getField(store).get(store);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Makes the history store of the given workspace use the given blob
+	 * store, and returns the blob store it used before.
+	 */
+	public static BlobStore install(Workspace workspace, BlobStore blobStore) {
+		IHistoryStore store = workspace.getFileSystemManager().getHistoryStore();
+		synchronized (store) {
+			Field field = getField(store);
+			try {
+				BlobStore previous = (BlobStore) field.get(store);
+				field.set(store, blobStore);
+				return previous;
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Returns an empty directory with the given name in the history store
+	 * location of the given workspace, for a blob store to keep its files in.
+	 * The history store itself only uses the hexadecimal folder names of the
+	 * default blob store.
+	 */
+	public static IFileStore newLocation(Workspace workspace, String name) throws CoreException {
+		File location = workspace.getMetaArea().getHistoryStoreLocation().append(name).toFile();
+		IFileStore store = EFS.getLocalFileSystem().fromLocalFile(location);
+		store.delete(EFS.NONE, null);
+		store.mkdir(EFS.NONE, null);
+		return store;
+	}
+}
@@ -16,6 +16,7 @@ import junit.framework.Test;
 import junit.framework.TestSuite;
 import org.eclipse.core.filesystem.IFileStore;
 import org.eclipse.core.filesystem.provider.FileInfo;
+import org.eclipse.core.internal.localstore.BlobStore;
 import org.eclipse.core.internal.localstore.IHistoryStore;
 import org.eclipse.core.internal.resources.*;
 import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
@@ -129,6 +130,15 @@ public class HistoryStoreTest extends ResourceTest {
 		super(name);
 	}
 
+	/*
+	 * Returns the number of states of the given file in the history store,
+	 * whether the file exists or was deleted.
+	 */
+	private int getStateCount(IFile file) {
+		IHistoryStore store = ((Workspace) getWorkspace()).getFileSystemManager().getHistoryStore();
+		return store.getStates(file.getFullPath(), getMonitor()).length;
+	}
+
 	private int numBytes(InputStream input) {
 		int i = 0;
 		int c = -1;
@@ -1440,6 +1450,170 @@ public class HistoryStoreTest extends ResourceTest {
 		}
 	}
 
+	/**
+	 * Each state must be visible to history queries as soon as the operation
+	 * that added it has completed, also when the state is written lazily by
+	 * a staging blob store, which answers the queries from its queue.
+	 */
+	public void testHistoryVisibleAfterSetContents() {
+		IProject project = getWorkspace().getRoot().getProject("Project");
+		assertHistoryVisible(project.getFile("file.txt"), null);
+
+		Workspace workspace = (Workspace) getWorkspace();
+		//a delay long enough that the states stay queued while they are queried
+		StagingBlobStore staging = null;
+		try {
+			staging = new StagingBlobStore(workspace, PI_RESOURCES_TESTS, 60000);
+		} catch (CoreException e) {
+			fail("5.0", e);
+		}
+		BlobStore original = HistoryStoreBackend.install(workspace, staging);
+		try {
+			assertHistoryVisible(project.getFile("staged.txt"), staging);
+		} finally {
+			HistoryStoreBackend.install(workspace, original);
+			try {
+				staging.close();
+			} catch (IOException e) {
+				fail("5.1", e);
+			}
+		}
+	}
+
+	private void assertHistoryVisible(IFile file, StagingBlobStore staging) {
+		ensureExistsInWorkspace(file, "state 0");
+		try {
+			for (int i = 1; i <= 20; i++) {
+				file.setContents(getContents("state " + i), IResource.KEEP_HISTORY, getMonitor());
+				if (staging != null)
+					assertEquals("0." + i, i, staging.getPendingCount());
+				IFileState[] states = file.getHistory(getMonitor());
+				assertEquals("1." + i, i, states.length);
+				assertTrue("2." + i, compareContent(getContents("state " + (i - 1)), states[0].getContents()));
+				assertTrue("2.1." + i, states[0].exists());
+				if (staging != null)
+					assertEquals("2.2." + i, i, staging.getPendingCount());
+			}
+			file.delete(IResource.KEEP_HISTORY, getMonitor());
+			IFile[] deleted = file.getProject().findDeletedMembersWithHistory(IResource.DEPTH_INFINITE, getMonitor());
+			assertTrue("3.0", Arrays.asList(deleted).contains(file));
+		} catch (CoreException e) {
+			fail("4.99", e);
+		}
+	}
+
+	/**
+	 * Applies the history policies in slices, and ensures that states that
+	 * no longer break a policy when they are about to be deleted are kept.
+	 */
+	public void testIncrementalClean() {
+		IProject project = getWorkspace().getRoot().getProject("Project");
+		IFolder folder = project.getFolder("folder");
+		IFile[] files = new IFile[10];
+		for (int i = 0; i < files.length; i++)
+			files[i] = folder.getFile("file" + i + ".txt");
+		ensureExistsInWorkspace(files, true);
+		try {
+			for (int i = 0; i < files.length; i++)
+				for (int j = 0; j < 3; j++)
+					files[i].setContents(getRandomContents(), IResource.KEEP_HISTORY, getMonitor());
+			for (int i = 0; i < 5; i++)
+				files[i].delete(IResource.KEEP_HISTORY, getMonitor());
+		} catch (CoreException e) {
+			fail("0.0", e);
+		}
+		IWorkspaceDescription description = getWorkspace().getDescription();
+		description.setFileStateLongevity(1);
+		try {
+			getWorkspace().setDescription(description);
+		} catch (CoreException e) {
+			fail("0.1", e);
+		}
+
+		// a slice without budget does a single step: the root, the project, then each bucket of the project
+		IncrementalHistoryCleaner cleaner = new IncrementalHistoryCleaner((Workspace) getWorkspace());
+		cleaner.setSlice(0);
+		assertEquals("1.0", 2, cleaner.getScanBacklog());
+		int scanSlices = 0;
+		try {
+			for (; cleaner.getScanBacklog() > 0; scanSlices++)
+				assertEquals("1.1." + scanSlices, 0, cleaner.runSlice(getMonitor()));
+		} catch (CoreException e) {
+			fail("1.2", e);
+		}
+		// the files are in the bucket of their folder
+		assertTrue("1.3", scanSlices > 2);
+		assertEquals("1.4", scanSlices, cleaner.getSliceCount());
+		assertEquals("1.5", files.length, cleaner.getBacklogCount(System.currentTimeMillis()));
+		assertTrue("1.6", cleaner.getBacklogSize(System.currentTimeMillis()) > 0);
+
+		// the history is not expired anymore when it is about to be cleaned
+		description.setFileStateLongevity(1000 * 3600 * 24);
+		try {
+			getWorkspace().setDescription(description);
+			while (!cleaner.isDone(System.currentTimeMillis()))
+				cleaner.runSlice(getMonitor());
+		} catch (CoreException e) {
+			fail("2.0", e);
+		}
+		assertEquals("2.1", 0, cleaner.getRemovedCount());
+		assertEquals("2.2", scanSlices + files.length, cleaner.getSliceCount());
+		try {
+			assertEquals("2.3", 5, project.findDeletedMembersWithHistory(IResource.DEPTH_INFINITE, getMonitor()).length);
+		} catch (CoreException e) {
+			fail("2.4", e);
+		}
+
+		// only the newest states are kept
+		int[] states = new int[files.length];
+		int expected = 0;
+		for (int i = 0; i < files.length; i++) {
+			states[i] = getStateCount(files[i]);
+			expected += Math.max(0, states[i] - 2);
+		}
+		description.setMaxFileStates(2);
+		cleaner = new IncrementalHistoryCleaner((Workspace) getWorkspace());
+		try {
+			getWorkspace().setDescription(description);
+			while (!cleaner.isDone(System.currentTimeMillis()))
+				cleaner.runSlice(getMonitor());
+		} catch (CoreException e) {
+			fail("3.0", e);
+		}
+		assertTrue("3.1", expected > 0);
+		assertEquals("3.2", expected, cleaner.getRemovedCount());
+		assertTrue("3.3", cleaner.getRemovedSize() > 0);
+		for (int i = 0; i < files.length; i++)
+			assertEquals("3.4." + i, Math.min(2, states[i]), getStateCount(files[i]));
+		try {
+			IFileState[] history = files[5].getHistory(getMonitor());
+			assertEquals("3.5", 2, history.length);
+			assertTrue("3.6", history[0].exists() && history[1].exists());
+		} catch (CoreException e) {
+			fail("3.7", e);
+		}
+
+		description.setFileStateLongevity(1);
+		cleaner = new IncrementalHistoryCleaner((Workspace) getWorkspace());
+		try {
+			getWorkspace().setDescription(description);
+			while (!cleaner.isDone(System.currentTimeMillis()))
+				cleaner.runSlice(getMonitor());
+		} catch (CoreException e) {
+			fail("4.0", e);
+		}
+		assertEquals("4.1", 2 * files.length, cleaner.getRemovedCount());
+		assertTrue("4.2", cleaner.getRemovedSize() > 0);
+		assertEquals("4.3", 0, cleaner.getBacklogCount(System.currentTimeMillis()));
+		try {
+			assertEquals("4.4", 0, project.findDeletedMembersWithHistory(IResource.DEPTH_INFINITE, getMonitor()).length);
+			for (int i = 5; i < files.length; i++)
+				assertEquals("4.5." + i, 0, files[i].getHistory(getMonitor()).length);
+		} catch (CoreException e) {
+			fail("4.6", e);
+		}
+	}
+
 	public void testModifiedStamp() {
 		/* Initialize common objects. */
 		IProject project = getWorkspace().getRoot().getProject("Project");
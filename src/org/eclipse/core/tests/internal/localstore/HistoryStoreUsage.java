@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.resources.ResourcesPlugin;
+
+/**
+ * Measures the disk usage of the local history store: the number and size of
+ * the state blobs, the number and size of the distinct contents among them,
+ * their size when compressed with deflate, and the size of the index files.
+ */
+public class HistoryStoreUsage {
+	/**
+	 * An output stream that only counts the bytes written to it.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		long count = 0;
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+		public void write(int b) {
+			count++;
+		}
+	}
+
+	private static final String INDEX_EXTENSION = ".index";
+	private static final String VERSION_FILE = "history.version";
+
+	private long blobBytes;
+	private int blobCount;
+	private long compressedBytes;
+	private final Set<String> digests = new HashSet<String>();
+	private long distinctBytes;
+	private long indexBytes;
+	private int indexCount;
+
+	/**
+	 * Measures the history store of the running workspace.
+	 */
+	public static HistoryStoreUsage compute() throws IOException {
+		Workspace workspace = (Workspace) ResourcesPlugin.getWorkspace();
+		return compute(workspace.getMetaArea().getHistoryStoreLocation().toFile());
+	}
+
+	/**
+	 * Measures the history store at the given location.
+	 */
+	public static HistoryStoreUsage compute(File root) throws IOException {
+		HistoryStoreUsage result = new HistoryStoreUsage();
+		result.add(root);
+		return result;
+	}
+
+	private HistoryStoreUsage() {
+		super();
+	}
+
+	private void add(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; i++)
+				add(children[i]);
+			return;
+		}
+		if (!file.isFile())
+			return;
+		String name = file.getName();
+		if (name.endsWith(INDEX_EXTENSION) || name.equals(VERSION_FILE)) {
+			indexCount++;
+			indexBytes += file.length();
+			return;
+		}
+		blobCount++;
+		blobBytes += file.length();
+		if (digests.add(measure(file)))
+			distinctBytes += file.length();
+	}
+
+	/**
+	 * Adds the compressed size of the given blob, and returns its digest.
+	 */
+	private String measure(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		CountingOutputStream counter = new CountingOutputStream();
+		DeflaterOutputStream compressed = new DeflaterOutputStream(counter);
+		InputStream input = new BufferedInputStream(new FileInputStream(file));
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				digest.update(buffer, 0, read);
+				compressed.write(buffer, 0, read);
+			}
+			compressed.close();
+		} finally {
+			input.close();
+		}
+		compressedBytes += counter.count;
+		return HexUtil.toHex(digest.digest());
+	}
+
+	/**
+	 * Returns the total size of all state blobs in bytes.
+	 */
+	public long getBlobBytes() {
+		return blobBytes;
+	}
+
+	/**
+	 * Returns the number of state blobs.
+	 */
+	public int getBlobCount() {
+		return blobCount;
+	}
+
+	/**
+	 * Returns the total size of all state blobs in bytes when each of them
+	 * is compressed with deflate.
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	/**
+	 * Returns the size in bytes that the blobs would take if each distinct
+	 * content was stored only once.
+	 */
+	public long getDistinctBytes() {
+		return distinctBytes;
+	}
+
+	/**
+	 * Returns the number of distinct contents among the state blobs.
+	 */
+	public int getDistinctCount() {
+		return digests.size();
+	}
+
+	/**
+	 * Returns the total size of all index files in bytes.
+	 */
+	public long getIndexBytes() {
+		return indexBytes;
+	}
+
+	/**
+	 * Returns the number of index files.
+	 */
+	public int getIndexCount() {
+		return indexCount;
+	}
+
+	public String toString() {
+		return blobCount + " blobs (" + blobBytes + " bytes, " + compressedBytes + " compressed), " + digests.size() + " distinct (" + distinctBytes + " bytes), " + indexCount + " index files (" + indexBytes + " bytes)";
+	}
+}
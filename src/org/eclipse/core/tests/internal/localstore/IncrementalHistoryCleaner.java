@@ -0,0 +1,429 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.*;
+import org.eclipse.core.internal.localstore.*;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * Applies the history policies of the workspace to the local history store
+ * in small slices of bounded duration, instead of in one pass over the whole
+ * store.
+ * <p>
+ * The history index is scanned one bucket per step, starting with the root
+ * and the projects that have an index directory, including hidden projects
+ * and projects that were deleted. Each file with history is added to a
+ * priority index ordered by the time at which its oldest state expires
+ * according to the file state longevity, and then by the number of its
+ * states, most first. Files with more states than the maximum number of
+ * states are due right away. Each slice scans a bucket or cleans a file until
+ * its time budget is used up, doing at least one step so that the cleaner
+ * always makes progress.
+ * </p><p>
+ * The scan only reads the index. The sizes of the states of a file are read
+ * from the blob store when the file is cleaned, or when the size of the
+ * backlog is asked for, so a file is only trimmed to the maximum state size
+ * when it is due for another policy. The history store already leaves out
+ * states larger than the maximum when they are added.
+ * </p><p>
+ * A file is cleaned as the history store cleans it: the states that break a
+ * policy are deleted from its entry in the bucket of the history store, the
+ * bucket is saved, and the blobs of the deleted states are removed. The
+ * policies are checked against the entry as it is when it is cleaned, since
+ * states may have been added after the scan. The index is only read and
+ * changed with the lock of the history store held, through the bucket tree
+ * of the history store so that it never holds a stale copy of a bucket. The
+ * sizes of the blobs are read before the lock is taken, and the blobs are
+ * removed after it is released. As a job, the cleaner runs at the lowest priority and reschedules
+ * itself until there is no backlog left.
+ * </p>
+ */
+public class IncrementalHistoryCleaner extends Job {
+	/** The default delay between two slices, in milliseconds */
+	public static final long DEFAULT_DELAY = 1000;
+
+	/** The default time budget of a slice, in milliseconds */
+	public static final long DEFAULT_SLICE = 50;
+
+	/** The name of the directory that holds the index files of a project */
+	private static final String INDEXES_DIR_NAME = ".indexes";
+
+	private static final String TREE_FIELD = "tree";
+
+	/**
+	 * The history of one file in the priority index.
+	 */
+	private static class Candidate {
+		final long expiry;
+		final History history;
+		/** The sizes of the states of the history, by their identifier, or <code>null</code> until they are read */
+		Map<UniversalUniqueIdentifier, Long> sizes;
+
+		Candidate(History history, long expiry, Map<UniversalUniqueIdentifier, Long> sizes) {
+			this.history = history;
+			this.expiry = expiry;
+			this.sizes = sizes;
+		}
+	}
+
+	/**
+	 * The states of one file, copied from its entry in the history index.
+	 */
+	private static class History {
+		final IPath path;
+		final List<Long> timestamps = new ArrayList<Long>();
+		final List<UniversalUniqueIdentifier> uuids = new ArrayList<UniversalUniqueIdentifier>();
+
+		History(IPath path) {
+			this.path = path;
+		}
+
+		void add(UniversalUniqueIdentifier uuid, long timestamp) {
+			uuids.add(uuid);
+			timestamps.add(new Long(timestamp));
+		}
+	}
+
+	/**
+	 * A bucket of the history index still to be scanned.
+	 */
+	private static class Scan {
+		/** The directory of the index file of the bucket */
+		final File directory;
+		/** The project of the bucket, or <code>null</code> for the root */
+		final String project;
+
+		Scan(String project, File directory) {
+			this.project = project;
+			this.directory = directory;
+		}
+	}
+
+	private long delay = DEFAULT_DELAY;
+	private long longestSlice;
+
+	/** The history of all scanned files, the first to expire first */
+	private final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(64, new Comparator<Candidate>() {
+		public int compare(Candidate c1, Candidate c2) {
+			if (c1.expiry != c2.expiry)
+				return c1.expiry < c2.expiry ? -1 : 1;
+			return c2.history.uuids.size() - c1.history.uuids.size();
+		}
+	});
+	private int removedCount;
+	private long removedSize;
+
+	/** The buckets still to be scanned, the root first */
+	private final LinkedList<Scan> scans = new LinkedList<Scan>();
+	private long slice = DEFAULT_SLICE;
+	private int sliceCount;
+	private final IHistoryStore store;
+	/** The bucket tree of the history store, only used with the lock of the store held */
+	private final BucketTree tree;
+	private final Workspace workspace;
+
+	/**
+	 * Creates a cleaner for the history store of the given workspace. The
+	 * history index is scanned by the first slices.
+	 */
+	public IncrementalHistoryCleaner(Workspace workspace) {
+		super("Incremental history clean up");
+		this.workspace = workspace;
+		this.store = workspace.getFileSystemManager().getHistoryStore();
+		this.tree = getTree(store);
+		setSystem(true);
+		setPriority(DECORATE);
+		scans.add(new Scan(null, indexLocationFor(workspace.getRoot())));
+		//the history of hidden and deleted projects is cleaned too
+		String[] projects = ParallelBucketTreeVisitor.getIndexedProjects(workspace);
+		Arrays.sort(projects);
+		for (int i = 0; i < projects.length; i++)
+			scans.add(new Scan(projects[i], indexLocationFor(workspace.getRoot().getProject(projects[i]))));
+	}
+
+	private static BucketTree getTree(IHistoryStore store) {
+		Object tree;
+		try {
+			Field field = store.getClass().getDeclaredField(TREE_FIELD);
+			field.setAccessible(true);
+			tree = field.get(store);
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException("Unsupported history store: " + store.getClass().getName() + " has no field " + TREE_FIELD);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Unsupported history store: cannot read the field " + TREE_FIELD + " of " + store.getClass().getName() + ": " + e.getMessage());
+		}
+		if (!(tree instanceof BucketTree))
+			throw new IllegalStateException("Unsupported history store: the field " + TREE_FIELD + " of " + store.getClass().getName() + " is not a bucket tree: " + tree);
+		return (BucketTree) tree;
+	}
+
+	/**
+	 * Deletes the states of the given candidate that break a policy, and
+	 * queues it again if it has states left. Returns the number of states
+	 * deleted.
+	 */
+	private int clean(final Candidate candidate) throws CoreException {
+		IWorkspaceDescription description = workspace.getDescription();
+		final int maxStates = description.getMaxFileStates();
+		final long maxSize = description.getMaxFileStateSize();
+		final long minimumTimestamp = System.currentTimeMillis() - description.getFileStateLongevity();
+		final IPath path = candidate.history.path;
+		final History kept = new History(path);
+		final List<UniversalUniqueIdentifier> deleted = new ArrayList<UniversalUniqueIdentifier>();
+		final Map<UniversalUniqueIdentifier, Long> sizes = readSizes(candidate);
+		synchronized (store) {
+			tree.loadBucketFor(path.removeLastSegments(1));
+			Bucket bucket = tree.getCurrent();
+			bucket.accept(new Bucket.Visitor() {
+				public int visit(Bucket.Entry entry) {
+					HistoryBucket.HistoryEntry history = (HistoryBucket.HistoryEntry) entry;
+					//the states are sorted from the newest to the oldest
+					for (int i = 0; i < history.getOccurrences(); i++) {
+						UniversalUniqueIdentifier uuid = history.getUUID(i);
+						//states added after the scan were checked against the maximum size when they were added
+						Long size = sizes.get(uuid);
+						if (i < maxStates && history.getTimestamp(i) >= minimumTimestamp && (size == null || size.longValue() <= maxSize)) {
+							kept.add(uuid, history.getTimestamp(i));
+							continue;
+						}
+						deleted.add(uuid);
+						history.deleteOccurrence(i);
+					}
+					if (kept.uuids.isEmpty())
+						history.delete();
+					return CONTINUE;
+				}
+			}, path, BucketTree.DEPTH_ZERO);
+			bucket.save();
+		}
+		BlobStore blobStore = HistoryStoreBackend.getBlobStore(workspace);
+		for (UniversalUniqueIdentifier uuid : deleted) {
+			blobStore.deleteBlob(uuid);
+			Long size = sizes.get(uuid);
+			if (size != null)
+				removedSize += size.longValue();
+		}
+		removedCount += deleted.size();
+		if (!kept.uuids.isEmpty()) {
+			//the sizes of the states added since the scan are read when the file is cleaned again
+			Candidate next = newCandidate(kept, description);
+			boolean known = true;
+			Map<UniversalUniqueIdentifier, Long> keptSizes = new HashMap<UniversalUniqueIdentifier, Long>();
+			for (UniversalUniqueIdentifier uuid : kept.uuids) {
+				Long size = sizes.get(uuid);
+				known &= size != null;
+				keptSizes.put(uuid, size);
+			}
+			if (known)
+				next.sizes = keptSizes;
+			queue.add(next);
+		}
+		return deleted.size();
+	}
+
+	/**
+	 * Returns the number of scanned files that have states to delete at the
+	 * given time.
+	 */
+	public synchronized int getBacklogCount(long now) {
+		int count = 0;
+		for (Candidate candidate : queue)
+			if (candidate.expiry <= now)
+				count++;
+		return count;
+	}
+
+	/**
+	 * Returns the total size of the states of the scanned files that have
+	 * states to delete at the given time.
+	 */
+	public synchronized long getBacklogSize(long now) {
+		long size = 0;
+		for (Candidate candidate : queue)
+			if (candidate.expiry <= now)
+				for (Long each : readSizes(candidate).values())
+					size += each.longValue();
+		return size;
+	}
+
+	/**
+	 * Returns the duration of the longest slice so far, in milliseconds.
+	 */
+	public synchronized long getLongestSlice() {
+		return longestSlice;
+	}
+
+	/**
+	 * Returns the number of states deleted.
+	 */
+	public synchronized int getRemovedCount() {
+		return removedCount;
+	}
+
+	/**
+	 * Returns the total size of the states deleted, in bytes.
+	 */
+	public synchronized long getRemovedSize() {
+		return removedSize;
+	}
+
+	/**
+	 * Returns the number of buckets that remain to be scanned. The buckets of
+	 * the folders of a project are found while its index is scanned.
+	 */
+	public synchronized int getScanBacklog() {
+		return scans.size();
+	}
+
+	/**
+	 * Returns the number of slices run so far.
+	 */
+	public synchronized int getSliceCount() {
+		return sliceCount;
+	}
+
+	private File indexLocationFor(IResource resource) {
+		return workspace.getMetaArea().locationFor(resource).append(INDEXES_DIR_NAME).toFile();
+	}
+
+	/**
+	 * Returns whether there is nothing left to do at the given time.
+	 */
+	public synchronized boolean isDone(long now) {
+		return scans.isEmpty() && (queue.isEmpty() || queue.peek().expiry > now);
+	}
+
+	/**
+	 * Returns the priority index entry of the given history: due right away
+	 * if it breaks the maximum number of states, otherwise when its oldest
+	 * state expires.
+	 */
+	private Candidate newCandidate(History history, IWorkspaceDescription description) {
+		long expiry = 0;
+		if (history.uuids.size() <= description.getMaxFileStates())
+			expiry = Collections.min(history.timestamps).longValue() + description.getFileStateLongevity();
+		return new Candidate(history, expiry, null);
+	}
+
+	/**
+	 * Returns the sizes of the states of the given candidate found by the
+	 * scan, reading them from the blob store the first time.
+	 */
+	private Map<UniversalUniqueIdentifier, Long> readSizes(Candidate candidate) {
+		if (candidate.sizes == null) {
+			BlobStore blobStore = HistoryStoreBackend.getBlobStore(workspace);
+			Map<UniversalUniqueIdentifier, Long> sizes = new HashMap<UniversalUniqueIdentifier, Long>();
+			for (UniversalUniqueIdentifier uuid : candidate.history.uuids)
+				sizes.put(uuid, new Long(blobStore.fileFor(uuid).fetchInfo().getLength()));
+			candidate.sizes = sizes;
+		}
+		return candidate.sizes;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	protected IStatus run(IProgressMonitor monitor) {
+		try {
+			runSlice(monitor);
+		} catch (CoreException e) {
+			return e.getStatus();
+		}
+		if (monitor.isCanceled())
+			return Status.CANCEL_STATUS;
+		if (!isDone(System.currentTimeMillis()))
+			schedule(delay);
+		return Status.OK_STATUS;
+	}
+
+	/**
+	 * Runs one slice, and returns the number of states deleted.
+	 */
+	public synchronized int runSlice(IProgressMonitor monitor) throws CoreException {
+		if (monitor == null)
+			monitor = new NullProgressMonitor();
+		long start = System.currentTimeMillis();
+		int removed = 0;
+		monitor.beginTask(getName(), IProgressMonitor.UNKNOWN);
+		try {
+			do {
+				if (!scans.isEmpty())
+					scan(scans.removeFirst());
+				else if (!queue.isEmpty() && queue.peek().expiry <= start)
+					removed += clean(queue.poll());
+				else
+					break;
+				monitor.worked(1);
+			} while (System.currentTimeMillis() - start < slice && !monitor.isCanceled());
+		} finally {
+			monitor.done();
+			sliceCount++;
+			longestSlice = Math.max(longestSlice, System.currentTimeMillis() - start);
+		}
+		return removed;
+	}
+
+	/**
+	 * Adds the history of the files in the given bucket to the priority
+	 * index, and queues the buckets of the subfolders for scanning.
+	 */
+	private void scan(Scan scan) throws CoreException {
+		final List<History> found = new ArrayList<History>();
+		//the root bucket only holds the history of the root itself
+		IPath base = scan.project == null ? Path.ROOT : Path.ROOT.append(scan.project);
+		int depth = scan.project == null ? BucketTree.DEPTH_ZERO : BucketTree.DEPTH_INFINITE;
+		synchronized (store) {
+			Bucket bucket = tree.getCurrent();
+			bucket.load(scan.project, scan.directory);
+			bucket.accept(new Bucket.Visitor() {
+				public int visit(Bucket.Entry entry) {
+					HistoryBucket.HistoryEntry history = (HistoryBucket.HistoryEntry) entry;
+					History copy = new History(history.getPath());
+					for (int i = 0; i < history.getOccurrences(); i++)
+						copy.add(history.getUUID(i), history.getTimestamp(i));
+					found.add(copy);
+					return CONTINUE;
+				}
+			}, base, depth);
+		}
+		if (scan.project != null) {
+			File[] children = scan.directory.listFiles();
+			if (children != null)
+				for (int i = 0; i < children.length; i++)
+					if (children[i].isDirectory())
+						scans.add(new Scan(scan.project, children[i]));
+		}
+		IWorkspaceDescription description = workspace.getDescription();
+		for (History history : found)
+			queue.add(newCandidate(history, description));
+	}
+
+	/**
+	 * Sets the delay between two slices in milliseconds.
+	 */
+	public synchronized void setDelay(long millis) {
+		this.delay = millis;
+	}
+
+	/**
+	 * Sets the time budget of a slice in milliseconds.
+	 */
+	public synchronized void setSlice(long millis) {
+		this.slice = millis;
+	}
+}
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+
+/**
+ * A read-only view of a history bucket in the {@link CompactBucketFile}
+ * format that is mapped into memory. Lookups compare the keys in place, and
+ * the states of an entry are read through a reusable {@link HistoryCursor},
+ * so reading the states of a file does not allocate per state. Only callers
+ * that keep a UUID need to create it.
+ * <p>
+ * The mapping is released by the garbage collector, so on some platforms the
+ * file cannot be deleted or replaced while a reader may still be reachable.
+ * Writers should keep using the bucket itself. Readers and cursors are not
+ * thread safe.
+ * </p>
+ */
+public class MappedBucketReader {
+	/**
+	 * A flyweight over the states of one entry, newest first. A cursor is
+	 * positioned by {@link MappedBucketReader#find(String, HistoryCursor)},
+	 * and can be reused for any number of lookups.
+	 */
+	public static class HistoryCursor {
+		ByteBuffer buffer;
+		int next;
+		int occurrences;
+		int position;
+		int remaining;
+		long timestamp;
+		int uuid;
+
+		/**
+		 * Copies the UUID of the current state to the given array.
+		 */
+		public void copyUUID(byte[] destination) {
+			for (int i = 0; i < UniversalUniqueIdentifier.BYTES_SIZE; i++)
+				destination[i] = buffer.get(uuid + i);
+		}
+
+		/**
+		 * Returns the number of states of the current entry.
+		 */
+		public int getOccurrences() {
+			return occurrences;
+		}
+
+		/**
+		 * Returns the timestamp of the current state.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Returns a new UUID for the current state.
+		 */
+		public UniversalUniqueIdentifier getUUID() {
+			byte[] bytes = new byte[UniversalUniqueIdentifier.BYTES_SIZE];
+			copyUUID(bytes);
+			return new UniversalUniqueIdentifier(bytes);
+		}
+
+		/**
+		 * Moves to the next state of the entry, and returns whether there is
+		 * one.
+		 */
+		public boolean next() {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			uuid = next;
+			position = next + UniversalUniqueIdentifier.BYTES_SIZE;
+			long delta = readVarLong();
+			timestamp -= (delta >>> 1) ^ -(delta & 1);
+			next = position;
+			return true;
+		}
+
+		void reset(ByteBuffer source, int offset) {
+			this.buffer = source;
+			this.position = offset;
+			occurrences = (int) readVarLong();
+			remaining = occurrences;
+			next = position;
+			timestamp = 0;
+		}
+
+		private long readVarLong() {
+			long result = 0;
+			for (int shift = 0;; shift += 7) {
+				int b = buffer.get(position++);
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return result;
+			}
+		}
+	}
+
+	private static final int TRAILER_SIZE = 8;
+
+	private final int blockCount;
+	private final ByteBuffer buffer;
+	private final int footerOffset;
+	private int position;
+
+	/**
+	 * Maps the compact history bucket at the given location.
+	 */
+	public static MappedBucketReader open(File location) throws IOException {
+		FileInputStream input = new FileInputStream(location);
+		try {
+			FileChannel channel = input.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new MappedBucketReader(buffer);
+		} finally {
+			//the mapping stays valid after the channel is closed
+			input.close();
+		}
+	}
+
+	private MappedBucketReader(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		int version = buffer.get(0);
+		if (version != CompactBucketFile.VERSION)
+			throw new IOException("Unsupported bucket version: " + version);
+		footerOffset = buffer.getInt(buffer.limit() - TRAILER_SIZE);
+		blockCount = buffer.getInt(buffer.limit() - TRAILER_SIZE + 4);
+	}
+
+	private int blockOffset(int block) {
+		return buffer.getInt(footerOffset + block * 4);
+	}
+
+	/**
+	 * Positions the given cursor before the first state of the entry with
+	 * the given key. Returns <code>false</code> if there is no such entry.
+	 */
+	public boolean find(String key, HistoryCursor cursor) throws UnsupportedEncodingException {
+		byte[] target = key.getBytes("UTF-8");
+		int low = 0;
+		int high = blockCount - 1;
+		int block = -1;
+		//find the last block whose first key is not greater than the key
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			position = blockOffset(middle);
+			readVarInt();
+			int length = readVarInt();
+			if (compare(position, length, target) <= 0) {
+				block = middle;
+				low = middle + 1;
+			} else
+				high = middle - 1;
+		}
+		if (block < 0)
+			return false;
+		int end = block + 1 < blockCount ? blockOffset(block + 1) : footerOffset;
+		position = blockOffset(block);
+		//the number of leading bytes that the previous key has in common with the key
+		int matched = 0;
+		while (position < end) {
+			int shared = readVarInt();
+			int suffix = readVarInt();
+			int suffixStart = position;
+			position += suffix;
+			int valueLength = readVarInt();
+			int value = position;
+			position += valueLength;
+			if (shared > matched)
+				//smaller than the key, like the previous key
+				continue;
+			if (shared < matched)
+				//differs from the previous key where that one matched the key
+				return false;
+			int common = 0;
+			while (common < suffix && shared + common < target.length && buffer.get(suffixStart + common) == target[shared + common])
+				common++;
+			matched = shared + common;
+			if (common == suffix) {
+				if (matched == target.length) {
+					cursor.reset(buffer, value);
+					return true;
+				}
+				//a prefix of the key
+				continue;
+			}
+			if (matched == target.length || (buffer.get(suffixStart + common) & 0xFF) > (target[matched] & 0xFF))
+				return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Compares the key of the given length at the given offset of the
+	 * buffer with the given target key.
+	 */
+	private int compare(int offset, int length, byte[] target) {
+		int max = Math.min(length, target.length);
+		for (int i = 0; i < max; i++) {
+			int difference = (buffer.get(offset + i) & 0xFF) - (target[i] & 0xFF);
+			if (difference != 0)
+				return difference;
+		}
+		return length - target.length;
+	}
+
+	/**
+	 * Returns the number of blocks in the bucket.
+	 */
+	public int getBlockCount() {
+		return blockCount;
+	}
+
+	private int readVarInt() {
+		int result = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = buffer.get(position++);
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+		}
+	}
+}
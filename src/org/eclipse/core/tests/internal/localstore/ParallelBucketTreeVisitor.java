@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import org.eclipse.core.internal.localstore.Bucket;
+import org.eclipse.core.internal.localstore.BucketTree;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.*;
+
+/**
+ * Visits the bucket trees of all projects in the workspace concurrently. The
+ * index files of different projects are independent, so each project is
+ * visited by its own bucket tree on a thread of a bounded pool. The results
+ * are merged in a deterministic order: the entries of the workspace root
+ * first, followed by the entries of each project in the order of the project
+ * names.
+ * <p>
+ * The projects are found by listing the index directories in the metadata
+ * area rather than by asking the workspace, so the indexes left by projects
+ * that were deleted, such as the history of their files, are visited too.
+ * </p>
+ */
+public class ParallelBucketTreeVisitor {
+	/**
+	 * Creates the buckets and visitors for the subtrees visited concurrently.
+	 */
+	public interface SubtreeVisitorFactory<T> {
+		/**
+		 * Returns a new bucket of the type to be visited.
+		 */
+		Bucket createBucket();
+
+		/**
+		 * Returns a new visitor that adds its results to the given list. The
+		 * visitor must copy what it needs from the visited entries, since
+		 * their bucket is reused for other index files.
+		 */
+		Bucket.Visitor createVisitor(List<T> results);
+	}
+
+	/** The name of the directory that holds the index files of a project */
+	private static final String INDEXES_DIR_NAME = ".indexes";
+
+	private final int threads;
+	private final Workspace workspace;
+
+	/**
+	 * Creates a visitor for the given workspace that uses at most the given
+	 * number of threads.
+	 */
+	public ParallelBucketTreeVisitor(Workspace workspace, int threads) {
+		this.workspace = workspace;
+		this.threads = threads;
+	}
+
+	/**
+	 * Visits the entries of the whole workspace to the given depth, and
+	 * returns the merged results.
+	 *
+	 * @param depth one of the <code>BucketTree.DEPTH_*</code> constants
+	 */
+	public <T> List<T> accept(final SubtreeVisitorFactory<T> factory, int depth) throws CoreException {
+		List<T> result = new ArrayList<T>();
+		visit(factory, Path.ROOT, BucketTree.DEPTH_ZERO, result);
+		if (depth == BucketTree.DEPTH_ZERO)
+			return result;
+		final int projectDepth = depth == BucketTree.DEPTH_ONE ? BucketTree.DEPTH_ZERO : BucketTree.DEPTH_INFINITE;
+		String[] projects = getIndexedProjects();
+		Arrays.sort(projects);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<T>>> subtrees = new ArrayList<Future<List<T>>>(projects.length);
+			for (int i = 0; i < projects.length; i++) {
+				final IPath base = Path.ROOT.append(projects[i]);
+				subtrees.add(executor.submit(new Callable<List<T>>() {
+					public List<T> call() throws CoreException {
+						List<T> subtreeResult = new ArrayList<T>();
+						visit(factory, base, projectDepth, subtreeResult);
+						return subtreeResult;
+					}
+				}));
+			}
+			for (Future<List<T>> subtree : subtrees)
+				result.addAll(waitFor(subtree));
+		} finally {
+			executor.shutdown();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the names of the projects that have an index directory in the
+	 * metadata area, whether or not they still exist in the workspace.
+	 */
+	String[] getIndexedProjects() {
+		return getIndexedProjects(workspace);
+	}
+
+	/**
+	 * Returns the names of the projects of the given workspace that have an
+	 * index directory in the metadata area, whether or not they still exist
+	 * in the workspace, and whether or not they are hidden.
+	 */
+	static String[] getIndexedProjects(Workspace workspace) {
+		//the metadata of each project is in a directory named after it, next to those of the other projects
+		IProject any = workspace.getRoot().getProject("any");
+		File projectsLocation = workspace.getMetaArea().locationFor(any).toFile().getParentFile();
+		File[] children = projectsLocation.listFiles();
+		if (children == null)
+			return new String[0];
+		List<String> result = new ArrayList<String>(children.length);
+		for (int i = 0; i < children.length; i++)
+			if (new File(children[i], INDEXES_DIR_NAME).isDirectory())
+				result.add(children[i].getName());
+		return result.toArray(new String[result.size()]);
+	}
+
+	<T> void visit(SubtreeVisitorFactory<T> factory, IPath base, int depth, List<T> result) throws CoreException {
+		BucketTree tree = new BucketTree(workspace, factory.createBucket());
+		try {
+			tree.accept(factory.createVisitor(result), base, depth);
+		} finally {
+			tree.close();
+		}
+	}
+
+	private <T> List<T> waitFor(Future<List<T>> subtree) throws CoreException {
+		try {
+			return subtree.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CoreException)
+				throw (CoreException) e.getCause();
+			throw new CoreException(new Status(IStatus.ERROR, "org.eclipse.core.tests.resources", 1, "Failed to visit bucket tree", e.getCause()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CoreException(new Status(IStatus.CANCEL, "org.eclipse.core.tests.resources", 1, "Interrupted while visiting bucket tree", e));
+		}
+	}
+}
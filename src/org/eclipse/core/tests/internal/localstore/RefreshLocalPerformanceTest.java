@@ -11,12 +11,15 @@
 package org.eclipse.core.tests.internal.localstore;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import org.eclipse.core.filesystem.*;
 import org.eclipse.core.resources.*;
-import org.eclipse.core.runtime.IPath;
-import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.tests.internal.filesystem.ram.MemoryFileSystem;
+import org.eclipse.core.tests.internal.filesystem.ram.MemoryTree;
 import org.eclipse.core.tests.resources.ResourceTest;
 
 //
@@ -27,6 +30,12 @@ public class RefreshLocalPerformanceTest extends ResourceTest {
 	/** big site initial location */
 	public static final IPath bigSiteLocation = new Path(bigSiteDevice, "/bigsite");
 
+	/** number of folders at each of the two folder levels of the memory site */
+	public static final int memorySiteWidth = 10;
+
+	/** number of files in each leaf folder of the memory site */
+	public static final int memorySiteFiles = 1000;
+
 	/** benchmark */
 	public Date startDate;
 
@@ -38,6 +47,74 @@ public class RefreshLocalPerformanceTest extends ResourceTest {
 		super(name);
 	}
 
+	/**
+	 * Creates a tree of memorySiteWidth^2 folders with memorySiteFiles
+	 * empty files each (100k files by default) below the given store.
+	 */
+	protected int createMemorySite(IFileStore root) throws CoreException, IOException {
+		int result = 0;
+		root.mkdir(EFS.NONE, null);
+		for (int i = 0; i < memorySiteWidth; i++) {
+			IFileStore folder = root.getChild("folder" + i);
+			folder.mkdir(EFS.SHALLOW, null);
+			result++;
+			for (int j = 0; j < memorySiteWidth; j++) {
+				IFileStore subfolder = folder.getChild("folder" + j);
+				subfolder.mkdir(EFS.SHALLOW, null);
+				result++;
+				for (int k = 0; k < memorySiteFiles; k++) {
+					subfolder.getChild("file" + k + ".txt").openOutputStream(EFS.NONE, null).close();
+					result++;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Visits all stores below the given store the way a per-directory
+	 * walk does when a file system has no bulk operations.
+	 */
+	protected int walkByName(IFileStore root) throws CoreException {
+		String[] names = root.childNames(EFS.NONE, null);
+		int result = 0;
+		for (int i = 0; i < names.length; i++) {
+			IFileStore child = root.getChild(names[i]);
+			if (child.fetchInfo().isDirectory())
+				result += walkByName(child);
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Visits all stores below the given store using childInfos.
+	 */
+	protected int walkByChildInfos(IFileStore root) throws CoreException {
+		IFileInfo[] infos = root.childInfos(EFS.NONE, null);
+		int result = 0;
+		for (int i = 0; i < infos.length; i++) {
+			if (infos[i].isDirectory())
+				result += walkByChildInfos(root.getChild(infos[i].getName()));
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Visits all stores below the given store in a previously fetched file tree.
+	 */
+	protected int walkFileTree(IFileTree tree, IFileStore root) {
+		IFileInfo[] infos = tree.getChildInfos(root);
+		int result = 0;
+		for (int i = 0; i < infos.length; i++) {
+			if (infos[i].isDirectory())
+				result += walkFileTree(tree, root.getChild(infos[i].getName()));
+			result++;
+		}
+		return result;
+	}
+
 	protected int countChildren(File root) {
 		String[] children = root.list();
 		if (children == null)
@@ -69,6 +146,7 @@ public class RefreshLocalPerformanceTest extends ResourceTest {
 	public static Test suite() {
 		TestSuite suite = new TestSuite(RefreshLocalPerformanceTest.class.getName());
 		suite.addTest(new RefreshLocalPerformanceTest("testLocalRefreshPerformance"));
+		suite.addTest(new RefreshLocalPerformanceTest("testMemoryRefreshPerformance"));
 		return suite;
 	}
 
@@ -126,4 +204,54 @@ public class RefreshLocalPerformanceTest extends ResourceTest {
 		System.out.println("Average without tree: " + averageWithoutTree);
 		System.out.println("Average with tree: " + averageWithTree);
 	}
+
+	/**
+	 * Refreshes a project with 100k files located in the in-memory file system,
+	 * and compares walking the file system node by node with the bulk
+	 * childInfos and fetchFileTree operations used by refresh.
+	 */
+	public void testMemoryRefreshPerformance() throws Exception {
+		MemoryTree.TREE.deleteAll();
+		IFileStore siteStore = EFS.getStore(MemoryFileSystem.toURI(new Path("/memorySite")));
+		int numberOfFiles = createMemorySite(siteStore);
+		System.out.println("Number of memory resources: " + numberOfFiles);
+
+		int n = 5;
+		IProject project = getWorkspace().getRoot().getProject("MyMemoryTestProject");
+		IProjectDescription description = getWorkspace().newProjectDescription(project.getName());
+		description.setLocationURI(siteStore.toURI());
+		try {
+			for (int i = 0; i < n; i++) {
+				System.out.print("BY NAME: ");
+				startClock();
+				assertEquals("1.0", numberOfFiles, walkByName(siteStore));
+				System.out.println(dispTime(stopClock()));
+
+				System.out.print("CHILD INFOS: ");
+				startClock();
+				assertEquals("2.0", numberOfFiles, walkByChildInfos(siteStore));
+				System.out.println(dispTime(stopClock()));
+
+				System.out.print("FILE TREE: ");
+				startClock();
+				IFileTree fileTree = siteStore.getFileSystem().fetchFileTree(siteStore, null);
+				assertEquals("3.0", numberOfFiles, walkFileTree(fileTree, siteStore));
+				System.out.println(dispTime(stopClock()));
+
+				project.create(description, null);
+				project.open(null);
+				System.out.print("REFRESH NO TREE: ");
+				startClock();
+				project.refreshLocal(IResource.DEPTH_INFINITE, null);
+				System.out.println(dispTime(stopClock()));
+				System.out.print("REFRESH TREE: ");
+				startClock();
+				project.refreshLocal(IResource.DEPTH_INFINITE, null);
+				System.out.println(dispTime(stopClock()));
+				project.delete(false, false, null);
+			}
+		} finally {
+			MemoryTree.TREE.deleteAll();
+		}
+	}
 }
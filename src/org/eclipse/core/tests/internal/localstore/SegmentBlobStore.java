@@ -0,0 +1,732 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import org.eclipse.core.filesystem.*;
+import org.eclipse.core.filesystem.provider.FileInfo;
+import org.eclipse.core.filesystem.provider.FileStore;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.resources.ResourceException;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.resources.IResourceStatus;
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * A blob store that appends the blobs to a few large segment files instead
+ * of creating a file per blob.
+ * <p>
+ * Blobs are appended to the active segment, and a new segment is started
+ * when the active one exceeds the segment size. The segment, offset and
+ * length of each blob are kept in memory and recorded in a journal, which is
+ * replayed when the store is opened. Deleting a blob only records it, and
+ * the space is reclaimed by compaction, which copies the remaining blobs of
+ * mostly deleted segments to new segments and deletes those segments. The
+ * blobs are copied without holding the lock of the store, which is only
+ * taken to switch the blobs to their copies, so blobs can be added, read and
+ * deleted while compacting. Compaction runs in the background once enough
+ * space is wasted, or when {@link #compact()} is called.
+ * </p><p>
+ * Blobs are read through streams bounded to the blob. Blobs in full segments
+ * are read from a memory mapping of the segment, which is released by the
+ * garbage collector, so on some platforms a compacted segment is only
+ * deleted when the VM exits. A segment that a large blob has grown past
+ * {@link Integer#MAX_VALUE} bytes cannot be mapped as a whole, and is read
+ * through file streams like the active segment.
+ * </p>
+ * <pre>
+ * journal := record*
+ * record  := ADD uuid segment offset length | DELETE uuid
+ * </pre>
+ */
+public class SegmentBlobStore extends BlobStore implements Closeable {
+	/** The default size at which a new segment is started, in bytes */
+	public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private static final byte ADD = 1;
+	private static final int ADD_RECORD_SIZE = 1 + UniversalUniqueIdentifier.BYTES_SIZE + 4 + 8 + 8;
+	private static final byte DELETE = 2;
+	private static final String JOURNAL_FILE = "segments.index";
+	private static final String SEGMENT_EXTENSION = ".segment";
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	/**
+	 * The location of a blob.
+	 */
+	private static class Location {
+		final long length;
+		final long offset;
+		final Segment segment;
+
+		Location(Segment segment, long offset, long length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A segment file.
+	 */
+	private static class Segment {
+		/** Whether compaction is copying blobs out of the segment, which must be kept until it is done */
+		boolean busy;
+		final File file;
+
+		/** The number of bytes of the blobs that have not been deleted */
+		long live;
+
+		/** A read-only mapping of a full segment, or <code>null</code> */
+		ByteBuffer mapping;
+		final int number;
+		long size;
+
+		Segment(File file, int number) {
+			this.file = file;
+			this.number = number;
+			this.size = file.length();
+		}
+	}
+
+	/**
+	 * An input stream over the remaining bytes of a buffer.
+	 */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int available() {
+			return buffer.remaining();
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+
+	/**
+	 * An input stream over a range of a file.
+	 */
+	private static class RangeInputStream extends FilterInputStream {
+		private long remaining;
+
+		RangeInputStream(File file, long offset, long length) throws IOException {
+			super(new FileInputStream(file));
+			this.remaining = length;
+			long skipped = 0;
+			while (skipped < offset) {
+				long n = in.skip(offset - skipped);
+				if (n <= 0)
+					throw new EOFException(file.toString());
+				skipped += n;
+			}
+		}
+
+		public int available() throws IOException {
+			return (int) Math.min(remaining, in.available());
+		}
+
+		public int read() throws IOException {
+			if (remaining == 0)
+				return -1;
+			int result = in.read();
+			if (result >= 0)
+				remaining--;
+			return result;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			int result = in.read(b, off, (int) Math.min(len, remaining));
+			if (result > 0)
+				remaining -= result;
+			return result;
+		}
+
+		public long skip(long n) throws IOException {
+			long result = in.skip(Math.min(n, remaining));
+			remaining -= result;
+			return result;
+		}
+	}
+
+	/**
+	 * The file store of a blob, which answers whether the blob exists and
+	 * reads its contents.
+	 */
+	private class BlobFile extends FileStore {
+		private final UniversalUniqueIdentifier uuid;
+
+		BlobFile(UniversalUniqueIdentifier uuid) {
+			this.uuid = uuid;
+		}
+
+		public String[] childNames(int options, IProgressMonitor monitor) {
+			return EMPTY_STRING_ARRAY;
+		}
+
+		public IFileInfo fetchInfo(int options, IProgressMonitor monitor) {
+			FileInfo info = new FileInfo(getName());
+			long length = getLength(uuid);
+			info.setExists(length >= 0);
+			if (length >= 0)
+				info.setLength(length);
+			return info;
+		}
+
+		public IFileStore getChild(String name) {
+			return EFS.getNullFileSystem().getStore(new Path(name));
+		}
+
+		public String getName() {
+			return uuid.toString();
+		}
+
+		public IFileStore getParent() {
+			return store;
+		}
+
+		public InputStream openInputStream(int options, IProgressMonitor monitor) throws CoreException {
+			return getBlob(uuid);
+		}
+
+		public URI toURI() {
+			URI base = store.toURI();
+			try {
+				return new URI(base.getScheme(), base.getSchemeSpecificPart(), getName());
+			} catch (URISyntaxException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Compacts the store in the background.
+	 */
+	private class CompactionJob extends Job {
+		CompactionJob() {
+			super("Compacting history segments");
+			setSystem(true);
+			setPriority(DECORATE);
+		}
+
+		protected IStatus run(IProgressMonitor monitor) {
+			try {
+				compact();
+			} catch (CoreException e) {
+				return e.getStatus();
+			}
+			return Status.OK_STATUS;
+		}
+	}
+
+	/** The active segment, which blobs are appended to */
+	private Segment active;
+	private RandomAccessFile activeFile;
+
+	/** The location of each blob, by identifier */
+	private final Map<UniversalUniqueIdentifier, Location> blobs = new HashMap<UniversalUniqueIdentifier, Location>();
+	private final CompactionJob compactionJob = new CompactionJob();
+
+	/** Serializes compactions, which copy blobs without holding the lock of the store */
+	private final Object compactionLock = new Object();
+	private OutputStream journal;
+	private int journalRecords;
+
+	/** The number of the next segment, which is reserved under the lock of the store */
+	private int nextNumber;
+	private final File root;
+	private final long segmentSize;
+
+	/** The segments by number */
+	private final Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+	private final IFileStore store;
+
+	public SegmentBlobStore(IFileStore store) throws CoreException {
+		this(store, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the store in the given directory, which must only be used by
+	 * this store.
+	 *
+	 * @param store the directory of the store
+	 * @param segmentSize the size at which a new segment is started
+	 */
+	public SegmentBlobStore(IFileStore store, long segmentSize) throws CoreException {
+		super(store, 256);
+		this.store = store;
+		this.segmentSize = segmentSize;
+		root = store.toLocalFile(EFS.NONE, null);
+		try {
+			File[] files = root.listFiles();
+			for (int i = 0; files != null && i < files.length; i++) {
+				String name = files[i].getName();
+				if (name.endsWith(SEGMENT_EXTENSION)) {
+					int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+					segments.put(new Integer(number), new Segment(files[i], number));
+					nextNumber = Math.max(nextNumber, number + 1);
+				}
+			}
+			readJournal();
+			//drop the segments whose blobs have all been deleted
+			for (Iterator<Segment> i = segments.values().iterator(); i.hasNext();) {
+				Segment segment = i.next();
+				if (segment.live == 0 && segment.file.delete())
+					i.remove();
+			}
+			if (journalRecords > 2 * blobs.size() + 1024)
+				writeJournal();
+			journal = new FileOutputStream(journalFile(), true);
+			startSegment();
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Could not open the segment store in " + root, e);
+		}
+	}
+
+	public UniversalUniqueIdentifier addBlob(IFileStore target, boolean moveContents) throws CoreException {
+		UniversalUniqueIdentifier uuid = new UniversalUniqueIdentifier();
+		InputStream input = target.openInputStream(EFS.NONE, null);
+		try {
+			synchronized (this) {
+				long offset = active.size;
+				long length = 0;
+				try {
+					activeFile.seek(offset);
+					byte[] buffer = new byte[8192];
+					int read;
+					while ((read = input.read(buffer)) >= 0) {
+						activeFile.write(buffer, 0, read);
+						length += read;
+					}
+				} catch (IOException e) {
+					truncate(offset);
+					throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not append " + target + " to " + active.file, e);
+				}
+				Location location = new Location(active, offset, length);
+				recordAdd(uuid, location);
+				blobs.put(uuid, location);
+				active.size += length;
+				active.live += length;
+				if (active.size >= segmentSize) {
+					try {
+						startSegment();
+					} catch (IOException e) {
+						throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not start a new segment in " + root, e);
+					}
+				}
+			}
+		} finally {
+			try {
+				input.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+		if (moveContents)
+			target.delete(EFS.NONE, null);
+		return uuid;
+	}
+
+	/**
+	 * Copies the contents of the blob at the given location to the given
+	 * stream.
+	 */
+	private void copy(Location from, OutputStream output) throws IOException {
+		InputStream input = open(from);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) >= 0)
+				output.write(buffer, 0, read);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Stops compacting in the background, and closes the files of the store.
+	 * The store cannot be used afterwards.
+	 */
+	public void close() throws IOException {
+		compactionJob.cancel();
+		try {
+			compactionJob.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (journal != null)
+				journal.close();
+			if (activeFile != null)
+				activeFile.close();
+			journal = null;
+			activeFile = null;
+		}
+	}
+
+	/**
+	 * Copies the remaining blobs of the full segments that are at least half
+	 * deleted to new segments, and deletes those segments. Returns the number
+	 * of bytes reclaimed.
+	 */
+	public long compact() throws CoreException {
+		synchronized (compactionLock) {
+			List<Segment> sparse = new ArrayList<Segment>();
+			Map<UniversalUniqueIdentifier, Location> copied = new HashMap<UniversalUniqueIdentifier, Location>();
+			synchronized (this) {
+				for (Segment segment : segments.values())
+					if (segment != active && segment.live * 2 <= segment.size)
+						sparse.add(segment);
+				if (sparse.isEmpty())
+					return 0;
+				for (Segment segment : sparse)
+					segment.busy = true;
+				for (Map.Entry<UniversalUniqueIdentifier, Location> entry : blobs.entrySet())
+					if (entry.getValue().segment.busy)
+						copied.put(entry.getKey(), entry.getValue());
+			}
+			//the new segments are private to this method until the blobs are switched to them
+			List<Segment> targets = new ArrayList<Segment>();
+			Map<UniversalUniqueIdentifier, Location> copies = new HashMap<UniversalUniqueIdentifier, Location>();
+			try {
+				try {
+					copyAll(copied, targets, copies);
+				} catch (IOException e) {
+					for (Segment target : targets)
+						target.file.delete();
+					throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not compact the segments in " + root, e);
+				}
+				return switchTo(copied, copies, targets, sparse);
+			} finally {
+				synchronized (this) {
+					for (Segment segment : sparse)
+						segment.busy = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the given blobs to new segments, which are added to the given
+	 * list, and answers the location of each copy in the given map.
+	 */
+	private void copyAll(Map<UniversalUniqueIdentifier, Location> copied, List<Segment> targets, Map<UniversalUniqueIdentifier, Location> copies) throws IOException {
+		Segment target = null;
+		OutputStream output = null;
+		try {
+			for (Map.Entry<UniversalUniqueIdentifier, Location> entry : copied.entrySet()) {
+				if (target == null || target.size >= segmentSize) {
+					if (output != null)
+						output.close();
+					output = null;
+					synchronized (this) {
+						target = new Segment(new File(root, nextNumber + SEGMENT_EXTENSION), nextNumber);
+						nextNumber++;
+					}
+					targets.add(target);
+					output = new BufferedOutputStream(new FileOutputStream(target.file));
+				}
+				Location from = entry.getValue();
+				copy(from, output);
+				copies.put(entry.getKey(), new Location(target, target.size, from.length));
+				target.size += from.length;
+			}
+		} finally {
+			if (output != null)
+				output.close();
+		}
+	}
+
+	/**
+	 * Switches the blobs that have not been deleted while they were copied
+	 * to their copies, and deletes the compacted segments. Returns the number
+	 * of bytes reclaimed.
+	 */
+	private synchronized long switchTo(Map<UniversalUniqueIdentifier, Location> copied, Map<UniversalUniqueIdentifier, Location> copies, List<Segment> targets, List<Segment> sparse) throws CoreException {
+		for (Segment target : targets)
+			segments.put(new Integer(target.number), target);
+		for (Map.Entry<UniversalUniqueIdentifier, Location> entry : copies.entrySet()) {
+			UniversalUniqueIdentifier uuid = entry.getKey();
+			if (blobs.get(uuid) != copied.get(uuid))
+				continue;
+			Location copy = entry.getValue();
+			recordAdd(uuid, copy);
+			blobs.put(uuid, copy);
+			copy.segment.live += copy.length;
+		}
+		long reclaimed = 0;
+		for (Segment segment : sparse) {
+			reclaimed += segment.size - segment.live;
+			dropSegment(segment);
+		}
+		//copies of blobs deleted while copying are garbage
+		for (Segment target : targets)
+			if (target.live == 0)
+				dropSegment(target);
+		try {
+			if (journalRecords > 2 * blobs.size() + 1024)
+				writeJournal();
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not compact the segments in " + root, e);
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * Deletes the given blob. The space of the blob is reclaimed when its
+	 * segment is compacted.
+	 */
+	public synchronized void deleteBlob(UniversalUniqueIdentifier uuid) {
+		Assert.isNotNull(uuid);
+		Location location = blobs.get(uuid);
+		if (location == null)
+			return;
+		byte[] record = new byte[1 + UniversalUniqueIdentifier.BYTES_SIZE];
+		record[0] = DELETE;
+		System.arraycopy(uuid.toBytes(), 0, record, 1, UniversalUniqueIdentifier.BYTES_SIZE);
+		try {
+			journal.write(record);
+		} catch (IOException e) {
+			//keep the blob, so the store matches the journal
+			return;
+		}
+		journalRecords++;
+		blobs.remove(uuid);
+		Segment segment = location.segment;
+		segment.live -= location.length;
+		if (segment != active && !segment.busy && segment.live == 0) {
+			dropSegment(segment);
+		} else if (getGarbageBytes() >= segmentSize) {
+			compactionJob.schedule(1000);
+		}
+	}
+
+	/**
+	 * Forgets the given segment and deletes its file.
+	 */
+	private void dropSegment(Segment segment) {
+		segments.remove(new Integer(segment.number));
+		segment.mapping = null;
+		if (!segment.file.delete())
+			segment.file.deleteOnExit();
+	}
+
+	public IFileStore fileFor(UniversalUniqueIdentifier uuid) {
+		return new BlobFile(uuid);
+	}
+
+	public InputStream getBlob(UniversalUniqueIdentifier uuid) throws CoreException {
+		Assert.isNotNull(uuid);
+		Location location;
+		synchronized (this) {
+			location = blobs.get(uuid);
+		}
+		if (location == null)
+			throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Blob not found: " + uuid, null);
+		try {
+			return open(location);
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Could not read blob " + uuid + " from " + location.segment.file, e);
+		}
+	}
+
+	/**
+	 * Returns the number of blobs in the store.
+	 */
+	public synchronized int getBlobCount() {
+		return blobs.size();
+	}
+
+	/**
+	 * Returns the number of bytes of the segments that belong to deleted
+	 * blobs.
+	 */
+	public synchronized long getGarbageBytes() {
+		long result = 0;
+		for (Segment segment : segments.values())
+			result += segment.size - segment.live;
+		return result;
+	}
+
+	/**
+	 * Returns the length of the given blob, or -1 if it does not exist.
+	 */
+	synchronized long getLength(UniversalUniqueIdentifier uuid) {
+		Location location = blobs.get(uuid);
+		return location == null ? -1 : location.length;
+	}
+
+	/**
+	 * Returns the number of segment files.
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	private File journalFile() {
+		return new File(root, JOURNAL_FILE);
+	}
+
+	/**
+	 * Opens a stream on the contents of the blob at the given location.
+	 */
+	private InputStream open(Location location) throws IOException {
+		Segment segment = location.segment;
+		ByteBuffer mapping;
+		synchronized (this) {
+			if (segment == active || segment.size > Integer.MAX_VALUE)
+				return new RangeInputStream(segment.file, location.offset, location.length);
+			if (segment.mapping == null) {
+				FileInputStream input = new FileInputStream(segment.file);
+				try {
+					segment.mapping = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+				} finally {
+					input.close();
+				}
+			}
+			mapping = segment.mapping.duplicate();
+		}
+		mapping.position((int) location.offset);
+		mapping.limit((int) (location.offset + location.length));
+		return new BufferInputStream(mapping);
+	}
+
+	private void readJournal() throws IOException {
+		File file = journalFile();
+		if (!file.exists())
+			return;
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] uuid = new byte[UniversalUniqueIdentifier.BYTES_SIZE];
+			while (true) {
+				int op = input.read();
+				if (op < 0)
+					break;
+				input.readFully(uuid);
+				UniversalUniqueIdentifier id = new UniversalUniqueIdentifier(uuid);
+				Location previous;
+				if (op == ADD) {
+					int number = input.readInt();
+					long offset = input.readLong();
+					long length = input.readLong();
+					Segment segment = segments.get(new Integer(number));
+					previous = segment == null ? blobs.remove(id) : blobs.put(id, new Location(segment, offset, length));
+					if (segment != null)
+						segment.live += length;
+				} else {
+					previous = blobs.remove(id);
+				}
+				if (previous != null)
+					previous.segment.live -= previous.length;
+				journalRecords++;
+			}
+		} catch (EOFException e) {
+			//a record cut short by a crash, the blob was never handed out
+		} finally {
+			input.close();
+		}
+	}
+
+	private void recordAdd(UniversalUniqueIdentifier uuid, Location location) throws ResourceException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(ADD_RECORD_SIZE);
+		DataOutputStream output = new DataOutputStream(bytes);
+		try {
+			output.write(ADD);
+			output.write(uuid.toBytes());
+			output.writeInt(location.segment.number);
+			output.writeLong(location.offset);
+			output.writeLong(location.length);
+			journal.write(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not write the segment journal in " + root, e);
+		}
+		journalRecords++;
+	}
+
+	/**
+	 * Seals the active segment, if any, and starts a new one unless the
+	 * newest segment still has room.
+	 */
+	private void startSegment() throws IOException {
+		if (activeFile != null)
+			activeFile.close();
+		Segment newest = segments.get(new Integer(nextNumber - 1));
+		if (active == null && newest != null && newest.size < segmentSize) {
+			active = newest;
+		} else {
+			int number = nextNumber++;
+			active = new Segment(new File(root, number + SEGMENT_EXTENSION), number);
+			segments.put(new Integer(number), active);
+		}
+		activeFile = new RandomAccessFile(active.file, "rw");
+	}
+
+	/**
+	 * Cuts the active segment back to the given size after a failed append.
+	 */
+	private void truncate(long size) {
+		try {
+			activeFile.setLength(size);
+		} catch (IOException e) {
+			//the bytes after the last blob are garbage
+			active.size = active.file.length();
+		}
+	}
+
+	/**
+	 * Replaces the journal with one that only records the current blobs.
+	 */
+	private void writeJournal() throws IOException {
+		if (journal != null)
+			journal.close();
+		File temp = new File(root, JOURNAL_FILE + TEMP_EXTENSION);
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			for (Map.Entry<UniversalUniqueIdentifier, Location> entry : blobs.entrySet()) {
+				Location location = entry.getValue();
+				output.write(ADD);
+				output.write(entry.getKey().toBytes());
+				output.writeInt(location.segment.number);
+				output.writeLong(location.offset);
+				output.writeLong(location.length);
+			}
+		} finally {
+			output.close();
+		}
+		File file = journalFile();
+		if ((file.exists() && !file.delete()) || !temp.renameTo(file))
+			throw new IOException("Could not replace " + file);
+		journalRecords = blobs.size();
+		if (journal != null)
+			journal = new FileOutputStream(file, true);
+	}
+}
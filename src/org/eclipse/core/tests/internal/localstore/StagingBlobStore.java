@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.localstore;
+
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+import org.eclipse.core.filesystem.*;
+import org.eclipse.core.filesystem.provider.FileInfo;
+import org.eclipse.core.filesystem.provider.FileStore;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.resources.ResourceException;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * A blob store that takes the writing of new states off the operation that
+ * adds them.
+ * <p>
+ * The contents of an added state are read into memory and queued, and the
+ * identifier is returned right away, so the history index is updated as
+ * before. A job writes the queued states in batches, shortly after the last
+ * one was added, into the same files as the plain blob store. Until then,
+ * the file of a queued state answers that it exists and reads its contents
+ * from memory, so queries of the history do not wait for the queue. The
+ * queue is also flushed when it grows too large, and when the workspace is
+ * saved or snapshot, so that the history index is never saved for good with
+ * states that are only in memory. Stores created for a workspace register
+ * themselves as save participants for that reason.
+ * </p><p>
+ * States that are moved into the history, and states larger than the
+ * queue, are written right away.
+ * </p>
+ */
+public class StagingBlobStore extends BlobStore implements ISaveParticipant, Closeable {
+	/**
+	 * The file of a queued state, which is read from the queue until the
+	 * state is written.
+	 */
+	private class StagedFile extends FileStore {
+		private final IFileStore file;
+		private final UniversalUniqueIdentifier uuid;
+
+		StagedFile(UniversalUniqueIdentifier uuid, IFileStore file) {
+			this.uuid = uuid;
+			this.file = file;
+		}
+
+		public String[] childNames(int options, IProgressMonitor monitor) {
+			return EMPTY_STRING_ARRAY;
+		}
+
+		public void delete(int options, IProgressMonitor monitor) {
+			deleteBlob(uuid);
+		}
+
+		public IFileInfo fetchInfo(int options, IProgressMonitor monitor) throws CoreException {
+			byte[] contents = getPending(uuid);
+			if (contents == null)
+				return file.fetchInfo(options, monitor);
+			FileInfo info = new FileInfo(getName());
+			info.setExists(true);
+			info.setLength(contents.length);
+			return info;
+		}
+
+		public IFileStore getChild(String name) {
+			return file.getChild(name);
+		}
+
+		public String getName() {
+			return file.getName();
+		}
+
+		public IFileStore getParent() {
+			return file.getParent();
+		}
+
+		public InputStream openInputStream(int options, IProgressMonitor monitor) throws CoreException {
+			return getBlob(uuid);
+		}
+
+		public URI toURI() {
+			return file.toURI();
+		}
+	}
+
+	/**
+	 * Writes the queued states.
+	 */
+	private class FlushJob extends Job {
+		FlushJob() {
+			super("Writing history states");
+			setSystem(true);
+		}
+
+		protected IStatus run(IProgressMonitor monitor) {
+			try {
+				flush();
+			} catch (CoreException e) {
+				return e.getStatus();
+			}
+			return Status.OK_STATUS;
+		}
+	}
+
+	/** The size of the queued states above which they are written right away, in bytes */
+	public static final long MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+	private int batchCount;
+	private final long flushDelay;
+	private final FlushJob flushJob = new FlushJob();
+	/** The contents of the states that are not written yet, in the order they were added */
+	private final Map<UniversalUniqueIdentifier, byte[]> pending = new LinkedHashMap<UniversalUniqueIdentifier, byte[]>();
+	private long pendingBytes;
+	/** The plug-in this store is registered as save participant for, or <code>null</code> */
+	private String pluginId;
+	private Workspace workspace;
+
+	/**
+	 * Creates a store in the given directory.
+	 *
+	 * @param store the directory of the store
+	 * @param limit the number of folders the blobs are spread over, as for
+	 * the plain blob store
+	 * @param flushDelay the time from the last added state to the writing of
+	 * the queue, in milliseconds
+	 */
+	public StagingBlobStore(IFileStore store, int limit, long flushDelay) {
+		super(store, limit);
+		this.flushDelay = flushDelay;
+	}
+
+	/**
+	 * Creates a store in the history store location of the given workspace,
+	 * and registers it as save participant of the workspace until it is
+	 * closed.
+	 *
+	 * @param workspace the workspace whose history is stored
+	 * @param pluginId the plug-in to register the save participant for
+	 * @param flushDelay the time from the last added state to the writing of
+	 * the queue, in milliseconds
+	 */
+	public StagingBlobStore(Workspace workspace, String pluginId, long flushDelay) throws CoreException {
+		this(EFS.getLocalFileSystem().getStore(workspace.getMetaArea().getHistoryStoreLocation()), 256, flushDelay);
+		workspace.addSaveParticipant(pluginId, this);
+		this.workspace = workspace;
+		this.pluginId = pluginId;
+	}
+
+	public UniversalUniqueIdentifier addBlob(IFileStore target, boolean moveContents) throws CoreException {
+		//moving is a rename, there is nothing to gain from queuing it
+		if (moveContents || target.fetchInfo().getLength() > MAX_PENDING_BYTES)
+			return super.addBlob(target, moveContents);
+		byte[] contents = read(target);
+		UniversalUniqueIdentifier uuid = new UniversalUniqueIdentifier();
+		boolean full;
+		synchronized (this) {
+			pending.put(uuid, contents);
+			pendingBytes += contents.length;
+			full = pendingBytes > MAX_PENDING_BYTES;
+		}
+		if (full)
+			flush();
+		else
+			flushJob.schedule(flushDelay);
+		return uuid;
+	}
+
+	/**
+	 * Writes the queued states, stops the job that writes them, and
+	 * unregisters the store as save participant.
+	 */
+	public void close() throws IOException {
+		flushJob.cancel();
+		if (pluginId != null)
+			workspace.removeSaveParticipant(pluginId);
+		pluginId = null;
+		try {
+			flush();
+		} catch (CoreException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	public synchronized void deleteBlob(UniversalUniqueIdentifier uuid) {
+		Assert.isNotNull(uuid);
+		byte[] contents = pending.remove(uuid);
+		if (contents != null) {
+			pendingBytes -= contents.length;
+			return;
+		}
+		try {
+			super.fileFor(uuid).delete(EFS.NONE, null);
+		} catch (CoreException e) {
+			//ignore, as the plain blob store does
+		}
+	}
+
+	public void doneSaving(ISaveContext context) {
+		//nothing to do
+	}
+
+	/**
+	 * Returns the file of the given blob, which reads a queued state from
+	 * memory until it is written.
+	 */
+	public IFileStore fileFor(UniversalUniqueIdentifier uuid) {
+		IFileStore file = super.fileFor(uuid);
+		return getPending(uuid) == null ? file : new StagedFile(uuid, file);
+	}
+
+	/**
+	 * Writes the queued states, creating each folder once per batch.
+	 */
+	public void flush() throws CoreException {
+		UniversalUniqueIdentifier[] batch;
+		synchronized (this) {
+			if (pending.isEmpty())
+				return;
+			batch = pending.keySet().toArray(new UniversalUniqueIdentifier[pending.size()]);
+			batchCount++;
+		}
+		Set<IFileStore> folders = new HashSet<IFileStore>();
+		for (int i = 0; i < batch.length; i++)
+			write(batch[i], folders);
+	}
+
+	/**
+	 * Returns the number of batches the queued states were written in.
+	 */
+	public synchronized int getBatchCount() {
+		return batchCount;
+	}
+
+	public InputStream getBlob(UniversalUniqueIdentifier uuid) throws CoreException {
+		Assert.isNotNull(uuid);
+		byte[] contents = getPending(uuid);
+		if (contents != null)
+			return new ByteArrayInputStream(contents);
+		return super.fileFor(uuid).openInputStream(EFS.NONE, null);
+	}
+
+	/**
+	 * Returns the queued contents of the given state, or <code>null</code> if
+	 * it is written or deleted.
+	 */
+	synchronized byte[] getPending(UniversalUniqueIdentifier uuid) {
+		return pending.get(uuid);
+	}
+
+	/**
+	 * Returns the number of states that are not written yet.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	public void prepareToSave(ISaveContext context) throws CoreException {
+		flush();
+	}
+
+	private byte[] read(IFileStore target) throws CoreException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream input = target.openInputStream(EFS.NONE, null);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) >= 0)
+				output.write(buffer, 0, read);
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_READ_LOCAL, null, "Could not read " + target, e);
+		} finally {
+			try {
+				input.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+		return output.toByteArray();
+	}
+
+	public void rollback(ISaveContext context) {
+		//nothing to do
+	}
+
+	public void saving(ISaveContext context) {
+		//the states were written in prepareToSave
+	}
+
+	/**
+	 * Writes the given queued state, unless it was deleted in the meantime.
+	 */
+	private synchronized void write(UniversalUniqueIdentifier uuid, Set<IFileStore> folders) throws CoreException {
+		byte[] contents = pending.get(uuid);
+		if (contents == null)
+			return;
+		IFileStore file = super.fileFor(uuid);
+		IFileStore folder = file.getParent();
+		if (folders.add(folder))
+			folder.mkdir(EFS.NONE, null);
+		OutputStream output = file.openOutputStream(EFS.NONE, null);
+		try {
+			try {
+				output.write(contents);
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			throw new ResourceException(IResourceStatus.FAILED_WRITE_LOCAL, null, "Could not store blob " + file, e);
+		}
+		pending.remove(uuid);
+		pendingBytes -= contents.length;
+	}
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.properties;
+
+import java.util.*;
+import org.eclipse.core.internal.localstore.BucketTree;
+import org.eclipse.core.internal.properties.IPropertyManager;
+import org.eclipse.core.internal.properties.PropertyBucket;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceStatus;
+import org.eclipse.core.runtime.*;
+
+/**
+ * Gets, sets and deletes many persistent properties of many resources at
+ * once. {@link IPropertyManager#setProperty(IResource, QualifiedName, String)}
+ * saves the property bucket of the resource on every call, so setting many
+ * properties rewrites the same index file many times. A batch loads and saves
+ * each affected bucket only once, by visiting the resources in the order of
+ * their buckets.
+ * <p>
+ * Before a batch touches the index, the property store of the workspace is
+ * saved and its in-memory bucket is flushed, so that it reads the changes
+ * made by the batch. Batches hold the lock of the property manager, like
+ * the property manager itself.
+ * </p>
+ */
+public class PropertyBatch {
+	/** The longest value allowed for a property, as for the property manager */
+	private static final int MAX_VALUE_SIZE = 2 * 1024;
+
+	/**
+	 * Orders resources so that resources sharing a bucket are adjacent: the
+	 * bucket of a resource is determined by the path of its parent.
+	 */
+	private static final Comparator<IResource> BUCKET_ORDER = new Comparator<IResource>() {
+		public int compare(IResource r1, IResource r2) {
+			int result = r1.getFullPath().removeLastSegments(1).toString().compareTo(r2.getFullPath().removeLastSegments(1).toString());
+			return result != 0 ? result : r1.getFullPath().lastSegment().compareTo(r2.getFullPath().lastSegment());
+		}
+	};
+
+	private final IPropertyManager manager;
+	private final Workspace workspace;
+
+	public PropertyBatch(Workspace workspace) {
+		this.workspace = workspace;
+		this.manager = workspace.getPropertyManager();
+	}
+
+	static void checkAccessible(IResource resource) throws CoreException {
+		if (!resource.isAccessible())
+			throw new CoreException(new Status(IStatus.ERROR, "org.eclipse.core.tests.resources", IResourceStatus.RESOURCE_NOT_FOUND, "Resource is not accessible: " + resource.getFullPath(), null));
+	}
+
+	/**
+	 * Deletes the given properties of the given resource.
+	 */
+	public void delete(IResource resource, Collection<QualifiedName> names) throws CoreException {
+		delete(new IResource[] {resource}, names);
+	}
+
+	/**
+	 * Deletes the given properties of all given resources.
+	 */
+	public void delete(IResource[] resources, Collection<QualifiedName> names) throws CoreException {
+		Map<QualifiedName, String> values = new HashMap<QualifiedName, String>(names.size());
+		for (QualifiedName name : names)
+			values.put(name, null);
+		set(resources, values);
+	}
+
+	/**
+	 * Returns the values of the given properties of the given resource.
+	 * Properties that are not set are not in the result.
+	 */
+	public Map<QualifiedName, String> get(IResource resource, Collection<QualifiedName> names) throws CoreException {
+		return get(new IResource[] {resource}, names).get(resource);
+	}
+
+	/**
+	 * Returns the values of the given properties of all given resources.
+	 * Properties that are not set are not in the result.
+	 */
+	public Map<IResource, Map<QualifiedName, String>> get(IResource[] resources, Collection<QualifiedName> names) throws CoreException {
+		IResource[] sorted = sort(resources);
+		Map<IResource, Map<QualifiedName, String>> result = new HashMap<IResource, Map<QualifiedName, String>>(resources.length);
+		synchronized (manager) {
+			PropertyBucket bucket = new PropertyBucket();
+			BucketTree tree = open(bucket);
+			try {
+				for (int i = 0; i < sorted.length; i++) {
+					checkAccessible(sorted[i]);
+					IPath path = sorted[i].getFullPath();
+					tree.loadBucketFor(path);
+					Map<QualifiedName, String> values = new HashMap<QualifiedName, String>(names.size());
+					for (QualifiedName name : names) {
+						String value = bucket.getProperty(path, name);
+						if (value != null)
+							values.put(name, value);
+					}
+					result.put(sorted[i], values);
+				}
+			} finally {
+				tree.close();
+			}
+		}
+		return result;
+	}
+
+	private BucketTree open(PropertyBucket bucket) throws CoreException {
+		//writes pending changes, and makes the manager reload its bucket
+		manager.closePropertyStore(workspace.getRoot());
+		return new BucketTree(workspace, bucket);
+	}
+
+	/**
+	 * Sets the given properties of the given resource. A <code>null</code>
+	 * value deletes the property.
+	 */
+	public void set(IResource resource, Map<QualifiedName, String> values) throws CoreException {
+		set(new IResource[] {resource}, values);
+	}
+
+	/**
+	 * Sets the given properties of all given resources. A <code>null</code>
+	 * value deletes the property.
+	 */
+	public void set(IResource[] resources, Map<QualifiedName, String> values) throws CoreException {
+		for (Map.Entry<QualifiedName, String> entry : values.entrySet())
+			if (entry.getValue() != null && entry.getValue().length() > MAX_VALUE_SIZE)
+				throw new CoreException(new Status(IStatus.ERROR, "org.eclipse.core.tests.resources", IResourceStatus.FAILED_WRITE_METADATA, "Value too long for property " + entry.getKey(), null));
+		IResource[] sorted = sort(resources);
+		synchronized (manager) {
+			PropertyBucket bucket = new PropertyBucket();
+			BucketTree tree = open(bucket);
+			try {
+				for (int i = 0; i < sorted.length; i++) {
+					checkAccessible(sorted[i]);
+					IPath path = sorted[i].getFullPath();
+					//saves the previous bucket when moving to another one
+					tree.loadBucketFor(path);
+					for (Map.Entry<QualifiedName, String> entry : values.entrySet())
+						bucket.setProperty(path, entry.getKey(), entry.getValue());
+				}
+			} finally {
+				//saves the last bucket
+				tree.close();
+			}
+		}
+	}
+
+	private IResource[] sort(IResource[] resources) {
+		IResource[] sorted = new IResource[resources.length];
+		System.arraycopy(resources, 0, sorted, 0, resources.length);
+		Arrays.sort(sorted, BUCKET_ORDER);
+		return sorted;
+	}
+}
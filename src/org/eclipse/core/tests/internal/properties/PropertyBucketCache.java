@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.properties;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import org.eclipse.core.internal.localstore.BucketTree;
+import org.eclipse.core.internal.properties.IPropertyManager;
+import org.eclipse.core.internal.properties.PropertyBucket;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * Keeps several property buckets loaded at once. A {@link BucketTree} holds a
+ * single bucket, so reading the properties of resources in different folders
+ * in turn loads and parses an index file on every read.
+ * <p>
+ * The cache keeps the loaded buckets by the location of their index file,
+ * which is where the bucket tree would load them from, and evicts the least
+ * recently used buckets when their estimated size exceeds the budget of the
+ * cache. Changed buckets are marked dirty and written behind: a job saves
+ * them shortly after the last change, and a dirty bucket is saved before it
+ * is evicted, on {@link #flush()} and on {@link #close()}.
+ * </p><p>
+ * The cache holds the lock of the property manager while it loads and saves
+ * buckets, and makes the manager reload its own bucket after saving. The
+ * buckets of a project are saved and dropped before the project is closed,
+ * deleted or moved, so a late save cannot recreate the index of a project
+ * that is gone.
+ * </p><p>
+ * Any other change made through the property manager is not seen by buckets
+ * that are already loaded, and is overwritten when such a bucket is saved.
+ * This includes the properties the workspace copies, moves and deletes with
+ * the resources of an open project. Deleting and copying properties should
+ * go through {@link #deleteProperties(IResource, int)} and
+ * {@link #copy(IResource, IResource, int)}, and the cache should be closed
+ * before resources whose properties it has read are copied, moved or
+ * deleted within a project.
+ * </p>
+ */
+public class PropertyBucketCache {
+	/** The default memory budget of a cache, in bytes */
+	public static final long DEFAULT_MAX_SIZE = 1024 * 1024;
+
+	/** The time from the last change to the saving of the dirty buckets, in milliseconds */
+	private static final long WRITE_DELAY = 500;
+
+	/** The name of the index file of property buckets */
+	private static final String INDEX_FILE_NAME = "properties.index";
+
+	/** The estimated size of a loaded bucket, not counting its entries */
+	private static final int BUCKET_OVERHEAD = 256;
+
+	/**
+	 * A loaded bucket.
+	 */
+	private static class Entry {
+		final PropertyBucket bucket;
+		boolean dirty;
+		long size;
+
+		Entry(PropertyBucket bucket, long size) {
+			this.bucket = bucket;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Saves the dirty buckets.
+	 */
+	private class WriteJob extends Job {
+		WriteJob() {
+			super("Saving property buckets");
+			setSystem(true);
+		}
+
+		protected IStatus run(IProgressMonitor monitor) {
+			try {
+				flush();
+			} catch (CoreException e) {
+				return e.getStatus();
+			}
+			return Status.OK_STATUS;
+		}
+	}
+
+	/** The loaded buckets by the location of their index, the least recently used first */
+	private final LinkedHashMap<File, Entry> buckets = new LinkedHashMap<File, Entry>(64, 0.75f, true);
+
+	private int evictionCount;
+	private int hitCount;
+	private final IResourceChangeListener listener = new IResourceChangeListener() {
+		public void resourceChanged(IResourceChangeEvent event) {
+			//the project is still there, so saving its buckets does not recreate its index
+			try {
+				dropProject(event.getResource());
+			} catch (CoreException e) {
+				ResourcesPlugin.getPlugin().getLog().log(e.getStatus());
+			}
+		}
+	};
+	private int loadCount;
+	private final Method locationFor;
+	private final IPropertyManager manager;
+	private final long maxSize;
+	private int saveCount;
+	private long size;
+	/** Only used to find the location of the bucket of a resource */
+	private final BucketTree tree;
+	private final Workspace workspace;
+	private final WriteJob writeJob = new WriteJob();
+
+	public PropertyBucketCache(Workspace workspace) throws CoreException {
+		this(workspace, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a cache for the properties of the given workspace that holds
+	 * buckets of about the given number of bytes.
+	 */
+	public PropertyBucketCache(Workspace workspace, long maxSize) throws CoreException {
+		this.workspace = workspace;
+		this.manager = workspace.getPropertyManager();
+		this.maxSize = maxSize;
+		this.tree = new BucketTree(workspace, new PropertyBucket());
+		try {
+			locationFor = BucketTree.class.getDeclaredMethod("locationFor", new Class[] {IPath.class});
+			locationFor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("Unsupported bucket tree: " + e.getMessage());
+		}
+		//writes pending changes of the manager, so the buckets are loaded with them
+		manager.closePropertyStore(workspace.getRoot());
+		workspace.addResourceChangeListener(listener, IResourceChangeEvent.PRE_CLOSE | IResourceChangeEvent.PRE_DELETE);
+	}
+
+	/**
+	 * Returns the loaded bucket that holds the properties of the given
+	 * resource path, loading it if needed. Must be called with the lock of
+	 * the property manager held.
+	 */
+	private Entry bucketFor(IPath path) throws CoreException {
+		File location = locationFor(path);
+		Entry entry;
+		synchronized (this) {
+			entry = buckets.get(location);
+			if (entry != null) {
+				hitCount++;
+				return entry;
+			}
+			loadCount++;
+		}
+		PropertyBucket bucket = new PropertyBucket();
+		new BucketTree(workspace, bucket).loadBucketFor(path);
+		entry = new Entry(bucket, BUCKET_OVERHEAD + new File(location, INDEX_FILE_NAME).length());
+		synchronized (this) {
+			buckets.put(location, entry);
+			size += entry.size;
+		}
+		evict();
+		return entry;
+	}
+
+	/**
+	 * Saves the dirty buckets, drops all buckets, and stops listening to
+	 * resource changes.
+	 */
+	public void close() throws CoreException {
+		workspace.removeResourceChangeListener(listener);
+		writeJob.cancel();
+		flush();
+		synchronized (this) {
+			buckets.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * Copies the properties of the given resource and its members to the
+	 * given destination, as the property manager does. The buckets of the
+	 * destination project are saved before and reloaded after the copy.
+	 */
+	public void copy(IResource source, IResource destination, int depth) throws CoreException {
+		synchronized (manager) {
+			dropProject(destination.getProject());
+			manager.copy(source, destination, depth);
+		}
+	}
+
+	/**
+	 * Deletes the properties of the given resource and its members, as the
+	 * property manager does. The buckets of the project are saved before and
+	 * reloaded after the deletion.
+	 */
+	public void deleteProperties(IResource resource, int depth) throws CoreException {
+		synchronized (manager) {
+			dropProject(resource.getProject());
+			manager.deleteProperties(resource, depth);
+		}
+	}
+
+	/**
+	 * Saves the dirty buckets of the given project, or of the workspace root
+	 * if it is <code>null</code>, and drops the buckets of the project.
+	 */
+	void dropProject(IResource project) throws CoreException {
+		File indexes = locationFor(project == null ? Path.ROOT : project.getFullPath());
+		synchronized (manager) {
+			List<Entry> dropped = new ArrayList<Entry>();
+			synchronized (this) {
+				for (Iterator<Map.Entry<File, Entry>> i = buckets.entrySet().iterator(); i.hasNext();) {
+					Map.Entry<File, Entry> next = i.next();
+					if (!isAncestor(indexes, next.getKey()))
+						continue;
+					dropped.add(next.getValue());
+					size -= next.getValue().size;
+					i.remove();
+				}
+			}
+			boolean saved = false;
+			for (Iterator<Entry> i = dropped.iterator(); i.hasNext();) {
+				Entry entry = i.next();
+				if (entry.dirty) {
+					save(entry);
+					saved = true;
+				}
+			}
+			if (saved)
+				manager.closePropertyStore(workspace.getRoot());
+		}
+	}
+
+	/**
+	 * Evicts the least recently used buckets until the cache is within its
+	 * budget, saving the dirty ones. The most recently used bucket is kept.
+	 */
+	private void evict() throws CoreException {
+		while (true) {
+			Entry eldest;
+			synchronized (this) {
+				if (size <= maxSize || buckets.size() <= 1)
+					return;
+				Iterator<Entry> i = buckets.values().iterator();
+				eldest = i.next();
+				i.remove();
+				size -= eldest.size;
+				evictionCount++;
+			}
+			if (eldest.dirty) {
+				save(eldest);
+				manager.closePropertyStore(workspace.getRoot());
+			}
+		}
+	}
+
+	/**
+	 * Saves the dirty buckets.
+	 */
+	public void flush() throws CoreException {
+		synchronized (manager) {
+			Entry[] entries;
+			synchronized (this) {
+				entries = buckets.values().toArray(new Entry[buckets.size()]);
+			}
+			boolean saved = false;
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i].dirty) {
+					save(entries[i]);
+					saved = true;
+				}
+			}
+			if (saved)
+				//the manager may hold a stale copy of one of the saved buckets
+				manager.closePropertyStore(workspace.getRoot());
+		}
+	}
+
+	/**
+	 * Returns the number of loaded buckets.
+	 */
+	public synchronized int getBucketCount() {
+		return buckets.size();
+	}
+
+	/**
+	 * Returns the number of buckets evicted to keep the cache within its
+	 * budget.
+	 */
+	public synchronized int getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the number of reads and writes that found their bucket loaded.
+	 */
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of buckets loaded from their index file.
+	 */
+	public synchronized int getLoadCount() {
+		return loadCount;
+	}
+
+	/**
+	 * Returns the value of the given property of the given resource, or
+	 * <code>null</code> if it is not set.
+	 */
+	public String getProperty(IResource resource, QualifiedName name) throws CoreException {
+		PropertyBatch.checkAccessible(resource);
+		IPath path = resource.getFullPath();
+		synchronized (manager) {
+			return bucketFor(path).bucket.getProperty(path, name);
+		}
+	}
+
+	/**
+	 * Returns the number of dirty buckets that were saved.
+	 */
+	public synchronized int getSaveCount() {
+		return saveCount;
+	}
+
+	/**
+	 * Returns whether the given file is the given directory or inside it.
+	 */
+	private static boolean isAncestor(File directory, File file) {
+		for (File current = file; current != null; current = current.getParentFile())
+			if (current.equals(directory))
+				return true;
+		return false;
+	}
+
+	private File locationFor(IPath path) {
+		try {
+			return (File) locationFor.invoke(tree, new Object[] {path});
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getTargetException().getMessage());
+		}
+	}
+
+	private void save(Entry entry) throws CoreException {
+		entry.bucket.save();
+		synchronized (this) {
+			entry.dirty = false;
+			saveCount++;
+		}
+	}
+
+	/**
+	 * Sets the given property of the given resource. A <code>null</code>
+	 * value deletes the property. The bucket is saved later.
+	 */
+	public void setProperty(IResource resource, QualifiedName name, String value) throws CoreException {
+		PropertyBatch.checkAccessible(resource);
+		IPath path = resource.getFullPath();
+		synchronized (manager) {
+			Entry entry = bucketFor(path);
+			entry.bucket.setProperty(path, name, value);
+			synchronized (this) {
+				entry.dirty = true;
+				if (value != null) {
+					//grows the estimate, a deleted value is counted until the bucket is reloaded
+					long growth = 2 * (name.toString().length() + value.length());
+					entry.size += growth;
+					size += growth;
+				}
+			}
+			evict();
+		}
+		writeJob.schedule(WRITE_DELAY);
+	}
+}
@@ -11,16 +11,20 @@
 package org.eclipse.core.tests.internal.properties;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Iterator;
 import java.util.Map;
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import org.eclipse.core.internal.localstore.BucketTree;
 import org.eclipse.core.internal.properties.IPropertyManager;
+import org.eclipse.core.internal.properties.PropertyBucket;
 import org.eclipse.core.internal.resources.ResourcesCompatibilityHelper;
 import org.eclipse.core.internal.resources.Workspace;
 import org.eclipse.core.resources.*;
 import org.eclipse.core.runtime.*;
+import org.eclipse.core.tests.internal.localstore.CompactBucketFile;
 import org.eclipse.core.tests.resources.ResourceTest;
 import org.osgi.framework.Bundle;
 
@@ -114,6 +118,124 @@ public class PropertyConversionTest extends ResourceTest {
 		}
 	}
 
+	/**
+	 * Converts the property bucket of a folder to the compact format, and
+	 * ensures that the properties of every file can be looked up.
+	 */
+	public void testCompactConversion() {
+		IFolder folder = getWorkspace().getRoot().getProject("proj1").getFolder("folder1");
+		IFile[] files = new IFile[50];
+		for (int i = 0; i < files.length; i++)
+			files[i] = folder.getFile("file" + i + ".txt");
+		ensureExistsInWorkspace(files, true);
+		try {
+			for (int i = 0; i < files.length; i++)
+				for (int j = 0; j <= i % 4; j++)
+					files[i].setPersistentProperty(new QualifiedName(PI_RESOURCES_TESTS, "property." + j), "value." + i + "." + j);
+		} catch (CoreException e) {
+			fail("1.0", e);
+		}
+		// all files of a folder share the same bucket
+		BucketTree tree = new BucketTree((Workspace) getWorkspace(), new PropertyBucket());
+		File compact = getRandomLocation().toFile();
+		try {
+			tree.loadBucketFor(files[0].getFullPath());
+			assertEquals("2.0", files.length, CompactBucketFile.write(tree.getCurrent(), compact, CompactBucketFile.PROPERTY_CODEC));
+			tree.close();
+		} catch (CoreException e) {
+			fail("2.1", e);
+		} catch (IOException e) {
+			fail("2.2", e);
+		}
+		CompactBucketFile reader = null;
+		try {
+			reader = CompactBucketFile.open(compact);
+			for (int i = 0; i < files.length; i++) {
+				byte[] value = reader.get(files[i].getFullPath().toString());
+				assertNotNull("3.0." + i, value);
+				assertEquals("3.1." + i, files[i].getPersistentProperties(), CompactBucketFile.decodeProperties(value));
+			}
+			assertNull("3.2", reader.get(folder.getFile("missing.txt").getFullPath().toString()));
+		} catch (CoreException e) {
+			fail("3.3", e);
+		} catch (IOException e) {
+			fail("3.4", e);
+		} finally {
+			if (reader != null)
+				try {
+					reader.close();
+				} catch (IOException e) {
+					fail("3.5", e);
+				}
+			ensureDoesNotExistInFileSystem(compact);
+		}
+		convertLegacyToCompact();
+	}
+
+	/**
+	 * Sets properties with the legacy property manager, converts them to
+	 * property buckets, and converts the bucket to the compact format, as an
+	 * existing workspace would go through both conversions. The compact file
+	 * must hold the properties of the legacy manager.
+	 */
+	private void convertLegacyToCompact() {
+		Bundle compatibility = Platform.getBundle("org.eclipse.core.resources.compatibility");
+		if (compatibility == null || compatibility.getState() != Bundle.RESOLVED)
+			// compatibility fragment not available
+			return;
+		// all files of a folder share the same bucket
+		IFolder folder = getWorkspace().getRoot().getProject("proj2").getFolder("folder2");
+		IFile[] files = new IFile[20];
+		for (int i = 0; i < files.length; i++)
+			files[i] = folder.getFile("file" + i + ".txt");
+		ensureExistsInWorkspace(files, true);
+		IPropertyManager original = null;
+		CompactBucketFile reader = null;
+		File compact = getRandomLocation().toFile();
+		try {
+			original = createPropertyManager("5.0", false, false);
+			for (int i = 0; i < files.length; i++) {
+				for (int j = 0; j <= i % 4; j++)
+					original.setProperty(files[i], new QualifiedName(PI_RESOURCES_TESTS, "legacy." + j), "value." + i + "." + j);
+				original.closePropertyStore(files[i]);
+			}
+			// convert to property buckets, which are saved on shutdown
+			createPropertyManager("5.1", true, true).shutdown(getMonitor());
+			BucketTree tree = new BucketTree((Workspace) getWorkspace(), new PropertyBucket());
+			tree.loadBucketFor(files[0].getFullPath());
+			assertEquals("5.2", files.length, CompactBucketFile.write(tree.getCurrent(), compact, CompactBucketFile.PROPERTY_CODEC));
+			tree.close();
+
+			// compare with the legacy manager
+			reader = CompactBucketFile.open(compact);
+			for (int i = 0; i < files.length; i++) {
+				byte[] value = reader.get(files[i].getFullPath().toString());
+				assertNotNull("6.0." + i, value);
+				Map legacy = original.getProperties(files[i]);
+				assertEquals("6.1." + i, i % 4 + 1, legacy.size());
+				assertEquals("6.2." + i, legacy, CompactBucketFile.decodeProperties(value));
+			}
+		} catch (CoreException e) {
+			fail("7.0", e);
+		} catch (IOException e) {
+			fail("7.1", e);
+		} finally {
+			if (reader != null)
+				try {
+					reader.close();
+				} catch (IOException e) {
+					fail("7.2", e);
+				}
+			if (original != null)
+				try {
+					original.shutdown(getMonitor());
+				} catch (CoreException e) {
+					fail("7.3", e);
+				}
+			ensureDoesNotExistInFileSystem(compact);
+		}
+	}
+
 	public void testBug86363() {
 		File rootPropertiesFile = ((Workspace) getWorkspace()).getMetaArea().getPropertyStoreLocation(getWorkspace().getRoot()).toFile();
 		ensureDoesNotExistInFileSystem(rootPropertiesFile);
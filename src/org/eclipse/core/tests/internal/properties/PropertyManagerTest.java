@@ -10,12 +10,12 @@
  *******************************************************************************/
 package org.eclipse.core.tests.internal.properties;
 
-import java.util.Enumeration;
-import java.util.Vector;
+import java.util.*;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 import org.eclipse.core.internal.properties.IPropertyManager;
 import org.eclipse.core.internal.resources.ResourcesCompatibilityHelper;
+import org.eclipse.core.internal.resources.Workspace;
 import org.eclipse.core.resources.*;
 import org.eclipse.core.runtime.*;
 import org.eclipse.core.tests.internal.localstore.LocalStoreTest;
@@ -124,6 +124,230 @@ public class PropertyManagerTest extends LocalStoreTest {
 		}
 	}
 
+	/**
+	 * Sets, gets and deletes properties of many files in batches, and
+	 * ensures the batches and the resource API see each other's changes.
+	 */
+	public void testBatch() {
+		IFolder folder = projects[0].getFolder("folder");
+		IResource[] files = new IResource[20];
+		for (int i = 0; i < files.length; i++)
+			files[i] = folder.getFile("file" + i);
+		ensureExistsInWorkspace(files, true);
+		Map<QualifiedName, String> values = new HashMap<QualifiedName, String>();
+		for (int i = 0; i < 15; i++)
+			values.put(new QualifiedName(PI_RESOURCES_TESTS, "prop" + i), "value" + i);
+		PropertyBatch batch = new PropertyBatch((Workspace) getWorkspace());
+		QualifiedName key = new QualifiedName(PI_RESOURCES_TESTS, "prop0");
+		try {
+			// a value set through the API before the batch is overwritten
+			files[0].setPersistentProperty(key, "old");
+			batch.set(files, values);
+			for (int i = 0; i < files.length; i++)
+				assertEquals("1.0." + i, values, files[i].getPersistentProperties());
+
+			// a value set through the API after the batch is seen by the batch
+			files[1].setPersistentProperty(key, "new");
+			Map<IResource, Map<QualifiedName, String>> result = batch.get(files, values.keySet());
+			assertEquals("2.0", files.length, result.size());
+			assertEquals("2.1", "new", result.get(files[1]).get(key));
+			assertEquals("2.2", values, result.get(files[0]));
+
+			// delete some properties of a single file
+			batch.delete(files[2], Arrays.asList(new QualifiedName[] {key}));
+			assertNull("3.0", files[2].getPersistentProperty(key));
+			assertEquals("3.1", values.size() - 1, batch.get(files[2], values.keySet()).size());
+
+			// a null value deletes the property
+			Map<QualifiedName, String> changes = new HashMap<QualifiedName, String>();
+			changes.put(key, null);
+			changes.put(new QualifiedName(PI_RESOURCES_TESTS, "prop1"), "changed");
+			batch.set(files, changes);
+			for (int i = 0; i < files.length; i++) {
+				assertNull("4.0." + i, files[i].getPersistentProperty(key));
+				assertEquals("4.1." + i, "changed", files[i].getPersistentProperty(new QualifiedName(PI_RESOURCES_TESTS, "prop1")));
+			}
+			batch.delete(files, values.keySet());
+			for (int i = 0; i < files.length; i++)
+				assertTrue("5.0." + i, files[i].getPersistentProperties().isEmpty());
+		} catch (CoreException e) {
+			fail("5.1", e);
+		}
+
+		// values that are too long are rejected before anything is written
+		StringBuffer tooLong = new StringBuffer();
+		for (int i = 0; i < 10000; i++)
+			tooLong.append('a');
+		values.put(key, tooLong.toString());
+		try {
+			batch.set(files, values);
+			fail("6.0");
+		} catch (CoreException e) {
+			// expected
+		}
+		try {
+			assertTrue("6.1", files[0].getPersistentProperties().isEmpty());
+		} catch (CoreException e) {
+			fail("6.2", e);
+		}
+	}
+
+	/**
+	 * Reads and writes properties of several folders through a bucket cache,
+	 * and ensures that the buckets are loaded once, that changes reach the
+	 * index when they are flushed or evicted, and that the index of a
+	 * deleted project is not recreated.
+	 */
+	public void testBucketCache() {
+		IFolder[] folders = new IFolder[4];
+		IFile[] files = new IFile[folders.length];
+		for (int i = 0; i < folders.length; i++) {
+			folders[i] = projects[0].getFolder("folder" + i);
+			files[i] = folders[i].getFile("file");
+		}
+		ensureExistsInWorkspace(files, true);
+		QualifiedName name = new QualifiedName(PI_RESOURCES_TESTS, "prop");
+		PropertyBucketCache cache = null;
+		try {
+			for (int i = 0; i < files.length; i++)
+				files[i].setPersistentProperty(name, "value" + i);
+			cache = new PropertyBucketCache((Workspace) getWorkspace());
+			for (int k = 0; k < 3; k++)
+				for (int i = 0; i < files.length; i++)
+					assertEquals("1.0." + i, "value" + i, cache.getProperty(files[i], name));
+			assertEquals("1.1", files.length, cache.getLoadCount());
+			assertEquals("1.2", 2 * files.length, cache.getHitCount());
+
+			//written behind
+			cache.setProperty(files[0], name, "changed");
+			assertEquals("2.0", "changed", cache.getProperty(files[0], name));
+			cache.flush();
+			assertEquals("2.1", 1, cache.getSaveCount());
+			assertEquals("2.2", "changed", files[0].getPersistentProperty(name));
+			cache.close();
+			assertEquals("2.3", 0, cache.getBucketCount());
+		} catch (CoreException e) {
+			fail("2.4", e);
+		}
+
+		//a cache too small for two buckets saves a dirty bucket when it is evicted
+		try {
+			cache = new PropertyBucketCache((Workspace) getWorkspace(), 1);
+			cache.setProperty(files[1], name, "evicted");
+			assertEquals("3.0", "value2", cache.getProperty(files[2], name));
+			assertEquals("3.1", 1, cache.getBucketCount());
+			assertEquals("3.2", 1, cache.getEvictionCount());
+			assertEquals("3.3", 1, cache.getSaveCount());
+			assertEquals("3.4", "evicted", files[1].getPersistentProperty(name));
+			cache.close();
+		} catch (CoreException e) {
+			fail("3.5", e);
+		}
+
+		//the buckets of a deleted project are saved before it is deleted, and not after
+		IFile other = projects[1].getFile("file");
+		ensureExistsInWorkspace(other, true);
+		try {
+			cache = new PropertyBucketCache((Workspace) getWorkspace());
+			cache.setProperty(other, name, "deleted");
+			projects[1].delete(true, getMonitor());
+			assertEquals("4.0", 0, cache.getBucketCount());
+			assertEquals("4.1", 1, cache.getSaveCount());
+			cache.flush();
+			assertTrue("4.2", !((Workspace) getWorkspace()).getMetaArea().locationFor(projects[1]).toFile().exists());
+			cache.close();
+		} catch (CoreException e) {
+			fail("4.3", e);
+		}
+	}
+
+	/**
+	 * Reads properties through a cache, and ensures that setting, deleting
+	 * and copying properties through it are not hidden by cached values.
+	 */
+	public void testCache() {
+		IFolder source = projects[0].getFolder("source");
+		IFile sourceFile = source.getFile("file");
+		IFolder destination = projects[0].getFolder("destination");
+		IFile destinationFile = destination.getFile("file");
+		ensureExistsInWorkspace(new IResource[] {source, sourceFile, destination, destinationFile}, true);
+		QualifiedName name = new QualifiedName(PI_RESOURCES_TESTS, "prop");
+		PropertyValueCache cache = new PropertyValueCache((Workspace) getWorkspace());
+		try {
+			//unset properties are cached too
+			assertNull("1.0", cache.getProperty(sourceFile, name));
+			assertNull("1.1", cache.getProperty(sourceFile, name));
+			assertEquals("1.2", 1, cache.getHitCount());
+			assertEquals("1.3", 1, cache.getMissCount());
+
+			cache.setProperty(sourceFile, name, "value");
+			assertEquals("2.0", "value", cache.getProperty(sourceFile, name));
+			assertEquals("2.1", "value", cache.getProperty(sourceFile, name));
+			assertEquals("2.2", "value", sourceFile.getPersistentProperty(name));
+			assertEquals("2.3", 2, cache.getHitCount());
+			assertEquals("2.4", 2, cache.getMissCount());
+
+			assertNull("3.0", cache.getProperty(destinationFile, name));
+			cache.copy(source, destination, IResource.DEPTH_INFINITE);
+			assertEquals("3.1", "value", cache.getProperty(destinationFile, name));
+
+			cache.deleteProperties(source, IResource.DEPTH_INFINITE);
+			assertNull("4.0", cache.getProperty(sourceFile, name));
+			assertEquals("4.1", "value", cache.getProperty(destinationFile, name));
+
+			//a delete that does not reach the file keeps its entry
+			cache.deleteProperties(destination, IResource.DEPTH_ZERO);
+			int hits = cache.getHitCount();
+			assertEquals("5.0", "value", cache.getProperty(destinationFile, name));
+			assertEquals("5.1", hits + 1, cache.getHitCount());
+
+			destinationFile.delete(true, getMonitor());
+			ensureExistsInWorkspace(destinationFile, true);
+			assertNull("6.0", cache.getProperty(destinationFile, name));
+
+			//the workspace reports the change when the operation ends, the file is recreated before that
+			final PropertyValueCache current = cache;
+			final IFile recreated = destinationFile;
+			final QualifiedName key = name;
+			cache.setProperty(recreated, key, "value");
+			getWorkspace().run(new IWorkspaceRunnable() {
+				public void run(IProgressMonitor monitor) throws CoreException {
+					assertEquals("6.0.1", "value", current.getProperty(recreated, key));
+					recreated.delete(true, monitor);
+					recreated.create(getRandomContents(), true, monitor);
+					assertNull("6.0.2", current.getProperty(recreated, key));
+				}
+			}, getMonitor());
+		} catch (CoreException e) {
+			fail("6.1", e);
+		} finally {
+			cache.dispose();
+		}
+		assertEquals("6.2", 0, cache.getEntryCount());
+		assertEquals("6.3", 0, cache.getSize());
+
+		//a cache too small for all entries evicts the least recently used ones
+		IFile[] files = new IFile[20];
+		for (int i = 0; i < files.length; i++)
+			files[i] = source.getFile("file" + i);
+		ensureExistsInWorkspace(files, true);
+		cache = new PropertyValueCache((Workspace) getWorkspace(), 2048);
+		try {
+			for (int i = 0; i < files.length; i++)
+				assertNull("7.0." + i, cache.getProperty(files[i], name));
+			assertTrue("7.1", cache.getSize() <= 2048);
+			assertTrue("7.2", cache.getEvictionCount() > 0);
+			assertEquals("7.3", files.length, cache.getEntryCount() + cache.getEvictionCount());
+			int misses = cache.getMissCount();
+			assertNull("7.4", cache.getProperty(files[0], name));
+			assertEquals("7.5", misses + 1, cache.getMissCount());
+		} catch (CoreException e) {
+			fail("7.6", e);
+		} finally {
+			cache.dispose();
+		}
+	}
+
 	/**
 	 * Tests concurrent acces to the property store.
 	 */
@@ -202,6 +426,93 @@ public class PropertyManagerTest extends LocalStoreTest {
 		}
 	}
 
+	/**
+	 * Reads properties of several folders through the striped store from
+	 * several threads, while another thread keeps changing the properties
+	 * of one of the folders.
+	 */
+	public void testStripedConcurrentAccess() {
+		final QualifiedName name = new QualifiedName(PI_RESOURCES_TESTS, "prop");
+		final IFile[][] files = new IFile[4][10];
+		for (int i = 0; i < files.length; i++)
+			for (int j = 0; j < files[i].length; j++)
+				files[i][j] = projects[0].getFolder("folder" + i).getFile("file" + j);
+		final StripedPropertyStore store = new StripedPropertyStore((Workspace) getWorkspace());
+		for (int i = 0; i < files.length; i++) {
+			ensureExistsInWorkspace(files[i], true);
+			try {
+				store.setProperties(files[i], Collections.singletonMap(name, "value" + i));
+			} catch (CoreException e) {
+				fail("1.0." + i, e);
+			}
+		}
+		final CoreException[] errorPointer = new CoreException[1];
+		final String[] mismatch = new String[1];
+		Thread[] threads = new Thread[files.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int folder = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int k = 0; k < 20; k++) {
+							if (folder == 0) {
+								store.setProperties(files[0], Collections.singletonMap(name, "changed" + k));
+								continue;
+							}
+							for (int j = 0; j < files[folder].length; j++) {
+								String value = store.getProperty(files[folder][j], name);
+								if (!("value" + folder).equals(value))
+									mismatch[0] = files[folder][j] + ": " + value;
+							}
+						}
+					} catch (CoreException e) {
+						errorPointer[0] = e;
+					}
+				}
+			}, "StripedPropertyStore" + i);
+			threads[i].start();
+		}
+		join(threads);
+		if (errorPointer[0] != null)
+			fail("2.0", errorPointer[0]);
+		assertNull("2.1 " + mismatch[0], mismatch[0]);
+		try {
+			for (int j = 0; j < files[0].length; j++) {
+				assertEquals("3.0." + j, "changed19", store.getProperty(files[0][j], name));
+				assertEquals("3.1." + j, "changed19", files[0][j].getPersistentProperty(name));
+			}
+		} catch (CoreException e) {
+			fail("3.2", e);
+		}
+	}
+
+	/**
+	 * Reads properties of more folders than the striped store holds buckets
+	 * for, and ensures that the least recently used buckets are evicted.
+	 */
+	public void testStripedEviction() {
+		QualifiedName name = new QualifiedName(PI_RESOURCES_TESTS, "prop");
+		IFile[] files = new IFile[4];
+		for (int i = 0; i < files.length; i++)
+			files[i] = projects[0].getFolder("folder" + i).getFile("file");
+		ensureExistsInWorkspace(files, true);
+		StripedPropertyStore store = new StripedPropertyStore((Workspace) getWorkspace(), 4, 2);
+		try {
+			for (int i = 0; i < files.length; i++)
+				files[i].setPersistentProperty(name, "value" + i);
+			for (int k = 0; k < 2; k++)
+				for (int i = 0; i < files.length; i++)
+					assertEquals("1." + k + "." + i, "value" + i, store.getProperty(files[i], name));
+			assertEquals("2.0", 2, store.getLoadedCount());
+			assertEquals("2.1", 2 * files.length - 2, store.getEvictionCount());
+			//the most recently used bucket is kept
+			assertEquals("2.2", "value3", store.getProperty(files[3], name));
+			assertEquals("2.3", 2 * files.length - 2, store.getEvictionCount());
+		} catch (CoreException e) {
+			fail("2.4", e);
+		}
+	}
+
 	public void testCopy() throws Throwable {
 		IPropertyManager manager = ResourcesCompatibilityHelper.createPropertyManager();
 		IProject source = projects[0];
@@ -331,6 +642,13 @@ public class PropertyManagerTest extends LocalStoreTest {
 		} catch (CoreException e) {
 			fail("0.5", e);
 		}
+		//the cache must forget the value when the resource is moved away
+		PropertyValueCache cache = new PropertyValueCache((Workspace) getWorkspace());
+		try {
+			assertEquals("0.6.1", "value", cache.getProperty(file1a, key));
+		} catch (CoreException e) {
+			fail("0.6.2", e);
+		}
 		try {
 			file1a.move(new Path("file2"), true, getMonitor());
 		} catch (CoreException e) {
@@ -352,6 +670,16 @@ public class PropertyManagerTest extends LocalStoreTest {
 			fail("1.9", e);
 		}
 		assertEquals("2.0", "value", value);
+		try {
+			assertNull("3.0", cache.getProperty(file1b, key));
+			assertEquals("3.1", "value", cache.getProperty(file1a, key));
+		} catch (CoreException e) {
+			fail("3.2", e);
+		} finally {
+			cache.dispose();
+		}
+		assertEquals("3.3", 0, cache.getHitCount());
+		assertEquals("3.4", 3, cache.getMissCount());
 
 	}
 
@@ -369,6 +697,13 @@ public class PropertyManagerTest extends LocalStoreTest {
 		} catch (CoreException e) {
 			fail("0.5", e);
 		}
+		//the cache must forget the value when the resource is moved away
+		PropertyValueCache cache = new PropertyValueCache((Workspace) getWorkspace());
+		try {
+			assertEquals("0.6.1", "value", cache.getProperty(folder1a, key));
+		} catch (CoreException e) {
+			fail("0.6.2", e);
+		}
 		try {
 			folder1a.move(new Path("folder2"), true, getMonitor());
 		} catch (CoreException e) {
@@ -390,6 +725,16 @@ public class PropertyManagerTest extends LocalStoreTest {
 			fail("1.9", e);
 		}
 		assertEquals("2.0", "value", value);
+		try {
+			assertNull("3.0", cache.getProperty(folder1b, key));
+			assertEquals("3.1", "value", cache.getProperty(folder1a, key));
+		} catch (CoreException e) {
+			fail("3.2", e);
+		} finally {
+			cache.dispose();
+		}
+		assertEquals("3.3", 0, cache.getHitCount());
+		assertEquals("3.4", 3, cache.getMissCount());
 
 	}
 
@@ -441,6 +786,13 @@ public class PropertyManagerTest extends LocalStoreTest {
 		} catch (CoreException e) {
 			fail("0.5", e);
 		}
+		//the cache must forget the value when the resource is moved away
+		PropertyValueCache cache = new PropertyValueCache((Workspace) getWorkspace());
+		try {
+			assertEquals("0.6.1", "value", cache.getProperty(project1a, key));
+		} catch (CoreException e) {
+			fail("0.6.2", e);
+		}
 		try {
 			project1a.move(new Path("proj2"), true, getMonitor());
 		} catch (CoreException e) {
@@ -463,6 +815,16 @@ public class PropertyManagerTest extends LocalStoreTest {
 			fail("1.9", e);
 		}
 		assertEquals("2.0", "value", value);
+		try {
+			assertNull("3.0", cache.getProperty(project1b, key));
+			assertEquals("3.1", "value", cache.getProperty(project1a, key));
+		} catch (CoreException e) {
+			fail("3.2", e);
+		} finally {
+			cache.dispose();
+		}
+		assertEquals("3.3", 0, cache.getHitCount());
+		assertEquals("3.4", 3, cache.getMissCount());
 	}
 
 	public void testProperties() throws Throwable {
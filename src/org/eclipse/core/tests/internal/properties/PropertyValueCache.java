@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.properties;
+
+import java.util.*;
+import org.eclipse.core.internal.properties.IPropertyManager;
+import org.eclipse.core.internal.resources.*;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.*;
+
+/**
+ * A read-through cache of persistent property values in front of the
+ * property manager. Builders and decorators ask for the same few properties
+ * of the same resources over and over, and the property manager goes back to
+ * the index whenever the property is not in its current bucket.
+ * <p>
+ * The cache holds values by resource path and property name, including
+ * properties that are not set. Its size is bounded by an estimate of the
+ * memory held by its entries, and the least recently used entries are
+ * evicted first. Values are written through to the property manager.
+ * Setting, deleting and copying properties through the cache invalidates the
+ * affected entries, and resources that are removed, added or replaced, which
+ * includes both ends of a move, are invalidated when the workspace reports
+ * the change. The entries of a project are dropped before it is closed or
+ * deleted.
+ * </p><p>
+ * The workspace only reports the changes made by an operation when it ends,
+ * so each entry also records the node of the resource in the workspace tree
+ * it was read for. A resource that is deleted and created again, or moved
+ * to the path of another one, within an operation is a different node, and
+ * does not see the entries of the resource that had its path before.
+ * </p><p>
+ * Changes made through the property manager or the resource API directly
+ * are not seen by the cache until the resource changes, so all accesses to
+ * the properties of the cached resources should go through it.
+ * </p>
+ */
+public class PropertyValueCache {
+	/** The default memory budget of a cache, in bytes */
+	public static final long DEFAULT_MAX_SIZE = 1024 * 1024;
+
+	/** The estimated size of an entry, not counting its strings */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	/** Stands for a property that is not set */
+	private static final String NOT_SET = new String();
+
+	/**
+	 * A cached value, with the resource it was read for.
+	 */
+	private static class Value {
+		/** The node identifier of the resource in the workspace tree */
+		final long nodeId;
+		final String value;
+
+		Value(long nodeId, String value) {
+			this.nodeId = nodeId;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * The key of a cache entry.
+	 */
+	private static class Key {
+		final QualifiedName name;
+		final IPath path;
+
+		Key(IPath path, QualifiedName name) {
+			this.path = path;
+			this.name = name;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return path.equals(other.path) && name.equals(other.name);
+		}
+
+		public int hashCode() {
+			return path.hashCode() * 31 + name.hashCode();
+		}
+	}
+
+	/** The cached values, the least recently used first */
+	private final LinkedHashMap<Key, Value> entries = new LinkedHashMap<Key, Value>(64, 0.75f, true);
+
+	private int evictionCount;
+
+	/** Changes on every invalidation, so that reads racing with it are not cached */
+	private int generation;
+	private int hitCount;
+	private final IResourceChangeListener listener = new IResourceChangeListener() {
+		public void resourceChanged(IResourceChangeEvent event) {
+			if (event.getType() != IResourceChangeEvent.POST_CHANGE) {
+				//a project that is about to be closed, deleted or moved
+				invalidate(event.getResource().getFullPath(), IResource.DEPTH_INFINITE);
+				return;
+			}
+			IResourceDelta delta = event.getDelta();
+			if (delta == null)
+				return;
+			try {
+				delta.accept(new IResourceDeltaVisitor() {
+					public boolean visit(IResourceDelta child) {
+						if (child.getKind() == IResourceDelta.CHANGED && (child.getFlags() & IResourceDelta.REPLACED) == 0)
+							return true;
+						//the whole subtree was removed, added or replaced
+						invalidate(child.getFullPath(), IResource.DEPTH_INFINITE);
+						return false;
+					}
+				});
+			} catch (CoreException e) {
+				//the visitor does not throw
+			}
+		}
+	};
+	private final IPropertyManager manager;
+	private final long maxSize;
+	private int missCount;
+	/** The keys of the cached values, by their resource path */
+	private final Map<IPath, Set<Key>> paths = new HashMap<IPath, Set<Key>>();
+	private long size;
+	private final Workspace workspace;
+
+	public PropertyValueCache(Workspace workspace) {
+		this(workspace, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a cache for the properties of the given workspace that holds
+	 * about the given number of bytes. The cache listens to resource changes
+	 * until it is disposed.
+	 */
+	public PropertyValueCache(Workspace workspace, long maxSize) {
+		this.workspace = workspace;
+		this.manager = workspace.getPropertyManager();
+		this.maxSize = maxSize;
+		workspace.addResourceChangeListener(listener, IResourceChangeEvent.POST_CHANGE | IResourceChangeEvent.PRE_CLOSE | IResourceChangeEvent.PRE_DELETE);
+	}
+
+	/**
+	 * Copies the properties of the given resource and its members to the
+	 * given destination, as the property manager does.
+	 */
+	public void copy(IResource source, IResource destination, int depth) throws CoreException {
+		try {
+			manager.copy(source, destination, depth);
+		} finally {
+			invalidate(destination.getFullPath(), depth);
+		}
+	}
+
+	/**
+	 * Deletes the properties of the given resource and its members, as the
+	 * property manager does.
+	 */
+	public void deleteProperties(IResource resource, int depth) throws CoreException {
+		try {
+			manager.deleteProperties(resource, depth);
+		} finally {
+			invalidate(resource.getFullPath(), depth);
+		}
+	}
+
+	/**
+	 * Stops listening to resource changes, and drops all entries.
+	 */
+	public void dispose() {
+		workspace.removeResourceChangeListener(listener);
+		invalidate(Path.ROOT, IResource.DEPTH_INFINITE);
+	}
+
+	/**
+	 * Returns the number of entries in the cache.
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of entries evicted to keep the cache within its
+	 * memory budget.
+	 */
+	public synchronized int getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the number of reads answered by the cache.
+	 */
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of reads that went to the property manager.
+	 */
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the value of the given property of the given resource, or
+	 * <code>null</code> if it is not set.
+	 */
+	public String getProperty(IResource resource, QualifiedName name) throws CoreException {
+		//closed and deleted resources make the property manager fail
+		if (!resource.isAccessible())
+			return manager.getProperty(resource, name);
+		Key key = new Key(resource.getFullPath(), name);
+		long nodeId = nodeIdOf(resource);
+		int current;
+		synchronized (this) {
+			Value cached = entries.get(key);
+			if (cached != null && cached.nodeId == nodeId) {
+				hitCount++;
+				return cached.value == NOT_SET ? null : cached.value;
+			}
+			missCount++;
+			current = generation;
+		}
+		String value = manager.getProperty(resource, name);
+		synchronized (this) {
+			if (current == generation)
+				put(key, new Value(nodeId, value == null ? NOT_SET : value));
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the estimated memory held by the entries of the cache, in
+	 * bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Drops the entries of the given path, and of its members up to the
+	 * given depth.
+	 */
+	synchronized void invalidate(IPath path, int depth) {
+		generation++;
+		List<IPath> matching = new ArrayList<IPath>();
+		if (depth == IResource.DEPTH_ZERO) {
+			//the common case of a single property being set needs no scan
+			if (paths.containsKey(path))
+				matching.add(path);
+		} else {
+			for (IPath cached : paths.keySet())
+				if (path.isPrefixOf(cached) && (depth == IResource.DEPTH_INFINITE || cached.segmentCount() - path.segmentCount() <= depth))
+					matching.add(cached);
+		}
+		for (IPath each : matching)
+			for (Key key : paths.remove(each))
+				size -= sizeOf(key, entries.remove(key));
+	}
+
+	/**
+	 * Returns the node identifier of the given resource in the workspace
+	 * tree, or -1 if it does not exist.
+	 */
+	private long nodeIdOf(IResource resource) {
+		ResourceInfo info = ((Resource) resource).getResourceInfo(false, false);
+		return info == null ? -1 : info.getNodeId();
+	}
+
+	private void put(Key key, Value value) {
+		Value previous = entries.put(key, value);
+		if (previous != null) {
+			size -= sizeOf(key, previous);
+		} else {
+			Set<Key> keys = paths.get(key.path);
+			if (keys == null)
+				paths.put(key.path, keys = new HashSet<Key>(4));
+			keys.add(key);
+		}
+		size += sizeOf(key, value);
+		for (Iterator<Map.Entry<Key, Value>> i = entries.entrySet().iterator(); size > maxSize && i.hasNext();) {
+			Map.Entry<Key, Value> eldest = i.next();
+			size -= sizeOf(eldest.getKey(), eldest.getValue());
+			i.remove();
+			Set<Key> keys = paths.get(eldest.getKey().path);
+			keys.remove(eldest.getKey());
+			if (keys.isEmpty())
+				paths.remove(eldest.getKey().path);
+			evictionCount++;
+		}
+	}
+
+	/**
+	 * Sets the given property of the given resource. A <code>null</code>
+	 * value deletes the property.
+	 */
+	public void setProperty(IResource resource, QualifiedName name, String value) throws CoreException {
+		try {
+			manager.setProperty(resource, name, value);
+		} finally {
+			//the entry is read again, so a failed write does not leave a wrong value
+			invalidate(resource.getFullPath(), IResource.DEPTH_ZERO);
+		}
+	}
+
+	private long sizeOf(Key key, Value value) {
+		String qualifier = key.name.getQualifier();
+		int chars = key.path.toString().length() + key.name.getLocalName().length() + (qualifier == null ? 0 : qualifier.length()) + value.value.length();
+		return ENTRY_OVERHEAD + 2 * chars;
+	}
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.properties;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.eclipse.core.internal.localstore.BucketTree;
+import org.eclipse.core.internal.properties.IPropertyManager;
+import org.eclipse.core.internal.properties.PropertyBucket;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.*;
+
+/**
+ * Reads persistent properties without serializing readers on a single lock.
+ * The property manager synchronizes every access, so readers of different
+ * folders wait for each other even though their buckets are independent.
+ * <p>
+ * This store keeps the loaded property buckets by the path of the folder
+ * they hold. The folders of a project at the same depth may share an index
+ * file, so they share one of a fixed number of read-write stripes. Readers
+ * share the read lock of their stripe, and find the bucket of a resource in
+ * a concurrent map once it is loaded. Buckets are loaded with the lock of
+ * the property manager held, after it has written its pending changes.
+ * Writers write through a {@link PropertyBatch} with the write locks of the
+ * stripes of the written resources held, taken in stripe order, and then drop
+ * the loaded buckets that may share the index files that were written, so
+ * readers and writers of other stripes are not blocked.
+ * </p><p>
+ * The store holds a bounded number of buckets, and evicts the least recently
+ * used one when a load exceeds the bound. Loaded buckets are only read, so
+ * a reader may keep using a bucket while it is evicted.
+ * </p><p>
+ * Changes made through the property manager directly are not seen by
+ * buckets that are already loaded, so all accesses to the properties of the
+ * resources read through this store should go through it.
+ * </p>
+ */
+public class StripedPropertyStore {
+	/** The default number of buckets loaded at once */
+	public static final int DEFAULT_MAX_BUCKETS = 256;
+
+	/** The default number of stripes */
+	public static final int DEFAULT_STRIPES = 16;
+
+	/**
+	 * A loaded bucket, with the time it was last used.
+	 */
+	private static class Loaded {
+		final PropertyBucket bucket;
+		volatile long used;
+
+		Loaded(PropertyBucket bucket, long used) {
+			this.bucket = bucket;
+			this.used = used;
+		}
+	}
+
+	/** The loaded buckets, by the path of the folder whose members they hold */
+	private final Map<IPath, Loaded> buckets = new ConcurrentHashMap<IPath, Loaded>();
+
+	/** Increases on every use of a bucket, to find the least recently used one */
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final IPropertyManager manager;
+	private final int maxBuckets;
+	private final ReadWriteLock[] stripes;
+	private final Workspace workspace;
+	private final PropertyBatch writer;
+
+	public StripedPropertyStore(Workspace workspace) {
+		this(workspace, DEFAULT_STRIPES);
+	}
+
+	public StripedPropertyStore(Workspace workspace, int stripeCount) {
+		this(workspace, stripeCount, DEFAULT_MAX_BUCKETS);
+	}
+
+	/**
+	 * Creates a store for the properties of the given workspace, with the
+	 * given number of stripes, that holds at most the given number of
+	 * buckets.
+	 */
+	public StripedPropertyStore(Workspace workspace, int stripeCount, int maxBuckets) {
+		Assert.isLegal(stripeCount > 0 && maxBuckets > 0);
+		this.workspace = workspace;
+		this.manager = workspace.getPropertyManager();
+		this.maxBuckets = maxBuckets;
+		this.writer = new PropertyBatch(workspace);
+		this.stripes = new ReadWriteLock[stripeCount];
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Returns the loaded bucket for the given resource path, loading it if
+	 * needed. Must be called with the read lock of the stripe of the path
+	 * held.
+	 */
+	private PropertyBucket bucketFor(IPath path) throws CoreException {
+		IPath key = keyFor(path);
+		Loaded loaded = buckets.get(key);
+		if (loaded == null) {
+			PropertyBucket bucket = new PropertyBucket();
+			synchronized (manager) {
+				//writes pending changes of the manager, so the bucket is loaded with them
+				manager.closePropertyStore(workspace.getRoot());
+				new BucketTree(workspace, bucket).loadBucketFor(path);
+			}
+			//readers of the same stripe may have loaded it meanwhile, either copy will do
+			loaded = new Loaded(bucket, clock.incrementAndGet());
+			buckets.put(key, loaded);
+			evict(key);
+		} else {
+			loaded.used = clock.incrementAndGet();
+		}
+		return loaded.bucket;
+	}
+
+	/**
+	 * Evicts the least recently used buckets until the store holds no more
+	 * buckets than its bound, keeping the bucket of the given key.
+	 */
+	private void evict(IPath kept) {
+		while (buckets.size() > maxBuckets) {
+			Map.Entry<IPath, Loaded> eldest = null;
+			for (Map.Entry<IPath, Loaded> entry : buckets.entrySet())
+				if (!entry.getKey().equals(kept) && (eldest == null || entry.getValue().used < eldest.getValue().used))
+					eldest = entry;
+			if (eldest == null)
+				return;
+			if (buckets.remove(eldest.getKey()) != null)
+				evictionCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of buckets evicted to stay within the bound of the
+	 * store.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * Returns the number of buckets currently loaded.
+	 */
+	public int getLoadedCount() {
+		return buckets.size();
+	}
+
+	/**
+	 * Returns the value of the given property of the given resource, or
+	 * <code>null</code> if it is not set.
+	 */
+	public String getProperty(IResource resource, QualifiedName name) throws CoreException {
+		PropertyBatch.checkAccessible(resource);
+		IPath path = resource.getFullPath();
+		ReadWriteLock stripe = stripes[stripeFor(keyFor(path))];
+		stripe.readLock().lock();
+		try {
+			return bucketFor(path).getProperty(path, name);
+		} finally {
+			stripe.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops the loaded buckets that may share an index file with the bucket
+	 * of the given resource path. Index files are shared by folders of the
+	 * same project at the same depth, so all of those are dropped.
+	 */
+	private void invalidate(IPath path) {
+		IPath key = keyFor(path);
+		for (Iterator<IPath> i = buckets.keySet().iterator(); i.hasNext();) {
+			IPath loaded = i.next();
+			if (loaded.segmentCount() == key.segmentCount() && (key.isRoot() || key.segment(0).equals(loaded.segment(0))))
+				i.remove();
+		}
+	}
+
+	/**
+	 * Returns the path of the folder whose bucket holds the given resource
+	 * path. A project shares the bucket of its members, and the root has a
+	 * bucket of its own.
+	 */
+	private IPath keyFor(IPath path) {
+		return path.segmentCount() <= 1 ? path : path.removeLastSegments(1);
+	}
+
+	/**
+	 * Sets the given properties of all given resources. A <code>null</code>
+	 * value deletes the property.
+	 */
+	public void setProperties(IResource[] resources, Map<QualifiedName, String> values) throws CoreException {
+		//taken in ascending order, so that writers of several stripes do not deadlock
+		SortedSet<Integer> locked = new TreeSet<Integer>();
+		for (int i = 0; i < resources.length; i++)
+			locked.add(new Integer(stripeFor(keyFor(resources[i].getFullPath()))));
+		for (Integer each : locked)
+			stripes[each.intValue()].writeLock().lock();
+		try {
+			writer.set(resources, values);
+		} finally {
+			//some buckets may have been written even if the batch failed
+			for (int i = 0; i < resources.length; i++)
+				invalidate(resources[i].getFullPath());
+			for (Integer each : locked)
+				stripes[each.intValue()].writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets the given property of the given resource. A <code>null</code>
+	 * value deletes the property.
+	 */
+	public void setProperty(IResource resource, QualifiedName name, String value) throws CoreException {
+		setProperties(new IResource[] {resource}, Collections.singletonMap(name, value));
+	}
+
+	/**
+	 * Returns the stripe of the bucket of the given key. The buckets that may
+	 * share an index file, those of the folders of a project at the same
+	 * depth, share a stripe.
+	 */
+	private int stripeFor(IPath key) {
+		int hash = key.isRoot() ? 0 : key.segment(0).hashCode() * 31 + key.segmentCount();
+		return (hash & Integer.MAX_VALUE) % stripes.length;
+	}
+}
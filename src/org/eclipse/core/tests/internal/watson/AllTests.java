@@ -35,6 +35,8 @@ public class AllTests extends TestCase {
 		suite.addTest(DeltaFlatteningTest.suite());
 		suite.addTest(ElementTreeDeltaChainTest.suite());
 		suite.addTest(ElementTreeIteratorTest.suite());
+		suite.addTest(PackedElementTreeTest.suite());
+		suite.addTest(PersistentElementTreeTest.suite());
 		suite.addTest(TreeFlatteningTest.suite());
 		return suite;
 	}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.watson;
+
+import java.util.*;
+import org.eclipse.core.internal.watson.ElementTree;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/**
+ * A read-only copy of an element tree packed into parallel arrays.
+ * <p>
+ * The nodes of an <code>ElementTree</code> are separate objects, and each
+ * holds its own name string and an array of its children. Here the elements
+ * are numbered in breadth first order, so that the children of an element
+ * are consecutive, and each element is described by its entries in a few
+ * arrays. Names are interned in a table shared by all elements, and are
+ * numbered in sorted order, so the children of an element are sorted by
+ * name number as well as by name. A lookup maps each segment of a path to
+ * its number once, and then searches the consecutive name numbers of the
+ * children, scanning small families and bisecting large ones.
+ * </p><p>
+ * A packed tree cannot be changed. It suits large trees that are read much
+ * more often than they are written, such as the complete tree of a saved
+ * workspace.
+ * </p>
+ */
+public class PackedElementTree {
+	/** Families up to this size are scanned rather than bisected */
+	private static final int SCAN_LIMIT = 8;
+
+	/** The number of the first child of each element */
+	private final int[] children;
+
+	/** The number of children of each element */
+	private final int[] counts;
+	private final Object[] data;
+
+	/** The number of the name of each element, -1 for the root */
+	private final int[] names;
+
+	/** The interned names, in sorted order */
+	private final String[] nameTable;
+
+	/** The number of each interned name */
+	private final Map<String, Integer> numbers;
+
+	private PackedElementTree(int size, String[] nameTable) {
+		this.nameTable = nameTable;
+		this.numbers = new HashMap<String, Integer>(nameTable.length * 4 / 3 + 1);
+		for (int i = 0; i < nameTable.length; i++)
+			numbers.put(nameTable[i], new Integer(i));
+		children = new int[size];
+		counts = new int[size];
+		data = new Object[size];
+		names = new int[size];
+	}
+
+	/**
+	 * Returns a packed copy of the given tree.
+	 */
+	public static PackedElementTree pack(ElementTree tree) {
+		//collect the elements in breadth first order, and their names
+		List<IPath> paths = new ArrayList<IPath>();
+		Set<String> allNames = new HashSet<String>();
+		paths.add(Path.ROOT);
+		for (int i = 0; i < paths.size(); i++) {
+			IPath[] members = tree.getChildren(paths.get(i));
+			for (int j = 0; j < members.length; j++) {
+				paths.add(members[j]);
+				allNames.add(members[j].lastSegment());
+			}
+		}
+		String[] nameTable = allNames.toArray(new String[allNames.size()]);
+		Arrays.sort(nameTable);
+		PackedElementTree result = new PackedElementTree(paths.size(), nameTable);
+		int next = 1;
+		for (int i = 0; i < paths.size(); i++) {
+			IPath path = paths.get(i);
+			result.data[i] = tree.getElementData(path);
+			result.names[i] = path.isRoot() ? -1 : result.numbers.get(path.lastSegment()).intValue();
+			//the children were added in the same order as they are visited
+			result.children[i] = next;
+			result.counts[i] = tree.getChildCount(path);
+			next += result.counts[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of the child of the given element with the given
+	 * name number, or -1 if there is none.
+	 */
+	private int findChild(int element, int name) {
+		int low = children[element];
+		int high = low + counts[element] - 1;
+		while (high - low >= SCAN_LIMIT) {
+			int middle = (low + high) >>> 1;
+			int current = names[middle];
+			if (current < name)
+				low = middle + 1;
+			else if (current > name)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		for (int i = low; i <= high; i++)
+			if (names[i] == name)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Returns the number of the element at the given path, or -1 if there is
+	 * none.
+	 */
+	private int findElement(IPath path) {
+		int element = 0;
+		for (int i = 0, segments = path.segmentCount(); i < segments && element >= 0; i++) {
+			Integer name = numbers.get(path.segment(i));
+			if (name == null)
+				return -1;
+			element = findChild(element, name.intValue());
+		}
+		return element;
+	}
+
+	/**
+	 * Returns the number of children of the element at the given path.
+	 */
+	public int getChildCount(IPath path) {
+		return counts[getElement(path)];
+	}
+
+	/**
+	 * Returns the paths of the children of the element at the given path,
+	 * sorted by name.
+	 */
+	public IPath[] getChildren(IPath path) {
+		int element = getElement(path);
+		IPath[] result = new IPath[counts[element]];
+		for (int i = 0; i < result.length; i++)
+			result[i] = path.append(nameTable[names[children[element] + i]]);
+		return result;
+	}
+
+	private int getElement(IPath path) {
+		int element = findElement(path);
+		if (element < 0)
+			throw new IllegalArgumentException("Element not found: " + path);
+		return element;
+	}
+
+	/**
+	 * Returns the data of the element at the given path.
+	 */
+	public Object getElementData(IPath path) {
+		return data[getElement(path)];
+	}
+
+	/**
+	 * Returns the number of distinct names in the tree.
+	 */
+	public int getNameCount() {
+		return nameTable.length;
+	}
+
+	/**
+	 * Returns the number of elements in the tree, including the root.
+	 */
+	public int getSize() {
+		return data.length;
+	}
+
+	/**
+	 * Returns whether there is an element at the given path.
+	 */
+	public boolean includes(IPath path) {
+		return findElement(path) >= 0;
+	}
+}
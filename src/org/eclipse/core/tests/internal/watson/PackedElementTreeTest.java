@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.watson;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.eclipse.core.internal.watson.ElementTree;
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * Tests for <code>PackedElementTree</code>.
+ */
+public class PackedElementTreeTest extends WatsonTest implements IPathConstants {
+	public PackedElementTreeTest() {
+		super(null);
+	}
+
+	public PackedElementTreeTest(String name) {
+		super(name);
+	}
+
+	public static Test suite() {
+		return new TestSuite(PackedElementTreeTest.class);
+	}
+
+	/**
+	 * Compares the given packed tree with the given element tree, from the
+	 * given path down.
+	 */
+	private void assertSameTree(String message, ElementTree expected, PackedElementTree actual, IPath path) {
+		assertTrue(message + path, actual.includes(path));
+		assertEquals(message + path, expected.getElementData(path), actual.getElementData(path));
+		IPath[] children = expected.getChildren(path);
+		IPath[] actualChildren = actual.getChildren(path);
+		assertEquals(message + path, children.length, actualChildren.length);
+		assertEquals(message + path, children.length, actual.getChildCount(path));
+		for (int i = 0; i < children.length; i++) {
+			assertEquals(message + path, children[i], actualChildren[i]);
+			assertSameTree(message, expected, actual, children[i]);
+		}
+	}
+
+	/**
+	 * Families large enough to be bisected are searched correctly.
+	 */
+	public void testLargeFamily() {
+		ElementTree tree = TestUtil.createTestElementTree();
+		IPath[] files = TestUtil.getFilePaths(folder4);
+		for (int i = 0; i < files.length; i++)
+			tree.createElement(files[i], files[i].lastSegment());
+		PackedElementTree packed = PackedElementTree.pack(tree);
+		assertSameTree("1.0", tree, packed, root);
+		//a name that is in the tree, but not in this family
+		assertTrue("2.0", !packed.includes(folder4.append("file1")));
+		//a name that is not in the tree at all
+		assertTrue("2.1", !packed.includes(folder4.append("Object.java")));
+		try {
+			packed.getElementData(folder4.append("Object.java"));
+			fail("2.2");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * A packed tree has the elements of the tree it was packed from, and
+	 * shares the names of its elements.
+	 */
+	public void testPack() {
+		ElementTree tree = TestUtil.createTestElementTree();
+		PackedElementTree packed = PackedElementTree.pack(tree);
+		assertSameTree("1.0", tree, packed, root);
+		IPath[] paths = TestUtil.getTreePaths();
+		assertEquals("2.0", paths.length + 1, packed.getSize());
+		assertEquals("2.1", paths.length, packed.getNameCount());
+
+		//names used by several elements are only stored once
+		tree = tree.newEmptyDelta();
+		tree.createElement(folder2.append("file1"), "another file1");
+		tree.createElement(folder2.append("file2"), "another file2");
+		packed = PackedElementTree.pack(tree);
+		assertSameTree("3.0", tree, packed, root);
+		assertEquals("3.1", paths.length + 3, packed.getSize());
+		assertEquals("3.2", paths.length, packed.getNameCount());
+	}
+}
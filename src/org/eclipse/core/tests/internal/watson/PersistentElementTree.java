@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.watson;
+
+import java.util.*;
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * An element tree whose layers share their structure instead of recording
+ * deltas against each other.
+ * <p>
+ * <code>ElementTree</code> starts a new delta layer for each workspace
+ * operation, and a lookup in a layer walks down the delta chain until it
+ * finds the element, so that long chains have to be collapsed by rerooting.
+ * Here each layer is a complete tree whose unchanged subtrees are shared
+ * with the layer it was created from. The children of an element are kept in
+ * a hash array mapped trie, so changing one child copies only the trie nodes
+ * on the way to it. Starting a new layer and making a layer immutable are
+ * constant time, and a lookup only depends on the depth of the element,
+ * however many layers came before.
+ * </p><p>
+ * Nodes created by a mutable layer are owned by it, and are changed in place
+ * while the layer is mutable. Nodes of immutable layers are never changed, so
+ * a layer copies a shared node the first time it changes it.
+ * </p>
+ */
+public class PersistentElementTree {
+	/** The number of hash bits used by each level of a trie */
+	private static final int BITS = 5;
+
+	/**
+	 * A node of an element tree.
+	 */
+	private static final class Element {
+		Table children;
+		Object data;
+		final Object owner;
+
+		Element(Object owner, Object data, Table children) {
+			this.owner = owner;
+			this.data = data;
+			this.children = children;
+		}
+	}
+
+	/**
+	 * A node of the trie that holds the children of an element by name. Tables
+	 * are changed in place if they are owned by the layer changing them, and
+	 * copied otherwise. An empty table is represented by <code>null</code>.
+	 */
+	private static abstract class Table {
+		final Object owner;
+
+		Table(Object owner) {
+			this.owner = owner;
+		}
+
+		abstract void collect(List<String> names);
+
+		abstract Element find(int shift, int hash, String name);
+
+		abstract Table put(Object edit, int shift, int hash, String name, Element child);
+
+		abstract Table remove(Object edit, int shift, int hash, String name);
+	}
+
+	/**
+	 * A trie node that holds up to 32 slots, one for each value of the hash
+	 * bits of its level. The array has a pair of entries for each slot: a name
+	 * and its element, or <code>null</code> and the table of the next level.
+	 */
+	private static final class BitmapTable extends Table {
+		Object[] array;
+		int bitmap;
+
+		BitmapTable(Object owner, int bitmap, Object[] array) {
+			super(owner);
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		void collect(List<String> names) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (array[i] != null)
+					names.add((String) array[i]);
+				else
+					((Table) array[i + 1]).collect(names);
+			}
+		}
+
+		private BitmapTable editable(Object edit) {
+			return owner == edit ? this : new BitmapTable(edit, bitmap, array.clone());
+		}
+
+		Element find(int shift, int hash, String name) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((bitmap & bit) == 0)
+				return null;
+			int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object key = array[index];
+			if (key == null)
+				return ((Table) array[index + 1]).find(shift + BITS, hash, name);
+			return name.equals(key) ? (Element) array[index + 1] : null;
+		}
+
+		Table put(Object edit, int shift, int hash, String name, Element child) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+			if ((bitmap & bit) == 0) {
+				Object[] newArray = new Object[array.length + 2];
+				System.arraycopy(array, 0, newArray, 0, index);
+				newArray[index] = name;
+				newArray[index + 1] = child;
+				System.arraycopy(array, index, newArray, index + 2, array.length - index);
+				if (owner == edit) {
+					bitmap |= bit;
+					array = newArray;
+					return this;
+				}
+				return new BitmapTable(edit, bitmap | bit, newArray);
+			}
+			Object key = array[index];
+			Object value = array[index + 1];
+			Object newKey;
+			Object newValue;
+			if (key == null) {
+				Table table = (Table) value;
+				Table newTable = table.put(edit, shift + BITS, hash, name, child);
+				if (newTable == table)
+					return this;
+				newKey = null;
+				newValue = newTable;
+			} else if (name.equals(key)) {
+				if (value == child)
+					return this;
+				newKey = key;
+				newValue = child;
+			} else {
+				//two names in the same slot, push both one level down
+				newKey = null;
+				newValue = pair(edit, shift + BITS, hashOf((String) key), (String) key, (Element) value, hash, name, child);
+			}
+			BitmapTable result = editable(edit);
+			result.array[index] = newKey;
+			result.array[index + 1] = newValue;
+			return result;
+		}
+
+		Table remove(Object edit, int shift, int hash, String name) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((bitmap & bit) == 0)
+				return this;
+			int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object key = array[index];
+			if (key == null) {
+				Table table = (Table) array[index + 1];
+				Table newTable = table.remove(edit, shift + BITS, hash, name);
+				if (newTable == table)
+					return this;
+				if (newTable != null) {
+					BitmapTable result = editable(edit);
+					result.array[index + 1] = newTable;
+					return result;
+				}
+			} else if (!name.equals(key))
+				return this;
+			if (bitmap == bit)
+				return null;
+			Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, index);
+			System.arraycopy(array, index + 2, newArray, index, newArray.length - index);
+			if (owner == edit) {
+				bitmap ^= bit;
+				array = newArray;
+				return this;
+			}
+			return new BitmapTable(edit, bitmap ^ bit, newArray);
+		}
+	}
+
+	/**
+	 * A trie node for names whose hashes are all equal. The array holds pairs
+	 * of a name and its element.
+	 */
+	private static final class CollisionTable extends Table {
+		final Object[] array;
+		final int hash;
+
+		CollisionTable(Object owner, int hash, Object[] array) {
+			super(owner);
+			this.hash = hash;
+			this.array = array;
+		}
+
+		void collect(List<String> names) {
+			for (int i = 0; i < array.length; i += 2)
+				names.add((String) array[i]);
+		}
+
+		Element find(int shift, int searchHash, String name) {
+			int index = indexOf(name);
+			return index < 0 ? null : (Element) array[index + 1];
+		}
+
+		private int indexOf(String name) {
+			for (int i = 0; i < array.length; i += 2)
+				if (name.equals(array[i]))
+					return i;
+			return -1;
+		}
+
+		Table put(Object edit, int shift, int newHash, String name, Element child) {
+			if (newHash != hash) {
+				//keep this table one level down, next to the new name
+				BitmapTable table = new BitmapTable(edit, 1 << ((hash >>> shift) & 31), new Object[] {null, this});
+				return table.put(edit, shift, newHash, name, child);
+			}
+			int index = indexOf(name);
+			if (index >= 0) {
+				if (array[index + 1] == child)
+					return this;
+				Object[] newArray = array.clone();
+				newArray[index + 1] = child;
+				return new CollisionTable(edit, hash, newArray);
+			}
+			Object[] newArray = new Object[array.length + 2];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = name;
+			newArray[array.length + 1] = child;
+			return new CollisionTable(edit, hash, newArray);
+		}
+
+		Table remove(Object edit, int shift, int removeHash, String name) {
+			int index = indexOf(name);
+			if (index < 0)
+				return this;
+			if (array.length == 2)
+				return null;
+			Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, index);
+			System.arraycopy(array, index + 2, newArray, index, newArray.length - index);
+			return new CollisionTable(edit, hash, newArray);
+		}
+	}
+
+	/** Identifies the nodes that this layer may change in place */
+	private Object edit = new Object();
+	private boolean immutable;
+	private final PersistentElementTree parent;
+	private Element root;
+
+	/**
+	 * Creates a new empty tree.
+	 */
+	public PersistentElementTree() {
+		this.parent = null;
+		this.root = new Element(edit, null, null);
+	}
+
+	private PersistentElementTree(PersistentElementTree parent) {
+		this.parent = parent;
+		this.root = parent.root;
+	}
+
+	private static int hashOf(String name) {
+		//spread the bits, since names often differ only in their last characters
+		int hash = name.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	private static Table pair(Object edit, int shift, int hash1, String name1, Element child1, int hash2, String name2, Element child2) {
+		if (hash1 == hash2)
+			return new CollisionTable(edit, hash1, new Object[] {name1, child1, name2, child2});
+		Table table = new BitmapTable(edit, 0, new Object[0]);
+		return table.put(edit, shift, hash1, name1, child1).put(edit, shift, hash2, name2, child2);
+	}
+
+	private void checkMutable() {
+		if (immutable)
+			throw new IllegalStateException("Tree is immutable");
+	}
+
+	/**
+	 * Creates an element with the given data at the given path. An existing
+	 * element at that path is replaced, along with its children.
+	 */
+	public void createElement(IPath path, Object data) {
+		if (path.isRoot()) {
+			setElementData(path, data);
+			return;
+		}
+		checkMutable();
+		Element element = editableParent(path);
+		element.children = put(element.children, path.lastSegment(), new Element(edit, data, null));
+	}
+
+	/**
+	 * Deletes the element at the given path, along with its children.
+	 */
+	public void deleteElement(IPath path) {
+		checkMutable();
+		if (path.isRoot())
+			throw new IllegalArgumentException("Cannot delete the root");
+		if (!includes(path))
+			throw elementNotFound(path);
+		Element element = editableParent(path);
+		String name = path.lastSegment();
+		element.children = element.children.remove(edit, 0, hashOf(name), name);
+	}
+
+	/**
+	 * Returns an element that this layer may change for the given element.
+	 */
+	private Element editable(Element element) {
+		return element.owner == edit ? element : new Element(edit, element.data, element.children);
+	}
+
+	/**
+	 * Makes the elements from the root down to the parent of the given path
+	 * owned by this layer, and returns the parent.
+	 */
+	private Element editableParent(IPath path) {
+		return editablePath(path, path.segmentCount() - 1);
+	}
+
+	private Element editablePath(IPath path, int depth) {
+		//find the elements first, so that nothing is copied for a missing path
+		Element[] elements = new Element[depth + 1];
+		elements[0] = root;
+		for (int i = 0; i < depth; i++) {
+			elements[i + 1] = find(elements[i], path.segment(i));
+			if (elements[i + 1] == null)
+				throw elementNotFound(path.uptoSegment(i + 1));
+		}
+		Element result = editable(elements[depth]);
+		Element child = result;
+		for (int i = depth; --i >= 0;) {
+			//the ancestors of an owned element are owned too
+			if (child == elements[i + 1])
+				return result;
+			Element element = editable(elements[i]);
+			element.children = put(element.children, path.segment(i), child);
+			child = element;
+		}
+		root = child;
+		return result;
+	}
+
+	private IllegalArgumentException elementNotFound(IPath path) {
+		return new IllegalArgumentException("Element not found: " + path);
+	}
+
+	private static Element find(Element element, String name) {
+		return element.children == null ? null : element.children.find(0, hashOf(name), name);
+	}
+
+	/**
+	 * Returns the element at the first segments of the given path, or
+	 * <code>null</code> if there is none.
+	 */
+	private Element find(IPath path, int depth) {
+		Element element = root;
+		for (int i = 0; element != null && i < depth; i++)
+			element = find(element, path.segment(i));
+		return element;
+	}
+
+	/**
+	 * Returns the number of children of the element at the given path.
+	 */
+	public int getChildCount(IPath path) {
+		return getNames(path).size();
+	}
+
+	/**
+	 * Returns the paths of the children of the element at the given path,
+	 * sorted by name.
+	 */
+	public IPath[] getChildren(IPath path) {
+		List<String> names = getNames(path);
+		Collections.sort(names);
+		IPath[] children = new IPath[names.size()];
+		for (int i = 0; i < children.length; i++)
+			children[i] = path.append(names.get(i));
+		return children;
+	}
+
+	/**
+	 * Returns the data of the element at the given path.
+	 */
+	public Object getElementData(IPath path) {
+		Element element = find(path, path.segmentCount());
+		if (element == null)
+			throw elementNotFound(path);
+		return element.data;
+	}
+
+	private List<String> getNames(IPath path) {
+		Element element = find(path, path.segmentCount());
+		if (element == null)
+			throw elementNotFound(path);
+		List<String> names = new ArrayList<String>();
+		if (element.children != null)
+			element.children.collect(names);
+		return names;
+	}
+
+	/**
+	 * Returns the layer this layer was created from, or <code>null</code>.
+	 */
+	public PersistentElementTree getParent() {
+		return parent;
+	}
+
+	/**
+	 * Makes this layer immutable. Its elements are shared with the layers
+	 * created from it, which copy them on the first change.
+	 */
+	public void immutable() {
+		immutable = true;
+		edit = null;
+	}
+
+	/**
+	 * Returns whether there is an element at the given path.
+	 */
+	public boolean includes(IPath path) {
+		return find(path, path.segmentCount()) != null;
+	}
+
+	public boolean isImmutable() {
+		return immutable;
+	}
+
+	/**
+	 * Replaces the subtree at the given path of a new layer by the subtree of
+	 * each of the given trees in turn, as <code>ElementTree</code> merges a
+	 * chain of deltas. Each tree in the array is replaced by the immutable
+	 * layer holding its merge, and an open layer on top of the last one is
+	 * returned. This tree is made immutable.
+	 */
+	public PersistentElementTree mergeDeltaChain(IPath path, PersistentElementTree[] trees) {
+		if (path == null || trees == null)
+			throw new IllegalArgumentException("Null path or tree chain");
+		PersistentElementTree current = this;
+		for (int i = 0; i < trees.length; i++) {
+			current = current.newEmptyDelta();
+			current.replaceSubtree(path, trees[i]);
+			current.immutable();
+			trees[i] = current;
+		}
+		return current.newEmptyDelta();
+	}
+
+	/**
+	 * Makes this layer immutable, and returns a new mutable layer with the
+	 * same elements.
+	 */
+	public PersistentElementTree newEmptyDelta() {
+		immutable();
+		return new PersistentElementTree(this);
+	}
+
+	/**
+	 * Adds the given child to the given table, or replaces the child with the
+	 * same name, and returns the resulting table.
+	 */
+	private Table put(Table children, String name, Element child) {
+		if (children == null)
+			children = new BitmapTable(edit, 0, new Object[0]);
+		return children.put(edit, 0, hashOf(name), name, child);
+	}
+
+	/**
+	 * Replaces the subtree at the given path by the subtree at the same path
+	 * of the given tree, which must be immutable. The subtree is shared, not
+	 * copied.
+	 */
+	public void replaceSubtree(IPath path, PersistentElementTree source) {
+		checkMutable();
+		if (!source.isImmutable())
+			throw new IllegalArgumentException("Source tree must be immutable");
+		Element subtree = source.find(path, path.segmentCount());
+		if (subtree == null)
+			throw elementNotFound(path);
+		if (path.isRoot()) {
+			root = subtree;
+			return;
+		}
+		Element element = editableParent(path);
+		element.children = put(element.children, path.lastSegment(), subtree);
+	}
+
+	/**
+	 * Sets the data of the element at the given path.
+	 */
+	public void setElementData(IPath path, Object data) {
+		checkMutable();
+		editablePath(path, path.segmentCount()).data = data;
+	}
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.internal.watson;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.eclipse.core.internal.watson.ElementTree;
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * Tests for <code>PersistentElementTree</code>.
+ */
+public class PersistentElementTreeTest extends WatsonTest implements IPathConstants {
+	public PersistentElementTreeTest() {
+		super(null);
+	}
+
+	public PersistentElementTreeTest(String name) {
+		super(name);
+	}
+
+	public static Test suite() {
+		return new TestSuite(PersistentElementTreeTest.class);
+	}
+
+	/**
+	 * Creates a tree with the same elements as
+	 * <code>TestUtil.createTestElementTree()</code>.
+	 */
+	private PersistentElementTree createTestTree() {
+		PersistentElementTree tree = new PersistentElementTree();
+		IPath[] paths = TestUtil.getTreePaths();
+		for (int i = 0; i < paths.length; i++)
+			tree.createElement(paths[i], paths[i].lastSegment());
+		return tree;
+	}
+
+	/**
+	 * Names whose hash codes are equal must not hide each other.
+	 */
+	public void testCollidingNames() {
+		//"Aa" and "BB" have the same hash code
+		String[] names = {"AaAa", "AaBB", "BBAa", "BBBB"};
+		PersistentElementTree tree = new PersistentElementTree();
+		tree.createElement(solution, "solution");
+		for (int i = 0; i < names.length; i++)
+			tree.createElement(solution.append(names[i]), names[i]);
+		assertEquals("1.0", names.length, tree.getChildCount(solution));
+		for (int i = 0; i < names.length; i++)
+			assertEquals("1.1." + i, names[i], tree.getElementData(solution.append(names[i])));
+		tree.deleteElement(solution.append(names[1]));
+		assertTrue("2.0", !tree.includes(solution.append(names[1])));
+		assertEquals("2.1", names[2], tree.getElementData(solution.append(names[2])));
+		assertEquals("2.2", names.length - 1, tree.getChildCount(solution));
+	}
+
+	/**
+	 * Lookups in a layer at the end of a long chain see the same elements as
+	 * an element tree after the same operations.
+	 */
+	public void testLongDeltaChain() {
+		ElementTree expected = TestUtil.createTestElementTree();
+		PersistentElementTree actual = createTestTree();
+		IPath[] files = TestUtil.getFilePaths(project2);
+		for (int i = 0; i < files.length; i++) {
+			expected = expected.newEmptyDelta();
+			actual = actual.newEmptyDelta();
+			expected.createElement(files[i], "created" + i);
+			actual.createElement(files[i], "created" + i);
+		}
+		for (int i = 0; i < files.length; i += 2) {
+			expected = expected.newEmptyDelta();
+			actual = actual.newEmptyDelta();
+			expected.setElementData(files[i], "changed" + i);
+			actual.setElementData(files[i], "changed" + i);
+		}
+		for (int i = 1; i < files.length; i += 4) {
+			expected = expected.newEmptyDelta();
+			actual = actual.newEmptyDelta();
+			expected.deleteElement(files[i]);
+			actual.deleteElement(files[i]);
+		}
+		assertEquals("1.0", expected.getChildCount(project2), actual.getChildCount(project2));
+		IPath[] children = expected.getChildren(project2);
+		IPath[] actualChildren = actual.getChildren(project2);
+		for (int i = 0; i < children.length; i++) {
+			assertEquals("2.0." + i, children[i], actualChildren[i]);
+			assertEquals("2.1." + i, expected.getElementData(children[i]), actual.getElementData(children[i]));
+		}
+		IPath[] paths = TestUtil.getTreePaths();
+		for (int i = 0; i < paths.length; i++)
+			assertEquals("3.0." + i, expected.getElementData(paths[i]), actual.getElementData(paths[i]));
+	}
+
+	/**
+	 * Merging a chain replaces the subtree with the subtree of each tree of
+	 * the chain in turn.
+	 */
+	public void testMergeDeltaChain() {
+		PersistentElementTree base = createTestTree();
+		PersistentElementTree project = createTestTree();
+		PersistentElementTree[] chain = new PersistentElementTree[3];
+		for (int i = 0; i < chain.length; i++) {
+			project = project.newEmptyDelta();
+			project.setElementData(folder1, "folder" + i);
+			project.createElement(folder1.append("new" + i), "new" + i);
+			chain[i] = project;
+		}
+		project.immutable();
+		base.setElementData(project1, "unrelated");
+		PersistentElementTree merged = base.mergeDeltaChain(project2, chain);
+		assertTrue("1.0", base.isImmutable());
+		assertTrue("1.1", !merged.isImmutable());
+		for (int i = 0; i < chain.length; i++) {
+			assertEquals("2.0." + i, "folder" + i, chain[i].getElementData(folder1));
+			assertEquals("2.1." + i, "unrelated", chain[i].getElementData(project1));
+		}
+		assertEquals("3.0", "folder2", merged.getElementData(folder1));
+		assertEquals("3.1", 3 + 3, merged.getChildCount(folder1));
+	}
+
+	/**
+	 * Immutable layers cannot be changed, and changes to later layers are
+	 * not seen by earlier ones.
+	 */
+	public void testSnapshots() {
+		PersistentElementTree first = createTestTree();
+		PersistentElementTree second = first.newEmptyDelta();
+		assertTrue("1.0", first.isImmutable());
+		assertTrue("1.1", !second.isImmutable());
+		assertEquals("1.2", first, second.getParent());
+		try {
+			first.setElementData(file1, "changed");
+			fail("1.3");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		second.setElementData(file1, "changed");
+		second.deleteElement(folder3);
+		second.createElement(project2.append("file4"), "file4");
+		assertEquals("2.0", "file1", first.getElementData(file1));
+		assertTrue("2.1", first.includes(file3));
+		assertTrue("2.2", !first.includes(project2.append("file4")));
+		assertEquals("2.3", "changed", second.getElementData(file1));
+		assertTrue("2.4", !second.includes(folder3));
+		assertTrue("2.5", !second.includes(file3));
+		assertEquals("2.6", "file4", second.getElementData(project2.append("file4")));
+		//untouched subtrees still have the same data
+		assertEquals("2.7", first.getElementData(file2), second.getElementData(file2));
+
+		try {
+			second.getElementData(file3);
+			fail("3.0");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			second.createElement(file3, "orphan");
+			fail("3.1");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -11,6 +11,7 @@
 package org.eclipse.core.tests.resources;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -20,6 +21,7 @@ import org.eclipse.core.filesystem.*;
 import org.eclipse.core.filesystem.URIUtil;
 import org.eclipse.core.resources.*;
 import org.eclipse.core.runtime.*;
+import org.eclipse.core.tests.internal.filesystem.wrapper.ParallelProjectRefresh;
 import org.eclipse.core.tests.internal.filesystem.wrapper.WrapperFileSystem;
 
 public class IWorkspaceRootTest extends ResourceTest {
@@ -394,6 +396,37 @@ public class IWorkspaceRootTest extends ResourceTest {
 		}
 	}
 
+	/**
+	 * Projects scanned in parallel and refreshed in one operation discover
+	 * the contents created outside of the workspace.
+	 */
+	public void testRefreshParallelOnWrappedFileSystem() {
+		IWorkspaceRoot root = getWorkspace().getRoot();
+		IProject[] projects = new IProject[] {root.getProject("p1"), root.getProject("p2")};
+		ensureExistsInWorkspace(projects, true);
+		for (int i = 0; i < projects.length; i++) {
+			try {
+				replaceProject(projects[i], WrapperFileSystem.getWrappedURI(projects[i].getLocationURI()));
+			} catch (CoreException e) {
+				fail("0." + i, e);
+			}
+			File folder = URIUtil.toPath(WrapperFileSystem.getBasicURI(projects[i].getLocationURI())).append("folder/sub").toFile();
+			assertTrue("1." + i, folder.mkdirs());
+			try {
+				assertTrue("1.1." + i, new File(folder, "file.txt").createNewFile());
+			} catch (IOException e) {
+				fail("1.2." + i, e);
+			}
+		}
+		try {
+			new ParallelProjectRefresh(2).refresh(projects, getMonitor());
+		} catch (CoreException e) {
+			fail("2.0", e);
+		}
+		for (int i = 0; i < projects.length; i++)
+			assertTrue("3." + i, projects[i].getFile("folder/sub/file.txt").exists());
+	}
+
 	public void testBug234343_folderInHiddenProject() {
 		IWorkspaceRoot root = getWorkspace().getRoot();
 		IProject hiddenProject = root.getProject(getUniqueString());
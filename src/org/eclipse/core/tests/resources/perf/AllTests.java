@@ -20,6 +20,7 @@ public class AllTests extends TestSuite {
 	public static Test suite() {
 		TestSuite suite = new TestSuite(AllTests.class.getName());
 		suite.addTest(BenchFileStore.suite());
+		suite.addTest(BenchBlobStore.suite());
 		suite.addTest(BenchWorkspace.suite());
 		suite.addTest(BenchMiscWorkspace.suite());
 		suite.addTest(BuilderPerformanceTest.suite());
@@ -28,6 +29,8 @@ public class AllTests extends TestSuite {
 		suite.addTest(WorkspacePerformanceTest.suite());
 		suite.addTest(PropertyManagerPerformanceTest.suite());
 		suite.addTest(FileSystemPerformanceTest.suite());
+		suite.addTest(MemoryFileSystemPerformanceTest.suite());
+		suite.addTest(FileStoreCallBudgetTest.suite());
 		// these tests are flawed - see bug 57137
 		// suite.addTest(ContentDescriptionPerformanceTest.suite());
 		return suite;
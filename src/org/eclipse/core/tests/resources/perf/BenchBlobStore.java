@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.perf;
+
+import java.io.*;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.eclipse.core.filesystem.EFS;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.tests.harness.PerformanceTestRunner;
+import org.eclipse.core.tests.internal.localstore.SegmentBlobStore;
+import org.eclipse.core.tests.resources.ResourceTest;
+
+/**
+ * Benchmarks the blob store of the local history with many small states,
+ * which is the typical load that makes one file per state expensive, and
+ * compares it with a store that appends the states to segment files.
+ */
+public class BenchBlobStore extends ResourceTest {
+	private static final int BLOB_COUNT = 1000;
+	private static final int BLOB_SIZE = 200;
+	private static final int REPEATS = 10;
+
+	UniversalUniqueIdentifier[] blobs;
+	IFileStore root;
+	IFileStore source;
+	BlobStore store;
+
+	public static Test suite() {
+		return new TestSuite(BenchBlobStore.class);
+	}
+
+	public BenchBlobStore() {
+		super();
+	}
+
+	public BenchBlobStore(String name) {
+		super(name);
+	}
+
+	void addBlobs() throws CoreException {
+		for (int i = 0; i < blobs.length; i++)
+			blobs[i] = store.addBlob(source, false);
+	}
+
+	void deleteBlobs() {
+		for (int i = 0; i < blobs.length; i++)
+			if (blobs[i] != null)
+				store.deleteBlob(blobs[i]);
+	}
+
+	void readBlobs() throws CoreException, IOException {
+		byte[] buffer = new byte[BLOB_SIZE];
+		for (int i = 0; i < blobs.length; i++) {
+			InputStream input = store.getBlob(blobs[i]);
+			try {
+				while (input.read(buffer) >= 0) {
+					//read all
+				}
+			} finally {
+				input.close();
+			}
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		root = getTempStore();
+		root.mkdir(EFS.NONE, null);
+		source = root.getChild("source");
+		OutputStream output = source.openOutputStream(EFS.NONE, null);
+		try {
+			output.write(getRandomString(BLOB_SIZE).getBytes());
+		} finally {
+			output.close();
+		}
+		IFileStore location = root.getChild("blobs");
+		location.mkdir(EFS.NONE, null);
+		store = new BlobStore(location, 256);
+		blobs = new UniversalUniqueIdentifier[BLOB_COUNT];
+	}
+
+	protected void tearDown() throws Exception {
+		if (store instanceof Closeable)
+			((Closeable) store).close();
+		super.tearDown();
+	}
+
+	/**
+	 * Replaces the blob store of the test with a segment store.
+	 */
+	void useSegments() {
+		try {
+			IFileStore location = root.getChild("segments");
+			location.mkdir(EFS.NONE, null);
+			store = new SegmentBlobStore(location);
+		} catch (CoreException e) {
+			fail("#useSegments", e);
+		}
+	}
+
+	private String getRandomString(int length) {
+		StringBuffer result = new StringBuffer(length);
+		while (result.length() < length)
+			result.append(getRandomString());
+		return result.substring(0, length);
+	}
+
+	public void testAddBlobs() {
+		new PerformanceTestRunner() {
+			protected void tearDown() {
+				deleteBlobs();
+			}
+
+			protected void test() {
+				try {
+					addBlobs();
+				} catch (CoreException e) {
+					fail("1.0", e);
+				}
+			}
+		}.run(this, REPEATS, 1);
+	}
+
+	public void testDeleteBlobs() {
+		new PerformanceTestRunner() {
+			protected void setUp() throws CoreException {
+				addBlobs();
+			}
+
+			protected void test() {
+				deleteBlobs();
+			}
+		}.run(this, REPEATS, 1);
+	}
+
+	public void testGetBlobs() {
+		try {
+			addBlobs();
+		} catch (CoreException e) {
+			fail("1.0", e);
+		}
+		new PerformanceTestRunner() {
+			protected void test() {
+				try {
+					readBlobs();
+				} catch (CoreException e) {
+					fail("2.0", e);
+				} catch (IOException e) {
+					fail("2.1", e);
+				}
+			}
+		}.run(this, REPEATS, 1);
+		deleteBlobs();
+	}
+
+	public void testAddBlobsSegments() {
+		useSegments();
+		testAddBlobs();
+	}
+
+	public void testDeleteBlobsSegments() {
+		useSegments();
+		testDeleteBlobs();
+	}
+
+	public void testGetBlobsSegments() {
+		useSegments();
+		testGetBlobs();
+	}
+}
@@ -11,6 +11,7 @@
  *******************************************************************************/
 package org.eclipse.core.tests.resources.perf;
 
+import java.util.Random;
 import java.util.Vector;
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -18,10 +19,14 @@ import org.eclipse.core.internal.watson.ElementTree;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.tests.harness.PerformanceTestRunner;
+import org.eclipse.core.tests.internal.watson.PackedElementTree;
+import org.eclipse.core.tests.internal.watson.PersistentElementTree;
 import org.eclipse.core.tests.resources.OldCorePerformanceTest;
 
 /**
- * Benchmarks for <code>ElementTree</code>.
+ * Benchmarks for <code>ElementTree</code>. Each benchmark has a twin that
+ * does the same operations on a <code>PersistentElementTree</code>, and
+ * lookups are also measured on a <code>PackedElementTree</code>.
  */
 public class BenchElementTree extends OldCorePerformanceTest {
 	static String[] javaLangUnits = {"AbstractMethodError.java", "ArithmeticException.java", "ArrayIndexOutOfBoundsException.java", "ArrayStoreException.java", "Boolean.java", //
@@ -59,6 +64,18 @@ public class BenchElementTree extends OldCorePerformanceTest {
 		}.run(this, 10, 400);
 	}
 
+	/**
+	 * Tests the performance of the createElement operation of persistent
+	 * trees.
+	 */
+	public void testCreatePersistentElement() {
+		new PerformanceTestRunner() {
+			protected void test() {
+				createPersistentTestTree(false);
+			}
+		}.run(this, 10, 400);
+	}
+
 	/**
 	 * Tests the performance of the deleteElement operation.
 	 */
@@ -81,6 +98,29 @@ public class BenchElementTree extends OldCorePerformanceTest {
 		stopBench("benchDeleteElement", repeat * files.length);
 	}
 
+	/**
+	 * Tests the performance of the deleteElement operation of persistent
+	 * trees.
+	 */
+	public void benchDeletePersistentElement() {
+		final int repeat = 400;
+
+		/* create copies of the original tree */
+		PersistentElementTree[] trees = new PersistentElementTree[repeat];
+		for (int i = 0; i < repeat; i++) {
+			trees[i] = createPersistentTestTree(false);
+		}
+
+		startBench();
+		for (int rep = repeat; --rep >= 0;) {
+			for (int i = 0, len = files.length; i < len; ++i) {
+				trees[rep].deleteElement(files[i]);
+			}
+		}
+
+		stopBench("benchDeletePersistentElement", repeat * files.length);
+	}
+
 	/**
 	 * Tests the performance of the getElementData operation.
 	 */
@@ -100,6 +140,92 @@ public class BenchElementTree extends OldCorePerformanceTest {
 		stopBench("benchGetElementData", repeat * files.length);
 	}
 
+	/**
+	 * Tests the performance of the getElementData operation of packed
+	 * trees.
+	 */
+	public void benchGetPackedElementData() {
+		final int repeat = 500;
+
+		PackedElementTree tree = PackedElementTree.pack(createTestTree(false));
+
+		startBench();
+
+		for (int rep = repeat; --rep >= 0;) {
+			for (int i = 0, len = files.length; i < len; ++i) {
+				tree.getElementData(files[i]);
+			}
+		}
+
+		stopBench("benchGetPackedElementData", repeat * files.length);
+	}
+
+	/**
+	 * Tests the performance of the getElementData operation of persistent
+	 * trees.
+	 */
+	public void benchGetPersistentElementData() {
+		final int repeat = 500;
+
+		PersistentElementTree tree = createPersistentTestTree(false);
+
+		startBench();
+
+		for (int rep = repeat; --rep >= 0;) {
+			for (int i = 0, len = files.length; i < len; ++i) {
+				tree.getElementData(files[i]);
+			}
+		}
+
+		stopBench("benchGetPersistentElementData", repeat * files.length);
+	}
+
+	/**
+	 * Measures the memory held by a tree of about a million elements, and the
+	 * time to look up random elements, before and after packing it. The
+	 * tree has 10 projects of 100 folders of 1000 files each.
+	 */
+	public void benchLargeTree() {
+		final int lookups = 1000000;
+		long before = usedMemory();
+		ElementTree tree = new ElementTree();
+		Object data = new Object();
+		tree.createElement(solution, data);
+		for (int p = 0; p < 10; p++) {
+			IPath projectPath = solution.append("project" + p);
+			tree.createElement(projectPath, data);
+			for (int f = 0; f < 100; f++) {
+				IPath folderPath = projectPath.append("folder" + f);
+				tree.createElement(folderPath, data);
+				for (int i = 0; i < 1000; i++)
+					tree.createElement(folderPath.append("file" + i + ".java"), data);
+			}
+		}
+		tree.immutable();
+		long treeMemory = usedMemory() - before;
+
+		before = usedMemory();
+		PackedElementTree packed = PackedElementTree.pack(tree);
+		long packedMemory = usedMemory() - before;
+		System.out.println("benchLargeTree: " + packed.getSize() + " elements, " + packed.getNameCount() + " names, element tree " + (treeMemory >> 10) + "KB, packed tree " + (packedMemory >> 10) + "KB"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+
+		//the same random elements for both trees
+		IPath[] paths = new IPath[lookups];
+		Random random = new Random(4711);
+		for (int i = 0; i < paths.length; i++)
+			paths[i] = solution.append("project" + random.nextInt(10)).append("folder" + random.nextInt(100)).append("file" + random.nextInt(1000) + ".java");
+
+		startBench();
+		for (int i = 0; i < paths.length; i++)
+			tree.getElementData(paths[i]);
+		stopBench("benchLargeTreeGetElementData", lookups);
+
+		startBench();
+		for (int i = 0; i < paths.length; i++)
+			packed.getElementData(paths[i]);
+		stopBench("benchLargeTreeGetPackedElementData", lookups);
+	}
+
 	/**
 	 * Tests the performance of the mergeDeltaChain operation.
 	 */
@@ -122,6 +248,46 @@ public class BenchElementTree extends OldCorePerformanceTest {
 		stopBench("benchMergeDeltaChain", repeat);
 	}
 
+	/**
+	 * Tests the performance of the mergeDeltaChain operation of persistent
+	 * trees.
+	 */
+	public void benchMergePersistentDeltaChain() {
+		final int repeat = 50;
+
+		/* create all the test trees */
+		PersistentElementTree[] bases = new PersistentElementTree[repeat];
+		PersistentElementTree[][] chains = new PersistentElementTree[repeat][];
+		for (int i = 0; i < repeat; i++) {
+			bases[i] = createPersistentTestTree(true);
+			chains[i] = buildPersistentDeltaChain(createPersistentTestTree(false));
+		}
+		startBench();
+
+		for (int i = repeat; --i >= 0;) {
+			bases[i].mergeDeltaChain(folder, chains[i]);
+		}
+
+		stopBench("benchMergePersistentDeltaChain", repeat);
+	}
+
+	/**
+	 * Tests a typical series of persistent tree operations, where
+	 * a new layer is started for each operation.
+	 */
+	public void benchPersistentRoutineOperations() {
+		final int repeat = 75;
+
+		int opCount = 0;
+		startBench();
+
+		for (int i = 0; i < repeat; i++) {
+			opCount += doPersistentRoutineOperations();
+		}
+
+		stopBench("benchPersistentRoutineOperations", opCount);
+	}
+
 	/**
 	 * Tests a typical series of ElementTree operations, where
 	 * a new delta is generated for each operation.
@@ -157,6 +323,25 @@ public class BenchElementTree extends OldCorePerformanceTest {
 		stopBench("benchSetElementData", 500 * files.length);
 	}
 
+	/**
+	 * Tests the performance of the setElementData operation of persistent
+	 * trees.
+	 */
+	public void benchSetPersistentElementData() {
+		PersistentElementTree tree = createPersistentTestTree(false);
+		Object data = new Object();
+
+		startBench();
+
+		for (int rep = 500; --rep >= 0;) {
+			for (int i = 0, len = files.length; i < len; ++i) {
+				tree.setElementData(files[i], data);
+			}
+		}
+
+		stopBench("benchSetPersistentElementData", 500 * files.length);
+	}
+
 	/**
 	 * Does several routine operations on the given tree.  
 	 * Returns an array of all the intermediary element trees.
@@ -204,6 +389,53 @@ public class BenchElementTree extends OldCorePerformanceTest {
 		return results;
 	}
 
+	/**
+	 * Does the operations of <code>buildDeltaChain</code> on the given
+	 * persistent tree. Returns an array of all the intermediary trees.
+	 */
+	private PersistentElementTree[] buildPersistentDeltaChain(PersistentElementTree tree) {
+		Vector<PersistentElementTree> trees = new Vector<PersistentElementTree>();
+		trees.addElement(tree);
+
+		int repeat = 1;
+
+		/* create file elements */
+		tree = tree.newEmptyDelta();
+		IPath[] filePaths = getFilePaths();
+		for (int i = 0; i < filePaths.length; i++) {
+			Object data = filePaths[i].toString();
+			tree.createElement(filePaths[i], data);
+
+			tree.immutable();
+			trees.addElement(tree);
+			tree = tree.newEmptyDelta();
+		}
+
+		/* modify the data of all file elements a few times */
+		for (int i = 0; i < repeat; i++) {
+			Object data = "data" + i;
+			for (int f = 0; f < filePaths.length; f++) {
+				tree.setElementData(filePaths[f], data);
+
+				tree.immutable();
+				trees.addElement(tree);
+				tree = tree.newEmptyDelta();
+			}
+		}
+
+		/* delete all file elements */
+		for (int i = 0; i < filePaths.length; i++) {
+			tree.deleteElement(filePaths[i]);
+			tree.immutable();
+			trees.addElement(tree);
+			tree = tree.newEmptyDelta();
+		}
+
+		PersistentElementTree[] results = new PersistentElementTree[trees.size()];
+		trees.copyInto(results);
+		return results;
+	}
+
 	/**
 	 * Creates a test element tree.  If withDeltas is true,
 	 * a new delta is created after each operation.
@@ -236,6 +468,64 @@ public class BenchElementTree extends OldCorePerformanceTest {
 		return tree;
 	}
 
+	/**
+	 * Creates a persistent test tree with the elements of
+	 * <code>createTestTree</code>. If withDeltas is true, a new layer is
+	 * started after each operation.
+	 */
+	PersistentElementTree createPersistentTestTree(boolean withDeltas) {
+		PersistentElementTree tree = new PersistentElementTree();
+		Object data = new Object();
+
+		tree.createElement(solution, data);
+
+		if (withDeltas) {
+			tree = tree.newEmptyDelta();
+		}
+		tree.createElement(project, data);
+		if (withDeltas) {
+			tree = tree.newEmptyDelta();
+		}
+		tree.createElement(folder, data);
+
+		for (int i = 0, len = javaLangUnits.length; i < len; ++i) {
+			if (withDeltas) {
+				tree = tree.newEmptyDelta();
+			}
+			IPath file = folder.append(javaLangUnits[i]);
+			tree.createElement(file, data);
+		}
+		return tree;
+	}
+
+	/**
+	 * Does the operations of <code>doRoutineOperations</code> on a persistent
+	 * tree. Returns the number of basic operations performed.
+	 */
+	private int doPersistentRoutineOperations() {
+		PersistentElementTree tree = createPersistentTestTree(true);
+		int repeat = 1;
+
+		/* modify the data of all file elements a few times */
+		for (int i = 0; i < repeat; i++) {
+			Object data = "data" + i;
+			for (int f = 0; f < files.length; f++) {
+				tree = tree.newEmptyDelta();
+				tree.setElementData(files[f], data);
+				tree.immutable();
+			}
+		}
+
+		/* delete all file elements */
+		for (int i = 0; i < files.length; i++) {
+			tree = tree.newEmptyDelta();
+			tree.deleteElement(files[i]);
+			tree.immutable();
+		}
+
+		return (repeat + 2) * files.length;
+	}
+
 	/**
 	 * Tests a typical series of ElementTree operations, where
 	 * a new delta is generated for each operation.
@@ -273,6 +563,16 @@ public class BenchElementTree extends OldCorePerformanceTest {
 		return jcuIDs;
 	}
 
+	/**
+	 * Returns the memory in use after collecting garbage, in bytes.
+	 */
+	private long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 20; ++i)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
 	/**
 	 * The environment should be set-up in the main method.
 	 */
@@ -285,16 +585,23 @@ public class BenchElementTree extends OldCorePerformanceTest {
 
 		suite.addTest(new BenchElementTree("benchCreateElement"));
 		suite.addTest(new BenchElementTree("benchDeleteElement"));
+		suite.addTest(new BenchElementTree("benchDeletePersistentElement"));
 		suite.addTest(new BenchElementTree("benchDeltaLargeTreeFewChanges"));
 		suite.addTest(new BenchElementTree("benchDeltaLargeTreeManyChangesInOneLayer"));
 		suite.addTest(new BenchElementTree("benchDeltaSmallTreeManyChangesInSeperateLayers"));
 		suite.addTest(new BenchElementTree("benchGetElementData"));
+		suite.addTest(new BenchElementTree("benchGetPackedElementData"));
+		suite.addTest(new BenchElementTree("benchGetPersistentElementData"));
+		suite.addTest(new BenchElementTree("benchLargeTree"));
 		//	suite.addTest(new BenchElementTree("benchMergeDeltaChain"));
+		suite.addTest(new BenchElementTree("benchMergePersistentDeltaChain"));
+		suite.addTest(new BenchElementTree("benchPersistentRoutineOperations"));
 		suite.addTest(new BenchElementTree("benchReverseDeltaLargeTreeFewChanges"));
 		suite.addTest(new BenchElementTree("benchReverseDeltaLargeTreeManyChangesInOneLayer"));
 		suite.addTest(new BenchElementTree("benchReverseDeltaSmallTreeManyChangesInSeperateLayers"));
 		suite.addTest(new BenchElementTree("benchRoutineOperations"));
 		suite.addTest(new BenchElementTree("benchSetElementData"));
+		suite.addTest(new BenchElementTree("benchSetPersistentElementData"));
 
 		return suite;
 	}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.perf;
+
+import java.io.File;
+import java.io.IOException;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.eclipse.core.filesystem.URIUtil;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.tests.internal.filesystem.wrapper.*;
+import org.eclipse.core.tests.resources.ResourceTest;
+
+/**
+ * Checks the number of file system calls made by workspace operations
+ * against a budget, using a project located in the wrapper file system.
+ */
+public class FileStoreCallBudgetTest extends ResourceTest {
+	private static final int FOLDER_COUNT = 10;
+	private static final int FILES_PER_FOLDER = 1000;
+
+	/** The prefix under which calls on the first folder are recorded separately */
+	private IPath folderPrefix;
+	private IPath projectLocation;
+	private IProject project;
+
+	public static Test suite() {
+		return new TestSuite(FileStoreCallBudgetTest.class);
+	}
+
+	public FileStoreCallBudgetTest() {
+		super();
+	}
+
+	public FileStoreCallBudgetTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Asserts that the given operation was called at most the given number of times.
+	 */
+	private void assertBudget(String message, FileStoreStatistics.Snapshot snapshot, int operation, long budget) {
+		long calls = snapshot.getCallCount(operation);
+		assertTrue(message + ": " + calls + " " + FileStoreOperation.getName(operation) + " calls exceed the budget of " + budget + " " + snapshot, calls <= budget);
+	}
+
+	/**
+	 * Asserts that the given operation was called at most the given number of
+	 * times on stores below a path prefix.
+	 */
+	private void assertBudget(String message, FileStoreStatistics.Counters counters, int operation, long budget) {
+		long calls = counters.getCallCount(operation);
+		assertTrue(message + ": " + calls + " " + FileStoreOperation.getName(operation) + " calls exceed the budget of " + budget + " " + counters, calls <= budget);
+	}
+
+	/**
+	 * Creates FOLDER_COUNT folders with FILES_PER_FOLDER files each in the project
+	 * location, directly in the local file system.
+	 */
+	private void createContentsOnDisk() throws IOException {
+		File root = projectLocation.toFile();
+		for (int i = 0; i < FOLDER_COUNT; i++) {
+			File folder = new File(root, "folder" + i);
+			folder.mkdirs();
+			for (int j = 0; j < FILES_PER_FOLDER; j++)
+				new File(folder, "file" + j + ".txt").createNewFile();
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		project = getWorkspace().getRoot().getProject(getUniqueString());
+		projectLocation = getWorkspace().getRoot().getLocation().append(project.getName());
+		IProjectDescription description = getWorkspace().newProjectDescription(project.getName());
+		description.setLocationURI(WrapperFileSystem.getWrappedURI(URIUtil.toURI(projectLocation)));
+		project.create(description, getMonitor());
+		project.open(getMonitor());
+		createContentsOnDisk();
+		project.refreshLocal(IResource.DEPTH_INFINITE, getMonitor());
+		WrapperFileSystem.getStatistics().resetAll();
+		//prefixes are matched against the path of the URI of the wrapped store
+		folderPrefix = new Path(URIUtil.toURI(projectLocation.append("folder0")).getPath());
+		WrapperFileSystem.getStatistics().addPathPrefix(folderPrefix);
+	}
+
+	protected void tearDown() throws Exception {
+		WrapperFileSystem.getStatistics().resetAll();
+		project.delete(IResource.FORCE | IResource.ALWAYS_DELETE_PROJECT_CONTENT, getMonitor());
+		super.tearDown();
+	}
+
+	/**
+	 * Refreshing an unchanged project should list each folder once, and
+	 * should not stat or read files one by one.
+	 */
+	public void testRefreshUnchangedProject() throws CoreException {
+		project.refreshLocal(IResource.DEPTH_INFINITE, getMonitor());
+		FileStoreStatistics.Snapshot snapshot = WrapperFileSystem.getStatistics().snapshot();
+		System.out.println(getName() + ": " + snapshot);
+		//one listing per folder, plus the project itself
+		long listings = snapshot.getCallCount(FileStoreOperation.CHILD_INFOS) + snapshot.getCallCount(FileStoreOperation.CHILD_NAMES);
+		assertTrue("1.0: " + listings + " folder listings " + snapshot, listings <= FOLDER_COUNT + 1);
+		assertBudget("1.1", snapshot, FileStoreOperation.FETCH_INFO, FOLDER_COUNT + 1);
+		assertBudget("1.2", snapshot, FileStoreOperation.OPEN_INPUT_STREAM, 1);
+		assertBudget("1.3", snapshot, FileStoreOperation.OPEN_OUTPUT_STREAM, 0);
+	}
+
+	/**
+	 * Copying a folder should read each file at most once.
+	 */
+	public void testFolderCopy() throws CoreException {
+		IFolder source = project.getFolder("folder0");
+		source.copy(project.getFolder("copy").getFullPath(), IResource.NONE, getMonitor());
+		FileStoreStatistics.Snapshot snapshot = WrapperFileSystem.getStatistics().snapshot();
+		System.out.println(getName() + ": " + snapshot);
+		assertBudget("1.0", snapshot, FileStoreOperation.OPEN_INPUT_STREAM, FILES_PER_FOLDER);
+		assertBudget("1.1", snapshot, FileStoreOperation.OPEN_OUTPUT_STREAM, FILES_PER_FOLDER);
+		//the source folder is only read, and all reads are from it
+		FileStoreStatistics.Counters sourceCounters = snapshot.getCounters(folderPrefix);
+		assertNotNull("1.2", sourceCounters);
+		assertEquals("1.3", snapshot.getCallCount(FileStoreOperation.OPEN_INPUT_STREAM), sourceCounters.getCallCount(FileStoreOperation.OPEN_INPUT_STREAM));
+		assertTrue("1.4", sourceCounters.getCallCount(FileStoreOperation.OPEN_INPUT_STREAM) > 0);
+		assertBudget("1.5", sourceCounters, FileStoreOperation.OPEN_OUTPUT_STREAM, 0);
+		assertBudget("1.6", sourceCounters, FileStoreOperation.FETCH_INFO, FILES_PER_FOLDER + 1);
+	}
+
+	/**
+	 * Saving the workspace only writes metadata, which is not located in the
+	 * wrapper file system.
+	 */
+	public void testSave() throws CoreException {
+		getWorkspace().save(true, getMonitor());
+		FileStoreStatistics.Snapshot snapshot = WrapperFileSystem.getStatistics().snapshot();
+		System.out.println(getName() + ": " + snapshot);
+		assertBudget("1.0", snapshot, FileStoreOperation.OPEN_OUTPUT_STREAM, 0);
+	}
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.perf;
+
+import java.io.*;
+import java.util.Arrays;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.tests.internal.localstore.*;
+import org.eclipse.core.tests.resources.ResourceTest;
+
+/**
+ * Measures storing the local history of a large file as deltas between
+ * successive states, with a full keyframe every few states. For each
+ * keyframe interval, the history store is given a {@link DeltaBlobStore},
+ * and the time to add the states, the space they take, and the latency of
+ * reading each state back through {@link IFileState#getContents()} are
+ * reported.
+ */
+public class HistoryDeltaPerformanceTest extends ResourceTest {
+	private static final int LINE_COUNT = 40000;
+	private static final int STATE_COUNT = 64;
+	private static final int[] KEYFRAME_INTERVALS = new int[] {1, 4, 16, 64};
+
+	private IWorkspaceDescription original;
+
+	// this test should not be in AllTests because it takes very long to run
+	public static Test suite() {
+		return new TestSuite(HistoryDeltaPerformanceTest.class);
+	}
+
+	public HistoryDeltaPerformanceTest() {
+		super();
+	}
+
+	public HistoryDeltaPerformanceTest(String name) {
+		super(name);
+	}
+
+	private byte[] read(IFileState state) throws CoreException, IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream input = state.getContents();
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) >= 0)
+				output.write(buffer, 0, read);
+		} finally {
+			input.close();
+		}
+		return output.toByteArray();
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		original = getWorkspace().getDescription();
+		IWorkspaceDescription description = getWorkspace().getDescription();
+		description.setMaxFileStates(STATE_COUNT + 1);
+		description.setMaxFileStateSize(16 * 1024 * 1024);
+		getWorkspace().setDescription(description);
+	}
+
+	protected void tearDown() throws Exception {
+		getWorkspace().setDescription(original);
+		super.tearDown();
+		HistoryStoreTest.wipeHistoryStore(getMonitor());
+	}
+
+	/**
+	 * Adds states of a large generated file with a small edit between
+	 * states, and reports the time to add them, their space and the time
+	 * to read them back for each keyframe interval.
+	 */
+	public void testKeyframeIntervals() throws Exception {
+		Workspace workspace = (Workspace) getWorkspace();
+		IProject project = workspace.getRoot().getProject("proj1");
+		ensureExistsInWorkspace(project, true);
+		String[] lines = new String[LINE_COUNT];
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = "\tpublic static final int CONSTANT_" + i + " = " + i + ";\n";
+		byte[][] contents = new byte[STATE_COUNT + 1][];
+		for (int i = 0; i < contents.length; i++) {
+			//edit one line per state
+			lines[(i * 7919) % lines.length] = "\tpublic static final int CHANGED_" + i + " = " + i + ";\n";
+			StringBuffer buffer = new StringBuffer();
+			for (int j = 0; j < lines.length; j++)
+				buffer.append(lines[j]);
+			contents[i] = buffer.toString().getBytes("UTF-8");
+		}
+		long fullSize = 0;
+		for (int i = 0; i < STATE_COUNT; i++)
+			fullSize += contents[i].length;
+
+		for (int k = 0; k < KEYFRAME_INTERVALS.length; k++) {
+			int interval = KEYFRAME_INTERVALS[k];
+			HistoryStoreTest.wipeHistoryStore(getMonitor());
+			DeltaBlobStore store = new DeltaBlobStore(HistoryStoreBackend.newLocation(workspace, "deltas"), interval);
+			BlobStore originalStore = HistoryStoreBackend.install(workspace, store);
+			try {
+				IFile file = project.getFile("Generated" + interval + ".java");
+				file.create(new ByteArrayInputStream(contents[0]), IResource.NONE, getMonitor());
+				long start = System.currentTimeMillis();
+				for (int i = 1; i < contents.length; i++)
+					file.setContents(new ByteArrayInputStream(contents[i]), IResource.KEEP_HISTORY, getMonitor());
+				long addTime = System.currentTimeMillis() - start;
+
+				//the history is ordered from newest to oldest
+				IFileState[] history = file.getHistory(getMonitor());
+				assertEquals("1." + interval, STATE_COUNT, history.length);
+				start = System.currentTimeMillis();
+				for (int i = 0; i < history.length; i++) {
+					byte[] state = read(history[history.length - 1 - i]);
+					assertTrue("2." + interval + "." + i, Arrays.equals(contents[i], state));
+				}
+				long readTime = System.currentTimeMillis() - start;
+				long size = store.getSize();
+				System.out.println("Keyframe interval " + interval + ": " + store.getDeltaCount() + " deltas, " + size + " bytes (" + (size * 100 / fullSize) + "% of full states), " + (addTime * 1000 / STATE_COUNT) + " microseconds per addState, " + (readTime * 1000 / STATE_COUNT) + " microseconds per getContents");
+			} finally {
+				HistoryStoreTest.wipeHistoryStore(getMonitor());
+				HistoryStoreBackend.install(workspace, originalStore);
+			}
+		}
+	}
+}
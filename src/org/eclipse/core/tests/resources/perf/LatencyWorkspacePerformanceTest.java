@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.perf;
+
+import java.net.URI;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.eclipse.core.filesystem.URIUtil;
+import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.tests.internal.filesystem.wrapper.*;
+
+/**
+ * Runs the {@link WorkspacePerformanceTest} benchmarks on a project located in
+ * a slow file system, simulated with {@link LatencyFileStore}. The number of
+ * calls of each file store operation is printed after each test.
+ */
+public class LatencyWorkspacePerformanceTest extends WorkspacePerformanceTest {
+	/** Latency of each file store call in milliseconds */
+	private static final long LATENCY = 1;
+
+	/** Maximum additional latency of each file store call in milliseconds */
+	private static final long JITTER = 1;
+
+	/** Stream bandwidth in bytes per second */
+	private static final long BANDWIDTH = 10 * 1024 * 1024;
+
+	private static final long SEED = 4711;
+
+	/** Number of threads listing directories during a prefetching refresh */
+	private static final int PREFETCH_THREADS = 8;
+
+	// this test should not be in AllTests because it takes very long to run
+	public static Test suite() {
+		return new TestSuite(LatencyWorkspacePerformanceTest.class);
+	}
+
+	public LatencyWorkspacePerformanceTest() {
+		super();
+	}
+
+	public LatencyWorkspacePerformanceTest(String name) {
+		super(name);
+	}
+
+	protected void createProject(IProgressMonitor monitor) throws CoreException {
+		IProjectDescription description = getWorkspace().newProjectDescription(testProject.getName());
+		URI location = URIUtil.toURI(getWorkspace().getRoot().getLocation().append(testProject.getName()));
+		description.setLocationURI(WrapperFileSystem.getWrappedURI(location));
+		testProject.create(description, monitor);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		LatencyProfile profile = new LatencyProfile(SEED);
+		profile.setLatency(LATENCY, JITTER);
+		profile.setBandwidth(BANDWIDTH);
+		LatencyFileStore.setProfile(profile);
+		WrapperFileSystem.setCustomFileStore(LatencyFileStore.class);
+		WrapperFileSystem.getStatistics().reset();
+	}
+
+	protected void tearDown() throws Exception {
+		System.out.println(getName() + ": " + WrapperFileSystem.getStatistics().snapshot());
+		WrapperFileSystem.setCustomFileStore(null);
+		WrapperFileSystem.setPrefetchThreads(0);
+		LatencyFileStore.setProfile(null);
+		super.tearDown();
+	}
+
+	/**
+	 * Overridden to avoid reporting the global "Refresh Project" fingerprint
+	 * for a refresh on the slow file system.
+	 */
+	public void testRefreshProject() {
+		createRefreshProjectRunner().run(this, REPEATS, 1);
+	}
+
+	/**
+	 * Benchmarks refreshing the project when the file system prefetches
+	 * the whole tree in parallel.
+	 */
+	public void testRefreshProjectPrefetch() {
+		WrapperFileSystem.setPrefetchThreads(PREFETCH_THREADS);
+		createRefreshProjectRunner().run(this, REPEATS, 1);
+	}
+}
@@ -10,15 +10,18 @@
  *******************************************************************************/
 package org.eclipse.core.tests.resources.perf;
 
+import java.io.*;
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.localstore.HistoryBucket;
 import org.eclipse.core.internal.localstore.IHistoryStore;
 import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
 import org.eclipse.core.resources.*;
-import org.eclipse.core.runtime.CoreException;
-import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.*;
 import org.eclipse.core.tests.harness.PerformanceTestRunner;
-import org.eclipse.core.tests.internal.localstore.HistoryStoreTest;
+import org.eclipse.core.tests.internal.localstore.*;
 import org.eclipse.core.tests.resources.ResourceTest;
 
 /**
@@ -28,6 +31,8 @@ import org.eclipse.core.tests.resources.ResourceTest;
  */
 public class LocalHistoryPerformanceTest extends ResourceTest {
 
+	/** The blob store of the history store before the test installed another one */
+	private BlobStore originalBlobStore;
 	private IWorkspaceDescription original;
 
 	public static Test suite() {
@@ -79,6 +84,121 @@ public class LocalHistoryPerformanceTest extends ResourceTest {
 		}
 	}
 
+	/**
+	 * Saves a history bucket with the given number of states for the given
+	 * file and a single state for each of its siblings, and converts it to
+	 * the compact format at the given location.
+	 */
+	private void createHistoryBucket(IPath path, int states, File location, File compact) {
+		HistoryBucket bucket = new HistoryBucket();
+		try {
+			bucket.load(path.segment(0), location);
+			long timestamp = System.currentTimeMillis();
+			for (int i = 0; i < states; i++)
+				bucket.addBlob(path, new UniversalUniqueIdentifier(), timestamp - i * 1000);
+			for (int i = 0; i < 200; i++)
+				bucket.addBlob(path.removeLastSegments(1).append("sibling" + i + ".txt"), new UniversalUniqueIdentifier(), timestamp);
+			bucket.save();
+			CompactBucketFile.write(bucket, compact, CompactBucketFile.HISTORY_CODEC);
+		} catch (CoreException e) {
+			fail("#createHistoryBucket", e);
+		} catch (IOException e) {
+			fail("#createHistoryBucket", e);
+		}
+	}
+
+	/**
+	 * Adds the given number of states to a file, and prints the addState
+	 * throughput and the resulting disk usage of the history store. The
+	 * distinct size is what a store keeping each content only once would use.
+	 */
+	private void measureDiskUsage(String scenario, int states, boolean duplicateContents) {
+		setMaxFileStates("0.1", states);
+		HistoryStoreTest.wipeHistoryStore(getMonitor());
+		IFile file = getWorkspace().getRoot().getProject("proj1").getFile("file.txt");
+		ensureExistsInWorkspace(file, getRandomContents());
+		String contents = getRandomString();
+		long start = System.currentTimeMillis();
+		try {
+			for (int i = 0; i < states; i++) {
+				InputStream input = duplicateContents ? getContents(contents) : getRandomContents();
+				file.setContents(input, IResource.KEEP_HISTORY, getMonitor());
+			}
+		} catch (CoreException e) {
+			fail("1.0", e);
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		HistoryStoreUsage usage = null;
+		try {
+			usage = HistoryStoreUsage.compute();
+		} catch (IOException e) {
+			fail("2.0", e);
+		}
+		System.out.println(scenario + ": " + states + " states in " + elapsed + "ms (" + (states * 1000L / elapsed) + " states/s), " + usage);
+	}
+
+	/**
+	 * Prints the disk usage of the history store for the current test.
+	 */
+	void printDiskUsage() {
+		try {
+			System.out.println(getName() + ": " + HistoryStoreUsage.compute());
+		} catch (IOException e) {
+			fail("#printDiskUsage", e);
+		}
+	}
+
+	/**
+	 * Makes the history store use a content addressed blob store until the
+	 * end of the test.
+	 */
+	void useContentAddressedBlobStore() {
+		try {
+			useBlobStore(new ContentAddressedBlobStore(HistoryStoreBackend.newLocation((Workspace) getWorkspace(), "contents")));
+		} catch (CoreException e) {
+			fail("#useContentAddressedBlobStore", e);
+		}
+	}
+
+	/**
+	 * Makes the history store stage new states until the end of the test,
+	 * and returns the staging store, which writes the staged states when the
+	 * workspace is saved.
+	 */
+	StagingBlobStore useStagingBlobStore() {
+		StagingBlobStore store = null;
+		try {
+			store = new StagingBlobStore((Workspace) getWorkspace(), PI_RESOURCES_TESTS, 100);
+		} catch (CoreException e) {
+			fail("#useStagingBlobStore", e);
+		}
+		useBlobStore(store);
+		return store;
+	}
+
+	/**
+	 * Makes the history store use a segment blob store until the end of the
+	 * test.
+	 */
+	void useSegmentBlobStore() {
+		try {
+			useBlobStore(new SegmentBlobStore(HistoryStoreBackend.newLocation((Workspace) getWorkspace(), "segments")));
+		} catch (CoreException e) {
+			fail("#useSegmentBlobStore", e);
+		}
+	}
+
+	/**
+	 * Makes the history store use the given blob store until the end of the
+	 * test. The history is wiped first.
+	 */
+	void useBlobStore(BlobStore blobStore) {
+		HistoryStoreTest.wipeHistoryStore(getMonitor());
+		BlobStore previous = HistoryStoreBackend.install((Workspace) getWorkspace(), blobStore);
+		if (originalBlobStore == null)
+			originalBlobStore = previous;
+	}
+
 	private IWorkspaceDescription setMaxFileStates(String failureMessage, int maxFileStates) {
 		IWorkspaceDescription currentDescription = getWorkspace().getDescription();
 		IWorkspaceDescription testDescription = getWorkspace().getDescription();
@@ -100,6 +220,12 @@ public class LocalHistoryPerformanceTest extends ResourceTest {
 		getWorkspace().setDescription(original);
 		super.tearDown();
 		HistoryStoreTest.wipeHistoryStore(getMonitor());
+		if (originalBlobStore != null) {
+			BlobStore installed = HistoryStoreBackend.install((Workspace) getWorkspace(), originalBlobStore);
+			originalBlobStore = null;
+			if (installed instanceof Closeable)
+				((Closeable) installed).close();
+		}
 	}
 
 	public void testAddState() {
@@ -130,6 +256,83 @@ public class LocalHistoryPerformanceTest extends ResourceTest {
 		}.run(LocalHistoryPerformanceTest.this, 10, 30);
 	}
 
+	public void testDiskUsageDuplicateContents() {
+		measureDiskUsage(getName(), 1000, true);
+	}
+
+	public void testDiskUsageRandomContents() {
+		measureDiskUsage(getName(), 1000, false);
+	}
+
+	public void testDiskUsageDuplicateContentsAddressed() {
+		useContentAddressedBlobStore();
+		measureDiskUsage(getName(), 1000, true);
+	}
+
+	public void testDiskUsageRandomContentsAddressed() {
+		useContentAddressedBlobStore();
+		measureDiskUsage(getName(), 1000, false);
+	}
+
+	/**
+	 * Adds many states within one workspace operation, which is where
+	 * batching the history writes would pay off.
+	 */
+	public void testAddStateBatch() {
+		addStateBatch(null);
+	}
+
+	/**
+	 * Adds the states of {@link #testAddStateBatch()} with a store that
+	 * writes them in batches. The measured time includes writing the last
+	 * batch.
+	 */
+	public void testAddStateBatchStaged() {
+		StagingBlobStore store = useStagingBlobStore();
+		addStateBatch(store);
+		System.out.println("Written in " + store.getBatchCount() + " batches");
+	}
+
+	private void addStateBatch(final StagingBlobStore staging) {
+		setMaxFileStates("0.01", 100);
+		final IFile file = getWorkspace().getRoot().getProject("proj1").getFile("file.txt");
+		new PerformanceTestRunner() {
+
+			protected void setUp() {
+				ensureExistsInWorkspace(file, getRandomContents());
+			}
+
+			protected void tearDown() {
+				try {
+					file.clearHistory(getMonitor());
+					file.delete(IResource.FORCE, getMonitor());
+				} catch (CoreException e) {
+					fail("1.0", e);
+				}
+			}
+
+			protected void test() {
+				try {
+					getWorkspace().run(new IWorkspaceRunnable() {
+						public void run(IProgressMonitor monitor) throws CoreException {
+							for (int i = 0; i < 30; i++)
+								file.setContents(getRandomContents(), IResource.KEEP_HISTORY, getMonitor());
+						}
+					}, getMonitor());
+					if (staging != null)
+						staging.flush();
+				} catch (CoreException e) {
+					fail("", e);
+				}
+			}
+		}.run(LocalHistoryPerformanceTest.this, 10, 1);
+	}
+
+	public void testAddStateContentAddressed() {
+		useContentAddressedBlobStore();
+		testAddState();
+	}
+
 	public void testBug28603() {
 		final IProject project = getWorkspace().getRoot().getProject("myproject");
 		final IFolder folder1 = project.getFolder("myfolder1");
@@ -190,6 +393,7 @@ public class LocalHistoryPerformanceTest extends ResourceTest {
 				// create our own garbage				
 				createTree(base, filesPerFolder, statesPerFile);
 				ensureDoesNotExistInWorkspace(base);
+				printDiskUsage();
 			}
 
 			protected void tearDown() throws CoreException {
@@ -219,10 +423,26 @@ public class LocalHistoryPerformanceTest extends ResourceTest {
 		testClearHistory(4, 100);
 	}
 
+	public void testClearHistory100x4Segments() {
+		useSegmentBlobStore();
+		testClearHistory(100, 4);
+	}
+
+	public void testClearHistory20x20Segments() {
+		useSegmentBlobStore();
+		testClearHistory(20, 20);
+	}
+
+	public void testClearHistory4x100Segments() {
+		useSegmentBlobStore();
+		testClearHistory(4, 100);
+	}
+
 	private void testCopyHistory(int filesPerFolder, int statesPerFile) {
 		IProject project = getWorkspace().getRoot().getProject("proj1");
 		IFolder base = project.getFolder("base");
 		createTree(base, filesPerFolder, statesPerFile);
+		printDiskUsage();
 		// need a final reference so the inner class can see it
 		final IProject[] tmpProject = new IProject[] {project};
 		new PerformanceTestRunner() {
@@ -251,10 +471,26 @@ public class LocalHistoryPerformanceTest extends ResourceTest {
 		testCopyHistory(4, 100);
 	}
 
+	public void testCopyHistory100x4Segments() {
+		useSegmentBlobStore();
+		testCopyHistory(100, 4);
+	}
+
+	public void testCopyHistory20x20Segments() {
+		useSegmentBlobStore();
+		testCopyHistory(20, 20);
+	}
+
+	public void testCopyHistory4x100Segments() {
+		useSegmentBlobStore();
+		testCopyHistory(4, 100);
+	}
+
 	private void testGetDeletedMembers(int filesPerFolder, int statesPerFile) {
 		IProject project = getWorkspace().getRoot().getProject("proj1");
 		IFolder base = project.getFolder("base");
 		createTree(base, filesPerFolder, statesPerFile);
+		printDiskUsage();
 		ensureDoesNotExistInWorkspace(base);
 		// need a final reference so the inner class can see it
 		final IProject tmpProject = project;
@@ -281,6 +517,21 @@ public class LocalHistoryPerformanceTest extends ResourceTest {
 		testGetDeletedMembers(4, 100);
 	}
 
+	public void testGetDeletedMembers100x4Segments() {
+		useSegmentBlobStore();
+		testGetDeletedMembers(100, 4);
+	}
+
+	public void testGetDeletedMembers20x20Segments() {
+		useSegmentBlobStore();
+		testGetDeletedMembers(20, 20);
+	}
+
+	public void testGetDeletedMembers4x100Segments() {
+		useSegmentBlobStore();
+		testGetDeletedMembers(4, 100);
+	}
+
 	public void testGetHistory() {
 		IProject project = getWorkspace().getRoot().getProject("proj1");
 		final IFile file = project.getFile("file.txt");
@@ -302,6 +553,65 @@ public class LocalHistoryPerformanceTest extends ResourceTest {
 		}.run(this, 1, 150);
 	}
 
+	/**
+	 * Reads all states of a file with hundreds of states by loading its
+	 * history bucket, which is what getHistory does today.
+	 */
+	public void testGetHistoryFromBucket() {
+		final IPath path = new Path("/proj1/folder/file.txt");
+		IPath baseLocation = getRandomLocation();
+		final File location = baseLocation.append("bucket").toFile();
+		createHistoryBucket(path, 500, location, baseLocation.append("compact").toFile());
+		final HistoryBucket bucket = new HistoryBucket();
+		try {
+			new PerformanceTestRunner() {
+				protected void test() {
+					try {
+						bucket.load(path.segment(0), location, true);
+					} catch (CoreException e) {
+						fail("1.0", e);
+					}
+					HistoryBucket.HistoryEntry entry = bucket.getEntry(path);
+					long newest = 0;
+					for (int i = 0; i < entry.getOccurrences(); i++)
+						newest = Math.max(newest, entry.getTimestamp(i));
+					assertTrue("1.1", newest > 0);
+				}
+			}.run(this, 10, 100);
+		} finally {
+			ensureDoesNotExistInFileSystem(baseLocation.toFile());
+		}
+	}
+
+	/**
+	 * Reads all states of a file with hundreds of states through a memory
+	 * mapped view of its compact history bucket, without allocating per state.
+	 */
+	public void testGetHistoryMapped() {
+		final IPath path = new Path("/proj1/folder/file.txt");
+		IPath baseLocation = getRandomLocation();
+		final File compact = baseLocation.append("compact").toFile();
+		createHistoryBucket(path, 500, baseLocation.append("bucket").toFile(), compact);
+		final MappedBucketReader.HistoryCursor cursor = new MappedBucketReader.HistoryCursor();
+		try {
+			new PerformanceTestRunner() {
+				protected void test() {
+					try {
+						assertTrue("1.0", MappedBucketReader.open(compact).find(path.toString(), cursor));
+					} catch (IOException e) {
+						fail("1.1", e);
+					}
+					long newest = 0;
+					while (cursor.next())
+						newest = Math.max(newest, cursor.getTimestamp());
+					assertTrue("1.2", newest > 0);
+				}
+			}.run(this, 10, 100);
+		} finally {
+			ensureDoesNotExistInFileSystem(baseLocation.toFile());
+		}
+	}
+
 	private void testHistoryCleanUp(final int filesPerFolder, final int statesPerFile) {
 		IProject project = getWorkspace().getRoot().getProject("proj1");
 		final IFolder base = project.getFolder("base");
@@ -337,4 +647,46 @@ public class LocalHistoryPerformanceTest extends ResourceTest {
 	public void testHistoryCleanUp20x20() {
 		testHistoryCleanUp(20, 20);
 	}
+
+	/**
+	 * Removes the expired history of deleted files with the incremental
+	 * cleaner, and prints the longest pause it caused next to the total time.
+	 */
+	public void testHistoryCleanUpIncremental100x4() {
+		IProject project = getWorkspace().getRoot().getProject("proj1");
+		final IFolder base = project.getFolder("base");
+		ensureDoesNotExistInWorkspace(base);
+		new PerformanceTestRunner() {
+			private IncrementalHistoryCleaner cleaner;
+			private IWorkspaceDescription original;
+
+			protected void setUp() throws CoreException {
+				// make sure we start with no garbage
+				cleanHistory();
+				// create our own garbage
+				createTree(base, 100, 4);
+				ensureDoesNotExistInWorkspace(base);
+				original = getWorkspace().getDescription();
+				IWorkspaceDescription description = getWorkspace().getDescription();
+				description.setFileStateLongevity(1);
+				getWorkspace().setDescription(description);
+				cleaner = new IncrementalHistoryCleaner((Workspace) getWorkspace());
+			}
+
+			protected void tearDown() throws CoreException {
+				System.out.println(cleaner.getSliceCount() + " slices, longest " + cleaner.getLongestSlice() + "ms, " + cleaner.getRemovedCount() + " states (" + cleaner.getRemovedSize() + " bytes) removed");
+				if (original != null)
+					getWorkspace().setDescription(original);
+			}
+
+			protected void test() {
+				try {
+					while (!cleaner.isDone(System.currentTimeMillis()))
+						cleaner.runSlice(getMonitor());
+				} catch (CoreException e) {
+					fail("1.0", e);
+				}
+			}
+		}.run(this, 5, 1);
+	}
 }
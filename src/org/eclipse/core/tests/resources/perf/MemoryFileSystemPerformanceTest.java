@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.perf;
+
+import java.io.*;
+import java.net.URI;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.eclipse.core.filesystem.EFS;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.tests.harness.PerformanceTestRunner;
+import org.eclipse.core.tests.internal.filesystem.ram.MemoryTree;
+import org.eclipse.core.tests.resources.ResourceTest;
+
+/**
+ * Benchmarks operations on the in-memory file system (scheme "mem").
+ */
+public class MemoryFileSystemPerformanceTest extends ResourceTest {
+	/** Number of files in the wide folder */
+	private static final int WIDE_FOLDER_SIZE = 50000;
+
+	/** Number of lookups performed in one test iteration */
+	private static final int LOOKUPS = 10000;
+
+	private static final int READER_THREADS = 4;
+
+	/** Number of appends to the log file in one test iteration */
+	private static final int APPENDS = 5000;
+
+	/** Size of one appended record */
+	private static final int RECORD_SIZE = 1024;
+
+	private static final int REPEATS = 10;
+
+	protected IFileStore baseStore;
+
+	private final Random random = new Random();
+
+	public static Test suite() {
+		return new TestSuite(MemoryFileSystemPerformanceTest.class);
+	}
+
+	public MemoryFileSystemPerformanceTest() {
+		super();
+	}
+
+	public MemoryFileSystemPerformanceTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Creates a single folder containing the given number of empty files,
+	 * named "f0" through "f&lt;count-1&gt;".
+	 */
+	protected void createWideFolder(IFileStore folder, int count) throws CoreException {
+		folder.mkdir(EFS.NONE, null);
+		for (int i = 0; i < count; i++) {
+			try {
+				folder.getChild("f" + i).openOutputStream(EFS.NONE, null).close();
+			} catch (IOException e) {
+				fail("Failed to create file in createWideFolder", e);
+			}
+		}
+	}
+
+	/**
+	 * Fetches the info of random children of the given folder.
+	 */
+	void lookupRandomChildren(IFileStore folder, int count, Random rnd) {
+		for (int i = 0; i < count; i++) {
+			IFileStore child = folder.getChild("f" + rnd.nextInt(WIDE_FOLDER_SIZE));
+			if (!child.fetchInfo().exists())
+				fail("Missing child: " + child);
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		MemoryTree.TREE.deleteAll();
+		baseStore = EFS.getStore(URI.create("mem:/perf"));
+		baseStore.mkdir(EFS.NONE, null);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		baseStore.delete(EFS.NONE, null);
+		MemoryTree.TREE.deleteAll();
+		MemoryTree.TREE.setUseDirectBuffers(false);
+	}
+
+	/**
+	 * Appends records to a file that keeps growing, then reads it back.
+	 */
+	void appendAndRead(IFileStore file, byte[] record) throws CoreException, IOException {
+		for (int i = 0; i < APPENDS; i++) {
+			OutputStream out = file.openOutputStream(EFS.APPEND, null);
+			out.write(record);
+			out.close();
+		}
+		InputStream in = file.openInputStream(EFS.NONE, null);
+		byte[] buffer = new byte[8192];
+		long total = 0;
+		for (int read; (read = in.read(buffer)) > 0;)
+			total += read;
+		in.close();
+		assertEquals("1.0", (long) APPENDS * record.length, total);
+		assertEquals("1.1", total, file.fetchInfo().getLength());
+		file.delete(EFS.NONE, null);
+	}
+
+	private void runAppendTest(String fingerprint) {
+		final IFileStore file = baseStore.getChild("log.txt");
+		final byte[] record = new byte[RECORD_SIZE];
+		random.nextBytes(record);
+		PerformanceTestRunner runner = new PerformanceTestRunner() {
+			protected void test() {
+				try {
+					appendAndRead(file, record);
+				} catch (CoreException e) {
+					fail("Failed to append during performance test", e);
+				} catch (IOException e) {
+					fail("Failed to append during performance test", e);
+				}
+			}
+		};
+		runner.setFingerprintName(fingerprint);
+		runner.run(this, REPEATS, 1);
+	}
+
+	/**
+	 * Benchmarks repeatedly appending to a growing in-memory file.
+	 */
+	public void testAppend() {
+		runAppendTest("Append " + APPENDS + " records to in-memory file");
+	}
+
+	/**
+	 * Benchmarks repeatedly appending to a growing in-memory file whose
+	 * contents are stored outside of the Java heap.
+	 */
+	public void testAppendDirectBuffers() {
+		MemoryTree.TREE.setUseDirectBuffers(true);
+		runAppendTest("Append " + APPENDS + " records to off-heap in-memory file");
+	}
+
+	/**
+	 * Benchmarks looking up children of a folder with many siblings.
+	 */
+	public void testFetchInfoWideFolder() throws CoreException {
+		final IFileStore folder = baseStore.getChild("wide");
+		createWideFolder(folder, WIDE_FOLDER_SIZE);
+		PerformanceTestRunner runner = new PerformanceTestRunner() {
+			protected void test() {
+				lookupRandomChildren(folder, LOOKUPS, random);
+			}
+		};
+		runner.setFingerprintName("Fetch info in memory folder with " + WIDE_FOLDER_SIZE + " children");
+		runner.run(this, REPEATS, 1);
+	}
+
+	/**
+	 * Benchmarks several threads looking up children of the same folder at once.
+	 * Readers should not block each other.
+	 */
+	public void testConcurrentFetchInfo() throws CoreException {
+		final IFileStore folder = baseStore.getChild("wide");
+		createWideFolder(folder, WIDE_FOLDER_SIZE);
+		new PerformanceTestRunner() {
+			protected void test() {
+				Thread[] readers = new Thread[READER_THREADS];
+				//failures in the readers would otherwise only end their own thread
+				final Throwable[] failure = new Throwable[1];
+				for (int i = 0; i < readers.length; i++) {
+					final Random rnd = new Random(i);
+					readers[i] = new Thread("MemoryTree reader " + i) {
+						public void run() {
+							try {
+								lookupRandomChildren(folder, LOOKUPS, rnd);
+							} catch (Throwable e) {
+								synchronized (failure) {
+									if (failure[0] == null)
+										failure[0] = e;
+								}
+							}
+						}
+					};
+					readers[i].start();
+				}
+				for (int i = 0; i < readers.length; i++) {
+					try {
+						readers[i].join();
+					} catch (InterruptedException e) {
+						fail("Interrupted while waiting for readers", e);
+					}
+				}
+				synchronized (failure) {
+					if (failure[0] instanceof Error)
+						throw (Error) failure[0];
+					if (failure[0] instanceof RuntimeException)
+						throw (RuntimeException) failure[0];
+					if (failure[0] != null)
+						fail("Reader failed", failure[0]);
+				}
+			}
+		}.run(this, REPEATS, 1);
+	}
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.perf;
+
+import java.io.File;
+import java.io.IOException;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.eclipse.core.filesystem.URIUtil;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.tests.harness.PerformanceTestRunner;
+import org.eclipse.core.tests.internal.filesystem.wrapper.ParallelProjectRefresh;
+import org.eclipse.core.tests.internal.filesystem.wrapper.WrapperFileSystem;
+import org.eclipse.core.tests.resources.ResourceTest;
+
+/**
+ * Benchmarks refreshing a workspace with several projects whose contents
+ * have not been discovered yet, either by refreshing the workspace root or
+ * by scanning the projects in parallel with an increasing number of threads
+ * and applying the results in one operation. The projects are on the
+ * wrapper file system in both cases.
+ */
+public class MultiProjectRefreshPerformanceTest extends ResourceTest {
+	private static final int PROJECT_COUNT = 8;
+	private static final int FOLDERS_PER_PROJECT = 10;
+	private static final int SUBFOLDERS_PER_FOLDER = 10;
+	private static final int FILES_PER_FOLDER = 50;
+	private static final int REPEATS = 5;
+
+	IProjectDescription[] descriptions;
+	IProject[] projects;
+
+	// this test should not be in AllTests because it takes very long to run
+	public static Test suite() {
+		return new TestSuite(MultiProjectRefreshPerformanceTest.class);
+	}
+
+	public MultiProjectRefreshPerformanceTest() {
+		super();
+	}
+
+	public MultiProjectRefreshPerformanceTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Creates the contents of the given project directly in the local file
+	 * system, so that the workspace does not know about them, and returns
+	 * the location of the project.
+	 */
+	private File createContentsOnDisk(IProject project) throws IOException {
+		File root = getWorkspace().getRoot().getLocation().append("contents").append(project.getName()).toFile();
+		for (int i = 0; i < FOLDERS_PER_PROJECT; i++) {
+			for (int j = 0; j < SUBFOLDERS_PER_FOLDER; j++) {
+				File folder = new File(root, "folder" + i + File.separator + "sub" + j);
+				folder.mkdirs();
+				for (int k = 0; k < FILES_PER_FOLDER; k++)
+					new File(folder, "file" + k + ".txt").createNewFile();
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Deletes all test projects without deleting their contents, and recreates
+	 * them without discovering the contents.
+	 */
+	void recreateProjects() throws CoreException {
+		for (int i = 0; i < projects.length; i++) {
+			projects[i].delete(IResource.NEVER_DELETE_PROJECT_CONTENT, null);
+			projects[i].create(descriptions[i], null);
+			projects[i].open(IResource.NONE, null);
+		}
+	}
+
+	/**
+	 * Runs the refresh benchmark with the given number of threads, or
+	 * refreshes the workspace root without scanning ahead if the number of
+	 * threads is 0.
+	 */
+	private void runRefresh(final int threads) {
+		new PerformanceTestRunner() {
+			protected void setUp() throws CoreException {
+				recreateProjects();
+				waitForRefresh();
+			}
+
+			protected void test() {
+				try {
+					if (threads == 0)
+						getWorkspace().getRoot().refreshLocal(IResource.DEPTH_INFINITE, null);
+					else
+						new ParallelProjectRefresh(threads).refresh(projects, null);
+				} catch (CoreException e) {
+					fail("Failed to refresh during " + getName(), e);
+				}
+			}
+		}.run(this, REPEATS, 1);
+		//all contents must have been discovered
+		for (int i = 0; i < projects.length; i++)
+			assertTrue("1." + i, projects[i].getFolder("folder" + (FOLDERS_PER_PROJECT - 1)).getFolder("sub" + (SUBFOLDERS_PER_FOLDER - 1)).getFile("file" + (FILES_PER_FOLDER - 1) + ".txt").exists());
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		projects = new IProject[PROJECT_COUNT];
+		descriptions = new IProjectDescription[PROJECT_COUNT];
+		for (int i = 0; i < PROJECT_COUNT; i++) {
+			projects[i] = getWorkspace().getRoot().getProject("Project" + i);
+			descriptions[i] = getWorkspace().newProjectDescription(projects[i].getName());
+			File location = createContentsOnDisk(projects[i]);
+			descriptions[i].setLocationURI(WrapperFileSystem.getWrappedURI(URIUtil.toURI(location.getAbsolutePath())));
+			projects[i].create(descriptions[i], getMonitor());
+			projects[i].open(getMonitor());
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		WrapperFileSystem.uninstallFileTrees();
+		for (int i = 0; i < projects.length; i++)
+			projects[i].delete(IResource.FORCE | IResource.ALWAYS_DELETE_PROJECT_CONTENT, getMonitor());
+		super.tearDown();
+	}
+
+	public void testRefreshRoot() {
+		runRefresh(0);
+	}
+
+	public void testRefreshParallel1Thread() {
+		runRefresh(1);
+	}
+
+	public void testRefreshParallel2Threads() {
+		runRefresh(2);
+	}
+
+	public void testRefreshParallel4Threads() {
+		runRefresh(4);
+	}
+
+	public void testRefreshParallelAllProcessors() {
+		runRefresh(Runtime.getRuntime().availableProcessors());
+	}
+}
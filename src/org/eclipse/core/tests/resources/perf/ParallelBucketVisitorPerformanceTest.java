@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.perf;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.eclipse.core.internal.localstore.*;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.internal.utils.UniversalUniqueIdentifier;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.tests.harness.PerformanceTestRunner;
+import org.eclipse.core.tests.internal.localstore.HistoryStoreTest;
+import org.eclipse.core.tests.internal.localstore.ParallelBucketTreeVisitor;
+import org.eclipse.core.tests.resources.ResourceTest;
+
+/**
+ * Compares a sequential walk of the history index with a walk that visits
+ * the projects concurrently. The walk is the one done by the queries for
+ * deleted members and by the history clean up: every entry of the workspace
+ * is visited, and the entries of resources that no longer exist are collected.
+ * The index is populated directly with more than 100000 entries, without
+ * creating the resources or the state blobs.
+ */
+public class ParallelBucketVisitorPerformanceTest extends ResourceTest {
+	private static final int FILES_PER_FOLDER = 100;
+	private static final int FOLDERS_PER_PROJECT = 125;
+	private static final int PROJECT_COUNT = 8;
+	private static final int REPEATS = 5;
+
+	int expected;
+
+	// this test should not be in AllTests because it takes very long to run
+	public static Test suite() {
+		return new TestSuite(ParallelBucketVisitorPerformanceTest.class);
+	}
+
+	public ParallelBucketVisitorPerformanceTest() {
+		super();
+	}
+
+	public ParallelBucketVisitorPerformanceTest(String name) {
+		super(name);
+	}
+
+	Bucket.Visitor createVisitor(final List<IPath> deleted) {
+		final IWorkspaceRoot root = getWorkspace().getRoot();
+		return new Bucket.Visitor() {
+			public int visit(Bucket.Entry entry) {
+				IPath path = entry.getPath();
+				if (root.findMember(path) == null)
+					deleted.add(path);
+				return CONTINUE;
+			}
+		};
+	}
+
+	private void parallelVisit(final int threads) {
+		final ParallelBucketTreeVisitor visitor = new ParallelBucketTreeVisitor((Workspace) getWorkspace(), threads);
+		final ParallelBucketTreeVisitor.SubtreeVisitorFactory<IPath> factory = new ParallelBucketTreeVisitor.SubtreeVisitorFactory<IPath>() {
+			public Bucket createBucket() {
+				return new HistoryBucket();
+			}
+
+			public Bucket.Visitor createVisitor(List<IPath> results) {
+				return ParallelBucketVisitorPerformanceTest.this.createVisitor(results);
+			}
+		};
+		new PerformanceTestRunner() {
+			protected void test() {
+				List<IPath> deleted = null;
+				try {
+					deleted = visitor.accept(factory, BucketTree.DEPTH_INFINITE);
+				} catch (CoreException e) {
+					fail("1.0", e);
+				}
+				assertEquals("1.1", expected, deleted.size());
+			}
+		}.run(this, REPEATS, 1);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Workspace workspace = (Workspace) getWorkspace();
+		HistoryBucket bucket = new HistoryBucket();
+		BucketTree tree = new BucketTree(workspace, bucket);
+		long timestamp = System.currentTimeMillis();
+		expected = 0;
+		for (int i = 0; i < PROJECT_COUNT; i++) {
+			IProject project = workspace.getRoot().getProject("proj" + i);
+			ensureExistsInWorkspace(project, true);
+			for (int j = 0; j < FOLDERS_PER_PROJECT; j++) {
+				IPath folder = project.getFullPath().append("folder" + j);
+				tree.loadBucketFor(folder);
+				for (int k = 0; k < FILES_PER_FOLDER; k++) {
+					bucket.addBlob(folder.append("file" + k), new UniversalUniqueIdentifier(), timestamp);
+					expected++;
+				}
+			}
+		}
+		bucket.save();
+		tree.close();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		HistoryStoreTest.wipeHistoryStore(getMonitor());
+	}
+
+	public void testParallelVisit1() {
+		parallelVisit(1);
+	}
+
+	public void testParallelVisit2() {
+		parallelVisit(2);
+	}
+
+	public void testParallelVisit4() {
+		parallelVisit(4);
+	}
+
+	public void testParallelVisitAll() {
+		parallelVisit(Runtime.getRuntime().availableProcessors());
+	}
+
+	public void testSequentialVisit() {
+		final BucketTree tree = new BucketTree((Workspace) getWorkspace(), new HistoryBucket());
+		new PerformanceTestRunner() {
+			protected void test() {
+				List<IPath> deleted = new ArrayList<IPath>();
+				try {
+					tree.accept(createVisitor(deleted), Path.ROOT, BucketTree.DEPTH_INFINITE);
+				} catch (CoreException e) {
+					fail("1.0", e);
+				}
+				assertEquals("1.1", expected, deleted.size());
+			}
+		}.run(this, REPEATS, 1);
+		try {
+			tree.close();
+		} catch (CoreException e) {
+			fail("2.0", e);
+		}
+	}
+}
@@ -18,6 +18,10 @@ import org.eclipse.core.resources.*;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.QualifiedName;
 import org.eclipse.core.tests.harness.PerformanceTestRunner;
+import org.eclipse.core.tests.internal.properties.PropertyBatch;
+import org.eclipse.core.tests.internal.properties.PropertyBucketCache;
+import org.eclipse.core.tests.internal.properties.PropertyValueCache;
+import org.eclipse.core.tests.internal.properties.StripedPropertyStore;
 import org.eclipse.core.tests.resources.ResourceTest;
 
 public class PropertyManagerPerformanceTest extends ResourceTest {
@@ -64,6 +68,100 @@ public class PropertyManagerPerformanceTest extends ResourceTest {
 		return resources;
 	}
 
+	/**
+	 * Reads the properties of 64 folders of 10 files each from the given
+	 * number of threads, each thread reading its own share of the folders,
+	 * either through the property manager or through a striped store.
+	 */
+	private void testConcurrentRead(final int threadCount, final boolean striped) {
+		final QualifiedName name = new QualifiedName(PI_RESOURCES_TESTS, "prop");
+		IProject project = getWorkspace().getRoot().getProject("proj1");
+		final IFile[][] files = new IFile[64][10];
+		for (int i = 0; i < files.length; i++) {
+			for (int j = 0; j < files[i].length; j++)
+				files[i][j] = project.getFolder("folder" + i).getFile("file" + j);
+			ensureExistsInWorkspace(files[i], true);
+		}
+		final StripedPropertyStore store = new StripedPropertyStore((Workspace) getWorkspace());
+		for (int i = 0; i < files.length; i++) {
+			try {
+				store.setProperties(files[i], Collections.singletonMap(name, getPropertyValue(200)));
+			} catch (CoreException ce) {
+				fail("0.1", ce);
+			}
+		}
+		final CoreException[] errorPointer = new CoreException[1];
+		new PerformanceTestRunner() {
+			protected void test() {
+				Thread[] threads = new Thread[threadCount];
+				for (int t = 0; t < threads.length; t++) {
+					final int first = t;
+					threads[t] = new Thread(new Runnable() {
+						public void run() {
+							try {
+								for (int k = 0; k < 10; k++)
+									for (int i = first; i < files.length; i += threadCount)
+										for (int j = 0; j < files[i].length; j++) {
+											String value = striped ? store.getProperty(files[i][j], name) : files[i][j].getPersistentProperty(name);
+											assertNotNull(value);
+										}
+							} catch (CoreException ce) {
+								errorPointer[0] = ce;
+							}
+						}
+					});
+					threads[t].start();
+				}
+				for (int t = 0; t < threads.length; t++) {
+					try {
+						threads[t].join();
+					} catch (InterruptedException e) {
+						fail("0.2", e);
+					}
+				}
+				if (errorPointer[0] != null)
+					fail("0.3", errorPointer[0]);
+			}
+		}.run(this, 10, 1);
+		try {
+			((Workspace) getWorkspace()).getPropertyManager().deleteProperties(project, IResource.DEPTH_INFINITE);
+		} catch (CoreException e) {
+			fail("0.4", e);
+		}
+	}
+
+	public void testConcurrentReadManager1() {
+		testConcurrentRead(1, false);
+	}
+
+	public void testConcurrentReadManager2() {
+		testConcurrentRead(2, false);
+	}
+
+	public void testConcurrentReadManager4() {
+		testConcurrentRead(4, false);
+	}
+
+	public void testConcurrentReadManagerAll() {
+		testConcurrentRead(Runtime.getRuntime().availableProcessors(), false);
+	}
+
+	public void testConcurrentReadStriped1() {
+		testConcurrentRead(1, true);
+	}
+
+	public void testConcurrentReadStriped2() {
+		testConcurrentRead(2, true);
+	}
+
+	public void testConcurrentReadStriped4() {
+		testConcurrentRead(4, true);
+	}
+
+	public void testConcurrentReadStripedAll() {
+		testConcurrentRead(Runtime.getRuntime().availableProcessors(), true);
+	}
+
 	private void testGetProperty(int filesPerFolder, final int properties, int measurements, int repetitions) {
 		IProject proj1 = getWorkspace().getRoot().getProject("proj1");
 		final IFolder folder1 = proj1.getFolder("folder1");
@@ -111,6 +209,171 @@ public class PropertyManagerPerformanceTest extends ResourceTest {
 		testGetProperty(4, 100, 10, 1);
 	}
 
+	/**
+	 * Reads the same 4 properties of 100 files in 10 folders over and over, as
+	 * builders and decorators do, either through the resource API or through
+	 * a property cache.
+	 */
+	private void testGetPropertyRepeated(final boolean cached) {
+		final QualifiedName[] names = new QualifiedName[4];
+		for (int i = 0; i < names.length; i++)
+			names[i] = new QualifiedName(PI_RESOURCES_TESTS, "prop" + i);
+		IProject project = getWorkspace().getRoot().getProject("proj1");
+		final IResource[] files = new IResource[100];
+		for (int i = 0; i < files.length; i++)
+			files[i] = project.getFolder("folder" + (i % 10)).getFile("file" + i);
+		ensureExistsInWorkspace(files, true);
+		for (int i = 0; i < files.length; i++)
+			for (int j = 0; j < names.length; j++)
+				try {
+					files[i].setPersistentProperty(names[j], getPropertyValue(50));
+				} catch (CoreException ce) {
+					fail("0.1", ce);
+				}
+		final PropertyValueCache cache = new PropertyValueCache((Workspace) getWorkspace());
+		new PerformanceTestRunner() {
+			protected void test() {
+				try {
+					for (int k = 0; k < 10; k++)
+						for (int i = 0; i < files.length; i++)
+							for (int j = 0; j < names.length; j++)
+								assertNotNull(cached ? cache.getProperty(files[i], names[j]) : files[i].getPersistentProperty(names[j]));
+				} catch (CoreException ce) {
+					fail("0.2", ce);
+				}
+			}
+		}.run(this, 10, 1);
+		cache.dispose();
+		try {
+			((Workspace) getWorkspace()).getPropertyManager().deleteProperties(project, IResource.DEPTH_INFINITE);
+		} catch (CoreException e) {
+			fail("0.3", e);
+		}
+	}
+
+	public void testGetPropertyRepeatedCached() {
+		testGetPropertyRepeated(true);
+	}
+
+	public void testGetPropertyRepeatedUncached() {
+		testGetPropertyRepeated(false);
+	}
+
+	/**
+	 * Reads the properties of 1000 folders spread over 10 projects in random
+	 * order, so that consecutive reads rarely hit the same bucket.
+	 */
+	public void testGetPropertyRandomAccess() {
+		testGetPropertyRandomAccess(false);
+	}
+
+	/**
+	 * Reads the properties of {@link #testGetPropertyRandomAccess()} through
+	 * a cache that keeps the buckets of all projects loaded.
+	 */
+	public void testGetPropertyRandomAccessCached() {
+		testGetPropertyRandomAccess(true);
+	}
+
+	private void testGetPropertyRandomAccess(final boolean cached) {
+		final QualifiedName name = new QualifiedName(PI_RESOURCES_TESTS, "prop");
+		final IResource[] folders = new IResource[1000];
+		for (int i = 0; i < folders.length; i++)
+			folders[i] = getWorkspace().getRoot().getProject("proj" + (i % 10)).getFolder("folder" + i);
+		ensureExistsInWorkspace(folders, true);
+		for (int i = 0; i < folders.length; i++) {
+			try {
+				folders[i].setPersistentProperty(name, getPropertyValue(200));
+			} catch (CoreException ce) {
+				fail("0.1", ce);
+			}
+		}
+		//the same random sequence for each measurement
+		final int[] order = new int[10 * folders.length];
+		Random random = new Random(4711);
+		for (int i = 0; i < order.length; i++)
+			order[i] = random.nextInt(folders.length);
+
+		PropertyBucketCache cache = null;
+		try {
+			if (cached)
+				cache = new PropertyBucketCache((Workspace) getWorkspace());
+		} catch (CoreException ce) {
+			fail("0.4", ce);
+		}
+		final PropertyBucketCache bucketCache = cache;
+		new PerformanceTestRunner() {
+			protected void test() {
+				for (int i = 0; i < order.length; i++) {
+					try {
+						assertNotNull(cached ? bucketCache.getProperty(folders[order[i]], name) : folders[order[i]].getPersistentProperty(name));
+					} catch (CoreException ce) {
+						fail("0.2", ce);
+					}
+				}
+			}
+		}.run(this, 10, 1);
+		if (cached) {
+			System.out.println("Loaded " + bucketCache.getLoadCount() + " buckets for " + (bucketCache.getLoadCount() + bucketCache.getHitCount()) + " reads");
+			try {
+				bucketCache.close();
+			} catch (CoreException ce) {
+				fail("0.5", ce);
+			}
+		}
+		for (int i = 0; i < 10; i++) {
+			try {
+				((Workspace) getWorkspace()).getPropertyManager().deleteProperties(getWorkspace().getRoot().getProject("proj" + i), IResource.DEPTH_INFINITE);
+			} catch (CoreException e) {
+				fail("0.3", e);
+			}
+		}
+	}
+
+	/**
+	 * Stamps 16 properties on each of 100 files in a folder, as a team
+	 * provider does on checkout, either one property at a time or in a
+	 * single batch.
+	 */
+	private void testSetProperties(final boolean batched) {
+		IFolder folder = getWorkspace().getRoot().getProject("proj1").getFolder("folder1");
+		final IResource[] files = new IResource[100];
+		for (int i = 0; i < files.length; i++)
+			files[i] = folder.getFile("file" + i);
+		ensureExistsInWorkspace(files, true);
+		final Map<QualifiedName, String> values = new HashMap<QualifiedName, String>();
+		for (int i = 0; i < 16; i++)
+			values.put(new QualifiedName(PI_RESOURCES_TESTS, "prop" + i), getPropertyValue(50));
+		final PropertyBatch batch = new PropertyBatch((Workspace) getWorkspace());
+		new PerformanceTestRunner() {
+			protected void tearDown() throws CoreException {
+				batch.delete(files, values.keySet());
+			}
+
+			protected void test() {
+				try {
+					if (batched) {
+						batch.set(files, values);
+						return;
+					}
+					for (int i = 0; i < files.length; i++)
+						for (Map.Entry<QualifiedName, String> entry : values.entrySet())
+							files[i].setPersistentProperty(entry.getKey(), entry.getValue());
+				} catch (CoreException ce) {
+					fail("0.1", ce);
+				}
+			}
+		}.run(this, 10, 1);
+	}
+
+	public void testSetPropertiesBatched() {
+		testSetProperties(true);
+	}
+
+	public void testSetPropertiesPerKey() {
+		testSetProperties(false);
+	}
+
 	private void testSetProperty(int filesPerFolder, int properties, int measurements, int repetitions) {
 		IProject proj1 = getWorkspace().getRoot().getProject("proj1");
 		final IFolder folder1 = proj1.getFolder("folder1");
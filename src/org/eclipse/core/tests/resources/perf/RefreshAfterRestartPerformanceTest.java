@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import junit.framework.Test;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.tests.harness.PerformanceTestRunner;
+import org.eclipse.core.tests.internal.localstore.DirectoryStampIndex;
+import org.eclipse.core.tests.resources.AutomatedTests;
+import org.eclipse.core.tests.resources.WorkspaceSessionTest;
+import org.eclipse.core.tests.session.WorkspaceSessionTestSuite;
+
+/**
+ * Benchmarks refreshing an unchanged project with 100k files after a restart,
+ * comparing a full refresh of the project with a refresh of only those
+ * directories that a persisted {@link DirectoryStampIndex} reports as changed.
+ * Each test method runs in a separate session.
+ */
+public class RefreshAfterRestartPerformanceTest extends WorkspaceSessionTest {
+	private static final String PROJECT_NAME = "Project";
+	private static final String INDEX_FILE = "directories.index";
+	private static final int WIDTH = 10;
+	private static final int DEPTH = 3;
+	private static final int FILES_PER_FOLDER = 100;
+
+	// this test should not be in AllTests because it is only a performance test
+	public static Test suite() {
+		return new WorkspaceSessionTestSuite(AutomatedTests.PI_RESOURCES_TESTS, RefreshAfterRestartPerformanceTest.class);
+	}
+
+	public RefreshAfterRestartPerformanceTest() {
+		super();
+	}
+
+	public RefreshAfterRestartPerformanceTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Creates a tree of folders of the given depth directly in the local file
+	 * system, with files in the folders at the bottom of the tree.
+	 */
+	private void createContentsOnDisk(File folder, int depth) throws IOException {
+		folder.mkdirs();
+		if (depth == 0) {
+			for (int i = 0; i < FILES_PER_FOLDER; i++)
+				new File(folder, "file" + i + ".txt").createNewFile();
+			return;
+		}
+		for (int i = 0; i < WIDTH; i++)
+			createContentsOnDisk(new File(folder, "folder" + i), depth - 1);
+	}
+
+	private File getIndexFile(IProject project) {
+		return project.getWorkingLocation(PI_RESOURCES_TESTS).append(INDEX_FILE).toFile();
+	}
+
+	private IProject getProject() {
+		return getWorkspace().getRoot().getProject(PROJECT_NAME);
+	}
+
+	/**
+	 * Refreshes the directories of the given project that the persisted index
+	 * reports as changed, and returns the number of refreshed directories.
+	 */
+	int refreshChangedDirectories(IProject project) throws CoreException, IOException {
+		File root = project.getLocation().toFile();
+		List<IPath> changed = DirectoryStampIndex.read(getIndexFile(project)).findChangedDirectories(root);
+		for (IPath path : changed) {
+			IContainer container = path.isEmpty() ? (IContainer) project : project.getFolder(path);
+			container.refreshLocal(IResource.DEPTH_ONE, null);
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Creates the project contents and the index, and saves the workspace.
+	 */
+	public void test1() throws Exception {
+		IProject project = getProject();
+		project.create(getMonitor());
+		project.open(getMonitor());
+		createContentsOnDisk(project.getLocation().toFile(), DEPTH);
+		project.refreshLocal(IResource.DEPTH_INFINITE, getMonitor());
+		DirectoryStampIndex index = DirectoryStampIndex.create(project.getLocation().toFile());
+		index.write(getIndexFile(project));
+		System.out.println("Directory stamp index: " + index.size() + " directories, " + getIndexFile(project).length() + " bytes");
+		getWorkspace().save(true, getMonitor());
+	}
+
+	/**
+	 * Refreshes the whole unchanged project after a restart.
+	 */
+	public void test2() throws CoreException {
+		final IProject project = getProject();
+		new PerformanceTestRunner() {
+			protected void test() {
+				try {
+					project.refreshLocal(IResource.DEPTH_INFINITE, null);
+				} catch (CoreException e) {
+					fail("Failed to refresh during testFullRefresh", e);
+				}
+			}
+		}.run(new RefreshAfterRestartPerformanceTest("testFullRefresh"), 1, 1);
+		getWorkspace().save(true, getMonitor());
+	}
+
+	/**
+	 * Refreshes the changed directories of the unchanged project after a
+	 * restart, which should not refresh anything.
+	 */
+	public void test3() throws CoreException {
+		final IProject project = getProject();
+		final int[] changed = new int[1];
+		new PerformanceTestRunner() {
+			protected void test() {
+				try {
+					changed[0] = refreshChangedDirectories(project);
+				} catch (CoreException e) {
+					fail("Failed to refresh during testIndexRefresh", e);
+				} catch (IOException e) {
+					fail("Failed to read index during testIndexRefresh", e);
+				}
+			}
+		}.run(new RefreshAfterRestartPerformanceTest("testIndexRefresh"), 1, 1);
+		assertEquals("1.0", 0, changed[0]);
+		getWorkspace().save(true, getMonitor());
+	}
+
+	/**
+	 * Changes the project on disk while the workspace is running.
+	 */
+	public void test4() throws Exception {
+		File root = getProject().getLocation().toFile();
+		new File(root, "folder1/folder2/folder3/added.txt").createNewFile();
+		createContentsOnDisk(new File(root, "folder4/added"), 1);
+		getWorkspace().save(true, getMonitor());
+	}
+
+	/**
+	 * Refreshes the changed directories after a restart, which should
+	 * discover the changes.
+	 */
+	public void test5() throws Exception {
+		IProject project = getProject();
+		refreshChangedDirectories(project);
+		assertTrue("1.0", project.getFile("folder1/folder2/folder3/added.txt").exists());
+		assertTrue("1.1", project.getFile("folder4/added/folder" + (WIDTH - 1) + "/file0.txt").exists());
+	}
+
+	/**
+	 * Deletes the project.
+	 */
+	public void test6() throws CoreException {
+		getProject().delete(IResource.FORCE | IResource.ALWAYS_DELETE_PROJECT_CONTENT, getMonitor());
+		getWorkspace().save(true, getMonitor());
+	}
+}
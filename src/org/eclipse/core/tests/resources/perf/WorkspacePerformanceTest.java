@@ -67,7 +67,7 @@ public class WorkspacePerformanceTest extends ResourceTest {
 		try {
 			getWorkspace().run(new IWorkspaceRunnable() {
 				public void run(IProgressMonitor monitor) throws CoreException {
-					testProject.create(getMonitor());
+					createProject(getMonitor());
 					testProject.open(getMonitor());
 					createFolder(testFolder, totalResources);
 				}
@@ -83,6 +83,14 @@ public class WorkspacePerformanceTest extends ResourceTest {
 		return bytes;
 	}
 
+	/**
+	 * Creates the test project. Subclasses may override to create the
+	 * project in a different location.
+	 */
+	protected void createProject(IProgressMonitor monitor) throws CoreException {
+		testProject.create(monitor);
+	}
+
 	/**
 	 * Creates and returns a folder with lots of contents
 	 */
@@ -112,7 +120,7 @@ public class WorkspacePerformanceTest extends ResourceTest {
 		//delete without deleting contents
 		testProject.delete(IResource.NEVER_DELETE_PROJECT_CONTENT, null);
 		//recreate project but don't discover content
-		testProject.create(null);
+		createProject(null);
 		testProject.open(IResource.NONE, null);
 	}
 
@@ -225,8 +233,12 @@ public class WorkspacePerformanceTest extends ResourceTest {
 		}.run(this, REPEATS, 1);
 	}
 
-	public void testRefreshProject() {
-		PerformanceTestRunner runner = new PerformanceTestRunner() {
+	/**
+	 * Returns a runner that benchmarks refreshing a project whose contents
+	 * have not been discovered yet.
+	 */
+	PerformanceTestRunner createRefreshProjectRunner() {
+		return new PerformanceTestRunner() {
 			protected void setUp() throws CoreException {
 				createAndPopulateProject(50000);
 				deleteAndRecreateProject();
@@ -245,6 +257,10 @@ public class WorkspacePerformanceTest extends ResourceTest {
 				}
 			}
 		};
+	}
+
+	public void testRefreshProject() {
+		PerformanceTestRunner runner = createRefreshProjectRunner();
 		runner.setFingerprintName("Refresh Project");
 		runner.run(this, REPEATS, 1);
 	}
@@ -296,7 +312,7 @@ public class WorkspacePerformanceTest extends ResourceTest {
 
 			protected void test() {
 				try {
-					testProject.create(null);
+					createProject(null);
 					testProject.loadSnapshot(IProject.SNAPSHOT_TREE, snapshotLocation, null);
 					testProject.open(null);
 				} catch (CoreException e) {
@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.refresh;
+
+import java.io.File;
+import java.util.*;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.resources.refresh.IRefreshMonitor;
+import org.eclipse.core.resources.refresh.IRefreshResult;
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * A refresh monitor that polls the modification stamps of a resource and
+ * all folders below it, adapting the polling interval of each folder to how
+ * often it changes. A folder that changed is polled again after the minimum
+ * interval, and each poll that finds no change doubles the interval of the
+ * folder, up to the maximum interval. Folders are checked most overdue first,
+ * and each polling cycle checks at most a fixed number of stamps of folders
+ * and files, which bounds the I/O per cycle. The first folder of a cycle is
+ * always checked, so that folders with more files than the budget are polled
+ * as well.
+ * <p>
+ * The stamp of a folder only changes when members are added, removed or
+ * renamed, so polling a folder also checks the stamps of the files in it,
+ * which catches files whose contents are changed in place. Only the changed
+ * files are refreshed.
+ * </p><p>
+ * Folders that appear on disk below a changed folder are polled from then on,
+ * together with all folders below them, and folders that disappear are
+ * dropped. The stamps checked while adding them count against the budget of
+ * the cycle.
+ * </p>
+ */
+public class AdaptivePollingMonitor extends Job implements IRefreshMonitor {
+	/** The default time between polling cycles, in milliseconds */
+	public static final long DEFAULT_CYCLE = 1000;
+
+	/** The default maximum number of stamps of folders and files checked per cycle */
+	public static final int DEFAULT_BUDGET = 5000;
+
+	/** The default polling interval of a folder that just changed, in milliseconds */
+	public static final long DEFAULT_MIN_INTERVAL = 1000;
+
+	/** The default polling interval of a folder that never changes, in milliseconds */
+	public static final long DEFAULT_MAX_INTERVAL = 64000;
+
+	/**
+	 * The polling state of one resource.
+	 */
+	private static class Entry {
+		long due;
+
+		/** The stamps of the files directly in a folder, by name */
+		Map<String, Long> files;
+		long interval;
+		final IResource resource;
+		long stamp;
+
+		Entry(IResource resource) {
+			this.resource = resource;
+		}
+	}
+
+	private int budget = DEFAULT_BUDGET;
+	private boolean closed = false;
+	private long cycle = DEFAULT_CYCLE;
+
+	/** The polled resources, by full path */
+	private final Map<IPath, Entry> entries = new HashMap<IPath, Entry>();
+	private long maxInterval = DEFAULT_MAX_INTERVAL;
+	private long minInterval = DEFAULT_MIN_INTERVAL;
+
+	/** The polled resources, ordered by the time they are due to be polled */
+	private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(64, new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			return e1.due < e2.due ? -1 : (e1.due == e2.due ? 0 : 1);
+		}
+	});
+	private final IRefreshResult result;
+	private final IResource root;
+	private long statCount = 0;
+
+	/**
+	 * Creates a monitor for the given resource and all folders below it, and
+	 * records their current modification stamps. The monitor does not poll
+	 * until it is scheduled, or until {@link #poll(long)} is called.
+	 */
+	public AdaptivePollingMonitor(IResource root, IRefreshResult result) throws CoreException {
+		super("Adaptive polling monitor for " + root.getFullPath());
+		this.root = root;
+		this.result = result;
+		setSystem(true);
+		final long now = System.currentTimeMillis();
+		root.accept(new IResourceVisitor() {
+			public boolean visit(IResource resource) {
+				if (resource.getType() == IResource.FILE && !resource.equals(AdaptivePollingMonitor.this.root))
+					return false;
+				add(resource, now);
+				return true;
+			}
+		});
+	}
+
+	synchronized void add(IResource resource, long now) {
+		Entry entry = new Entry(resource);
+		entry.stamp = stat(resource);
+		statCount++;
+		if (resource.getType() != IResource.FILE) {
+			entry.files = statFiles((IContainer) resource);
+			statCount += entry.files.size();
+		}
+		entry.interval = minInterval;
+		entry.due = now + minInterval;
+		entries.put(resource.getFullPath(), entry);
+		queue.add(entry);
+	}
+
+	/**
+	 * Starts polling folders that appeared on disk below the given container.
+	 */
+	private void discover(IContainer container, long now) {
+		IPath location = container.getLocation();
+		File[] children = location == null ? null : location.toFile().listFiles();
+		if (children == null)
+			return;
+		for (int i = 0; i < children.length; i++) {
+			if (!children[i].isDirectory())
+				continue;
+			IFolder folder = container.getFolder(new Path(children[i].getName()));
+			if (!entries.containsKey(folder.getFullPath())) {
+				add(folder, now);
+				//a tree created in one step only changes the stamp of its parent
+				discover(folder, now);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of resources currently polled.
+	 */
+	public synchronized int getPolledCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of modification stamps checked so far.
+	 */
+	public synchronized long getStatCount() {
+		return statCount;
+	}
+
+	/**
+	 * Runs one polling cycle at the given time. Checks the resources that
+	 * are due, until the stamps checked in this cycle reach the budget, and
+	 * reports the changed ones to the refresh result. Returns the number of
+	 * checked resources.
+	 */
+	public synchronized int poll(long now) {
+		int checked = 0;
+		long start = statCount;
+		while (!closed && !queue.isEmpty() && queue.peek().due <= now) {
+			Entry entry = queue.peek();
+			//the folder itself and each of its files
+			long cost = 1 + (entry.files == null ? 0 : entry.files.size());
+			if (checked > 0 && statCount - start + cost > budget)
+				break;
+			queue.poll();
+			long stamp = stat(entry.resource);
+			statCount++;
+			checked++;
+			if (stamp == entry.stamp) {
+				if (entry.files != null && pollFiles(entry)) {
+					entry.interval = minInterval;
+				} else {
+					//cool down
+					entry.interval = Math.min(entry.interval * 2, maxInterval);
+				}
+			} else {
+				result.refresh(entry.resource);
+				entry.stamp = stamp;
+				entry.interval = minInterval;
+				if (stamp == 0) {
+					//gone, its parent has changed as well
+					entries.remove(entry.resource.getFullPath());
+					continue;
+				}
+				if (entry.resource.getType() != IResource.FILE) {
+					entry.files = statFiles((IContainer) entry.resource);
+					statCount += entry.files.size();
+					discover((IContainer) entry.resource, now);
+				}
+			}
+			entry.due = now + entry.interval;
+			queue.add(entry);
+		}
+		return checked;
+	}
+
+	/**
+	 * Checks the stamps of the files in the folder of the given entry, whose
+	 * own stamp has not changed, and refreshes the files that changed.
+	 * Returns whether any file changed.
+	 */
+	private boolean pollFiles(Entry entry) {
+		IContainer container = (IContainer) entry.resource;
+		Map<String, Long> files = statFiles(container);
+		statCount += files.size();
+		if (!files.keySet().equals(entry.files.keySet())) {
+			//members came and went within the resolution of the folder stamp
+			result.refresh(container);
+			entry.files = files;
+			return true;
+		}
+		boolean changed = false;
+		for (Map.Entry<String, Long> file : files.entrySet()) {
+			if (!file.getValue().equals(entry.files.get(file.getKey()))) {
+				result.refresh(container.getFile(new Path(file.getKey())));
+				changed = true;
+			}
+		}
+		entry.files = files;
+		return changed;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	protected IStatus run(IProgressMonitor monitor) {
+		poll(System.currentTimeMillis());
+		synchronized (this) {
+			if (!closed)
+				schedule(cycle);
+		}
+		return Status.OK_STATUS;
+	}
+
+	/**
+	 * Sets the maximum number of stamps of folders and files checked per
+	 * polling cycle.
+	 */
+	public synchronized void setBudget(int budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Sets the time between polling cycles in milliseconds.
+	 */
+	public synchronized void setCycle(long millis) {
+		this.cycle = millis;
+	}
+
+	/**
+	 * Sets the minimum and maximum polling interval of a resource in milliseconds.
+	 */
+	public synchronized void setIntervals(long min, long max) {
+		this.minInterval = min;
+		this.maxInterval = max;
+	}
+
+	/**
+	 * Returns the current modification stamp of the given resource in the
+	 * file system, or 0 if it does not exist.
+	 */
+	protected long stat(IResource resource) {
+		IPath location = resource.getLocation();
+		return location == null ? 0 : location.toFile().lastModified();
+	}
+
+	/**
+	 * Returns the current modification stamps of the files directly in the
+	 * given container in the file system, by name.
+	 */
+	protected Map<String, Long> statFiles(IContainer container) {
+		Map<String, Long> files = new HashMap<String, Long>();
+		IPath location = container.getLocation();
+		File[] children = location == null ? null : location.toFile().listFiles();
+		if (children == null)
+			return files;
+		for (int i = 0; i < children.length; i++)
+			if (!children[i].isDirectory())
+				files.put(children[i].getName(), new Long(children[i].lastModified()));
+		return files;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.resources.refresh.IRefreshMonitor#unmonitor(org.eclipse.core.resources.IResource)
+	 */
+	public void unmonitor(IResource resource) {
+		if (resource != null && !resource.equals(root))
+			return;
+		synchronized (this) {
+			closed = true;
+			entries.clear();
+			queue.clear();
+		}
+		cancel();
+	}
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.refresh;
+
+import java.util.*;
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.refresh.IRefreshMonitor;
+import org.eclipse.core.resources.refresh.IRefreshResult;
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * A refresh monitor for one resource that is fed with the file system
+ * locations reported by a native change notification mechanism, such as
+ * inotify. Changes arriving within a time window are coalesced into a
+ * minimal set of {@link IRefreshResult#refresh(IResource)} calls:
+ * <ul>
+ * <li>each change is mapped to the deepest resource that already exists
+ * in the workspace,</li>
+ * <li>a folder with more than a threshold of changed members is refreshed
+ * instead of its members,</li>
+ * <li>resources below another refreshed resource are dropped, and</li>
+ * <li>an overflow of the notification queue refreshes the whole monitored
+ * resource.</li>
+ * </ul>
+ */
+public class CoalescingRefreshMonitor extends Job implements IRefreshMonitor {
+	/** The default time window for coalescing changes, in milliseconds */
+	public static final long DEFAULT_WINDOW = 100;
+
+	/** The default number of changed members above which a folder is refreshed instead */
+	public static final int DEFAULT_FOLD_THRESHOLD = 64;
+
+	/** The changed locations, relative to the location of the monitored resource */
+	private final Set<IPath> changes = new HashSet<IPath>();
+	private boolean closed = false;
+	private int foldThreshold = DEFAULT_FOLD_THRESHOLD;
+	private boolean overflow = false;
+	private final IRefreshResult result;
+	private final IResource root;
+	private final IPath rootLocation;
+	private long window = DEFAULT_WINDOW;
+
+	/**
+	 * Creates a monitor for the given resource, which must have a location
+	 * in the local file system.
+	 */
+	public CoalescingRefreshMonitor(IResource root, IRefreshResult result) {
+		super("Coalescing refresh monitor for " + root.getFullPath());
+		this.root = root;
+		this.rootLocation = root.getLocation();
+		this.result = result;
+		setSystem(true);
+	}
+
+	/**
+	 * Reports that the file or directory at the given location was created,
+	 * deleted or modified. Locations outside the monitored resource are ignored.
+	 */
+	public void changed(IPath location) {
+		if (!rootLocation.isPrefixOf(location))
+			return;
+		synchronized (this) {
+			if (closed)
+				return;
+			changes.add(location.removeFirstSegments(rootLocation.segmentCount()).setDevice(null));
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * Returns the minimal set of resources to refresh for the given changes.
+	 */
+	IResource[] coalesce(Set<IPath> changedPaths, boolean changesLost) {
+		if (changesLost || root.getType() == IResource.FILE)
+			return new IResource[] {root};
+		Set<IResource> targets = new HashSet<IResource>();
+		for (IPath path : changedPaths)
+			targets.add(findTarget(path));
+		//refresh folders with many changed members instead of the members
+		boolean folded = true;
+		while (folded) {
+			folded = false;
+			Map<IResource, List<IResource>> byParent = new HashMap<IResource, List<IResource>>();
+			for (IResource target : targets) {
+				if (target.equals(root))
+					continue;
+				List<IResource> siblings = byParent.get(target.getParent());
+				if (siblings == null)
+					byParent.put(target.getParent(), siblings = new ArrayList<IResource>());
+				siblings.add(target);
+			}
+			for (Map.Entry<IResource, List<IResource>> entry : byParent.entrySet()) {
+				if (entry.getValue().size() > foldThreshold) {
+					targets.removeAll(entry.getValue());
+					targets.add(entry.getKey());
+					folded = true;
+				}
+			}
+		}
+		//drop resources that are refreshed with one of their ancestors
+		List<IResource> refreshed = new ArrayList<IResource>();
+		for (IResource target : targets) {
+			boolean covered = false;
+			for (IContainer parent = target.getParent(); parent != null && !covered; parent = parent.getParent())
+				covered = targets.contains(parent);
+			if (!covered)
+				refreshed.add(target);
+		}
+		return refreshed.toArray(new IResource[refreshed.size()]);
+	}
+
+	/**
+	 * Returns the resource that must be refreshed to discover a change at
+	 * the given path. This is the resource at that path if it is known to
+	 * the workspace, and otherwise its deepest existing ancestor.
+	 */
+	private IResource findTarget(IPath path) {
+		IContainer container = (IContainer) root;
+		for (IPath current = path; !current.isEmpty(); current = current.removeLastSegments(1)) {
+			IResource member = container.findMember(current);
+			if (member != null)
+				return member;
+		}
+		return root;
+	}
+
+	/**
+	 * Reports all pending changes to the refresh result, and returns the
+	 * number of refresh requests made.
+	 */
+	public int flush() {
+		Set<IPath> pending;
+		boolean changesLost;
+		synchronized (this) {
+			if (changes.isEmpty() && !overflow)
+				return 0;
+			pending = new HashSet<IPath>(changes);
+			changesLost = overflow;
+			changes.clear();
+			overflow = false;
+		}
+		IResource[] toRefresh = coalesce(pending, changesLost);
+		for (int i = 0; i < toRefresh.length; i++)
+			result.refresh(toRefresh[i]);
+		return toRefresh.length;
+	}
+
+	/**
+	 * Reports that the notification mechanism dropped changes, for example
+	 * because its event queue overflowed.
+	 */
+	public void overflow() {
+		synchronized (this) {
+			if (closed)
+				return;
+			overflow = true;
+		}
+		scheduleFlush();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	protected IStatus run(IProgressMonitor monitor) {
+		flush();
+		return Status.OK_STATUS;
+	}
+
+	/**
+	 * Schedules a flush at the end of the current time window. A flush that
+	 * is already waiting is not delayed further, so that a continuous stream
+	 * of changes is still reported once per window.
+	 */
+	private void scheduleFlush() {
+		if (getState() != Job.SLEEPING)
+			schedule(window);
+	}
+
+	/**
+	 * Sets the number of changed members above which a folder is refreshed
+	 * instead of its members.
+	 */
+	public void setFoldThreshold(int threshold) {
+		this.foldThreshold = threshold;
+	}
+
+	/**
+	 * Sets the time window in milliseconds within which changes are coalesced.
+	 */
+	public void setWindow(long millis) {
+		this.window = millis;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.core.resources.refresh.IRefreshMonitor#unmonitor(org.eclipse.core.resources.IResource)
+	 */
+	public void unmonitor(IResource resource) {
+		if (resource != null && !resource.equals(root))
+			return;
+		synchronized (this) {
+			closed = true;
+			changes.clear();
+			overflow = false;
+		}
+		cancel();
+	}
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.refresh;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestSuite;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.resources.refresh.IRefreshMonitor;
+import org.eclipse.core.resources.refresh.IRefreshResult;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.tests.resources.ResourceTest;
+
+/**
+ * Tests how {@link CoalescingRefreshMonitor} turns file system changes into
+ * refresh requests.
+ */
+public class CoalescingRefreshMonitorTest extends ResourceTest {
+	/**
+	 * A refresh result that records the requested refreshes.
+	 */
+	static class RecordingRefreshResult implements IRefreshResult {
+		final List<IResource> failed = new ArrayList<IResource>();
+		final List<IResource> refreshed = new ArrayList<IResource>();
+
+		public synchronized void monitorFailed(IRefreshMonitor monitor, IResource resource) {
+			failed.add(resource);
+		}
+
+		public synchronized void refresh(IResource resource) {
+			refreshed.add(resource);
+		}
+	}
+
+	private CoalescingRefreshMonitor monitor;
+	private IProject project;
+	private RecordingRefreshResult result;
+
+	public static TestSuite suite() {
+		return new TestSuite(CoalescingRefreshMonitorTest.class);
+	}
+
+	public CoalescingRefreshMonitorTest() {
+		super();
+	}
+
+	public CoalescingRefreshMonitorTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Asserts that each of the given resources is refreshed, either directly
+	 * or as a member of a refreshed folder.
+	 */
+	private void assertRefreshed(String message, IResource[] resources) {
+		for (int i = 0; i < resources.length; i++) {
+			boolean covered = false;
+			for (IResource refreshed : result.refreshed)
+				covered |= refreshed.getFullPath().isPrefixOf(resources[i].getFullPath());
+			assertTrue(message + "." + i + " " + resources[i] + " not refreshed by " + result.refreshed, covered);
+		}
+	}
+
+	private IPath location(IResource resource) {
+		return project.getLocation().append(resource.getProjectRelativePath());
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		project = getWorkspace().getRoot().getProject(getUniqueString());
+		ensureExistsInWorkspace(project, true);
+		result = new RecordingRefreshResult();
+		monitor = new CoalescingRefreshMonitor(project, result);
+		//flush explicitly, unless a test is about the time window
+		monitor.setWindow(60000);
+	}
+
+	protected void tearDown() throws Exception {
+		monitor.unmonitor(null);
+		super.tearDown();
+	}
+
+	/**
+	 * A modified file that is known to the workspace is refreshed directly.
+	 */
+	public void testModifiedFile() {
+		IFile file = project.getFile("file.txt");
+		ensureExistsInWorkspace(file, true);
+		monitor.changed(location(file));
+		assertEquals("1.0", 1, monitor.flush());
+		assertEquals("1.1", file, result.refreshed.get(0));
+	}
+
+	/**
+	 * A file that is not known to the workspace is discovered by refreshing
+	 * its deepest existing ancestor.
+	 */
+	public void testCreatedFile() {
+		IFolder folder = project.getFolder("folder");
+		ensureExistsInWorkspace(folder, true);
+		monitor.changed(location(folder.getFolder("new").getFile("file.txt")));
+		assertEquals("1.0", 1, monitor.flush());
+		assertEquals("1.1", folder, result.refreshed.get(0));
+	}
+
+	/**
+	 * Changes below a refreshed resource do not cause refreshes of their own.
+	 */
+	public void testNestedChanges() {
+		IFolder folder = project.getFolder("folder");
+		IFile file = folder.getFile("file.txt");
+		ensureExistsInWorkspace(file, true);
+		monitor.changed(location(folder));
+		monitor.changed(location(file));
+		monitor.changed(location(file));
+		assertEquals("1.0", 1, monitor.flush());
+		assertEquals("1.1", folder, result.refreshed.get(0));
+		//nothing is left to report
+		assertEquals("2.0", 0, monitor.flush());
+	}
+
+	/**
+	 * Changes outside the monitored resource are ignored.
+	 */
+	public void testOutsideChange() {
+		monitor.changed(project.getLocation().removeLastSegments(1).append("other"));
+		assertEquals("1.0", 0, monitor.flush());
+	}
+
+	/**
+	 * An overflow of the notification queue refreshes the monitored resource.
+	 */
+	public void testOverflow() {
+		IFile file = project.getFile("file.txt");
+		ensureExistsInWorkspace(file, true);
+		monitor.changed(location(file));
+		monitor.overflow();
+		assertEquals("1.0", 1, monitor.flush());
+		assertEquals("1.1", project, result.refreshed.get(0));
+	}
+
+	/**
+	 * Simulates a checkout that touches 20k files in 200 folders, and checks
+	 * that it results in a handful of refreshes that cover all files.
+	 */
+	public void testCheckoutStorm() {
+		IFolder source = project.getFolder("src");
+		IResource[] folders = new IResource[200];
+		for (int i = 0; i < folders.length; i++)
+			folders[i] = source.getFolder("package" + i);
+		ensureExistsInWorkspace(folders, true);
+		//one untouched folder that must not be refreshed
+		IFolder other = project.getFolder("other");
+		ensureExistsInWorkspace(other, true);
+		for (int i = 0; i < folders.length; i++) {
+			for (int j = 0; j < 100; j++)
+				monitor.changed(location(((IFolder) folders[i]).getFile("File" + j + ".java")));
+		}
+		int count = monitor.flush();
+		assertTrue("1.0: " + count + " refreshes", count <= 1 + folders.length / CoalescingRefreshMonitor.DEFAULT_FOLD_THRESHOLD);
+		assertRefreshed("1.1", folders);
+		assertFalse("1.2", result.refreshed.contains(project));
+		assertFalse("1.3", result.refreshed.contains(other));
+	}
+
+	/**
+	 * Changes within one time window are reported in one batch by the
+	 * scheduled flush.
+	 */
+	public void testWindow() throws InterruptedException {
+		IResource[] files = buildResources(project, new String[] {"a/1.txt", "a/2.txt", "b/3.txt"});
+		ensureExistsInWorkspace(files, true);
+		monitor.setWindow(500);
+		for (int i = 0; i < files.length; i++)
+			monitor.changed(location(files[i]));
+		monitor.join();
+		assertEquals("1.0", 3, result.refreshed.size());
+		assertRefreshed("1.1", files);
+		assertTrue("1.2", result.failed.isEmpty());
+	}
+}
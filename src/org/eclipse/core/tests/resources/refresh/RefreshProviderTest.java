@@ -10,10 +10,14 @@
  *******************************************************************************/
 package org.eclipse.core.tests.resources.refresh;
 
+import java.io.*;
+import java.util.*;
 import junit.framework.AssertionFailedError;
 import junit.framework.TestSuite;
 import org.eclipse.core.internal.resources.Workspace;
 import org.eclipse.core.resources.*;
+import org.eclipse.core.resources.refresh.IRefreshMonitor;
+import org.eclipse.core.resources.refresh.IRefreshResult;
 import org.eclipse.core.runtime.*;
 import org.eclipse.core.tests.resources.ResourceTest;
 
@@ -21,6 +25,8 @@ import org.eclipse.core.tests.resources.ResourceTest;
  * Tests the IRefreshMonitor interface
  */
 public class RefreshProviderTest extends ResourceTest {
+	/** Synthetic modification stamps for the adaptive polling workload */
+	final Map<IResource, Long> stamps = new HashMap<IResource, Long>();
 
 	public static TestSuite suite() {
 		return new TestSuite(RefreshProviderTest.class);
@@ -113,4 +119,195 @@ public class RefreshProviderTest extends ResourceTest {
 			fail("1.99", e);
 		}
 	}
+
+	/**
+	 * Runs a synthetic workload against an {@link AdaptivePollingMonitor} on a
+	 * simulated clock: ten minutes of a project with 500 folders of two files,
+	 * five of which change every five seconds, and one that changes once.
+	 * Checks the detection latency of the changes and the number of stat calls
+	 * per minute.
+	 */
+	public void testAdaptivePolling() throws CoreException {
+		final int folderCount = 500;
+		final int filesPerFolder = 2;
+		final int hotCount = 5;
+		final int budget = 300;
+		final long cycle = 1000;
+		final long hotPeriod = 5000;
+		final long coldChange = 5 * 60 * 1000;
+		final long duration = 10 * 60 * 1000;
+		IProject project = getWorkspace().getRoot().getProject("testAdaptivePolling");
+		IResource[] folders = new IResource[folderCount];
+		for (int i = 0; i < folderCount; i++)
+			folders[i] = project.getFolder("folder" + i);
+		IResource[] files = new IResource[folderCount * filesPerFolder];
+		for (int i = 0; i < files.length; i++)
+			files[i] = ((IFolder) folders[i / filesPerFolder]).getFile("file" + i % filesPerFolder + ".txt");
+		ensureExistsInWorkspace(project, true);
+		ensureExistsInWorkspace(folders, true);
+		ensureExistsInWorkspace(files, true);
+		//changes that have not been detected yet, with the time they were made at
+		final Map<IResource, Long> pending = new HashMap<IResource, Long>();
+		final long[] now = new long[] {System.currentTimeMillis()};
+		final long[] maxLatency = new long[2];
+		final IResource cold = folders[folderCount - 1];
+		IRefreshResult result = new IRefreshResult() {
+			public void monitorFailed(IRefreshMonitor monitor, IResource resource) {
+				fail("Monitor failed on " + resource);
+			}
+
+			public void refresh(IResource resource) {
+				Long changed = pending.remove(resource);
+				assertNotNull("Refresh of unchanged " + resource, changed);
+				int tier = resource.equals(cold) ? 1 : 0;
+				maxLatency[tier] = Math.max(maxLatency[tier], now[0] - changed.longValue());
+			}
+		};
+		AdaptivePollingMonitor monitor = new AdaptivePollingMonitor(project, result) {
+			protected long stat(IResource resource) {
+				Long stamp = stamps.get(resource);
+				return stamp == null ? 1 : stamp.longValue();
+			}
+		};
+		monitor.setBudget(budget);
+		long start = now[0];
+		try {
+			for (long time = cycle; time <= duration; time += cycle) {
+				now[0] = start + time;
+				for (int i = 0; i < hotCount; i++) {
+					if (time % hotPeriod == 0) {
+						stamps.put(folders[i], new Long(now[0]));
+						pending.put(folders[i], new Long(now[0]));
+					}
+				}
+				if (time == coldChange) {
+					stamps.put(cold, new Long(now[0]));
+					pending.put(cold, new Long(now[0]));
+				}
+				long stats = monitor.getStatCount();
+				monitor.poll(now[0]);
+				stats = monitor.getStatCount() - stats;
+				assertTrue("1.0: " + stats + " stat calls exceed the budget", stats <= budget);
+			}
+		} finally {
+			monitor.unmonitor(null);
+			stamps.clear();
+		}
+		long statsPerMinute = monitor.getStatCount() * 60 * 1000 / duration;
+		long fixedPerMinute = (folderCount * (filesPerFolder + 1) + 1) * 60 * 1000 / cycle;
+		assertFalse("2.0", pending.containsKey(cold));
+		//at most the hot changes of the last period may still be pending
+		assertTrue("2.1: " + pending, pending.size() <= hotCount);
+		assertTrue("3.0: " + maxLatency[0], maxLatency[0] <= 2 * hotPeriod);
+		assertTrue("3.1: " + maxLatency[1], maxLatency[1] <= AdaptivePollingMonitor.DEFAULT_MAX_INTERVAL + (folderCount * (filesPerFolder + 1) / budget + 1) * cycle);
+		assertTrue("4.0: " + statsPerMinute, statsPerMinute * 10 <= fixedPerMinute);
+		ensureDoesNotExistInWorkspace(project);
+	}
+
+	/**
+	 * Editing the contents of an existing file does not change the stamp of
+	 * its folder, but is still detected by the adaptive polling monitor.
+	 */
+	public void testAdaptivePollingFileEdit() throws CoreException {
+		IProject project = getWorkspace().getRoot().getProject("testAdaptivePollingFileEdit");
+		IFolder folder = project.getFolder("folder");
+		IFile file = folder.getFile("file.txt");
+		IFile other = folder.getFile("other.txt");
+		ensureExistsInWorkspace(new IResource[] {project, folder, file, other}, true);
+		final List<IResource> refreshed = new ArrayList<IResource>();
+		IRefreshResult result = new IRefreshResult() {
+			public void monitorFailed(IRefreshMonitor monitor, IResource resource) {
+				fail("Monitor failed on " + resource);
+			}
+
+			public void refresh(IResource resource) {
+				refreshed.add(resource);
+			}
+		};
+		AdaptivePollingMonitor monitor = new AdaptivePollingMonitor(project, result);
+		try {
+			long now = System.currentTimeMillis();
+			monitor.poll(now + AdaptivePollingMonitor.DEFAULT_MAX_INTERVAL);
+			assertTrue("1.0: " + refreshed, refreshed.isEmpty());
+
+			//change the contents in place, and make sure the stamp differs
+			File location = file.getLocation().toFile();
+			long folderStamp = folder.getLocation().toFile().lastModified();
+			long fileStamp = location.lastModified();
+			try {
+				FileOutputStream out = new FileOutputStream(location);
+				try {
+					out.write("changed contents".getBytes());
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				fail("2.0", e);
+			}
+			assertTrue("2.1", location.setLastModified(fileStamp + 10000));
+			assertEquals("2.2", folderStamp, folder.getLocation().toFile().lastModified());
+
+			monitor.poll(now + 3 * AdaptivePollingMonitor.DEFAULT_MAX_INTERVAL);
+			assertEquals("3.0: " + refreshed, 1, refreshed.size());
+			assertEquals("3.1", file, refreshed.get(0));
+		} finally {
+			monitor.unmonitor(null);
+		}
+		ensureDoesNotExistInWorkspace(project);
+	}
+
+	/**
+	 * A tree of folders created in one step only changes the stamp of the
+	 * folder it was created in, but all of its folders are polled from then
+	 * on.
+	 */
+	public void testAdaptivePollingNewTree() throws CoreException {
+		IProject project = getWorkspace().getRoot().getProject("testAdaptivePollingNewTree");
+		ensureExistsInWorkspace(project, true);
+		final List<IResource> refreshed = new ArrayList<IResource>();
+		IRefreshResult result = new IRefreshResult() {
+			public void monitorFailed(IRefreshMonitor monitor, IResource resource) {
+				fail("Monitor failed on " + resource);
+			}
+
+			public void refresh(IResource resource) {
+				refreshed.add(resource);
+			}
+		};
+		AdaptivePollingMonitor monitor = new AdaptivePollingMonitor(project, result);
+		try {
+			long now = System.currentTimeMillis();
+			assertEquals("1.0", 1, monitor.getPolledCount());
+
+			//like mkdir -p a/b/c, with a file in the deepest folder
+			File projectLocation = project.getLocation().toFile();
+			long projectStamp = projectLocation.lastModified();
+			File deepest = new File(projectLocation, "a/b/c");
+			assertTrue("2.0", deepest.mkdirs());
+			File file = new File(deepest, "file.txt");
+			try {
+				assertTrue("2.1", file.createNewFile());
+			} catch (IOException e) {
+				fail("2.2", e);
+			}
+			//make sure the stamp of the project differs
+			assertTrue("2.3", projectLocation.setLastModified(projectStamp + 10000));
+
+			monitor.poll(now + AdaptivePollingMonitor.DEFAULT_MAX_INTERVAL);
+			assertEquals("3.0", 4, monitor.getPolledCount());
+			assertEquals("3.1: " + refreshed, 1, refreshed.size());
+			assertEquals("3.2", project, refreshed.get(0));
+
+			//change the file in the deepest folder in place
+			refreshed.clear();
+			long fileStamp = file.lastModified();
+			assertTrue("4.0", file.setLastModified(fileStamp + 10000));
+			monitor.poll(now + 3 * AdaptivePollingMonitor.DEFAULT_MAX_INTERVAL);
+			assertEquals("4.1: " + refreshed, 1, refreshed.size());
+			assertEquals("4.2", project.getFile("a/b/c/file.txt"), refreshed.get(0));
+		} finally {
+			monitor.unmonitor(null);
+		}
+		ensureDoesNotExistInWorkspace(project);
+	}
 }
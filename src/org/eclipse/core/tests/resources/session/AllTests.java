@@ -43,6 +43,7 @@ public class AllTests extends TestCase {
 		suite.addTest(Bug_266907.suite());
 		suite.addTest(TestBug297635.suite());
 		suite.addTest(TestBug323833.suite());
+		suite.addTest(TestHistoryAfterSave.suite());
 		// this one comes from org.eclipse.core.tests.resources.saveparticipant
 		// comment this out until we have a better solution for running these tests
 		// (keeping their contents inside this plugin as subdirs and dynamically installing
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.core.tests.resources.session;
+
+import junit.framework.Test;
+import org.eclipse.core.internal.resources.Workspace;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.tests.internal.localstore.HistoryStoreBackend;
+import org.eclipse.core.tests.internal.localstore.StagingBlobStore;
+import org.eclipse.core.tests.resources.AutomatedTests;
+import org.eclipse.core.tests.resources.WorkspaceSessionTest;
+import org.eclipse.core.tests.session.WorkspaceSessionTestSuite;
+
+/**
+ * Tests that history states added right before a save are available after
+ * a restart, when the history store stages new states and only writes them
+ * when the workspace is saved.
+ */
+public class TestHistoryAfterSave extends WorkspaceSessionTest {
+	private static final int STATES = 10;
+
+	public TestHistoryAfterSave() {
+		super();
+	}
+
+	public TestHistoryAfterSave(String name) {
+		super(name);
+	}
+
+	public void test1() throws CoreException {
+		Workspace workspace = (Workspace) getWorkspace();
+		//a delay long enough that only the save writes the staged states
+		StagingBlobStore staging = new StagingBlobStore(workspace, PI_RESOURCES_TESTS, 60000);
+		HistoryStoreBackend.install(workspace, staging);
+
+		IProject project = getWorkspace().getRoot().getProject("P1");
+		project.create(getMonitor());
+		project.open(getMonitor());
+		IFile file = project.getFile("file.txt");
+		file.create(getContents("state 0"), true, getMonitor());
+		for (int i = 1; i <= STATES; i++)
+			file.setContents(getContents("state " + i), IResource.KEEP_HISTORY, getMonitor());
+		assertEquals("1.0", STATES, staging.getPendingCount());
+		getWorkspace().save(true, getMonitor());
+		assertEquals("1.1", 0, staging.getPendingCount());
+	}
+
+	public void test2() throws CoreException {
+		IProject project = getWorkspace().getRoot().getProject("P1");
+		IFile file = project.getFile("file.txt");
+		IFileState[] states = file.getHistory(getMonitor());
+		assertEquals("1.0", STATES, states.length);
+		for (int i = 0; i < states.length; i++)
+			assertTrue("2." + i, compareContent(getContents("state " + (STATES - 1 - i)), states[i].getContents()));
+		project.delete(true, getMonitor());
+		getWorkspace().save(true, getMonitor());
+	}
+
+	public static Test suite() {
+		return new WorkspaceSessionTestSuite(AutomatedTests.PI_RESOURCES_TESTS, TestHistoryAfterSave.class);
+	}
+}
@@ -10,10 +10,16 @@
  *******************************************************************************/
 package org.eclipse.core.tests.resources.usecase;
 
+import java.io.IOException;
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import org.eclipse.core.filesystem.EFS;
+import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.core.internal.localstore.BlobStore;
+import org.eclipse.core.internal.resources.Workspace;
 import org.eclipse.core.resources.*;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.tests.internal.localstore.*;
 import org.eclipse.core.tests.resources.ResourceTest;
 
 public class HistoryStorePerformanceTest extends ResourceTest {
@@ -88,4 +94,68 @@ public class HistoryStorePerformanceTest extends ResourceTest {
 		endTime = System.currentTimeMillis();
 		System.out.println("Removing " + nTimes + " states: " + (endTime - startTime) + " milliseconds.");
 	}
+
+	/**
+	 * Adds states of a source file that grows by one line per state, and
+	 * reports the addState latency and how much of the history store size
+	 * compressing each state would save.
+	 */
+	public void testTextStates() {
+		HistoryStoreTest.wipeHistoryStore(getMonitor());
+		HistoryStoreUsage usage = addTextStates("Adding");
+		System.out.println("Compression would save " + (usage.getBlobBytes() - usage.getCompressedBytes()) + " of " + usage.getBlobBytes() + " bytes.");
+	}
+
+	/**
+	 * Adds the same states as {@link #testTextStates()} with a blob store
+	 * that compresses them, and reports the addState latency and the size
+	 * of the history store.
+	 */
+	public void testTextStatesCompressed() {
+		Workspace workspace = (Workspace) getWorkspace();
+		HistoryStoreTest.wipeHistoryStore(getMonitor());
+		IFileStore location = EFS.getLocalFileSystem().getStore(workspace.getMetaArea().getHistoryStoreLocation());
+		BlobStore original = HistoryStoreBackend.install(workspace, new CompressingBlobStore(location, 256, true));
+		try {
+			addTextStates("Adding compressed");
+		} finally {
+			HistoryStoreTest.wipeHistoryStore(getMonitor());
+			HistoryStoreBackend.install(workspace, original);
+		}
+	}
+
+	private HistoryStoreUsage addTextStates(String scenario) {
+		IProject project = getWorkspace().getRoot().getProject("Project");
+		IFile file = project.getFile("File.java");
+		StringBuffer contents = new StringBuffer();
+		for (int i = 0; i < 400; i++)
+			contents.append("\tpublic void method" + i + "(int argument) {\n\t\tfield = argument;\n\t}\n\n");
+		try {
+			file.create(getContents(contents.toString()), true, null);
+		} catch (CoreException e) {
+			fail("0.0", e);
+		}
+
+		int nTimes = 200;
+		long startTime = System.currentTimeMillis();
+		for (int i = 0; i < nTimes; i++) {
+			contents.append("\t// change " + i + "\n");
+			try {
+				file.setContents(getContents(contents.toString()), true, true, null);
+			} catch (CoreException e) {
+				fail("1.0", e);
+			}
+		}
+		long endTime = System.currentTimeMillis();
+		System.out.println(scenario + " " + nTimes + " text states of " + contents.length() + " characters: " + (endTime - startTime) + " milliseconds, " + ((endTime - startTime) * 1000 / nTimes) + " microseconds per state.");
+
+		HistoryStoreUsage usage = null;
+		try {
+			usage = HistoryStoreUsage.compute();
+		} catch (IOException e) {
+			fail("2.0", e);
+		}
+		System.out.println("History store: " + usage);
+		return usage;
+	}
 }